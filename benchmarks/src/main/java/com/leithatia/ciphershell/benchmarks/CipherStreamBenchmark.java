@@ -0,0 +1,66 @@
+package com.leithatia.ciphershell.benchmarks;
+
+import com.leithatia.ciphershell.util.CipherUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link CipherUtil#processStream} by payload size. Divide the payload size by the
+ * reported time per operation for bytes per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CipherStreamBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int payloadSize;
+
+    @Param({"1", "2"})
+    public int mode;
+
+    private byte[] payload;
+    private SecretKey secretKey;
+    private byte[] iv;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setUp() throws Exception {
+        secretKey = CipherUtil.generateKey("This is my super duper secret passphrase.".toCharArray(),
+                CipherUtil.generateSalt());
+        iv = CipherUtil.generateInitialVector();
+
+        byte[] plaintext = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(plaintext);
+        payload = mode == Cipher.ENCRYPT_MODE ? plaintext : readAll(CipherUtil.processStream(
+                new ByteArrayInputStream(plaintext), secretKey, iv, Cipher.ENCRYPT_MODE));
+    }
+
+    @Benchmark
+    public long processStream() throws Exception {
+        long total = 0;
+        try (InputStream inputStream = CipherUtil.processStream(new ByteArrayInputStream(payload), secretKey, iv,
+                mode)) {
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                total += bytesRead;
+            }
+        }
+        return total;
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws Exception {
+        try (inputStream) {
+            return inputStream.readAllBytes();
+        }
+    }
+}
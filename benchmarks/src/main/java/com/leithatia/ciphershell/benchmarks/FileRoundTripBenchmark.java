@@ -0,0 +1,75 @@
+package com.leithatia.ciphershell.benchmarks;
+
+import com.leithatia.ciphershell.file.FileProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures end-to-end encryption and decryption of generated files from 1 KB to 4 GB, key derivation
+ * included. Files are generated in a temporary directory, or below the directory given by the
+ * {@code ciphershell.bench.dir} system property so that a specific disk can be measured. Select sizes with
+ * e.g. {@code -p fileSize=1024,1048576}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+public class FileRoundTripBenchmark {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    @Param({"1024", "1048576", "67108864", "1073741824", "4294967296"})
+    public long fileSize;
+
+    private Path directory;
+    private Path plainFile;
+    private Path encryptedFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String parent = System.getProperty("ciphershell.bench.dir");
+        directory = parent == null ? Files.createTempDirectory("ciphershell-bench")
+                : Files.createTempDirectory(Path.of(parent), "ciphershell-bench");
+        plainFile = directory.resolve("payload.bin");
+        encryptedFile = directory.resolve("payload.enc");
+
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(fileSize).nextBytes(block);
+        try (OutputStream outputStream = Files.newOutputStream(plainFile)) {
+            for (long written = 0; written < fileSize; written += BLOCK_SIZE) {
+                outputStream.write(block, 0, (int) Math.min(BLOCK_SIZE, fileSize - written));
+            }
+        }
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void encrypt() throws Exception {
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray());
+    }
+
+    @Benchmark
+    public void decrypt() throws Exception {
+        FileProcessor.processFileForDecryption(encryptedFile.toString(), PASSPHRASE.toCharArray());
+    }
+}
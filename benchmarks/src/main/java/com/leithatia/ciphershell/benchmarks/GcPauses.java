@@ -0,0 +1,127 @@
+package com.leithatia.ciphershell.benchmarks;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the garbage collections reported by the collectors between {@link #start()} and {@link #stop()}.
+ * Collectors which mostly run concurrently report their cycles and their pauses separately, e.g. "ZGC
+ * Cycles" and "ZGC Pauses"; only the pauses are counted. The durations are those of the notifications, in
+ * whole milliseconds.
+ */
+final class GcPauses implements NotificationListener {
+    private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private long count;
+    private long totalMillis;
+    private long maxMillis;
+
+    private GcPauses() {
+    }
+
+    /**
+     * @return the pauses from now on, until {@link #stop()}.
+     */
+    static GcPauses start() {
+        GcPauses pauses = new GcPauses();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter emitter && !collector.getName().endsWith("Cycles")) {
+                emitter.addNotificationListener(pauses, null, null);
+                pauses.emitters.add(emitter);
+            }
+        }
+        return pauses;
+    }
+
+    /**
+     * Runs a full collection and waits until the collectors have delivered its notifications. They arrive on
+     * another thread some time after the collection, and would otherwise be counted by pauses started right
+     * after it. Gives up after a few seconds, e.g. where explicit collections are disabled.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    static void collect() throws InterruptedException {
+        Map<String, Long> reported = new ConcurrentHashMap<>();
+        NotificationListener listener = (notification, handback) -> {
+            if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                long id = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                        .getGcInfo().getId();
+                reported.merge((String) handback, id, Math::max);
+            }
+        };
+        List<GarbageCollectorMXBean> collectors = new ArrayList<>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter emitter) {
+                emitter.addNotificationListener(listener, null, collector.getName());
+                collectors.add(collector);
+            }
+        }
+        try {
+            long[] before = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).toArray();
+            System.gc();
+            long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+            for (int i = 0; i < collectors.size(); i++) {
+                // the id of a collection is the number of collections the collector has done
+                long collections = collectors.get(i).getCollectionCount();
+                while (collections > before[i] && reported.getOrDefault(collectors.get(i).getName(), 0L) < collections
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+            }
+        } finally {
+            for (GarbageCollectorMXBean collector : collectors) {
+                try {
+                    ((NotificationEmitter) collector).removeNotificationListener(listener);
+                } catch (ListenerNotFoundException e) {
+                    // already removed
+                }
+            }
+        }
+    }
+
+    void stop() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException e) {
+                // already removed
+            }
+        }
+        emitters.clear();
+    }
+
+    @Override
+    public synchronized void handleNotification(Notification notification, Object handback) {
+        if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+            long duration = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                    .getGcInfo().getDuration();
+            count++;
+            totalMillis += duration;
+            maxMillis = Math.max(maxMillis, duration);
+        }
+    }
+
+    synchronized long count() {
+        return count;
+    }
+
+    synchronized long totalMillis() {
+        return totalMillis;
+    }
+
+    synchronized long maxMillis() {
+        return maxMillis;
+    }
+}
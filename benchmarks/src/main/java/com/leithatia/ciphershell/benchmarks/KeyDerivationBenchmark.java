@@ -0,0 +1,33 @@
+package com.leithatia.ciphershell.benchmarks;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of deriving a key from a passphrase with {@link CipherUtil#generateKey(char[], byte[])}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+public class KeyDerivationBenchmark {
+
+    private final char[] passphrase = "This is my super duper secret passphrase.".toCharArray();
+    private byte[] salt;
+
+    @Setup
+    public void setUp() {
+        salt = CipherUtil.generateSalt();
+    }
+
+    @Benchmark
+    public SecretKey generateKey() throws CryptoException {
+        return CipherUtil.generateKey(passphrase, salt);
+    }
+}
@@ -0,0 +1,350 @@
+package com.leithatia.ciphershell.benchmarks;
+
+import com.leithatia.ciphershell.file.EngineConfig;
+import com.leithatia.ciphershell.file.FileProcessor;
+import com.leithatia.ciphershell.metrics.RunStats;
+import com.leithatia.ciphershell.util.CommandLine;
+import com.leithatia.ciphershell.util.KdfParameters;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Drives {@link FileProcessor#processFileForEncryption} and {@link FileProcessor#processFileForDecryption} the
+ * way a busy server would, for capacity planning rather than for measuring a single operation like the JMH
+ * benchmarks. A synthetic corpus of files with a mix of sizes is generated first, then jobs arrive at a
+ * given rate and run on a fixed number of threads. The results are printed as one JSON object:
+ * <ul>
+ *     <li>p50, p95 and p99 latency, from the time each job was due to arrive to its completion, so that time
+ *     spent queueing behind slow jobs counts, and the service time of each job on its own;</li>
+ *     <li>jobs per second and plaintext megabytes per second;</li>
+ *     <li>garbage collection pauses, as reported by the collectors;</li>
+ *     <li>the peak resident set size of the process, and the peak heap usage;</li>
+ *     <li>the {@link RunStats} of the run.</li>
+ * </ul>
+ * Usage: {@code LoadGenerator <encrypt|decrypt|mixed> [--jobs N] [--concurrency N] [--rate JOBS_PER_SECOND]
+ * [--sizes SIZE:WEIGHT,...] [--files N] [--dir DIRECTORY] [--kdf-iterations N] [--seed N] [--output FILE]
+ * [--keep]}. Without {@code --rate}, jobs are queued all at once and latency is the service time. To measure
+ * a slow disk, put the corpus on it with {@code --dir}.
+ */
+public class LoadGenerator {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+    private static final String DEFAULT_SIZES = "4k:60,256k:25,4m:10,64m:5";
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final Set<String> VALUE_OPTIONS = Set.of("--jobs", "--concurrency", "--rate", "--sizes",
+            "--files", "--dir", "--kdf-iterations", "--seed", "--output");
+
+    private enum Mode {ENCRYPT, DECRYPT, MIXED}
+
+    public static void main(String[] args) throws Exception {
+        CommandLine commandLine;
+        Mode mode;
+        int jobs;
+        int concurrency;
+        double rate;
+        int files;
+        long seed;
+        KdfParameters kdfParameters;
+        SizeDistribution sizes;
+        try {
+            commandLine = CommandLine.parse(args, VALUE_OPTIONS);
+            mode = Mode.valueOf(commandLine.command().toUpperCase(Locale.ROOT));
+            jobs = commandLine.intOption("--jobs", 100);
+            concurrency = commandLine.intOption("--concurrency", Runtime.getRuntime().availableProcessors());
+            rate = rate(commandLine);
+            files = Math.max(concurrency, commandLine.intOption("--files", 4 * concurrency));
+            seed = seed(commandLine);
+            kdfParameters = KdfParameters.DEFAULT
+                    .withIterations(commandLine.intOption("--kdf-iterations", KdfParameters.DEFAULT.iterations()));
+            sizes = SizeDistribution.parse(commandLine.options().getOrDefault("--sizes", DEFAULT_SIZES));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGenerator <encrypt|decrypt|mixed> [--jobs N] [--concurrency N]"
+                    + " [--rate JOBS_PER_SECOND] [--sizes SIZE:WEIGHT,...] [--files N] [--dir DIRECTORY]"
+                    + " [--kdf-iterations N] [--seed N] [--output FILE] [--keep]");
+            System.exit(2);
+            return;
+        }
+
+        String parent = commandLine.options().get("--dir");
+        Path directory = parent == null ? Files.createTempDirectory("ciphershell-load")
+                : Files.createTempDirectory(Files.createDirectories(Path.of(parent)), "ciphershell-load");
+        PrintStream out = System.out;
+        // The processors print a line per file, which would bury the report.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Random random = new Random(seed);
+            long[] fileSizes = generateCorpus(directory, files, sizes, random, mode != Mode.ENCRYPT, kdfParameters);
+            Mode[] jobModes = new Mode[jobs];
+            for (int i = 0; i < jobs; i++) {
+                jobModes[i] = mode != Mode.MIXED ? mode : random.nextBoolean() ? Mode.ENCRYPT : Mode.DECRYPT;
+            }
+            long[] arrivals = arrivals(jobs, rate, random);
+
+            String report = run(directory, fileSizes, jobModes, arrivals, rate > 0, concurrency, kdfParameters)
+                    .toJson(mode.name().toLowerCase(Locale.ROOT), rate, files, Arrays.stream(fileSizes).sum());
+            String output = commandLine.options().get("--output");
+            if (output == null) {
+                out.println(report);
+            } else {
+                Files.writeString(Path.of(output), report + System.lineSeparator(), StandardCharsets.UTF_8);
+            }
+        } finally {
+            System.setOut(out);
+            if (!commandLine.hasOption("--keep")) {
+                delete(directory);
+            }
+        }
+    }
+
+    private static double rate(CommandLine commandLine) {
+        String value = commandLine.options().getOrDefault("--rate", "0");
+        try {
+            double rate = Double.parseDouble(value);
+            if (rate >= 0) {
+                return rate;
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Option --rate requires a number of jobs per second, got '" + value
+                + "'.");
+    }
+
+    private static long seed(CommandLine commandLine) {
+        String value = commandLine.options().getOrDefault("--seed", "1");
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --seed requires a whole number, got '" + value + "'.");
+        }
+    }
+
+    /**
+     * Writes the plaintext files {@code plain/<i>.bin} and, for runs which decrypt, their encrypted copies
+     * {@code encrypted/<i>.enc}, so that decrypting writes {@code encrypted/<i>.bin} and never touches the
+     * files being encrypted.
+     *
+     * @return the size of each file.
+     */
+    private static long[] generateCorpus(Path directory, int files, SizeDistribution sizes, Random random,
+                                         boolean encrypted, KdfParameters kdfParameters) throws Exception {
+        Path plain = Files.createDirectories(directory.resolve("plain"));
+        Path encryptedDirectory = Files.createDirectories(directory.resolve("encrypted"));
+        byte[] block = new byte[BLOCK_SIZE];
+        long[] fileSizes = new long[files];
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray(), null, kdfParameters)) {
+            for (int i = 0; i < files; i++) {
+                fileSizes[i] = sizes.sample(random);
+                Path file = plain.resolve(i + ".bin");
+                try (OutputStream outputStream = Files.newOutputStream(file)) {
+                    for (long written = 0; written < fileSizes[i]; written += BLOCK_SIZE) {
+                        random.nextBytes(block);
+                        outputStream.write(block, 0, (int) Math.min(BLOCK_SIZE, fileSizes[i] - written));
+                    }
+                }
+                if (encrypted) {
+                    FileProcessor.processFileForEncryption(file.toString(), masterKeys, EngineConfig.defaults());
+                    Files.move(plain.resolve(i + ".enc"), encryptedDirectory.resolve(i + ".enc"));
+                }
+            }
+        }
+        return fileSizes;
+    }
+
+    /**
+     * @return the time each job is due, in nanoseconds from the start of the run: a Poisson process at the
+     * given rate, or all at once for a rate of 0.
+     */
+    private static long[] arrivals(int jobs, double rate, Random random) {
+        long[] arrivals = new long[jobs];
+        double time = 0;
+        for (int i = 0; rate > 0 && i < jobs; i++) {
+            arrivals[i] = (long) time;
+            time -= Math.log(1 - random.nextDouble()) / rate * 1e9;
+        }
+        return arrivals;
+    }
+
+    private static LoadReport run(Path directory, long[] fileSizes, Mode[] jobModes, long[] arrivals,
+                                  boolean openLoop, int concurrency, KdfParameters kdfParameters)
+            throws Exception {
+        int jobs = jobModes.length;
+        long[] latencies = new long[jobs];
+        long[] serviceTimes = new long[jobs];
+        boolean[] failed = new boolean[jobs];
+        AtomicLong bytes = new AtomicLong();
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        BlockingQueue<Integer> idleFiles = new ArrayBlockingQueue<>(fileSizes.length);
+        for (int i = 0; i < fileSizes.length; i++) {
+            idleFiles.add(i);
+        }
+
+        GcPauses.collect();
+        GcPauses gcPauses = GcPauses.start();
+        resetPeaks();
+        RunStats.Snapshot before = RunStats.snapshot();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < jobs; i++) {
+                long due = start + arrivals[i];
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+                int job = i;
+                executor.execute(() -> {
+                    long begin = System.nanoTime();
+                    int file = idleFiles.remove();
+                    try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray(), null, kdfParameters)) {
+                        if (jobModes[job] == Mode.ENCRYPT) {
+                            FileProcessor.processFileForEncryption(
+                                    directory.resolve("plain").resolve(file + ".bin").toString(), masterKeys,
+                                    EngineConfig.defaults());
+                        } else {
+                            FileProcessor.processFileForDecryption(
+                                    directory.resolve("encrypted").resolve(file + ".enc").toString(), masterKeys);
+                        }
+                        bytes.addAndGet(fileSizes[file]);
+                    } catch (Exception e) {
+                        failed[job] = true;
+                        firstFailure.compareAndSet(null, e);
+                    } finally {
+                        idleFiles.add(file);
+                    }
+                    long end = System.nanoTime();
+                    serviceTimes[job] = end - begin;
+                    latencies[job] = end - (openLoop ? start + arrivals[job] : begin);
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        long elapsed = System.nanoTime() - start;
+        RunStats.Snapshot stats = RunStats.snapshot().minus(before);
+        gcPauses.stop();
+
+        if (firstFailure.get() != null) {
+            System.err.println("A job failed: " + firstFailure.get());
+        }
+        List<Long> completedLatencies = new ArrayList<>();
+        List<Long> completedServiceTimes = new ArrayList<>();
+        for (int i = 0; i < jobs; i++) {
+            if (!failed[i]) {
+                completedLatencies.add(latencies[i]);
+                completedServiceTimes.add(serviceTimes[i]);
+            }
+        }
+        return new LoadReport(jobs, concurrency, completedLatencies.size(), elapsed, bytes.get(),
+                LoadReport.Percentiles.of(completedLatencies), LoadReport.Percentiles.of(completedServiceTimes),
+                gcPauses, peakRssBytes(), peakHeapBytes(), stats);
+    }
+
+    /**
+     * Resets the peak resident set size where the kernel allows it, and the peak usage of the heap, so that
+     * generating the corpus does not count.
+     */
+    private static void resetPeaks() {
+        try {
+            Files.writeString(Path.of("/proc/self/clear_refs"), "5");
+        } catch (IOException | UnsupportedOperationException e) {
+            // the peak then covers the whole process
+        }
+        heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+    }
+
+    /**
+     * @return the peak resident set size of the process, or -1 where {@code /proc} does not report it.
+     */
+    private static long peakRssBytes() {
+        try (Stream<String> lines = Files.lines(Path.of("/proc/self/status"))) {
+            return lines.filter(line -> line.startsWith("VmHWM:")).findFirst()
+                    .map(line -> Long.parseLong(line.replaceAll("\\D", "")) * 1024).orElse(-1L);
+        } catch (IOException | UncheckedIOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long peakHeapBytes() {
+        return heapPools().stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP && pool.isValid()).toList();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * File sizes drawn with given weights, parsed from e.g. {@code 4k:60,64m:5}.
+     *
+     * @param sizes   the sizes in bytes.
+     * @param weights the relative weight of each size.
+     */
+    record SizeDistribution(long[] sizes, int[] weights) {
+
+        static SizeDistribution parse(String spec) {
+            String[] entries = spec.split(",");
+            long[] sizes = new long[entries.length];
+            int[] weights = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                try {
+                    sizes[i] = CommandLine.parseSize(parts[0]);
+                    weights[i] = parts.length == 1 ? 1 : Integer.parseInt(parts[1]);
+                } catch (IllegalArgumentException e) {
+                    sizes[i] = -1;
+                }
+                if (parts.length > 2 || sizes[i] < 0 || weights[i] <= 0) {
+                    throw new IllegalArgumentException("Invalid size and weight '" + entries[i]
+                            + "', expected e.g. 256k:25.");
+                }
+            }
+            return new SizeDistribution(sizes, weights);
+        }
+
+        long sample(Random random) {
+            int pick = random.nextInt(Arrays.stream(weights).sum());
+            for (int i = 0; ; i++) {
+                pick -= weights[i];
+                if (pick < 0) {
+                    return sizes[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.leithatia.ciphershell.benchmarks;
+
+import com.leithatia.ciphershell.metrics.RunStats;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The outcome of a {@link LoadGenerator} run.
+ *
+ * @param jobs          the number of jobs run.
+ * @param concurrency   the number of jobs run at once.
+ * @param completed     the number of jobs which succeeded; failed jobs are left out of the percentiles.
+ * @param elapsedNanos  the wall clock time from the first arrival to the last completion.
+ * @param bytes         the plaintext bytes of the jobs which succeeded.
+ * @param latency       the time from the arrival of each job to its completion.
+ * @param serviceTime   the time from the start of each job to its completion.
+ * @param gcPauses      the garbage collection pauses during the run.
+ * @param peakRssBytes  the peak resident set size of the process, or -1 if unknown.
+ * @param peakHeapBytes the peak heap usage during the run.
+ * @param stats         the counters of the file processors during the run.
+ */
+record LoadReport(int jobs, int concurrency, int completed, long elapsedNanos, long bytes, Percentiles latency,
+                  Percentiles serviceTime, GcPauses gcPauses, long peakRssBytes, long peakHeapBytes,
+                  RunStats.Snapshot stats) {
+
+    /**
+     * Formats the report as a single line of JSON, with times in milliseconds.
+     *
+     * @param mode        what the jobs did, e.g. "encrypt".
+     * @param rate        the arrival rate in jobs per second, 0 if all jobs arrived at once.
+     * @param files       the number of files in the corpus.
+     * @param corpusBytes the size of the corpus.
+     * @return the JSON object.
+     */
+    String toJson(String mode, double rate, int files, long corpusBytes) {
+        double seconds = elapsedNanos / 1e9;
+        return String.format(Locale.ROOT, "{\"mode\":\"%s\",\"jobs\":%d,\"concurrency\":%d,\"arrivalRate\":%.2f,"
+                        + "\"files\":%d,\"corpusBytes\":%d,\"completed\":%d,\"failed\":%d,\"elapsedMillis\":%d,"
+                        + "\"jobsPerSecond\":%.2f,\"throughputMBps\":%.2f,\"latencyMillis\":%s,\"serviceMillis\":%s,"
+                        + "\"gc\":{\"pauses\":%d,\"pauseMillis\":%d,\"maxPauseMillis\":%d},\"peakRssBytes\":%d,"
+                        + "\"peakHeapBytes\":%d,\"stats\":%s}",
+                mode, jobs, concurrency, rate, files, corpusBytes, completed, jobs - completed,
+                elapsedNanos / 1_000_000, seconds > 0 ? completed / seconds : 0,
+                seconds > 0 ? bytes / (1024.0 * 1024.0) / seconds : 0, latency.toJson(), serviceTime.toJson(),
+                gcPauses.count(), gcPauses.totalMillis(), gcPauses.maxMillis(), peakRssBytes, peakHeapBytes,
+                stats.toJson(elapsedNanos));
+    }
+
+    /**
+     * Nearest-rank percentiles of a set of durations.
+     *
+     * @param p50  the median, in nanoseconds.
+     * @param p95  the 95th percentile, in nanoseconds.
+     * @param p99  the 99th percentile, in nanoseconds.
+     * @param max  the longest duration, in nanoseconds.
+     * @param mean the mean, in nanoseconds.
+     */
+    record Percentiles(long p50, long p95, long p99, long max, long mean) {
+
+        static Percentiles of(List<Long> durations) {
+            long[] sorted = durations.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (sorted.length == 0) {
+                return new Percentiles(0, 0, 0, 0, 0);
+            }
+            return new Percentiles(rank(sorted, 50), rank(sorted, 95), rank(sorted, 99), sorted[sorted.length - 1],
+                    (long) durations.stream().mapToLong(Long::longValue).average().orElse(0));
+        }
+
+        private static long rank(long[] sorted, int percentile) {
+            return sorted[(int) Math.ceil(percentile / 100.0 * sorted.length) - 1];
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT, "{\"p50\":%.2f,\"p95\":%.2f,\"p99\":%.2f,\"max\":%.2f,\"mean\":%.2f}",
+                    p50 / 1e6, p95 / 1e6, p99 / 1e6, max / 1e6, mean / 1e6);
+        }
+    }
+}
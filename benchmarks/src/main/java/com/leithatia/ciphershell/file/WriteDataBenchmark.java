@@ -0,0 +1,51 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.util.CipherUtil;
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link FileProcessor#writeData(OutputStream, InputStream, int)} copying a 16 MB cipher stream at
+ * different buffer sizes. Lives in the {@code file} package as {@code writeData} is package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WriteDataBenchmark {
+
+    private static final int PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    @Param({"1024", "8192", "65536", "1048576"})
+    public int bufferSize;
+
+    private byte[] payload;
+    private SecretKey secretKey;
+    private byte[] iv;
+
+    @Setup
+    public void setUp() throws Exception {
+        secretKey = CipherUtil.generateKey("This is my super duper secret passphrase.".toCharArray(),
+                CipherUtil.generateSalt());
+        iv = CipherUtil.generateInitialVector();
+        payload = new byte[PAYLOAD_SIZE];
+        new Random(PAYLOAD_SIZE).nextBytes(payload);
+    }
+
+    @Benchmark
+    public void writeData() throws Exception {
+        try (InputStream inputStream = CipherUtil.processStream(new ByteArrayInputStream(payload), secretKey, iv,
+                Cipher.ENCRYPT_MODE)) {
+            FileProcessor.writeData(OutputStream.nullOutputStream(), inputStream, bufferSize);
+        }
+    }
+}
@@ -1,53 +1,220 @@
 package com.leithatia.ciphershell;
 
+import com.leithatia.ciphershell.daemon.CipherShellDaemon;
+import com.leithatia.ciphershell.daemon.DaemonClient;
+import com.leithatia.ciphershell.daemon.KeyAgent;
+import com.leithatia.ciphershell.daemon.KeyAgentClient;
 import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.file.BatchProcessor;
+import com.leithatia.ciphershell.file.ContainerEntry;
+import com.leithatia.ciphershell.file.DirectoryWatcher;
+import com.leithatia.ciphershell.file.EngineConfig;
 import com.leithatia.ciphershell.file.FileProcessor;
+import com.leithatia.ciphershell.file.HeaderScanner;
+import com.leithatia.ciphershell.metrics.RunStats;
 import com.leithatia.ciphershell.passphrase.PassphraseHandler;
+import com.leithatia.ciphershell.store.ChunkRepository;
+import com.leithatia.ciphershell.store.StoreResult;
+import com.leithatia.ciphershell.util.CipherSuite;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.CommandLine;
+import com.leithatia.ciphershell.util.KdfCalibrator;
+import com.leithatia.ciphershell.util.KdfParameters;
+import com.leithatia.ciphershell.util.MasterKeyCache;
 
-import javax.crypto.Cipher;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
 
 /**
  * The main entry point for the CipherShell application.
  */
 public class CipherShellApp {
 
+    private static final String USAGE = """
+            Usage: ciphershell <encrypt|decrypt> [options] <filename>
+                   ciphershell <encrypt|decrypt> --recursive [--parallelism <n>] [options] <directory>
+                   ciphershell <encrypt|decrypt> --passphrase-env <name>|--passphrase-fd <n> -
+                   ciphershell decrypt --range <offset>:<length> [options] <filename>
+                   ciphershell update [options] <filename> <encrypted file>
+                   ciphershell verify [--recursive [--parallelism <n>]] [options] <filename|directory>
+                   ciphershell rekey [--recursive [--parallelism <n>]] [options] <filename|directory>
+                   ciphershell pack [options] <container> <file|directory>...
+                   ciphershell list [options] <container>
+                   ciphershell extract [options] <container> [<entry>...]
+                   ciphershell store --repo <directory> [--parallelism <n>] [options] <filename>
+                   ciphershell restore --repo <directory> [--parallelism <n>] [options] <index file>
+                   ciphershell scan [--format csv|json] [--parallelism <n>] <filename|directory>
+                   ciphershell watch [--quiet-ms <ms>] [--parallelism <n>] [options] <directory>
+                   ciphershell calibrate [--kdf <function>] [--target-ms <ms>]
+                   ciphershell serve [--socket <path>] [--parallelism <n>]
+                   ciphershell agent [--socket <path>] [--ttl <seconds>] [--max-keys <n>]
+
+            Options:
+              --passphrase-env <name>  read the passphrase from an environment variable
+              --passphrase-fd <n>      read the passphrase from the first line of a file descriptor
+              --new-passphrase-env <name>, --new-passphrase-fd <n>
+                                       the same for the passphrase 'rekey' changes to
+              --range <offset>:<length> decrypt only the given byte range to standard output
+              --compress               compress files before encrypting them, unless they do not shrink
+              --resume                 continue encrypting or decrypting a file from where an interrupted
+                                       run last checkpointed it
+              --cipher <suite>         seal new files with aes-gcm (default), aes-ctr-hmac or chacha20-poly1305,
+                                       or 'auto' for whichever is fastest on this host
+              --volume-size <size>     split the encrypted file into volumes of at most <size> bytes, e.g. 4g
+                                       or 500m, encrypted in parallel; decrypting any volume joins them all
+              --kdf <function>         derive keys for new files with pbkdf2-sha256 (default) or pbkdf2-sha512
+              --kdf-iterations <n>     the cost of deriving keys for new files, 65536 by default; see 'calibrate'
+              --target-ms <ms>         how long 'calibrate' aims for one key derivation to take, 250 by default
+              --format <csv|json>      how 'scan' lists encrypted files: CSV (default) or a JSON object per line
+              --quiet-ms <ms>          how long a file must stay unchanged before 'watch' encrypts it,
+                                       500 by default
+              --daemon                 hand the file to a running 'ciphershell serve' instead
+              --repo <directory>       the deduplicating chunk repository to store files in or restore
+                                       them from; 'store' creates it if it does not exist
+              --stats                  print bytes processed, throughput and time spent deriving keys,
+                                       on I/O and on ciphers as JSON to standard error
+              --socket <path>          the daemon or agent socket, by default $CIPHERSHELL_SOCKET or
+                                       $CIPHERSHELL_AGENT_SOCKET, else one in $XDG_RUNTIME_DIR
+            Decryption asks the key agent named by $CIPHERSHELL_AGENT_SOCKET for keys before prompting.
+            A filename of '-' reads from standard input and writes to standard output.""";
+    private static final String STANDARD_STREAMS = "-";
+    private static final Set<String> VALUE_OPTIONS = Set.of("--parallelism", "--passphrase-env", "--passphrase-fd",
+            "--range", "--socket", "--ttl", "--max-keys", "--repo", "--new-passphrase-env", "--new-passphrase-fd",
+            "--kdf", "--kdf-iterations", "--target-ms", "--format", "--quiet-ms", "--cipher",
+            "--volume-size");
+
+    /**
+     * The counters and time {@code --stats} reports against. They are taken again once a passphrase has been
+     * obtained, so that the time spent typing it is not reported as processing time.
+     */
+    private static volatile RunStats.Snapshot statsBefore;
+    private static volatile long startNanos;
+
     /**
      * The main method that processes command-line arguments and performs encryption or decryption.
      *
-     * @param args command-line arguments specifying the mode (encrypt/decrypt) and the file path.
+     * @param args command-line arguments specifying the mode (encrypt/decrypt), options and the file path.
      */
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: ciphershell <encrypt|decrypt> <filename>");
-            System.exit(1);
+        CommandLine commandLine = null;
+        try {
+            CommandLine parsed = CommandLine.parse(args, VALUE_OPTIONS);
+            kdfParameters(parsed);
+            engineConfig(parsed);
+            commandLine = parsed;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
         }
-
-        String mode = args[0];
-        String filepath = args[1];
-
-        if (!Paths.get(filepath).toFile().exists()) {
-            System.out.println("File '" + filepath + "' does not exist.");
+        if (commandLine == null) {
+            System.out.println(USAGE);
             System.exit(1);
         }
 
+        String mode = commandLine.command();
+        List<String> arguments = commandLine.arguments();
+
+        startStats();
         try {
             switch (mode) {
-                case "-e", "encrypt" -> encryptFile(filepath);
-                case "-d", "decrypt" -> decryptFile(filepath);
+                case "-e", "encrypt" -> {
+                    String filepath = requireFile(commandLine);
+                    if (filepath.equals(STANDARD_STREAMS)) {
+                        encryptStandardStreams(commandLine);
+                    } else if (commandLine.hasOption("--recursive")) {
+                        encryptDirectory(filepath, commandLine);
+                    } else if (commandLine.hasOption("--daemon")) {
+                        submitToDaemon(filepath, commandLine, true);
+                    } else {
+                        encryptFile(filepath, commandLine);
+                    }
+                }
+                case "-d", "decrypt" -> {
+                    String filepath = requireFile(commandLine);
+                    if (filepath.equals(STANDARD_STREAMS)) {
+                        decryptStandardStreams(commandLine);
+                    } else if (commandLine.hasOption("--range")) {
+                        decryptRange(filepath, commandLine);
+                    } else if (commandLine.hasOption("--recursive")) {
+                        decryptDirectory(filepath, commandLine);
+                    } else if (commandLine.hasOption("--daemon")) {
+                        submitToDaemon(filepath, commandLine, false);
+                    } else {
+                        decryptFile(filepath, commandLine);
+                    }
+                }
+                case "verify" -> {
+                    String filepath = requireFile(commandLine);
+                    if (commandLine.hasOption("--recursive")) {
+                        verifyDirectory(filepath, commandLine);
+                    } else {
+                        verifyFile(filepath, commandLine);
+                    }
+                }
+                case "rekey" -> {
+                    String filepath = requireFile(commandLine);
+                    if (commandLine.hasOption("--recursive")) {
+                        rekeyDirectory(filepath, commandLine);
+                    } else {
+                        rekeyFile(filepath, commandLine);
+                    }
+                }
+                case "update" -> {
+                    requireArguments(commandLine, 2, 2);
+                    updateFile(arguments.get(0), arguments.get(1), commandLine);
+                }
+                case "pack" -> {
+                    requireArguments(commandLine, 2, Integer.MAX_VALUE);
+                    packFiles(arguments.get(0), arguments.subList(1, arguments.size()), commandLine);
+                }
+                case "extract" -> {
+                    requireArguments(commandLine, 1, Integer.MAX_VALUE);
+                    extractFiles(arguments.get(0), arguments.subList(1, arguments.size()), commandLine);
+                }
+                case "list" -> listContainer(requireFile(commandLine), commandLine);
+                case "scan" -> scan(requireFile(commandLine), commandLine);
+                case "watch" -> watch(requireFile(commandLine), commandLine);
+                case "store" -> storeFile(requireFile(commandLine), commandLine);
+                case "restore" -> restoreFile(requireFile(commandLine), commandLine);
+                case "serve" -> {
+                    requireArguments(commandLine, 0, 0);
+                    serve(commandLine);
+                }
+                case "agent" -> {
+                    requireArguments(commandLine, 0, 0);
+                    runKeyAgent(commandLine);
+                }
+                case "calibrate" -> {
+                    requireArguments(commandLine, 0, 0);
+                    calibrate(commandLine);
+                }
                 default -> {
-                    System.err.println("Unknown argument: " + args[1] + ". Use 'encrypt' or 'decrypt'.");
+                    System.err.println("Unknown argument: " + mode + ". Use 'encrypt' or 'decrypt'.");
                     System.exit(1);
                 }
             }
+            if (commandLine.hasOption("--stats")) {
+                RunStats.Snapshot stats = RunStats.snapshot().minus(statsBefore);
+                System.err.println(stats.toJson(System.nanoTime() - startNanos));
+            }
 
         } catch (CryptoException e) {
-            System.out.println("Cryptographic error: " + e.getMessage());
+            System.err.println("Cryptographic error: " + e.getMessage());
+            System.exit(1);
         } catch (IOException e) {
-            System.out.println("File processing error: Bad passphrase or corrupted file.");
+            System.err.println("File processing error: Bad passphrase or corrupted file.");
+            System.exit(1);
         } catch (Exception e) {
-            System.out.println("An unexpected error occurred: " + e.getMessage());
+            System.err.println("An unexpected error occurred: " + e.getMessage());
+            System.exit(1);
         }
 
     }
@@ -55,27 +222,748 @@ public class CipherShellApp {
     /**
      * Encrypts the specified file.
      *
-     * @param filepath the path of the file to encrypt.
+     * @param filepath    the path of the file to encrypt.
+     * @param commandLine the command line holding the passphrase, compression, resume and cipher options.
      * @throws Exception if an error occurs during encryption.
      */
-    private static void encryptFile(String filepath) throws Exception {
-        FileProcessor.setEncryptionMode(Cipher.ENCRYPT_MODE);
-        FileProcessor.processFileForEncryption(filepath, PassphraseHandler.requestPassphrase());
+    private static void encryptFile(String filepath, CommandLine commandLine) throws Exception {
+        if (hasEncFileExtension(filepath)) {
+            System.out.println("File appears to already be encrypted.");
+            System.exit(1);
+        }
+        try (MasterKeyCache masterKeys = encryptionKeys(commandLine)) {
+            FileProcessor.processFileForEncryption(filepath, masterKeys, engineConfig(commandLine));
+        }
     }
 
     /**
      * Decrypts the specified file.
      *
-     * @param filepath the path of the file to decrypt.
+     * @param filepath    the path of the file to decrypt.
+     * @param commandLine the command line holding the passphrase and resume options.
      * @throws Exception if an error occurs during decryption.
      */
-    private static void decryptFile(String filepath) throws Exception {
-        if (hasEncFileExtension(filepath)) {
+    private static void decryptFile(String filepath, CommandLine commandLine) throws Exception {
+        try (MasterKeyCache masterKeys = decryptionKeys(commandLine)) {
+            FileProcessor.processFileForDecryption(filepath, masterKeys,
+                    EngineConfig.defaults().withResume(commandLine.hasOption("--resume")));
+        }
+    }
+
+    /**
+     * Re-encrypts the chunks of an encrypted file which differ from its plaintext, exiting with a non-zero
+     * status if that fails.
+     *
+     * @param filepath          the path of the changed plaintext.
+     * @param encryptedFilepath the path of the encrypted file to update.
+     * @param commandLine       the command line holding the passphrase options.
+     */
+    private static void updateFile(String filepath, String encryptedFilepath, CommandLine commandLine) {
+        for (String path : new String[]{filepath, encryptedFilepath}) {
+            if (!Files.isRegularFile(Paths.get(path))) {
+                System.out.println("File '" + path + "' does not exist.");
+                System.exit(1);
+            }
+        }
+        startStats();
+        try (MasterKeyCache masterKeys = decryptionKeys(commandLine)) {
+            FileProcessor.processFileForUpdate(filepath, encryptedFilepath, masterKeys);
+        } catch (CryptoException e) {
+            System.err.println("Cryptographic error: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("File processing error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Packs files and directories into a new encrypted container, exiting with a non-zero status if that fails.
+     *
+     * @param containerPath the path of the container to write.
+     * @param inputPaths    the files and directories to pack.
+     * @param commandLine   the command line holding the passphrase options.
+     */
+    private static void packFiles(String containerPath, List<String> inputPaths, CommandLine commandLine) {
+        for (String path : inputPaths) {
+            if (!Files.exists(Paths.get(path))) {
+                System.out.println("File '" + path + "' does not exist.");
+                System.exit(1);
+            }
+        }
+        startStats();
+        try (MasterKeyCache masterKeys = encryptionKeys(commandLine)) {
+            List<ContainerEntry> entries = FileProcessor.packFiles(containerPath, inputPaths, masterKeys,
+                    EngineConfig.defaults().withCipherSuite(cipherSuite(commandLine)));
+            System.out.println(entries.size() + " files successfully packed into " + containerPath);
+        } catch (FileAlreadyExistsException e) {
+            System.out.println("File '" + e.getFile() + "' already exists.");
+            System.exit(1);
+        } catch (CryptoException e) {
+            System.err.println("Cryptographic error: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("File processing error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints the length, modification time and name of each file in a container, one per line.
+     *
+     * @param containerPath the path of the container.
+     * @param commandLine   the command line holding the passphrase options.
+     * @throws Exception if an error occurs while reading the index.
+     */
+    private static void listContainer(String containerPath, CommandLine commandLine) throws Exception {
+        try (MasterKeyCache masterKeys = decryptionKeys(commandLine)) {
+            for (ContainerEntry entry : FileProcessor.listContainer(containerPath, masterKeys)) {
+                System.out.printf("%12d  %s  %s%n", entry.length(), Instant.ofEpochMilli(entry.lastModified()),
+                        entry.name());
+            }
+        }
+    }
+
+    /**
+     * Extracts files from a container next to it, exiting with a non-zero status if that fails.
+     *
+     * @param containerPath the path of the container.
+     * @param names         the names of the files to extract, or none to extract all of them.
+     * @param commandLine   the command line holding the passphrase options.
+     */
+    private static void extractFiles(String containerPath, List<String> names, CommandLine commandLine) {
+        if (!Files.isRegularFile(Paths.get(containerPath))) {
+            System.out.println("File '" + containerPath + "' does not exist.");
+            System.exit(1);
+        }
+        startStats();
+        try (MasterKeyCache masterKeys = decryptionKeys(commandLine)) {
+            List<Path> extracted = FileProcessor.extractFromContainer(containerPath, names, masterKeys);
+            System.out.println(extracted.size() + " files successfully extracted.");
+        } catch (FileAlreadyExistsException e) {
+            System.out.println("File '" + e.getFile() + "' already exists.");
+            System.exit(1);
+        } catch (NoSuchFileException e) {
+            System.out.println("No file named '" + e.getFile() + "' in " + containerPath + ".");
+            System.exit(1);
+        } catch (CryptoException e) {
+            System.err.println("Cryptographic error: " + e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("File processing error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Lists the encrypted files below a directory, or the file itself if encrypted, from their headers alone
+     * to standard output, exiting with a non-zero status if a file could not be read.
+     *
+     * @param filepath    the path of the file or directory to scan.
+     * @param commandLine the command line holding the format and parallelism options.
+     * @throws IOException if standard output cannot be written.
+     */
+    private static void scan(String filepath, CommandLine commandLine) throws IOException {
+        String format = commandLine.options().getOrDefault("--format", "csv");
+        if (!format.equals("csv") && !format.equals("json")) {
+            System.out.println("Unknown format: " + format + ". Use 'csv' or 'json'.");
+            System.exit(1);
+        }
+        int parallelism = commandLine.intOption("--parallelism", BatchProcessor.DEFAULT_PARALLELISM);
+        Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                StandardCharsets.UTF_8), 64 * 1024);
+        long failures = HeaderScanner.scan(Paths.get(filepath), parallelism,
+                format.equals("csv") ? HeaderScanner.Format.CSV : HeaderScanner.Format.JSON, output);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Encrypts the files which land in a directory, and those already in it, until the process is stopped.
+     *
+     * @param directory   the path of the directory to watch.
+     * @param commandLine the command line holding the quiet period, parallelism and passphrase options.
+     * @throws Exception if the directory cannot be watched or the master key cannot be derived.
+     */
+    private static void watch(String directory, CommandLine commandLine) throws Exception {
+        int parallelism = requireDirectory(directory, commandLine);
+        Duration quietPeriod = Duration.ofMillis(commandLine.intOption("--quiet-ms",
+                (int) DirectoryWatcher.DEFAULT_QUIET_PERIOD.toMillis()));
+        try (MasterKeyCache masterKeys = encryptionKeys(commandLine)) {
+            // closed by the shutdown hook as well, so it is not a try-with-resources resource
+            DirectoryWatcher watcher = new DirectoryWatcher(Paths.get(directory), masterKeys, parallelism,
+                    quietPeriod, batchConfig(commandLine));
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        watcher.close();
+                    } catch (IOException e) {
+                        System.err.println("Failed to stop watching: " + e.getMessage());
+                    }
+                }));
+                watcher.run();
+            } finally {
+                watcher.close();
+            }
+        }
+    }
+
+    /**
+     * Stores the file in a deduplicating chunk repository and writes its index next to it. The repository
+     * is created if it does not exist yet, in which case a passphrase typed on the console is confirmed.
+     *
+     * @param filepath    the path of the file to store.
+     * @param commandLine the command line holding the repository, parallelism and passphrase options.
+     * @throws Exception if an error occurs while storing.
+     */
+    private static void storeFile(String filepath, CommandLine commandLine) throws Exception {
+        Path repository = repositoryPath(commandLine);
+        int parallelism = commandLine.intOption("--parallelism", BatchProcessor.DEFAULT_PARALLELISM);
+        Path file = Paths.get(filepath);
+        Path indexFile = file.resolveSibling(file.getFileName() + "." + ChunkRepository.INDEX_FILE_EXTENSION);
+
+        StoreResult result;
+        if (ChunkRepository.exists(repository)) {
+            try (MasterKeyCache masterKeys = decryptionKeys(commandLine)) {
+                result = ChunkRepository.open(repository, masterKeys, parallelism).store(file, indexFile);
+            }
+        } else {
+            try (MasterKeyCache masterKeys = encryptionKeys(commandLine)) {
+                result = ChunkRepository.create(repository, masterKeys, parallelism).store(file, indexFile);
+            }
+            System.out.println("Repository created: " + repository);
+        }
+        System.out.println("File successfully stored: " + result.newChunkCount() + " of " + result.chunkCount()
+                + " chunks (" + result.newBytes() + " of " + result.bytes() + " bytes) were new. Index: " + indexFile);
+    }
+
+    /**
+     * Restores a file from a deduplicating chunk repository next to its index.
+     *
+     * @param indexFilepath the path of the index written when the file was stored.
+     * @param commandLine   the command line holding the repository, parallelism and passphrase options.
+     * @throws Exception if an error occurs while restoring.
+     */
+    private static void restoreFile(String indexFilepath, CommandLine commandLine) throws Exception {
+        Path repository = repositoryPath(commandLine);
+        int parallelism = commandLine.intOption("--parallelism", BatchProcessor.DEFAULT_PARALLELISM);
+        try (MasterKeyCache masterKeys = decryptionKeys(commandLine)) {
+            Path restored = ChunkRepository.open(repository, masterKeys, parallelism).restore(Paths.get(indexFilepath));
+            System.out.println("File successfully restored: " + restored);
+        } catch (FileAlreadyExistsException e) {
+            System.out.println("File '" + e.getFile() + "' already exists.");
+            System.exit(1);
+        }
+    }
+
+    private static Path repositoryPath(CommandLine commandLine) {
+        if (!commandLine.hasOption("--repo")) {
+            System.out.println("'" + commandLine.command() + "' needs a repository: --repo <directory>.");
+            System.exit(1);
+        }
+        return Paths.get(commandLine.options().get("--repo"));
+    }
+
+    /**
+     * Encrypts standard input to standard output. The passphrase cannot be read from the console, as
+     * standard input carries the data.
+     *
+     * @param commandLine the command line holding the passphrase options.
+     * @throws Exception if an error occurs during encryption.
+     */
+    private static void encryptStandardStreams(CommandLine commandLine) throws Exception {
+        char[] passphrase = requestNonInteractivePassphrase(commandLine);
+        try (MasterKeyCache masterKeys = new MasterKeyCache(passphrase, null, kdfParameters(commandLine));
+             OutputStream outputStream = new FileOutputStream(FileDescriptor.out)) {
+            FileProcessor.encryptStream(new FileInputStream(FileDescriptor.in), outputStream, masterKeys,
+                    EngineConfig.defaults().withCipherSuite(cipherSuite(commandLine)));
+        }
+    }
+
+    /**
+     * Decrypts standard input to standard output.
+     *
+     * @param commandLine the command line holding the passphrase options.
+     * @throws Exception if an error occurs during decryption.
+     */
+    private static void decryptStandardStreams(CommandLine commandLine) throws Exception {
+        char[] passphrase = requestNonInteractivePassphrase(commandLine);
+        try (OutputStream outputStream = new FileOutputStream(FileDescriptor.out)) {
+            FileProcessor.decryptStream(new FileInputStream(FileDescriptor.in), outputStream, passphrase);
+        }
+    }
+
+    /**
+     * Decrypts a byte range of the specified file to standard output, e.g. {@code --range 1048576:4096}.
+     *
+     * @param filepath    the path of the file to decrypt.
+     * @param commandLine the command line holding the range and passphrase options.
+     * @throws Exception if an error occurs during decryption.
+     */
+    private static void decryptRange(String filepath, CommandLine commandLine) throws Exception {
+        String range = commandLine.options().get("--range");
+        String[] parts = range.split(":");
+        long offset = -1;
+        long length = -1;
+        try {
+            if (parts.length == 2) {
+                offset = Long.parseLong(parts[0]);
+                length = Long.parseLong(parts[1]);
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        if (offset < 0 || length < 0) {
+            System.err.println("Invalid range '" + range + "'. Use --range <offset>:<length>.");
+            System.exit(1);
+        }
+
+        try (MasterKeyCache masterKeys = decryptionKeys(commandLine);
+             OutputStream outputStream = new FileOutputStream(FileDescriptor.out)) {
+            FileProcessor.decryptRange(filepath, offset, length, outputStream, masterKeys);
+        }
+    }
+
+    /**
+     * Encrypts all files below the specified directory using a single passphrase derivation.
+     *
+     * @param directory   the path of the directory to encrypt.
+     * @param commandLine the command line holding the batch options.
+     * @throws Exception if an error occurs which stops the whole batch.
+     */
+    private static void encryptDirectory(String directory, CommandLine commandLine) throws Exception {
+        int parallelism = requireDirectory(directory, commandLine);
+        int failures;
+        try (MasterKeyCache masterKeys = encryptionKeys(commandLine)) {
+            failures = BatchProcessor.encryptDirectory(Paths.get(directory), masterKeys, parallelism,
+                    batchConfig(commandLine));
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Decrypts all encrypted files below the specified directory.
+     *
+     * @param directory   the path of the directory to decrypt.
+     * @param commandLine the command line holding the batch options.
+     * @throws Exception if an error occurs which stops the whole batch.
+     */
+    private static void decryptDirectory(String directory, CommandLine commandLine) throws Exception {
+        int parallelism = requireDirectory(directory, commandLine);
+        int failures;
+        try (MasterKeyCache masterKeys = decryptionKeys(commandLine)) {
+            failures = BatchProcessor.decryptDirectory(Paths.get(directory), masterKeys, parallelism);
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks that the specified file is intact without writing its plaintext, exiting with a non-zero status
+     * if it is not.
+     *
+     * @param filepath    the path of the encrypted file.
+     * @param commandLine the command line holding the passphrase options.
+     */
+    private static void verifyFile(String filepath, CommandLine commandLine) {
+        try (MasterKeyCache masterKeys = decryptionKeys(commandLine)) {
+            FileProcessor.processFileForVerification(filepath, masterKeys);
+        } catch (CryptoException | IOException e) {
+            System.err.println("Verification failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks all encrypted files below the specified directory without writing any plaintext.
+     *
+     * @param directory   the path of the directory to check.
+     * @param commandLine the command line holding the batch options.
+     * @throws Exception if an error occurs which stops the whole batch.
+     */
+    private static void verifyDirectory(String directory, CommandLine commandLine) throws Exception {
+        int parallelism = requireDirectory(directory, commandLine);
+        int failures;
+        try (MasterKeyCache masterKeys = decryptionKeys(commandLine)) {
+            failures = BatchProcessor.verifyDirectory(Paths.get(directory), masterKeys, parallelism);
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Changes the passphrase of the specified file, rewriting only its header.
+     *
+     * @param filepath    the path of the encrypted file.
+     * @param commandLine the command line holding the old and new passphrase options.
+     * @throws Exception if an error occurs while rekeying.
+     */
+    private static void rekeyFile(String filepath, CommandLine commandLine) throws Exception {
+        try (MasterKeyCache oldKeys = currentKeys(commandLine); MasterKeyCache newKeys = newKeys(commandLine)) {
+            System.out.println(FileProcessor.rekeyFile(filepath, oldKeys, newKeys, CipherUtil.generateSalt()));
+        }
+    }
+
+    /**
+     * Changes the passphrase of all encrypted files below the specified directory.
+     *
+     * @param directory   the path of the directory to rekey.
+     * @param commandLine the command line holding the batch and passphrase options.
+     * @throws Exception if an error occurs which stops the whole batch.
+     */
+    private static void rekeyDirectory(String directory, CommandLine commandLine) throws Exception {
+        int parallelism = requireDirectory(directory, commandLine);
+        int failures;
+        try (MasterKeyCache oldKeys = currentKeys(commandLine); MasterKeyCache newKeys = newKeys(commandLine)) {
+            failures = BatchProcessor.rekeyDirectory(Paths.get(directory), oldKeys, newKeys, parallelism);
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates the master key cache for the passphrase a rekey run changes from. It is consulted first, so
+     * the current passphrase is asked for before the new one.
+     */
+    private static MasterKeyCache currentKeys(CommandLine commandLine) {
+        return new MasterKeyCache(() -> {
+            if (isInteractive(commandLine, "--")) {
+                System.err.println("Current passphrase.");
+            }
+            return requestPassphrase(commandLine, "--", false);
+        }, KeyAgentClient.fromEnvironment());
+    }
+
+    /**
+     * Creates the master key cache for the passphrase a rekey run changes to.
+     */
+    private static MasterKeyCache newKeys(CommandLine commandLine) {
+        return new MasterKeyCache(() -> {
+            if (isInteractive(commandLine, "--new-")) {
+                System.err.println("New passphrase.");
+            }
+            return requestPassphrase(commandLine, "--new-", true);
+        }, KeyAgentClient.fromEnvironment(), kdfParameters(commandLine));
+    }
+
+    /**
+     * Runs the daemon until the process is terminated, removing its socket on the way out.
+     *
+     * @param commandLine the command line holding the socket and parallelism options.
+     */
+    private static void serve(CommandLine commandLine) {
+        try {
+            int parallelism = commandLine.intOption("--parallelism", BatchProcessor.DEFAULT_PARALLELISM);
+            CipherShellDaemon daemon = CipherShellDaemon.start(socketPath(commandLine), parallelism);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    daemon.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to stop daemon: " + e.getMessage());
+                }
+            }));
+            daemon.serve();
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Cannot start daemon: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Times key derivation on this machine and prints the iterations which take the target time, with the
+     * options to encrypt with them.
+     *
+     * @param commandLine the command line holding the KDF and target time options.
+     */
+    private static void calibrate(CommandLine commandLine) {
+        try {
+            KdfParameters.Algorithm algorithm = kdfParameters(commandLine).algorithm();
+            Duration target = Duration.ofMillis(commandLine.intOption("--target-ms",
+                    (int) KdfCalibrator.DEFAULT_TARGET.toMillis()));
+            KdfParameters calibrated = KdfCalibrator.calibrate(algorithm, target);
+            System.out.println(calibrated.algorithm().optionName() + " takes about " + target.toMillis()
+                    + " ms with " + calibrated.iterations() + " iterations on this machine.");
+            System.out.println("Encrypt with: --kdf " + calibrated.algorithm().optionName() + " --kdf-iterations "
+                    + calibrated.iterations());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch (CryptoException e) {
+            System.err.println("Cryptographic error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the key agent until the process is terminated. Like ssh-agent, it prints the shell commands which
+     * point later runs at its socket.
+     *
+     * @param commandLine the command line holding the socket, time to idle and capacity options.
+     */
+    private static void runKeyAgent(CommandLine commandLine) {
+        try {
+            int timeToIdle = commandLine.intOption("--ttl", (int) KeyAgent.DEFAULT_TIME_TO_IDLE_SECONDS);
+            int capacity = commandLine.intOption("--max-keys", KeyAgent.DEFAULT_CAPACITY);
+            Path socketPath = commandLine.hasOption("--socket")
+                    ? Paths.get(commandLine.options().get("--socket"))
+                    : KeyAgent.defaultSocketPath();
+            KeyAgent agent = KeyAgent.start(socketPath, timeToIdle, capacity);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    agent.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to stop key agent: " + e.getMessage());
+                }
+            }));
+            System.out.println(KeyAgent.SOCKET_ENVIRONMENT_VARIABLE + "=" + socketPath.toAbsolutePath() + "; export "
+                    + KeyAgent.SOCKET_ENVIRONMENT_VARIABLE + ";");
+            System.out.flush();
+            agent.serve();
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Cannot start key agent: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates the master key cache for encryption. The passphrase is asked for, and confirmed, right away, as
+     * the master key for a new salt can only be derived from it; the cache derives keys with the KDF
+     * parameters from the command line and shares them with the key agent, if one is set up.
+     *
+     * @param commandLine the command line holding the passphrase and KDF options.
+     * @return the master key cache.
+     * @throws IOException              if the passphrase cannot be read.
+     * @throws IllegalArgumentException if a KDF option is invalid.
+     */
+    private static MasterKeyCache encryptionKeys(CommandLine commandLine) throws IOException {
+        return new MasterKeyCache(requestPassphrase(commandLine, true), KeyAgentClient.fromEnvironment(),
+                kdfParameters(commandLine));
+    }
+
+    /**
+     * Reads the key derivation function and cost for new salts from {@code --kdf} and {@code --kdf-iterations}.
+     *
+     * @param commandLine the command line holding the KDF options.
+     * @return the KDF parameters, the defaults for options not given.
+     * @throws IllegalArgumentException if an option holds an unknown function or invalid cost.
+     */
+    private static KdfParameters kdfParameters(CommandLine commandLine) {
+        KdfParameters.Algorithm algorithm = commandLine.hasOption("--kdf")
+                ? KdfParameters.Algorithm.fromOptionName(commandLine.options().get("--kdf"))
+                : KdfParameters.DEFAULT.algorithm();
+        return new KdfParameters(algorithm,
+                commandLine.intOption("--kdf-iterations", KdfParameters.DEFAULT.iterations()));
+    }
+
+    /**
+     * Reads the cipher suite for new files from {@code --cipher}, measuring the suites on this host for
+     * {@code auto}.
+     *
+     * @param commandLine the command line holding the cipher option.
+     * @return the cipher suite, AES/GCM if the option is not given.
+     * @throws IllegalArgumentException if the option names an unknown suite.
+     */
+    private static CipherSuite cipherSuite(CommandLine commandLine) {
+        return commandLine.hasOption("--cipher")
+                ? CipherSuite.fromOptionName(commandLine.options().get("--cipher"))
+                : CipherSuite.AES_GCM;
+    }
+
+    /**
+     * Builds the engine settings for encrypting a file from the compression, resume, cipher and volume options.
+     *
+     * @param commandLine the command line holding the engine options.
+     * @return the engine settings, the defaults for options not given.
+     * @throws IllegalArgumentException if an option is invalid or the options cannot be combined.
+     */
+    private static EngineConfig engineConfig(CommandLine commandLine) {
+        return EngineConfig.defaults().withCompress(commandLine.hasOption("--compress"))
+                .withResume(commandLine.hasOption("--resume")).withCipherSuite(cipherSuite(commandLine))
+                .withVolumeSize(volumeSize(commandLine));
+    }
+
+    /**
+     * Builds the engine settings for encrypting many files from the compression and cipher options. Files
+     * encrypted in a batch are neither resumed nor split into volumes.
+     *
+     * @param commandLine the command line holding the engine options.
+     * @return the engine settings, the defaults for options not given.
+     */
+    private static EngineConfig batchConfig(CommandLine commandLine) {
+        return EngineConfig.defaults().withCompress(commandLine.hasOption("--compress"))
+                .withCipherSuite(cipherSuite(commandLine));
+    }
+
+    /**
+     * Reads the largest size of a volume from {@code --volume-size}. Volumes are neither compressed nor
+     * checkpointed, so the option cannot be combined with {@code --compress} or {@code --resume}.
+     *
+     * @param commandLine the command line holding the volume, compression and resume options.
+     * @return the largest size of a volume in bytes, 0 if the option is not given.
+     * @throws IllegalArgumentException if the size is invalid or combined with {@code --compress} or
+     *                                  {@code --resume}.
+     */
+    private static long volumeSize(CommandLine commandLine) {
+        long volumeSize = commandLine.sizeOption("--volume-size", 0);
+        if (volumeSize > 0 && (commandLine.hasOption("--compress") || commandLine.hasOption("--resume"))) {
+            throw new IllegalArgumentException("--volume-size cannot be combined with --compress or --resume.");
+        }
+        return volumeSize;
+    }
+
+    /**
+     * Creates the master key cache for decryption. It consults the key agent, if one is set up, and only asks
+     * for the passphrase once a key is not known to the agent.
+     *
+     * @param commandLine the command line holding the passphrase options.
+     * @return the master key cache.
+     */
+    private static MasterKeyCache decryptionKeys(CommandLine commandLine) {
+        return new MasterKeyCache(() -> requestPassphrase(commandLine, false), KeyAgentClient.fromEnvironment());
+    }
+
+    /**
+     * Hands the file to a running daemon, exiting with a non-zero status if the job fails.
+     *
+     * @param filepath    the path of the file to process.
+     * @param commandLine the command line holding the socket and passphrase options.
+     * @param encrypt     whether to encrypt rather than decrypt the file.
+     * @throws IOException if the daemon cannot be reached.
+     */
+    private static void submitToDaemon(String filepath, CommandLine commandLine, boolean encrypt) throws IOException {
+        if (encrypt && hasEncFileExtension(filepath)) {
             System.out.println("File appears to already be encrypted.");
             System.exit(1);
         }
-        FileProcessor.setEncryptionMode(Cipher.DECRYPT_MODE);
-        FileProcessor.processFileForDecryption(filepath, PassphraseHandler.requestPassphrase());
+        DaemonClient client = new DaemonClient(socketPath(commandLine));
+        char[] passphrase = requestPassphrase(commandLine, encrypt);
+        boolean succeeded = encrypt
+                ? client.encrypt(Paths.get(filepath), commandLine.hasOption("--compress"), passphrase)
+                : client.decrypt(Paths.get(filepath), passphrase);
+        if (!succeeded) {
+            System.exit(1);
+        }
+    }
+
+    private static Path socketPath(CommandLine commandLine) throws IOException {
+        if (commandLine.hasOption("--socket")) {
+            return Paths.get(commandLine.options().get("--socket"));
+        }
+        return CipherShellDaemon.defaultSocketPath();
+    }
+
+    /**
+     * Reads the passphrase from the source named on the command line, or prompts for it on the console.
+     *
+     * @param commandLine the command line holding the passphrase options.
+     * @param confirm     whether a passphrase typed on the console must be entered twice.
+     * @return the passphrase.
+     * @throws IOException if the passphrase cannot be read.
+     */
+    private static char[] requestPassphrase(CommandLine commandLine, boolean confirm) throws IOException {
+        return requestPassphrase(commandLine, "--", confirm);
+    }
+
+    /**
+     * Reads a passphrase from the source named by the options with the given prefix, e.g. {@code --new-} for
+     * {@code --new-passphrase-env}, or prompts for it on the console.
+     */
+    private static char[] requestPassphrase(CommandLine commandLine, String prefix, boolean confirm)
+            throws IOException {
+        char[] passphrase;
+        if (commandLine.hasOption(prefix + "passphrase-env")) {
+            passphrase = PassphraseHandler.readPassphraseFromEnvironment(
+                    commandLine.options().get(prefix + "passphrase-env"));
+        } else if (commandLine.hasOption(prefix + "passphrase-fd")) {
+            passphrase = PassphraseHandler.readPassphraseFromFileDescriptor(
+                    commandLine.intOption(prefix + "passphrase-fd", 0));
+        } else {
+            passphrase = PassphraseHandler.requestPassphrase(confirm);
+        }
+        startStats();
+        return passphrase;
+    }
+
+    private static void startStats() {
+        statsBefore = RunStats.snapshot();
+        startNanos = System.nanoTime();
+    }
+
+    private static boolean isInteractive(CommandLine commandLine, String prefix) {
+        return !commandLine.hasOption(prefix + "passphrase-env") && !commandLine.hasOption(prefix + "passphrase-fd");
+    }
+
+    /**
+     * Reads the passphrase from the environment or a file descriptor, exiting if neither was given.
+     *
+     * @param commandLine the command line holding the passphrase options.
+     * @return the passphrase.
+     * @throws IOException if the passphrase cannot be read.
+     */
+    private static char[] requestNonInteractivePassphrase(CommandLine commandLine) throws IOException {
+        if (!commandLine.hasOption("--passphrase-env") && !commandLine.hasOption("--passphrase-fd")) {
+            System.err.println("Reading from standard input requires --passphrase-env or --passphrase-fd.");
+            System.exit(1);
+        }
+        return requestPassphrase(commandLine, false);
+    }
+
+    /**
+     * Checks that a command was given the number of arguments it takes, exiting with the usage otherwise.
+     *
+     * @param commandLine the parsed command line.
+     * @param min         the fewest arguments the command takes.
+     * @param max         the most arguments the command takes.
+     */
+    private static void requireArguments(CommandLine commandLine, int min, int max) {
+        int count = commandLine.arguments().size();
+        if (count < min || count > max) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Checks that a command was given a single file, or {@code -} for the standard streams, which exists.
+     *
+     * @param commandLine the parsed command line.
+     * @return the path of the file.
+     */
+    private static String requireFile(CommandLine commandLine) {
+        requireArguments(commandLine, 1, 1);
+        String filepath = commandLine.arguments().get(0);
+        if (!filepath.equals(STANDARD_STREAMS) && !Paths.get(filepath).toFile().exists()) {
+            System.out.println("File '" + filepath + "' does not exist.");
+            System.exit(1);
+        }
+        return filepath;
+    }
+
+    /**
+     * Checks that the path of a batch run is a directory and returns the requested parallelism.
+     *
+     * @param directory   the path given on the command line.
+     * @param commandLine the command line holding the batch options.
+     * @return the maximum number of files to process at once.
+     */
+    private static int requireDirectory(String directory, CommandLine commandLine) {
+        if (!Files.isDirectory(Paths.get(directory))) {
+            System.out.println("'" + directory + "' is not a directory.");
+            System.exit(1);
+        }
+        try {
+            return commandLine.intOption("--parallelism", BatchProcessor.DEFAULT_PARALLELISM);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+            return 0;
+        }
     }
 
     /**
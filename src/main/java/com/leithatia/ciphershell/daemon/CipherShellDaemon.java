@@ -0,0 +1,180 @@
+package com.leithatia.ciphershell.daemon;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.file.EngineConfig;
+import com.leithatia.ciphershell.file.FileProcessor;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-running process accepting encrypt and decrypt jobs over a Unix domain socket, so that callers
+ * which run the tool many times do not pay JVM startup and JIT warm-up on every file. Jobs run on a fixed
+ * pool of worker threads; the socket is only accessible to the user running the daemon.
+ */
+public class CipherShellDaemon implements Closeable {
+    public static final String SOCKET_ENVIRONMENT_VARIABLE = "CIPHERSHELL_SOCKET";
+    private static final String SOCKET_FILE_NAME = "ciphershell.sock";
+    private static final int WARM_UP_ROUNDS = 64;
+
+    private final Path socketPath;
+    private final ServerSocketChannel server;
+    private final ExecutorService workers;
+    private final String owner;
+
+    private CipherShellDaemon(Path socketPath, ServerSocketChannel server, int parallelism) throws IOException {
+        this.socketPath = socketPath;
+        this.server = server;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, parallelism), runnable -> {
+            Thread thread = new Thread(runnable, "ciphershell-daemon-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.owner = Files.getOwner(socketPath).getName();
+    }
+
+    /**
+     * Binds the socket and starts the worker pool. A socket file left behind by a daemon which is no longer
+     * running is replaced.
+     *
+     * @param socketPath  the path of the socket file.
+     * @param parallelism the maximum number of jobs run at once.
+     * @return the started daemon, ready to {@link #serve()}.
+     * @throws IOException if the socket cannot be bound, e.g. because another daemon is listening on it.
+     */
+    public static CipherShellDaemon start(Path socketPath, int parallelism) throws IOException {
+        ServerSocketChannel server = LocalSockets.bind(socketPath);
+        try {
+            CipherShellDaemon daemon = new CipherShellDaemon(socketPath, server, parallelism);
+            daemon.workers.execute(CipherShellDaemon::warmUp);
+            return daemon;
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the socket used when none is given: the path in {@value #SOCKET_ENVIRONMENT_VARIABLE}, else a
+     * socket in {@code $XDG_RUNTIME_DIR}, else one in a private directory below the temporary directory.
+     *
+     * @return the default socket path.
+     * @throws IOException if the private directory cannot be created.
+     */
+    public static Path defaultSocketPath() throws IOException {
+        return LocalSockets.defaultPath(SOCKET_ENVIRONMENT_VARIABLE, SOCKET_FILE_NAME);
+    }
+
+    /**
+     * Accepts connections until the daemon is closed, handing each one to a worker.
+     *
+     * @throws IOException if accepting a connection fails for another reason than the daemon being closed.
+     */
+    public void serve() throws IOException {
+        System.out.println("Listening on " + socketPath);
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            workers.execute(() -> handle(channel));
+        }
+    }
+
+    /**
+     * Stops accepting jobs, lets running jobs finish and removes the socket file.
+     *
+     * @throws IOException if the socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        Files.deleteIfExists(socketPath);
+        workers.shutdown();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads a single job from the connection, runs it and reports the outcome.
+     */
+    private void handle(SocketChannel channel) {
+        try (channel;
+             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+
+            try {
+                LocalSockets.checkPeer(channel, owner);
+                runJob(inputStream, outputStream);
+            } catch (IOException | CryptoException e) {
+                System.err.println("Job failed: " + e.getMessage());
+                DaemonProtocol.writeMessage(outputStream, DaemonProtocol.FAILED, String.valueOf(e.getMessage()));
+            }
+        } catch (IOException e) {
+            System.err.println("Lost connection to client: " + e.getMessage());
+        }
+    }
+
+    private void runJob(DataInputStream inputStream, DataOutputStream outputStream)
+            throws IOException, CryptoException {
+
+        int version = inputStream.readInt();
+        if (version != DaemonProtocol.VERSION) {
+            throw new IOException("Unsupported protocol version " + version + ", expected " + DaemonProtocol.VERSION);
+        }
+        byte operation = inputStream.readByte();
+        int flags = inputStream.readInt();
+        String filePath = inputStream.readUTF();
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(DaemonProtocol.readPassphrase(inputStream))) {
+            String result;
+            if (operation == DaemonProtocol.ENCRYPT) {
+                DaemonProtocol.writeMessage(outputStream, DaemonProtocol.STATUS, "Encrypting " + filePath);
+                result = FileProcessor.encryptFile(filePath, masterKeys, CipherUtil.generateSalt(),
+                        EngineConfig.defaults().withCompress((flags & DaemonProtocol.FLAG_COMPRESS) != 0));
+            } else if (operation == DaemonProtocol.DECRYPT) {
+                DaemonProtocol.writeMessage(outputStream, DaemonProtocol.STATUS, "Decrypting " + filePath);
+                result = FileProcessor.decryptFile(filePath, masterKeys);
+            } else {
+                throw new IOException("Unknown operation " + operation);
+            }
+            System.out.println(filePath + " -> " + result);
+            DaemonProtocol.writeMessage(outputStream, DaemonProtocol.DONE, result);
+        }
+    }
+
+    /**
+     * Runs the chunk cipher over a few megabytes of memory so the JIT compiles the AES intrinsics before the
+     * first job arrives.
+     */
+    private static void warmUp() {
+        try {
+            SecretKeySpec key = new SecretKeySpec(new byte[32], "AES");
+            byte[] iv = new byte[16];
+            ByteBuffer plaintext = ByteBuffer.allocateDirect(64 * 1024);
+            ByteBuffer ciphertext = ByteBuffer.allocateDirect(plaintext.capacity() + CipherUtil.CHUNK_TAG_LENGTH);
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                Cipher cipher = CipherUtil.initChunkCipher(Cipher.ENCRYPT_MODE, key, iv, i, false);
+                cipher.doFinal(plaintext.clear(), ciphertext.clear());
+            }
+        } catch (GeneralSecurityException e) {
+            System.err.println("Warm-up failed: " + e.getMessage());
+        }
+    }
+}
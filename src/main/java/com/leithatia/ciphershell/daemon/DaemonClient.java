@@ -0,0 +1,90 @@
+package com.leithatia.ciphershell.daemon;
+
+import com.leithatia.ciphershell.passphrase.PassphraseHandler;
+
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Submits jobs to a running {@link CipherShellDaemon} and relays its status messages. The client does no
+ * cryptographic work itself, so it starts quickly and leaves the key derivation and ciphers to the warm
+ * daemon.
+ */
+public class DaemonClient {
+
+    private final Path socketPath;
+
+    /**
+     * Constructs a client for the daemon listening on the given socket.
+     *
+     * @param socketPath the path of the daemon's socket file.
+     */
+    public DaemonClient(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+
+    /**
+     * Asks the daemon to encrypt a file.
+     *
+     * @param file       the file to encrypt.
+     * @param compress   whether to compress the file before encrypting it if it is worth it.
+     * @param passphrase the passphrase used to generate the encryption key, cleared once sent.
+     * @return {@code true} if the daemon encrypted the file.
+     * @throws IOException if the daemon cannot be reached.
+     */
+    public boolean encrypt(Path file, boolean compress, char[] passphrase) throws IOException {
+        return submit(DaemonProtocol.ENCRYPT, compress ? DaemonProtocol.FLAG_COMPRESS : 0, file, passphrase);
+    }
+
+    /**
+     * Asks the daemon to decrypt a file.
+     *
+     * @param file       the file to decrypt.
+     * @param passphrase the passphrase used to generate the decryption key, cleared once sent.
+     * @return {@code true} if the daemon decrypted the file.
+     * @throws IOException if the daemon cannot be reached.
+     */
+    public boolean decrypt(Path file, char[] passphrase) throws IOException {
+        return submit(DaemonProtocol.DECRYPT, 0, file, passphrase);
+    }
+
+    /**
+     * Sends the job and prints each status message until the daemon reports the outcome. The path is made
+     * absolute, as the daemon runs in a different working directory.
+     */
+    private boolean submit(byte operation, int flags, Path file, char[] passphrase) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+             DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+
+            outputStream.writeInt(DaemonProtocol.VERSION);
+            outputStream.writeByte(operation);
+            outputStream.writeInt(flags);
+            outputStream.writeUTF(file.toAbsolutePath().toString());
+            DaemonProtocol.writePassphrase(outputStream, passphrase);
+            outputStream.flush();
+
+            while (true) {
+                byte type = inputStream.readByte();
+                String message = inputStream.readUTF();
+                switch (type) {
+                    case DaemonProtocol.STATUS -> System.out.println(message);
+                    case DaemonProtocol.DONE -> {
+                        System.out.println(file + " -> " + message);
+                        return true;
+                    }
+                    case DaemonProtocol.FAILED -> {
+                        System.err.println(file + ": " + message);
+                        return false;
+                    }
+                    default -> throw new IOException("Unexpected message type " + type + " from daemon");
+                }
+            }
+        } finally {
+            PassphraseHandler.clearPassphrase(passphrase);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.leithatia.ciphershell.daemon;
+
+import com.leithatia.ciphershell.passphrase.PassphraseHandler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The messages exchanged between {@link DaemonClient} and {@link CipherShellDaemon} over the socket.
+ * <p>
+ * A client sends a single job: the protocol version, the operation, its flags, the absolute path of the
+ * file and the passphrase. The daemon answers with any number of status messages followed by exactly
+ * one done or failed message, then closes the connection.
+ */
+final class DaemonProtocol {
+    static final int VERSION = 1;
+
+    static final byte ENCRYPT = 1;
+    static final byte DECRYPT = 2;
+    static final int FLAG_COMPRESS = 1;
+
+    static final byte STATUS = 1;
+    static final byte DONE = 2;
+    static final byte FAILED = 3;
+
+    private DaemonProtocol() {
+    }
+
+    static void writePassphrase(DataOutputStream outputStream, char[] passphrase) throws IOException {
+        outputStream.writeInt(passphrase.length);
+        for (char c : passphrase) {
+            outputStream.writeChar(c);
+        }
+    }
+
+    static char[] readPassphrase(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readInt();
+        if (length < 0 || length > PassphraseHandler.MAX_PASSPHRASE_LENGTH) {
+            throw new IOException("Invalid passphrase length: " + length);
+        }
+        char[] passphrase = new char[length];
+        for (int i = 0; i < length; i++) {
+            passphrase[i] = inputStream.readChar();
+        }
+        return passphrase;
+    }
+
+    static void writeMessage(DataOutputStream outputStream, byte type, String message) throws IOException {
+        outputStream.writeByte(type);
+        outputStream.writeUTF(message);
+        outputStream.flush();
+    }
+}
@@ -0,0 +1,115 @@
+package com.leithatia.ciphershell.daemon;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Raw key bytes by salt, bounded in number and forgotten after an idle time. The least recently used key
+ * makes room once the cache is full. Every key leaving the cache, for whatever reason, is overwritten with
+ * zeros, and callers only ever receive copies.
+ */
+class ExpiringKeyCache {
+
+    private static class Entry {
+        final byte[] key;
+        long lastUsed;
+
+        Entry(byte[] key, long lastUsed) {
+            this.key = key;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final int capacity;
+    private final long timeToIdleNanos;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param capacity        the maximum number of keys held.
+     * @param timeToIdleNanos how long a key is kept after it was last stored or read.
+     * @param clock           the source of {@link System#nanoTime()} style timestamps.
+     */
+    ExpiringKeyCache(int capacity, long timeToIdleNanos, LongSupplier clock) {
+        this.capacity = capacity;
+        this.timeToIdleNanos = timeToIdleNanos;
+        this.clock = clock;
+    }
+
+    /**
+     * @param salt the hex encoded salt.
+     * @return a copy of the key, or {@code null} if it is unknown or has expired.
+     */
+    synchronized byte[] get(String salt) {
+        Entry entry = entries.get(salt);
+        if (entry == null) {
+            return null;
+        }
+        long now = clock.getAsLong();
+        if (isExpired(entry, now)) {
+            Arrays.fill(entries.remove(salt).key, (byte) 0);
+            return null;
+        }
+        entry.lastUsed = now;
+        return entry.key.clone();
+    }
+
+    /**
+     * Stores a copy of the key, evicting the least recently used key if the cache is full.
+     *
+     * @param salt the hex encoded salt.
+     * @param key  the key bytes.
+     */
+    synchronized void put(String salt, byte[] key) {
+        Entry previous = entries.put(salt, new Entry(key.clone(), clock.getAsLong()));
+        if (previous != null) {
+            Arrays.fill(previous.key, (byte) 0);
+        }
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > capacity) {
+            Arrays.fill(eldest.next().key, (byte) 0);
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Zeroes and removes every key which has been idle for longer than the time to idle.
+     *
+     * @return the number of keys removed.
+     */
+    synchronized int evictExpired() {
+        long now = clock.getAsLong();
+        int evicted = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (isExpired(entry, now)) {
+                Arrays.fill(entry.key, (byte) 0);
+                iterator.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Zeroes and removes every key.
+     */
+    synchronized void clear() {
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Arrays.fill(entry.getValue().key, (byte) 0);
+        }
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.lastUsed > timeToIdleNanos;
+    }
+}
@@ -0,0 +1,190 @@
+package com.leithatia.ciphershell.daemon;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds master keys in memory for other runs of the tool, much like ssh-agent holds private keys, so that
+ * decrypting one file after another with the same passphrase derives the key once instead of for every
+ * file. Keys are looked up by the salt and key derivation parameters stored in the file header and are zeroed
+ * when they have been idle for the time to idle, when the agent is full or when it stops.
+ * <p>
+ * Each connection carries one request: the protocol version, an operation, the hex encoded salt, the id of
+ * the key derivation function and its iterations, plus the key for {@link #PUT}. A {@link #GET} is answered
+ * with {@link #FOUND} and the key, or {@link #NOT_FOUND}; a {@link #PUT} with {@link #STORED}.
+ */
+public class KeyAgent implements Closeable {
+    public static final String SOCKET_ENVIRONMENT_VARIABLE = "CIPHERSHELL_AGENT_SOCKET";
+    public static final long DEFAULT_TIME_TO_IDLE_SECONDS = 600;
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final String SOCKET_FILE_NAME = "ciphershell-agent.sock";
+    private static final int HANDLER_THREADS = 2;
+    private static final int MAX_KEY_LENGTH = 64;
+
+    static final int VERSION = 2;
+    static final byte GET = 1;
+    static final byte PUT = 2;
+    static final byte FOUND = 1;
+    static final byte NOT_FOUND = 2;
+    static final byte STORED = 3;
+
+    private final Path socketPath;
+    private final ServerSocketChannel server;
+    private final ExpiringKeyCache keys;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService sweeper;
+    private final String owner;
+
+    private KeyAgent(Path socketPath, ServerSocketChannel server, ExpiringKeyCache keys, long sweepMillis)
+            throws IOException {
+
+        this.socketPath = socketPath;
+        this.server = server;
+        this.keys = keys;
+        this.handlers = Executors.newFixedThreadPool(HANDLER_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "ciphershell-agent");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ciphershell-agent-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleWithFixedDelay(keys::evictExpired, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        this.owner = Files.getOwner(socketPath).getName();
+    }
+
+    /**
+     * Binds the agent's socket. A socket file left behind by an agent which is no longer running is replaced.
+     *
+     * @param socketPath        the path of the socket file.
+     * @param timeToIdleSeconds how long a key is kept after it was last stored or handed out.
+     * @param capacity          the maximum number of keys held.
+     * @return the started agent, ready to {@link #serve()}.
+     * @throws IOException if the socket cannot be bound, e.g. because another agent is listening on it.
+     */
+    public static KeyAgent start(Path socketPath, long timeToIdleSeconds, int capacity) throws IOException {
+        ServerSocketChannel server = LocalSockets.bind(socketPath);
+        try {
+            long timeToIdleMillis = TimeUnit.SECONDS.toMillis(timeToIdleSeconds);
+            ExpiringKeyCache keys = new ExpiringKeyCache(capacity, TimeUnit.MILLISECONDS.toNanos(timeToIdleMillis),
+                    System::nanoTime);
+            return new KeyAgent(socketPath, server, keys, Math.max(1000, timeToIdleMillis / 10));
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the socket used when none is given: the path in {@value #SOCKET_ENVIRONMENT_VARIABLE}, else a
+     * socket in {@code $XDG_RUNTIME_DIR}, else one in a private directory below the temporary directory.
+     *
+     * @return the default socket path.
+     * @throws IOException if the private directory cannot be created.
+     */
+    public static Path defaultSocketPath() throws IOException {
+        return LocalSockets.defaultPath(SOCKET_ENVIRONMENT_VARIABLE, SOCKET_FILE_NAME);
+    }
+
+    /**
+     * Answers requests until the agent is closed.
+     *
+     * @throws IOException if accepting a connection fails for another reason than the agent being closed.
+     */
+    public void serve() throws IOException {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            handlers.execute(() -> handle(channel));
+        }
+    }
+
+    /**
+     * Stops answering requests, zeroes every key and removes the socket file.
+     *
+     * @throws IOException if the socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        Files.deleteIfExists(socketPath);
+        sweeper.shutdownNow();
+        handlers.shutdown();
+        try {
+            handlers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        keys.clear();
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel;
+             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+
+            LocalSockets.checkPeer(channel, owner);
+            int version = inputStream.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported protocol version " + version + ", expected " + VERSION);
+            }
+            byte operation = inputStream.readByte();
+            String keyName = inputStream.readUTF() + "/" + inputStream.readByte() + "/" + inputStream.readInt();
+
+            if (operation == GET) {
+                byte[] key = keys.get(keyName);
+                if (key == null) {
+                    outputStream.writeByte(NOT_FOUND);
+                } else {
+                    outputStream.writeByte(FOUND);
+                    writeKey(outputStream, key);
+                }
+            } else if (operation == PUT) {
+                byte[] key = readKey(inputStream);
+                keys.put(keyName, key);
+                Arrays.fill(key, (byte) 0);
+                outputStream.writeByte(STORED);
+            } else {
+                throw new IOException("Unknown operation " + operation);
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            System.err.println("Rejected request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the key and zeroes it.
+     */
+    static void writeKey(DataOutputStream outputStream, byte[] key) throws IOException {
+        outputStream.writeShort(key.length);
+        outputStream.write(key);
+        Arrays.fill(key, (byte) 0);
+    }
+
+    static byte[] readKey(DataInputStream inputStream) throws IOException {
+        int length = inputStream.readUnsignedShort();
+        if (length == 0 || length > MAX_KEY_LENGTH) {
+            throw new IOException("Invalid key length: " + length);
+        }
+        byte[] key = new byte[length];
+        inputStream.readFully(key);
+        return key;
+    }
+}
@@ -0,0 +1,109 @@
+package com.leithatia.ciphershell.daemon;
+
+import com.leithatia.ciphershell.util.KdfParameters;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Looks up and stores master keys in a running {@link KeyAgent}. An agent which cannot be reached is
+ * reported once and then treated as knowing no keys, so the caller falls back to deriving them.
+ */
+public class KeyAgentClient implements MasterKeyCache.SharedKeys {
+    private static final String KEY_ALGORITHM = "AES";
+
+    private final Path socketPath;
+    private volatile boolean unreachable;
+
+    /**
+     * Constructs a client for the agent listening on the given socket.
+     *
+     * @param socketPath the path of the agent's socket file.
+     */
+    public KeyAgentClient(Path socketPath) {
+        this.socketPath = socketPath;
+    }
+
+    /**
+     * @return a client for the agent named by {@value KeyAgent#SOCKET_ENVIRONMENT_VARIABLE}, or {@code null}
+     * if the variable is not set.
+     */
+    public static KeyAgentClient fromEnvironment() {
+        String socket = System.getenv(KeyAgent.SOCKET_ENVIRONMENT_VARIABLE);
+        if (socket == null || socket.isEmpty()) {
+            return null;
+        }
+        return new KeyAgentClient(Paths.get(socket));
+    }
+
+    @Override
+    public SecretKey find(byte[] salt, KdfParameters kdfParameters) {
+        if (unreachable) {
+            return null;
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+             DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+
+            writeRequest(outputStream, KeyAgent.GET, salt, kdfParameters);
+            outputStream.flush();
+            if (inputStream.readByte() != KeyAgent.FOUND) {
+                return null;
+            }
+            byte[] key = KeyAgent.readKey(inputStream);
+            try {
+                return new SecretKeySpec(key, KEY_ALGORITHM);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+        } catch (IOException e) {
+            reportUnreachable(e);
+            return null;
+        }
+    }
+
+    @Override
+    public void store(byte[] salt, KdfParameters kdfParameters, SecretKey key) {
+        if (unreachable) {
+            return;
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+             DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+             DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+
+            writeRequest(outputStream, KeyAgent.PUT, salt, kdfParameters);
+            KeyAgent.writeKey(outputStream, key.getEncoded());
+            outputStream.flush();
+            if (inputStream.readByte() != KeyAgent.STORED) {
+                throw new IOException("Key was not stored");
+            }
+        } catch (IOException e) {
+            reportUnreachable(e);
+        }
+    }
+
+    private static void writeRequest(DataOutputStream outputStream, byte operation, byte[] salt,
+                                     KdfParameters kdfParameters) throws IOException {
+        outputStream.writeInt(KeyAgent.VERSION);
+        outputStream.writeByte(operation);
+        outputStream.writeUTF(HexFormat.of().formatHex(salt));
+        outputStream.writeByte(kdfParameters.algorithm().id());
+        outputStream.writeInt(kdfParameters.iterations());
+    }
+
+    private void reportUnreachable(IOException e) {
+        if (!unreachable) {
+            unreachable = true;
+            System.err.println("Key agent at " + socketPath + " is unavailable: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.leithatia.ciphershell.daemon;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * Helpers for the Unix domain sockets the daemon and the key agent listen on. Sockets are created readable
+ * and writable by their owner only, and connections from other users are rejected where the platform
+ * reports the peer's credentials.
+ */
+final class LocalSockets {
+    private static final Set<PosixFilePermission> PRIVATE_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+
+    private LocalSockets() {
+    }
+
+    /**
+     * Binds a server socket to the path, replacing a socket file left behind by a process which is no
+     * longer listening on it.
+     *
+     * @param socketPath the path of the socket file.
+     * @return the bound server socket.
+     * @throws IOException if the socket cannot be bound, e.g. because another process is listening on it.
+     */
+    static ServerSocketChannel bind(Path socketPath) throws IOException {
+        removeStaleSocket(socketPath);
+
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+            return server;
+        } catch (IOException | RuntimeException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the socket path named by the environment variable, else a socket in {@code $XDG_RUNTIME_DIR},
+     * else one in a private directory below the temporary directory.
+     *
+     * @param environmentVariable the variable which may hold the socket path.
+     * @param fileName            the name of the socket file when the variable is not set.
+     * @return the socket path.
+     * @throws IOException if the private directory cannot be created, or exists but is not private.
+     */
+    static Path defaultPath(String environmentVariable, String fileName) throws IOException {
+        String socket = System.getenv(environmentVariable);
+        if (socket != null && !socket.isEmpty()) {
+            return Paths.get(socket);
+        }
+        String runtimeDirectory = System.getenv("XDG_RUNTIME_DIR");
+        if (runtimeDirectory != null && !runtimeDirectory.isEmpty()) {
+            return Paths.get(runtimeDirectory, fileName);
+        }
+
+        String user = System.getProperty("user.name");
+        return privateDirectory(Paths.get(System.getProperty("java.io.tmpdir"), "ciphershell-" + user), user)
+                .resolve(fileName);
+    }
+
+    /**
+     * Creates the directory accessible by its owner only, or checks that an existing one is. The temporary
+     * directory is shared, so another user may have created the directory first to watch or replace the
+     * sockets placed in it.
+     *
+     * @param directory the directory to hold the sockets.
+     * @param user      the name of the user who must own the directory.
+     * @return the directory.
+     * @throws IOException if the directory cannot be created, or is a link, owned by another user or
+     *                     accessible by other users.
+     */
+    static Path privateDirectory(Path directory, String user) throws IOException {
+        try {
+            Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(PRIVATE_DIRECTORY));
+        } catch (FileAlreadyExistsException e) {
+            // checked below like a directory created here
+        }
+        if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException(directory + " is not a directory.");
+        }
+        String owner = Files.getOwner(directory, LinkOption.NOFOLLOW_LINKS).getName();
+        if (!owner.equals(user)) {
+            throw new IOException(directory + " is owned by " + owner + " rather than " + user
+                    + ". Remove it or set XDG_RUNTIME_DIR.");
+        }
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS);
+        if (!permissions.equals(PRIVATE_DIRECTORY)) {
+            throw new IOException(directory + " has permissions " + PosixFilePermissions.toString(permissions)
+                    + " rather than rwx------. Remove it or set XDG_RUNTIME_DIR.");
+        }
+        return directory;
+    }
+
+    /**
+     * Rejects a connection from a user other than the owner of the socket file. The socket file's
+     * permissions already keep other users out; this guards against those being loosened.
+     *
+     * @param channel the accepted connection.
+     * @param owner   the name of the user owning the socket file.
+     * @throws IOException if the peer is another user.
+     */
+    static void checkPeer(SocketChannel channel, String owner) throws IOException {
+        if (!channel.supportedOptions().contains(ExtendedSocketOptions.SO_PEERCRED)) {
+            return;
+        }
+        UnixDomainPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+        if (!peer.user().getName().equals(owner)) {
+            throw new IOException("Connections from user " + peer.user().getName() + " are not accepted.");
+        }
+    }
+
+    /**
+     * Connects to the socket to find out whether a process is still listening on it, and deletes it if not.
+     */
+    private static void removeStaleSocket(Path socketPath) throws IOException {
+        if (!Files.exists(socketPath)) {
+            return;
+        }
+        SocketChannel listener;
+        try {
+            listener = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+        } catch (ConnectException e) {
+            Files.delete(socketPath);
+            return;
+        }
+        listener.close();
+        throw new IOException("Another process is already listening on " + socketPath);
+    }
+}
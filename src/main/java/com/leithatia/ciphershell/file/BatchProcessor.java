@@ -0,0 +1,188 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Encrypts or decrypts every file below a directory. The passphrase is derived into a master key once per
+ * run (or once per distinct salt when decrypting) and each file gets its own key derived cheaply from the
+ * master key and its IV. Files are processed concurrently on a fixed number of worker threads.
+ */
+public class BatchProcessor {
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final String ENCRYPTED_FILE_SUFFIX = ".enc";
+
+    /**
+     * Processes a single file and returns the path of the file written, or what was found.
+     */
+    @FunctionalInterface
+    private interface FileJob {
+        String process(Path file) throws IOException, CryptoException;
+    }
+
+    /**
+     * Encrypts all files below the directory which are not already encrypted.
+     *
+     * @param directory   the directory to walk.
+     * @param passphrase  the passphrase used to generate the master key, cleared once done.
+     * @param parallelism the maximum number of files processed at once.
+     * @return the number of files which failed.
+     * @throws IOException     if the directory cannot be walked.
+     * @throws CryptoException if the master key cannot be generated.
+     */
+    public static int encryptDirectory(Path directory, char[] passphrase, int parallelism)
+            throws IOException, CryptoException {
+        try (MasterKeyCache masterKeys = new MasterKeyCache(passphrase)) {
+            return encryptDirectory(directory, masterKeys, parallelism, EngineConfig.defaults());
+        }
+    }
+
+    /**
+     * Encrypts all files below the directory which are neither encrypted nor manifests or checkpoint journals
+     * with the given engine settings, e.g. compressing those which are worth it, all under one new salt.
+     *
+     * @param directory   the directory to walk.
+     * @param masterKeys  the cache deriving the master key for the new salt.
+     * @param parallelism the maximum number of files processed at once.
+     * @param config      the settings of the engine encrypting each file.
+     * @return the number of files which failed.
+     * @throws IOException     if the directory cannot be walked.
+     * @throws CryptoException if the master key cannot be generated.
+     */
+    public static int encryptDirectory(Path directory, MasterKeyCache masterKeys, int parallelism,
+                                       EngineConfig config) throws IOException, CryptoException {
+
+        Set<String> claimedTargets = ConcurrentHashMap.newKeySet();
+        byte[] salt = CipherUtil.generateSalt();
+
+        masterKeys.get(salt);
+        return process(directory, parallelism, file -> !isEncrypted(file) && !ChunkManifest.isManifest(file)
+                && !CheckpointJournal.isJournal(file) && !CheckpointJournal.isPartial(file), file -> {
+            String target = FileProcessor.generateEncryptedFileName(file.toString());
+            if (!claimedTargets.add(target)) {
+                throw new IOException("Skipped, another file is already being encrypted to " + target);
+            }
+            return FileProcessor.encryptFile(file.toString(), masterKeys, salt, config);
+        });
+    }
+
+    /**
+     * Decrypts all encrypted files below the directory.
+     *
+     * @param directory   the directory to walk.
+     * @param passphrase  the passphrase used to generate the master keys, cleared once done.
+     * @param parallelism the maximum number of files processed at once.
+     * @return the number of files which failed.
+     * @throws IOException if the directory cannot be walked.
+     */
+    public static int decryptDirectory(Path directory, char[] passphrase, int parallelism) throws IOException {
+        try (MasterKeyCache masterKeys = new MasterKeyCache(passphrase)) {
+            return decryptDirectory(directory, masterKeys, parallelism);
+        }
+    }
+
+    /**
+     * Decrypts all encrypted files below the directory using the master key cache.
+     *
+     * @param directory   the directory to walk.
+     * @param masterKeys  the cache providing the master keys by salt.
+     * @param parallelism the maximum number of files processed at once.
+     * @return the number of files which failed.
+     * @throws IOException if the directory cannot be walked.
+     */
+    public static int decryptDirectory(Path directory, MasterKeyCache masterKeys, int parallelism)
+            throws IOException {
+        return process(directory, parallelism, BatchProcessor::isEncrypted,
+                file -> FileProcessor.decryptFile(file.toString(), masterKeys));
+    }
+
+    /**
+     * Checks all encrypted files below the directory without writing any plaintext.
+     *
+     * @param directory   the directory to walk.
+     * @param masterKeys  the cache providing the master keys by salt.
+     * @param parallelism the maximum number of files processed at once.
+     * @return the number of files which failed the check.
+     * @throws IOException if the directory cannot be walked.
+     * @see CipherEngine#verifyFile(String, MasterKeyCache)
+     */
+    public static int verifyDirectory(Path directory, MasterKeyCache masterKeys, int parallelism)
+            throws IOException {
+        return process(directory, parallelism, BatchProcessor::isEncrypted,
+                file -> FileProcessor.verifyFile(file.toString(), masterKeys));
+    }
+
+    /**
+     * Changes the passphrase of all encrypted files below the directory, all under one new salt.
+     *
+     * @param directory   the directory to walk.
+     * @param oldKeys     the cache providing the current master keys by salt.
+     * @param newKeys     the cache deriving the master key for the new salt.
+     * @param parallelism the maximum number of files processed at once.
+     * @return the number of files which failed.
+     * @throws IOException if the directory cannot be walked.
+     * @see CipherEngine#rekeyFile(String, MasterKeyCache, MasterKeyCache, byte[])
+     */
+    public static int rekeyDirectory(Path directory, MasterKeyCache oldKeys, MasterKeyCache newKeys,
+                                     int parallelism) throws IOException {
+        byte[] newSalt = CipherUtil.generateSalt();
+        return process(directory, parallelism, BatchProcessor::isEncrypted,
+                file -> FileProcessor.rekeyFile(file.toString(), oldKeys, newKeys, newSalt));
+    }
+
+    /**
+     * Runs the job on every regular file below the directory which matches the filter. Failures are
+     * reported and counted but do not stop the remaining files.
+     */
+    private static int process(Path directory, int parallelism, Predicate<Path> filter, FileJob job)
+            throws IOException {
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile).filter(filter).collect(Collectors.toList());
+        }
+
+        AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        for (Path file : files) {
+            executor.execute(() -> {
+                try {
+                    System.out.println(file + " -> " + job.process(file));
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    System.err.println(file + ": " + e.getMessage());
+                }
+            });
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        System.out.println("Processed " + (files.size() - failures.get()) + " of " + files.size() + " files.");
+        return failures.get();
+    }
+
+    private static boolean isEncrypted(Path file) {
+        return file.getFileName().toString().endsWith(ENCRYPTED_FILE_SUFFIX);
+    }
+}
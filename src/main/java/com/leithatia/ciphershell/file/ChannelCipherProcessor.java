@@ -0,0 +1,75 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.metrics.RunStats;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Runs a single, continuous cipher over a region of a file using NIO. The source is memory-mapped in
+ * windows and fed to {@link Cipher#update(ByteBuffer, ByteBuffer)}, which writes into a reusable direct
+ * buffer that is drained to the target channel. No data passes through the Java heap.
+ */
+class ChannelCipherProcessor {
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Processes all bytes of the source channel from the given position through the cipher, appending the
+     * result to the target channel at its current position.
+     *
+     * @param source   the channel to read from.
+     * @param position the position in the source channel to start reading at.
+     * @param target   the channel to write to.
+     * @param cipher   an initialised cipher.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the cipher fails, e.g. because of a bad passphrase.
+     */
+    static void process(FileChannel source, long position, FileChannel target, Cipher cipher)
+            throws IOException, CryptoException {
+
+        ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE + 2 * cipher.getBlockSize());
+        long sourceLength = source.size();
+
+        try {
+            while (position < sourceLength) {
+                long windowLength = Math.min(MAP_WINDOW_SIZE, sourceLength - position);
+                MappedByteBuffer window = source.map(FileChannel.MapMode.READ_ONLY, position, windowLength);
+
+                while (window.hasRemaining()) {
+                    int sliceLength = Math.min(OUTPUT_BUFFER_SIZE, window.remaining());
+                    ByteBuffer slice = window.slice().limit(sliceLength);
+                    // page faults on the mapping are counted as cipher time, as they cannot be told apart
+                    long start = System.nanoTime();
+                    cipher.update(slice, output);
+                    RunStats.recordCrypto(System.nanoTime() - start, sliceLength);
+                    window.position(window.position() + sliceLength);
+                    drain(output, target);
+                }
+                position += windowLength;
+            }
+            cipher.doFinal(ByteBuffer.allocate(0), output);
+            drain(output, target);
+        } catch (BadPaddingException e) {
+            throw new CryptoException("Bad passphrase or corrupted file.", e);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Cipher failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static void drain(ByteBuffer output, FileChannel target) throws IOException {
+        long start = System.nanoTime();
+        output.flip();
+        while (output.hasRemaining()) {
+            target.write(output);
+        }
+        output.clear();
+        RunStats.recordWrite(System.nanoTime() - start);
+    }
+}
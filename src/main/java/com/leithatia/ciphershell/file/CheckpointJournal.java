@@ -0,0 +1,199 @@
+package com.leithatia.ciphershell.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Records how far the encryption or decryption of a large file got, so that an interrupted run can be
+ * resumed instead of started over. Chunks are written in batches; once a batch is complete the output is
+ * forced to disk and the journal is replaced, so every chunk it counts is durably written.
+ * <p>
+ * The journal belongs to one run: it names the IV of the encrypted file and the identity of the file read,
+ * its size, modification and change times, device and inode, and is ignored if any of them changed since.
+ * The change time and inode catch a file replaced or edited with its modification time set back, which
+ * size and modification time alone miss.
+ * <p>
+ * Layout: the magic number, the IV, the size, modification time, change time, device and inode of the
+ * source, and the number of chunks completed from the start of the file.
+ * <p>
+ * Output is written to a partial file next to its target, named with {@link #PARTIAL_SUFFIX} so that it
+ * cannot be mistaken for a file of the user's. A checkpointed run writes to the one partial file its journal
+ * belongs to; other outputs are written to partial files with unique names.
+ */
+final class CheckpointJournal {
+    static final String SUFFIX = ".journal";
+    static final String PARTIAL_SUFFIX = ".ciphershell-partial";
+    static final long DEFAULT_INTERVAL = 256L * 1024 * 1024;
+    private static final byte[] MAGIC_NUMBER = "ENCJR2".getBytes(StandardCharsets.US_ASCII);
+    private static final int IV_LENGTH = 16;
+    private static final int LENGTH = MAGIC_NUMBER.length + IV_LENGTH + 6 * Long.BYTES;
+
+    private final byte[] iv;
+    private final Source source;
+    private final long completedChunks;
+
+    CheckpointJournal(byte[] iv, Source source, long completedChunks) {
+        this.iv = iv;
+        this.source = source;
+        this.completedChunks = completedChunks;
+    }
+
+    /**
+     * The identity of the file read by a run.
+     *
+     * @param size     the size of the file.
+     * @param modified the modification time of the file, in milliseconds.
+     * @param changed  the change time of the file, in milliseconds, or its modification time where the file
+     *                 system has none.
+     * @param device   the device holding the file, or 0 where the file system does not tell.
+     * @param inode    the inode of the file, or 0 where the file system does not tell.
+     */
+    record Source(long size, long modified, long changed, long device, long inode) {
+
+        /**
+         * @param path the file read.
+         * @return its identity now.
+         * @throws IOException if its attributes cannot be read.
+         */
+        static Source of(Path path) throws IOException {
+            try {
+                Map<String, Object> attributes = Files.readAttributes(path,
+                        "unix:size,lastModifiedTime,ctime,dev,ino");
+                return new Source((Long) attributes.get("size"),
+                        ((FileTime) attributes.get("lastModifiedTime")).toMillis(),
+                        ((FileTime) attributes.get("ctime")).toMillis(), (Long) attributes.get("dev"),
+                        (Long) attributes.get("ino"));
+            } catch (UnsupportedOperationException e) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                long modified = attributes.lastModifiedTime().toMillis();
+                return new Source(attributes.size(), modified, modified, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * @param iv              the IV of the encrypted file being written or read.
+     * @param source          the identity of the file being read, taken when the run started.
+     * @param completedChunks the number of chunks durably written from the start of the file.
+     * @return the journal recording them.
+     */
+    static CheckpointJournal of(byte[] iv, Source source, long completedChunks) {
+        return new CheckpointJournal(iv, source, completedChunks);
+    }
+
+    long completedChunks() {
+        return completedChunks;
+    }
+
+    /**
+     * @param output the path the complete output is renamed to.
+     * @return the path of the journal of the output.
+     */
+    static Path pathFor(Path output) {
+        return output.resolveSibling(output.getFileName() + SUFFIX);
+    }
+
+    /**
+     * @param file a path.
+     * @return {@code true} if the path names a checkpoint journal.
+     */
+    static boolean isJournal(Path file) {
+        return file.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    /**
+     * @param output the path the complete output is renamed to.
+     * @return the path of the partial output a checkpointed run writes and a resumed run continues.
+     */
+    static Path partialPathFor(Path output) {
+        return output.resolveSibling(output.getFileName() + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * Creates an empty partial file with a unique name next to the output, for output which is never resumed.
+     *
+     * @param output the path the complete output is renamed to.
+     * @return the path of the partial file.
+     * @throws IOException if the file cannot be created.
+     */
+    static Path createPartial(Path output) throws IOException {
+        Path absolute = output.toAbsolutePath();
+        return Files.createTempFile(absolute.getParent(), absolute.getFileName() + ".", PARTIAL_SUFFIX);
+    }
+
+    /**
+     * @param file a path.
+     * @return {@code true} if the path names the partial output of a run.
+     */
+    static boolean isPartial(Path file) {
+        return file.getFileName().toString().endsWith(PARTIAL_SUFFIX);
+    }
+
+    /**
+     * @param iv     the IV of the encrypted file.
+     * @param source the identity of the file being read now.
+     * @return whether the journal was written by a run over the same files, which may thus be continued.
+     */
+    boolean matches(byte[] iv, Source source) {
+        return Arrays.equals(this.iv, iv) && this.source.equals(source);
+    }
+
+    /**
+     * Reads a journal.
+     *
+     * @param path the path of the journal.
+     * @return the journal, or {@code null} if there is none or it is not a journal.
+     * @throws IOException if the journal cannot be read.
+     */
+    static CheckpointJournal read(Path path) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length != LENGTH || !Arrays.equals(bytes, 0, MAGIC_NUMBER.length, MAGIC_NUMBER, 0,
+                MAGIC_NUMBER.length)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, MAGIC_NUMBER.length, LENGTH - MAGIC_NUMBER.length);
+        byte[] iv = new byte[IV_LENGTH];
+        buffer.get(iv);
+        Source source = new Source(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                buffer.getLong());
+        return new CheckpointJournal(iv, source, buffer.getLong());
+    }
+
+    /**
+     * Replaces the journal at the path: the new one is written and forced next to it, then renamed over it,
+     * so that a crash leaves either the previous journal or this one.
+     *
+     * @param path the path of the journal.
+     * @throws IOException if the journal cannot be written.
+     */
+    void write(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH).put(MAGIC_NUMBER).put(iv).putLong(source.size())
+                .putLong(source.modified()).putLong(source.changed()).putLong(source.device())
+                .putLong(source.inode()).putLong(completedChunks).flip();
+        Path temporary = createPartial(path);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            ChunkedFileProcessor.writeFully(channel, buffer, 0);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
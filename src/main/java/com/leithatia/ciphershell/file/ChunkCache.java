@@ -0,0 +1,94 @@
+package com.leithatia.ciphershell.file;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decrypted chunks shared by the {@link EncryptedFileChannel}s of many files, bounded by the total number of
+ * plaintext bytes held. The least recently used chunk makes room once the cache is full, so hot chunks are
+ * read from memory without touching the file or the cipher again.
+ * <p>
+ * Chunks are cached under the identity of the version of the file they came from: its path, IV, size,
+ * modification and change times, device and inode. A file which is replaced or updated thus never serves
+ * stale chunks; those of the old version are simply no longer asked for and age out.
+ */
+public class ChunkCache {
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    private record Key(String file, long chunkIndex) {
+    }
+
+    private final long capacity;
+    private final LinkedHashMap<Key, byte[]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long size;
+
+    /**
+     * @param capacity the maximum number of plaintext bytes held, or 0 to cache nothing.
+     */
+    public ChunkCache(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Cache capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param file       the identity of the file version.
+     * @param chunkIndex the zero based index of the chunk.
+     * @return the plaintext of the chunk, which must not be modified, or {@code null} if it is not cached.
+     */
+    synchronized byte[] get(String file, long chunkIndex) {
+        byte[] chunk = chunks.get(new Key(file, chunkIndex));
+        (chunk == null ? misses : hits).incrementAndGet();
+        return chunk;
+    }
+
+    /**
+     * Caches a chunk, evicting the least recently used ones until it fits. A chunk larger than the whole
+     * cache is not cached.
+     *
+     * @param file       the identity of the file version.
+     * @param chunkIndex the zero based index of the chunk.
+     * @param chunk      the plaintext of the chunk, which must not be modified afterwards.
+     */
+    synchronized void put(String file, long chunkIndex, byte[] chunk) {
+        if (chunk.length > capacity) {
+            return;
+        }
+        byte[] previous = chunks.put(new Key(file, chunkIndex), chunk);
+        size += chunk.length - (previous == null ? 0 : previous.length);
+        for (Iterator<Map.Entry<Key, byte[]>> eldest = chunks.entrySet().iterator(); size > capacity; ) {
+            size -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of plaintext bytes held.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of chunks served from the cache.
+     */
+    public long hitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of chunks which had to be read and decrypted.
+     */
+    public long missCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,180 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherUtil;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The digests of the plaintext chunks of an encrypted file, kept next to it so that {@code update} can tell
+ * which chunks changed without decrypting the file. Digests are HMACs under a key derived from the file
+ * key, so the manifest reveals nothing about the plaintext to anyone without the passphrase, stays valid
+ * when the passphrase is changed, and the manifest as a whole is authenticated under the same key.
+ * <p>
+ * Layout: the magic number, the IV of the encrypted file it belongs to, the chunk size, the chunk count,
+ * one digest per chunk and a MAC over everything before it.
+ */
+final class ChunkManifest {
+    static final String SUFFIX = ".manifest";
+    private static final byte[] MAGIC_NUMBER = "ENCMF1".getBytes(StandardCharsets.US_ASCII);
+    private static final String KEY_INFO = "ciphershell chunk manifest";
+    private static final String KEY_ALGORITHM = "HmacSHA256";
+    private static final int DIGEST_LENGTH = 32;
+    private static final int FIXED_LENGTH = MAGIC_NUMBER.length + 16 + Integer.BYTES + Integer.BYTES + DIGEST_LENGTH;
+
+    private final byte[] iv;
+    private final int chunkSize;
+    private final byte[][] digests;
+
+    ChunkManifest(byte[] iv, int chunkSize, byte[][] digests) {
+        this.iv = iv;
+        this.chunkSize = chunkSize;
+        this.digests = digests;
+    }
+
+    byte[][] digests() {
+        return digests;
+    }
+
+    /**
+     * @param encryptedFile the path of the encrypted file.
+     * @return the path of the file's manifest.
+     */
+    static Path pathFor(Path encryptedFile) {
+        return encryptedFile.resolveSibling(encryptedFile.getFileName() + SUFFIX);
+    }
+
+    /**
+     * @param file a path.
+     * @return {@code true} if the path names the manifest of an encrypted file.
+     */
+    static boolean isManifest(Path file) {
+        return file.getFileName().toString().endsWith(".enc" + SUFFIX);
+    }
+
+    /**
+     * Derives the key of the manifests of one encrypted file.
+     *
+     * @param fileKey the key the file's chunks are encrypted under.
+     * @param iv      the IV in the file's header.
+     * @return the manifest key.
+     * @throws CryptoException if the key cannot be derived.
+     */
+    static SecretKey deriveKey(SecretKey fileKey, byte[] iv) throws CryptoException {
+        return CipherUtil.deriveSubkey(fileKey, iv, KEY_INFO, KEY_ALGORITHM);
+    }
+
+    /**
+     * Computes the digest of a plaintext chunk. The chunk index is included, so that equal chunks at
+     * different positions have different digests.
+     *
+     * @param key        the manifest key.
+     * @param chunkIndex the zero based index of the chunk.
+     * @param chunk      the plaintext of the chunk, which is consumed.
+     * @return the digest.
+     * @throws GeneralSecurityException if the MAC cannot be computed.
+     */
+    static byte[] digest(SecretKey key, long chunkIndex, ByteBuffer chunk) throws GeneralSecurityException {
+        Mac mac = CipherUtil.initMac(key);
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(0, chunkIndex));
+        mac.update(chunk);
+        return mac.doFinal();
+    }
+
+    /**
+     * Reads the manifest of an encrypted file.
+     *
+     * @param path       the path of the manifest.
+     * @param key        the manifest key.
+     * @param fileHeader the header of the encrypted file.
+     * @param chunkCount the number of chunks in the encrypted file.
+     * @return the manifest, or {@code null} if there is none or it does not belong to the file as it is now.
+     * @throws IOException     if the manifest exists but cannot be read.
+     * @throws CryptoException if the manifest cannot be authenticated.
+     */
+    static ChunkManifest read(Path path, SecretKey key, FileHeader fileHeader, long chunkCount)
+            throws IOException, CryptoException {
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length < FIXED_LENGTH
+                || (bytes.length - FIXED_LENGTH) % DIGEST_LENGTH != 0
+                || !Arrays.equals(bytes, 0, MAGIC_NUMBER.length, MAGIC_NUMBER, 0, MAGIC_NUMBER.length)) {
+            return null;
+        }
+
+        int macOffset = bytes.length - DIGEST_LENGTH;
+        byte[] mac = mac(key, ByteBuffer.wrap(bytes, 0, macOffset));
+        if (!MessageDigest.isEqual(mac, Arrays.copyOfRange(bytes, macOffset, bytes.length))) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, MAGIC_NUMBER.length, macOffset - MAGIC_NUMBER.length);
+        byte[] iv = new byte[16];
+        buffer.get(iv);
+        int chunkSize = buffer.getInt();
+        int count = buffer.getInt();
+        if (!Arrays.equals(iv, fileHeader.getIv()) || chunkSize != fileHeader.getChunkSize() || count != chunkCount
+                || buffer.remaining() != count * DIGEST_LENGTH) {
+            return null;
+        }
+
+        byte[][] digests = new byte[count][DIGEST_LENGTH];
+        for (byte[] digest : digests) {
+            buffer.get(digest);
+        }
+        return new ChunkManifest(iv, chunkSize, digests);
+    }
+
+    /**
+     * Writes the manifest to a temporary file and moves it into place, so that a manifest is either
+     * complete or absent.
+     *
+     * @param path the path of the manifest.
+     * @param key  the manifest key.
+     * @throws IOException     if the manifest cannot be written.
+     * @throws CryptoException if the manifest cannot be authenticated.
+     */
+    void write(Path path, SecretKey key) throws IOException, CryptoException {
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_LENGTH + digests.length * DIGEST_LENGTH);
+        buffer.put(MAGIC_NUMBER).put(iv).putInt(chunkSize).putInt(digests.length);
+        for (byte[] digest : digests) {
+            buffer.put(digest);
+        }
+        buffer.put(mac(key, buffer.duplicate().flip()));
+
+        Path temporary = CheckpointJournal.createPartial(path);
+        try {
+            Files.write(temporary, buffer.array());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] mac(SecretKey key, ByteBuffer content) throws CryptoException {
+        try {
+            Mac mac = CipherUtil.initMac(key);
+            mac.update(content);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to authenticate manifest: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.metrics.RunStats;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings a file in the chunked format up to date with a changed plaintext by rewriting only the chunks
+ * whose contents changed, plus the old and new last chunk if the length changed. Unchanged chunks are
+ * found by comparing digests of the plaintext with the {@link ChunkManifest} next to the encrypted file,
+ * or with digests of the decrypted chunks if there is no usable manifest.
+ * <p>
+ * Rewritten chunks must never be sealed under a nonce used before, so files which can be updated keep a
+ * generation in front of every chunk ({@link FileHeader#FLAG_CHUNK_GENERATIONS}). The header records the
+ * highest generation ever written and a tag, under a key derived from the file key, over it and the generation
+ * of every chunk. An update first checks the tag, so a chunk rolled back to an older copy or an update which
+ * was interrupted halfway is refused rather than trusted, then writes all its chunks with the next generation
+ * and records it with a new tag. Files without generations, or whose header does not record them, are
+ * encrypted afresh in the new layout on their first update.
+ * <p>
+ * The manifest is removed before chunks are rewritten and written again afterwards, so an interrupted
+ * update leaves no stale manifest behind.
+ */
+class ChunkUpdater {
+    private static final String GENERATIONS_KEY_INFO = "ciphershell chunk generations";
+    private static final String GENERATIONS_KEY_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Updates the encrypted file to hold the contents of the plaintext file.
+     *
+     * @param plainFile     the path of the changed plaintext.
+     * @param encryptedFile the path of the encrypted file, which is updated in place.
+     * @param masterKeys    the cache providing the master key for the encrypted file's salt.
+     * @return what was rewritten.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the encrypted file cannot be updated or the passphrase does not match.
+     */
+    static UpdateResult update(Path plainFile, Path encryptedFile, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+
+        FileHeader fileHeader;
+        try (FileChannel channel = FileChannel.open(encryptedFile, StandardOpenOption.READ)) {
+            fileHeader = FileProcessor.readHeader(channel);
+        }
+        FileProcessor.validateFileEncryption(encryptedFile.toString(), fileHeader.getMagicNumber());
+        FileProcessor.rejectContainer(encryptedFile.toString(), fileHeader);
+        if (!fileHeader.isChunked()) {
+            throw new CryptoException(encryptedFile + " is in the original format and cannot be updated. "
+                    + "Decrypt it and encrypt it again first.");
+        }
+        if (fileHeader.isVolume()) {
+            throw new CryptoException(encryptedFile + " is one volume of a split file and cannot be updated. "
+                    + "Decrypt the volumes and encrypt the file again.");
+        }
+
+        SecretKey masterKey = masterKeys.get(fileHeader.getSalt(), fileHeader.getKdfParameters());
+        UpdateResult result = fileHeader.hasChunkGenerations()
+                ? updateInPlace(plainFile, encryptedFile, fileHeader, masterKey)
+                : rewrite(plainFile, encryptedFile, fileHeader, masterKey);
+        masterKeys.confirm(fileHeader.getSalt(), fileHeader.getKdfParameters());
+        return result;
+    }
+
+    private static UpdateResult updateInPlace(Path plainFile, Path encryptedFile, FileHeader fileHeader,
+                                              SecretKey masterKey) throws IOException, CryptoException {
+
+        SecretKey fileKey = FileProcessor.fileKey(fileHeader, masterKey);
+        SecretKey manifestKey = ChunkManifest.deriveKey(fileKey, fileHeader.getIv());
+        Path manifestPath = ChunkManifest.pathFor(encryptedFile);
+
+        try (FileChannel source = FileChannel.open(plainFile, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(encryptedFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            long oldChunkCount = ChunkedFileProcessor.encryptedChunkCount(fileHeader, target.size());
+            SecretKey generationsKey = CipherUtil.deriveSubkey(fileKey, fileHeader.getIv(), GENERATIONS_KEY_INFO,
+                    GENERATIONS_KEY_ALGORITHM);
+            if (!MessageDigest.isEqual(fileHeader.getGenerationsTag(), generationsTag(generationsKey,
+                    fileHeader.getGeneration(), target, fileHeader, oldChunkCount))) {
+                throw new CryptoException(encryptedFile + " does not match the chunk generations recorded in its "
+                        + "header: a chunk was rolled back or an earlier update was interrupted. Encrypt the file "
+                        + "again to replace it.");
+            }
+            if (fileHeader.getGeneration() == Integer.MAX_VALUE) {
+                throw new CryptoException(encryptedFile + " has been updated too often. Encrypt it again.");
+            }
+
+            ChunkManifest manifest = ChunkManifest.read(manifestPath, manifestKey, fileHeader, oldChunkCount);
+            byte[][] oldDigests = manifest != null
+                    ? manifest.digests()
+                    : digestChunks(target, fileHeader, fileKey, manifestKey, oldChunkCount);
+            Files.deleteIfExists(manifestPath);
+
+            int generation = fileHeader.getGeneration() + 1;
+            AtomicLong rewritten = new AtomicLong();
+            byte[][] digests = writeChunks(source, target, fileHeader, fileKey, manifestKey, oldDigests,
+                    generation, rewritten);
+
+            long length = fileHeader.getLength() + source.size()
+                    + digests.length * (long) (ChunkedFileProcessor.recordLength(fileHeader) - fileHeader.getChunkSize());
+            target.truncate(length);
+            fileHeader.setGenerations(generation,
+                    generationsTag(generationsKey, generation, target, fileHeader, digests.length));
+            FileProcessor.writeHeader(target, fileHeader);
+            target.force(false);
+
+            new ChunkManifest(fileHeader.getIv(), fileHeader.getChunkSize(), digests).write(manifestPath, manifestKey);
+            return new UpdateResult(digests.length, rewritten.get(), false);
+        }
+    }
+
+    /**
+     * Encrypts the plaintext afresh in the layout with generations, under the same salt and thus passphrase
+     * but a new IV and data key, and replaces the encrypted file with the result. The passphrase is checked against the
+     * existing file first, so that a mistyped one cannot silently change it.
+     */
+    private static UpdateResult rewrite(Path plainFile, Path encryptedFile, FileHeader fileHeader,
+                                        SecretKey masterKey) throws IOException, CryptoException {
+
+        try (FileChannel existing = FileChannel.open(encryptedFile, StandardOpenOption.READ)) {
+            long fileLength = existing.size();
+            long chunkCount = ChunkedFileProcessor.encryptedChunkCount(fileHeader, fileLength);
+            ChunkedFileProcessor.openChunk(existing, fileLength, fileHeader,
+                    FileProcessor.fileKey(fileHeader, masterKey), 0, chunkCount,
+                    ChunkedFileProcessor.plaintextBuffer(fileHeader.getChunkSize()));
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Bad passphrase or corrupted file: " + encryptedFile
+                    + " failed authentication.", e);
+        }
+
+        byte[] iv = CipherUtil.generateInitialVector();
+        SecretKey fileKey = CipherUtil.generateDataKey();
+        FileHeader updatedHeader = new FileHeader(new String(fileHeader.getFileExtension(), StandardCharsets.UTF_8),
+                fileHeader.getSalt(), iv, fileHeader.getChunkSize(), FileHeader.FLAG_CHUNK_GENERATIONS,
+                fileHeader.getCipherSuite(), fileHeader.getKdfParameters(),
+                FileProcessor.wrapDataKey(masterKey, fileHeader.getSalt(), fileKey));
+        SecretKey manifestKey = ChunkManifest.deriveKey(fileKey, iv);
+        Path manifestPath = ChunkManifest.pathFor(encryptedFile);
+        // a unique temporary, so that concurrent updates of the same file do not write into each other's copy
+        Path temporary = CheckpointJournal.createPartial(encryptedFile);
+
+        byte[][] digests;
+        try (FileChannel source = FileChannel.open(plainFile, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            FileProcessor.writeHeader(target, updatedHeader);
+            digests = writeChunks(source, target, updatedHeader, fileKey, manifestKey, new byte[0][], 0, new AtomicLong());
+            SecretKey generationsKey = CipherUtil.deriveSubkey(fileKey, iv, GENERATIONS_KEY_INFO,
+                    GENERATIONS_KEY_ALGORITHM);
+            updatedHeader.setGenerations(0, generationsTag(generationsKey, 0, target, updatedHeader, digests.length));
+            FileProcessor.writeHeader(target, updatedHeader);
+            target.force(false);
+        } catch (IOException | CryptoException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        Files.deleteIfExists(manifestPath);
+        Files.move(temporary, encryptedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        new ChunkManifest(iv, updatedHeader.getChunkSize(), digests).write(manifestPath, manifestKey);
+        return new UpdateResult(digests.length, digests.length, true);
+    }
+
+    /**
+     * Writes every chunk of the plaintext whose digest differs from the old one, or whose position relative
+     * to the end of the file changed, with the given generation.
+     *
+     * @return the digests of all chunks of the plaintext.
+     */
+    private static byte[][] writeChunks(FileChannel source, FileChannel target, FileHeader fileHeader,
+                                        SecretKey fileKey, SecretKey manifestKey, byte[][] oldDigests,
+                                        int generation, AtomicLong rewritten) throws IOException, CryptoException {
+
+        int chunkSize = fileHeader.getChunkSize();
+        long plaintextLength = source.size();
+        long chunkCount = ChunkedFileProcessor.plaintextChunkCount(plaintextLength, chunkSize);
+        if (chunkCount > Integer.MAX_VALUE) {
+            throw new CryptoException("Too many chunks to keep a manifest: " + chunkCount);
+        }
+        long oldChunkCount = oldDigests.length;
+        byte[][] digests = new byte[(int) chunkCount][];
+        SecretKey chunkKey = ChunkedFileProcessor.chunkKey(fileHeader, fileKey);
+
+        ChunkedFileProcessor.forEachChunk(chunkCount, chunkIndex -> {
+            long offset = chunkIndex * chunkSize;
+            int length = (int) Math.min(chunkSize, plaintextLength - offset);
+
+            long start = System.nanoTime();
+            ByteBuffer plaintext = ChunkedFileProcessor.plaintextBuffer(chunkSize).limit(length);
+            ChunkedFileProcessor.readFully(source, plaintext, offset);
+            plaintext.flip();
+            long read = System.nanoTime();
+            RunStats.recordRead(read - start);
+
+            byte[] digest = ChunkManifest.digest(manifestKey, chunkIndex, plaintext.duplicate());
+            digests[(int) chunkIndex] = digest;
+            boolean lastChunk = chunkIndex == chunkCount - 1;
+            if (chunkIndex < oldChunkCount && lastChunk == (chunkIndex == oldChunkCount - 1)
+                    && MessageDigest.isEqual(digest, oldDigests[(int) chunkIndex])) {
+                return;
+            }
+
+            ByteBuffer record = ChunkedFileProcessor.ciphertextBuffer(chunkSize);
+            ChunkedFileProcessor.sealChunk(fileHeader, chunkKey, chunkIndex, generation, lastChunk, plaintext, record);
+            record.flip();
+            long sealed = System.nanoTime();
+            RunStats.recordCrypto(sealed - read, length);
+
+            ChunkedFileProcessor.writeFully(target, record,
+                    ChunkedFileProcessor.encryptedChunkOffset(fileHeader, chunkIndex));
+            RunStats.recordWrite(System.nanoTime() - sealed);
+            rewritten.incrementAndGet();
+        });
+        return digests;
+    }
+
+    /**
+     * Computes the tag recorded in the header over the highest generation of the file, its chunk count and the
+     * generation of each of its chunks.
+     */
+    private static byte[] generationsTag(SecretKey generationsKey, int generation, FileChannel channel,
+                                         FileHeader fileHeader, long chunkCount) throws IOException, CryptoException {
+        try {
+            Mac mac = CipherUtil.initMac(generationsKey);
+            mac.update(ByteBuffer.allocate(Integer.BYTES + Long.BYTES).putInt(generation).putLong(chunkCount).flip());
+            ByteBuffer chunkGeneration = ByteBuffer.allocate(Integer.BYTES);
+            for (long chunkIndex = 0; chunkIndex < chunkCount; chunkIndex++) {
+                mac.update(chunkGeneration.putInt(0, ChunkedFileProcessor.readGeneration(channel, fileHeader,
+                        chunkIndex)).rewind());
+            }
+            return Arrays.copyOf(mac.doFinal(), FileHeader.GENERATIONS_TAG_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to authenticate chunk generations: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Computes the manifest digests of the chunks of an encrypted file by decrypting them.
+     */
+    private static byte[][] digestChunks(FileChannel source, FileHeader fileHeader, SecretKey fileKey,
+                                         SecretKey manifestKey, long chunkCount) throws IOException, CryptoException {
+
+        long fileLength = source.size();
+        byte[][] digests = new byte[(int) chunkCount][];
+        ChunkedFileProcessor.forEachChunk(chunkCount, chunkIndex -> {
+            ByteBuffer plaintext = ChunkedFileProcessor.plaintextBuffer(fileHeader.getChunkSize());
+            ChunkedFileProcessor.openChunk(source, fileLength, fileHeader, fileKey, chunkIndex, chunkCount, plaintext);
+            digests[(int) chunkIndex] = ChunkManifest.digest(manifestKey, chunkIndex, plaintext);
+        });
+        return digests;
+    }
+}
@@ -0,0 +1,636 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.metrics.RunStats;
+import com.leithatia.ciphershell.util.CipherSuite;
+import com.leithatia.ciphershell.util.CipherUtil;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Encrypts and decrypts the payload of files in the chunked format.
+ * <p>
+ * The plaintext is split into chunks of {@link FileHeader#getChunkSize()} bytes and each chunk is sealed
+ * with the {@link CipherSuite} of the file under its own nonce. As no chunk depends on another, chunks are
+ * spread across a {@link ForkJoinPool} and read and written with positional channel I/O at their own
+ * offsets. Each worker thread reuses a pair of direct buffers, so chunks are transferred without heap copies
+ * or garbage.
+ * <p>
+ * Files with {@link FileHeader#FLAG_CHUNK_GENERATIONS} store each chunk as a record of its generation
+ * followed by the sealed chunk, so that single chunks can be rewritten under a fresh nonce.
+ * <p>
+ * The chunks of a file split into {@link FileHeader#FLAG_VOLUME volumes} are sealed with their index in the
+ * whole file, and only the last chunk of the last volume is sealed as the last one. Each volume can be opened
+ * on its own, while volumes which are swapped, missing or cut short at a chunk boundary fail when they are
+ * put back together.
+ */
+class ChunkedFileProcessor {
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    static final int GENERATION_LENGTH = Integer.BYTES;
+    private static final ThreadLocal<ByteBuffer[]> CHUNK_BUFFERS = ThreadLocal.withInitial(() -> new ByteBuffer[2]);
+
+    /**
+     * Performs work on a single chunk.
+     */
+    @FunctionalInterface
+    interface ChunkWorker {
+        void process(long chunkIndex) throws IOException, GeneralSecurityException;
+    }
+
+    /**
+     * Called once all chunks before an index have been written and forced to disk.
+     */
+    @FunctionalInterface
+    interface Checkpoint {
+        void reached(long completedChunks) throws IOException;
+    }
+
+    /**
+     * Encrypts all data of the source channel into the target channel, directly after the header.
+     *
+     * @param source     the channel containing the plaintext.
+     * @param target     the channel to write chunks to.
+     * @param fileHeader the header of the target file.
+     * @param secretKey  the key used to seal the chunks.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if a chunk could not be encrypted.
+     */
+    static void encrypt(FileChannel source, FileChannel target, FileHeader fileHeader, SecretKey secretKey)
+            throws IOException, CryptoException {
+        encrypt(source, target, fileHeader, secretKey, 0, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Encrypts the data of the source channel from a chunk on into the target channel, in batches of chunks
+     * with a checkpoint after each but the last.
+     *
+     * @param source           the channel containing the plaintext.
+     * @param target           the channel to write chunks to.
+     * @param fileHeader       the header of the target file.
+     * @param secretKey        the key used to seal the chunks.
+     * @param firstChunk       the index of the first chunk to encrypt, as those before it are already written.
+     * @param checkpointChunks the number of chunks per batch.
+     * @param checkpoint       called after each batch but the last, or {@code null}.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if a chunk could not be encrypted.
+     */
+    static void encrypt(FileChannel source, FileChannel target, FileHeader fileHeader, SecretKey secretKey,
+                        long firstChunk, long checkpointChunks, Checkpoint checkpoint)
+            throws IOException, CryptoException {
+
+        int chunkSize = fileHeader.getChunkSize();
+        long plaintextLength = source.size();
+        long chunkCount = plaintextChunkCount(plaintextLength, chunkSize);
+        SecretKey chunkKey = chunkKey(fileHeader, secretKey);
+
+        forEachChunk(firstChunk, chunkCount, checkpointChunks, target, checkpoint, chunkIndex -> {
+            long offset = chunkIndex * chunkSize;
+            int length = (int) Math.min(chunkSize, plaintextLength - offset);
+
+            long start = System.nanoTime();
+            ByteBuffer plaintext = plaintextBuffer(chunkSize).limit(length);
+            readFully(source, plaintext, offset);
+            plaintext.flip();
+            long read = System.nanoTime();
+            RunStats.recordRead(read - start);
+
+            ByteBuffer ciphertext = ciphertextBuffer(chunkSize);
+            sealChunk(fileHeader, chunkKey, chunkIndex, 0, chunkIndex == chunkCount - 1, plaintext, ciphertext);
+            ciphertext.flip();
+            long sealed = System.nanoTime();
+            RunStats.recordCrypto(sealed - read, length);
+
+            writeFully(target, ciphertext, encryptedChunkOffset(fileHeader, chunkIndex));
+            RunStats.recordWrite(System.nanoTime() - sealed);
+        });
+    }
+
+    /**
+     * Decrypts all chunks following the header of the source channel into the target channel.
+     *
+     * @param source     the channel containing the encrypted file, header included.
+     * @param target     the channel to write the plaintext to.
+     * @param fileHeader the header read from the source channel.
+     * @param secretKey  the key used to open the chunks.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is corrupted or a chunk fails authentication.
+     */
+    static void decrypt(FileChannel source, FileChannel target, FileHeader fileHeader, SecretKey secretKey)
+            throws IOException, CryptoException {
+        decrypt(source, target, fileHeader, secretKey, 0, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Decrypts the chunks of the source channel from a chunk on into the target channel, in batches of chunks
+     * with a checkpoint after each but the last.
+     *
+     * @param source           the channel containing the encrypted file, header included.
+     * @param target           the channel to write the plaintext to.
+     * @param fileHeader       the header read from the source channel.
+     * @param secretKey        the key used to open the chunks.
+     * @param firstChunk       the index of the first chunk to decrypt, as those before it are already written.
+     * @param checkpointChunks the number of chunks per batch.
+     * @param checkpoint       called after each batch but the last, or {@code null}.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is corrupted or a chunk fails authentication.
+     */
+    static void decrypt(FileChannel source, FileChannel target, FileHeader fileHeader, SecretKey secretKey,
+                        long firstChunk, long checkpointChunks, Checkpoint checkpoint)
+            throws IOException, CryptoException {
+
+        int chunkSize = fileHeader.getChunkSize();
+        long fileLength = source.size();
+        long chunkCount = encryptedChunkCount(fileHeader, fileLength);
+        SecretKey chunkKey = chunkKey(fileHeader, secretKey);
+
+        forEachChunk(firstChunk, chunkCount, checkpointChunks, target, checkpoint, chunkIndex -> {
+            ByteBuffer plaintext = plaintextBuffer(chunkSize);
+            openChunk(source, fileLength, fileHeader, chunkKey, chunkIndex, chunkCount, plaintext);
+            long start = System.nanoTime();
+            writeFully(target, plaintext, chunkIndex * chunkSize);
+            RunStats.recordWrite(System.nanoTime() - start);
+        });
+    }
+
+    /**
+     * Encrypts the chunks of the source channel which belong to consecutive volumes into their target
+     * channels, directly after their headers. All volumes in the batch are written at once, each chunk at its
+     * offset within its volume.
+     *
+     * @param source          the channel containing the plaintext.
+     * @param targets         the channels of the volumes to write.
+     * @param fileHeaders     the headers of the volumes, in the same order.
+     * @param secretKey       the key used to seal the chunks.
+     * @param chunksPerVolume the number of chunks in every volume but the last.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if a chunk could not be encrypted.
+     */
+    static void encryptVolumes(FileChannel source, FileChannel[] targets, FileHeader[] fileHeaders,
+                               SecretKey secretKey, long chunksPerVolume) throws IOException, CryptoException {
+
+        int chunkSize = fileHeaders[0].getChunkSize();
+        long plaintextLength = source.size();
+        long chunkCount = plaintextChunkCount(plaintextLength, chunkSize);
+        long firstChunk = fileHeaders[0].getFirstChunk();
+        long endChunk = Math.min(chunkCount, fileHeaders[fileHeaders.length - 1].getFirstChunk() + chunksPerVolume);
+        SecretKey[] chunkKeys = new SecretKey[fileHeaders.length];
+        for (int volume = 0; volume < fileHeaders.length; volume++) {
+            chunkKeys[volume] = chunkKey(fileHeaders[volume], secretKey);
+        }
+
+        forEachChunk(firstChunk, endChunk, chunkIndex -> {
+            int volume = (int) ((chunkIndex - firstChunk) / chunksPerVolume);
+            FileHeader fileHeader = fileHeaders[volume];
+            long volumeChunk = chunkIndex - fileHeader.getFirstChunk();
+            long offset = chunkIndex * chunkSize;
+            int length = (int) Math.min(chunkSize, plaintextLength - offset);
+
+            long start = System.nanoTime();
+            ByteBuffer plaintext = plaintextBuffer(chunkSize).limit(length);
+            readFully(source, plaintext, offset);
+            plaintext.flip();
+            long read = System.nanoTime();
+            RunStats.recordRead(read - start);
+
+            ByteBuffer ciphertext = ciphertextBuffer(chunkSize);
+            sealChunk(fileHeader, chunkKeys[volume], volumeChunk, 0, chunkIndex == chunkCount - 1, plaintext,
+                    ciphertext);
+            ciphertext.flip();
+            long sealed = System.nanoTime();
+            RunStats.recordCrypto(sealed - read, length);
+
+            writeFully(targets[volume], ciphertext, encryptedChunkOffset(fileHeader, volumeChunk));
+            RunStats.recordWrite(System.nanoTime() - sealed);
+        });
+    }
+
+    /**
+     * Decrypts all chunks of consecutive volumes of a file into the target channel at once, each at its offset
+     * in the plaintext. The volumes must follow each other without gaps, see {@link FileHeader#getFirstChunk()}.
+     *
+     * @param sources     the channels containing the volumes, headers included, in order.
+     * @param fileHeaders the headers read from the volumes, in the same order.
+     * @param secretKeys  the keys used to open the chunks of each volume.
+     * @param target      the channel to write the plaintext to.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if a volume is corrupted or a chunk fails authentication.
+     */
+    static void decryptVolumes(FileChannel[] sources, FileHeader[] fileHeaders, SecretKey[] secretKeys,
+                               FileChannel target) throws IOException, CryptoException {
+
+        int chunkSize = fileHeaders[0].getChunkSize();
+        long[] fileLengths = new long[sources.length];
+        long[] firstChunks = new long[sources.length];
+        long[] chunkCounts = new long[sources.length];
+        SecretKey[] chunkKeys = new SecretKey[sources.length];
+        for (int volume = 0; volume < sources.length; volume++) {
+            chunkKeys[volume] = chunkKey(fileHeaders[volume], secretKeys[volume]);
+            fileLengths[volume] = sources[volume].size();
+            firstChunks[volume] = fileHeaders[volume].getFirstChunk();
+            chunkCounts[volume] = encryptedChunkCount(fileHeaders[volume], fileLengths[volume]);
+        }
+        long endChunk = firstChunks[sources.length - 1] + chunkCounts[sources.length - 1];
+
+        forEachChunk(firstChunks[0], endChunk, chunkIndex -> {
+            int found = Arrays.binarySearch(firstChunks, chunkIndex);
+            int volume = found >= 0 ? found : -found - 2;
+            ByteBuffer plaintext = plaintextBuffer(chunkSize);
+            openChunk(sources[volume], fileLengths[volume], fileHeaders[volume], chunkKeys[volume],
+                    chunkIndex - firstChunks[volume], chunkCounts[volume], plaintext);
+            long start = System.nanoTime();
+            writeFully(target, plaintext, chunkIndex * chunkSize);
+            RunStats.recordWrite(System.nanoTime() - start);
+        });
+    }
+
+    /**
+     * Authenticates every chunk of an encrypted file in parallel without writing the plaintext anywhere.
+     * Truncation is caught as well, as the last chunk is sealed differently from all others.
+     *
+     * @param source     the channel containing the encrypted file, header included.
+     * @param fileHeader the header read from the source channel.
+     * @param secretKey  the key used to open the chunks.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is corrupted or a chunk fails authentication.
+     */
+    static void verify(FileChannel source, FileHeader fileHeader, SecretKey secretKey)
+            throws IOException, CryptoException {
+
+        long fileLength = source.size();
+        long chunkCount = encryptedChunkCount(fileHeader, fileLength);
+        SecretKey chunkKey = chunkKey(fileHeader, secretKey);
+
+        forEachChunk(chunkCount, chunkIndex -> openChunk(source, fileLength, fileHeader, chunkKey, chunkIndex,
+                chunkCount, plaintextBuffer(fileHeader.getChunkSize())));
+    }
+
+    /**
+     * Reads and decrypts a single chunk of an encrypted file.
+     *
+     * @param source     the channel containing the encrypted file, header included.
+     * @param fileLength the total length of the encrypted file.
+     * @param fileHeader the header read from the source channel.
+     * @param secretKey  the key used to open the chunk.
+     * @param chunkIndex the zero based index of the chunk in the file, or in the volume.
+     * @param chunkCount the number of chunks in the file.
+     * @param plaintext  a cleared buffer of at least the chunk size, flipped for reading on return.
+     * @throws IOException              if an I/O error occurs.
+     * @throws GeneralSecurityException if the chunk fails authentication.
+     */
+    static void openChunk(FileChannel source, long fileLength, FileHeader fileHeader, SecretKey secretKey,
+                          long chunkIndex, long chunkCount, ByteBuffer plaintext)
+            throws IOException, GeneralSecurityException {
+
+        int chunkSize = fileHeader.getChunkSize();
+        long offset = encryptedChunkOffset(fileHeader, chunkIndex);
+        int length = (int) Math.min(recordLength(fileHeader), fileLength - offset);
+
+        long start = System.nanoTime();
+        ByteBuffer ciphertext = ciphertextBuffer(chunkSize).limit(length);
+        readFully(source, ciphertext, offset);
+        ciphertext.flip();
+        long read = System.nanoTime();
+        RunStats.recordRead(read - start);
+
+        int generation = fileHeader.hasChunkGenerations() ? ciphertext.getInt() : 0;
+        CipherUtil.processChunk(cipherSuite(fileHeader), Cipher.DECRYPT_MODE, secretKey, fileHeader.getIv(),
+                fileHeader.getFirstChunk() + chunkIndex, generation, fileHeader.getAuthenticatedFields(),
+                chunkIndex == chunkCount - 1 && fileHeader.isLastVolume(), ciphertext, plaintext);
+        plaintext.flip();
+        RunStats.recordCrypto(System.nanoTime() - read, length);
+    }
+
+    /**
+     * Seals a chunk into a record: its generation, if the file keeps generations, followed by the ciphertext
+     * and tag.
+     *
+     * @param fileHeader the header of the encrypted file.
+     * @param secretKey  the key used to seal the chunk.
+     * @param chunkIndex the zero based index of the chunk in the file, or in the volume.
+     * @param generation the generation of the chunk, 0 when it is first written.
+     * @param lastChunk  whether the chunk is the last one of the file, or of the last volume.
+     * @param plaintext  the chunk, ready to be read.
+     * @param record     a cleared buffer of at least the record length, to which the record is written.
+     * @throws GeneralSecurityException if the chunk could not be sealed.
+     */
+    static void sealChunk(FileHeader fileHeader, SecretKey secretKey, long chunkIndex, int generation,
+                          boolean lastChunk, ByteBuffer plaintext, ByteBuffer record) throws GeneralSecurityException {
+        if (fileHeader.hasChunkGenerations()) {
+            record.putInt(generation);
+        }
+        CipherUtil.processChunk(cipherSuite(fileHeader), Cipher.ENCRYPT_MODE, secretKey, fileHeader.getIv(),
+                fileHeader.getFirstChunk() + chunkIndex, generation, fileHeader.getAuthenticatedFields(), lastChunk,
+                plaintext, record);
+    }
+
+    /**
+     * Prepares the key of a file for sealing and opening its chunks, once per file rather than per chunk.
+     *
+     * @param fileHeader the header of the file.
+     * @param secretKey  the key of the file.
+     * @return the key to seal and open the chunks of the file with.
+     * @throws CryptoException if the cipher suite of the file is unknown or its keys cannot be derived.
+     * @see CipherUtil#chunkKey(CipherSuite, SecretKey, byte[])
+     */
+    static SecretKey chunkKey(FileHeader fileHeader, SecretKey secretKey) throws CryptoException {
+        return CipherUtil.chunkKey(fileHeader.getCipherSuite(), secretKey, fileHeader.getIv());
+    }
+
+    private static CipherSuite cipherSuite(FileHeader fileHeader) throws NoSuchAlgorithmException {
+        try {
+            return fileHeader.getCipherSuite();
+        } catch (CryptoException e) {
+            throw new NoSuchAlgorithmException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the generation stored in front of a chunk.
+     *
+     * @param source     the channel containing the encrypted file, header included.
+     * @param fileHeader the header of the file, which must keep generations.
+     * @param chunkIndex the zero based index of the chunk.
+     * @return the generation of the chunk.
+     * @throws IOException if an I/O error occurs.
+     */
+    static int readGeneration(FileChannel source, FileHeader fileHeader, long chunkIndex) throws IOException {
+        ByteBuffer generation = ByteBuffer.allocate(GENERATION_LENGTH);
+        readFully(source, generation, encryptedChunkOffset(fileHeader, chunkIndex));
+        return generation.getInt(0);
+    }
+
+    /**
+     * Encrypts a stream of unknown length into chunks, in order. Reading, sealing and writing overlap through
+     * the {@link PipelinedCipherProcessor}, so memory use is bounded by a few chunks.
+     *
+     * @param source     the channel containing the plaintext.
+     * @param target     the channel to write chunks to, after the header has been written.
+     * @param fileHeader the header of the encrypted stream.
+     * @param secretKey  the key used to seal the chunks.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if a chunk could not be encrypted.
+     */
+    static void encryptStream(ReadableByteChannel source, WritableByteChannel target, FileHeader fileHeader,
+                              SecretKey secretKey) throws IOException, CryptoException {
+
+        int chunkSize = fileHeader.getChunkSize();
+        processStream(source, target, chunkSize, recordLength(fileHeader), fileHeader, secretKey,
+                Cipher.ENCRYPT_MODE);
+    }
+
+    /**
+     * Decrypts a stream of chunks, in order, that follows a header which has already been read.
+     *
+     * @param source     the channel containing the chunks.
+     * @param target     the channel to write the plaintext to.
+     * @param fileHeader the header read from the stream.
+     * @param secretKey  the key used to open the chunks.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if a chunk fails authentication.
+     */
+    static void decryptStream(ReadableByteChannel source, WritableByteChannel target, FileHeader fileHeader,
+                              SecretKey secretKey) throws IOException, CryptoException {
+
+        int chunkSize = fileHeader.getChunkSize();
+        if (chunkSize <= 0) {
+            throw new CryptoException("Corrupted file: invalid chunk size " + chunkSize);
+        }
+        processStream(source, target, recordLength(fileHeader), chunkSize, fileHeader, secretKey,
+                Cipher.DECRYPT_MODE);
+    }
+
+    private static void processStream(ReadableByteChannel source, WritableByteChannel target, int inputSize,
+                                      int outputSize, FileHeader fileHeader, SecretKey secretKey, int mode)
+            throws IOException, CryptoException {
+
+        long[] chunkIndex = {0};
+        byte[] headerFields = fileHeader.getAuthenticatedFields();
+        SecretKey chunkKey = chunkKey(fileHeader, secretKey);
+        PipelinedCipherProcessor.process(source, target, inputSize, outputSize, (input, output, last) -> {
+            if (mode == Cipher.ENCRYPT_MODE) {
+                sealChunk(fileHeader, chunkKey, chunkIndex[0]++, 0, last, input, output);
+                return;
+            }
+            int generation = fileHeader.hasChunkGenerations() ? input.getInt() : 0;
+            CipherUtil.processChunk(cipherSuite(fileHeader), mode, chunkKey, fileHeader.getIv(),
+                    fileHeader.getFirstChunk() + chunkIndex[0]++, generation, headerFields,
+                    last && fileHeader.isLastVolume(), input, output);
+        });
+    }
+
+    /**
+     * Returns the number of chunks needed to hold the given amount of plaintext. An empty file still has a
+     * single, empty chunk so that its end can be authenticated.
+     *
+     * @param plaintextLength the number of plaintext bytes.
+     * @param chunkSize       the number of plaintext bytes per chunk.
+     * @return the number of chunks.
+     */
+    static long plaintextChunkCount(long plaintextLength, int chunkSize) {
+        return Math.max(1, (plaintextLength + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Returns the number of chunks in an encrypted file, validating that the file is long enough to hold
+     * them.
+     *
+     * @param fileHeader the header of the encrypted file.
+     * @param fileLength the total length of the encrypted file.
+     * @return the number of chunks.
+     * @throws CryptoException if the header or the file length is inconsistent.
+     */
+    static long encryptedChunkCount(FileHeader fileHeader, long fileLength) throws CryptoException {
+        int chunkSize = fileHeader.getChunkSize();
+        if (chunkSize <= 0) {
+            throw new CryptoException("Corrupted file: invalid chunk size " + chunkSize);
+        }
+
+        long recordLength = recordLength(fileHeader);
+        long payloadLength = fileLength - fileHeader.getLength();
+        long chunkCount = (payloadLength + recordLength - 1) / recordLength;
+        long lastChunkLength = payloadLength - (chunkCount - 1) * recordLength;
+
+        if (chunkCount < 1 || lastChunkLength < recordLength - chunkSize) {
+            throw new CryptoException("Corrupted file: truncated chunk data.");
+        }
+        return chunkCount;
+    }
+
+    /**
+     * Returns the number of plaintext bytes held by an encrypted file.
+     *
+     * @param fileHeader the header of the encrypted file.
+     * @param fileLength the total length of the encrypted file.
+     * @return the plaintext length.
+     * @throws CryptoException if the header or the file length is inconsistent.
+     */
+    static long plaintextLength(FileHeader fileHeader, long fileLength) throws CryptoException {
+        long chunkCount = encryptedChunkCount(fileHeader, fileLength);
+        return fileLength - fileHeader.getLength() - chunkCount * (recordLength(fileHeader) - fileHeader.getChunkSize());
+    }
+
+    /**
+     * Returns the number of bytes each full chunk occupies in the encrypted file.
+     *
+     * @param fileHeader the header of the encrypted file.
+     * @return the chunk size plus the tag and, if the file keeps them, the generation.
+     */
+    static int recordLength(FileHeader fileHeader) {
+        int generationLength = fileHeader.hasChunkGenerations() ? GENERATION_LENGTH : 0;
+        return fileHeader.getChunkSize() + CipherUtil.CHUNK_TAG_LENGTH + generationLength;
+    }
+
+    /**
+     * Returns the position of a chunk within the encrypted file.
+     *
+     * @param fileHeader the header of the encrypted file.
+     * @param chunkIndex the zero based index of the chunk.
+     * @return the byte offset of the chunk.
+     */
+    static long encryptedChunkOffset(FileHeader fileHeader, long chunkIndex) {
+        return fileHeader.getLength() + chunkIndex * recordLength(fileHeader);
+    }
+
+    /**
+     * Runs the worker for every chunk index on the common fork-join pool and rethrows the first failure.
+     *
+     * @param chunkCount the number of chunks.
+     * @param worker     the work to perform per chunk.
+     * @throws IOException     if a worker failed with an I/O error.
+     * @throws CryptoException if a worker failed with a cryptographic error.
+     */
+    static void forEachChunk(long chunkCount, ChunkWorker worker) throws IOException, CryptoException {
+        forEachChunk(0, chunkCount, worker);
+    }
+
+    /**
+     * Runs the worker for the chunks from the first chunk on in batches, forcing the target to disk and
+     * passing the checkpoint after each batch but the last.
+     */
+    private static void forEachChunk(long firstChunk, long chunkCount, long checkpointChunks, FileChannel target,
+                                     Checkpoint checkpoint, ChunkWorker worker) throws IOException, CryptoException {
+        for (long from = firstChunk; from < chunkCount; ) {
+            long to = chunkCount - from <= checkpointChunks ? chunkCount : from + checkpointChunks;
+            forEachChunk(from, to, worker);
+            if (to < chunkCount && checkpoint != null) {
+                target.force(false);
+                checkpoint.reached(to);
+            }
+            from = to;
+        }
+    }
+
+    private static void forEachChunk(long from, long to, ChunkWorker worker) throws IOException, CryptoException {
+        try {
+            ForkJoinPool.commonPool().invoke(new ChunkTask(worker, from, to));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (ChunkFailure e) {
+            throw e.toCryptoException();
+        }
+    }
+
+    /**
+     * @return this thread's cleared buffer for up to a chunk of plaintext.
+     */
+    static ByteBuffer plaintextBuffer(int chunkSize) {
+        return chunkBuffer(0, chunkSize);
+    }
+
+    /**
+     * @return this thread's cleared buffer for up to a chunk of ciphertext, tag and generation included.
+     */
+    static ByteBuffer ciphertextBuffer(int chunkSize) {
+        return chunkBuffer(1, chunkSize + CipherUtil.CHUNK_TAG_LENGTH + GENERATION_LENGTH);
+    }
+
+    private static ByteBuffer chunkBuffer(int slot, int capacity) {
+        ByteBuffer[] buffers = CHUNK_BUFFERS.get();
+        if (buffers[slot] == null || buffers[slot].capacity() < capacity) {
+            buffers[slot] = ByteBuffer.allocateDirect(capacity);
+        }
+        return buffers[slot].clear();
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new EOFException("Unexpected end of file at offset " + position);
+            }
+            position += bytesRead;
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Splits a range of chunk indices in half until a single chunk remains, then processes it.
+     */
+    private static class ChunkTask extends RecursiveAction {
+        private final ChunkWorker worker;
+        private final long from;
+        private final long to;
+
+        ChunkTask(ChunkWorker worker, long from, long to) {
+            this.worker = worker;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                long middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(worker, from, middle), new ChunkTask(worker, middle, to));
+                return;
+            }
+            try {
+                worker.process(from);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (GeneralSecurityException e) {
+                throw new ChunkFailure(from, e);
+            }
+        }
+    }
+
+    /**
+     * Carries a cryptographic failure of a single chunk out of the fork-join pool.
+     */
+    private static class ChunkFailure extends RuntimeException {
+        private final long chunkIndex;
+
+        ChunkFailure(long chunkIndex, GeneralSecurityException cause) {
+            super(cause);
+            this.chunkIndex = chunkIndex;
+        }
+
+        CryptoException toCryptoException() {
+            if (getCause() instanceof AEADBadTagException) {
+                return new CryptoException("Bad passphrase or corrupted file: chunk " + chunkIndex
+                        + " failed authentication.", getCause());
+            }
+            return new CryptoException("Failed to process chunk " + chunkIndex + ": " + getCause().getMessage(),
+                    getCause());
+        }
+    }
+}
@@ -0,0 +1,773 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.FileNameParts;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Encrypts and decrypts files and streams according to its own mode and {@link EngineConfig}. An engine holds
+ * no mutable state, reports every failure as an exception and never prints or exits, so any number of
+ * engines, or jobs on one engine, can run concurrently in the same JVM.
+ */
+public class CipherEngine {
+    private static final int RANGE_BUFFER_SIZE = 64 * 1024;
+    static final int MAX_OPEN_VOLUMES = 64;
+
+    private final int mode;
+    private final EngineConfig config;
+
+    /**
+     * Constructs a new engine.
+     *
+     * @param mode   {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}, used by {@link #process}.
+     * @param config the settings of the engine.
+     */
+    public CipherEngine(int mode, EngineConfig config) {
+        if (mode != Cipher.ENCRYPT_MODE && mode != Cipher.DECRYPT_MODE) {
+            throw new IllegalArgumentException("Unsupported mode: " + mode);
+        }
+        this.mode = mode;
+        this.config = config;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public EngineConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Creates a master key cache deriving keys with the engine's KDF settings.
+     *
+     * @param passphrase the passphrase from which master keys are derived, cleared when the cache is closed.
+     * @return the master key cache.
+     */
+    public MasterKeyCache newKeyCache(char[] passphrase) {
+        return new MasterKeyCache(passphrase, null, config.kdfParameters());
+    }
+
+    /**
+     * Encrypts the file under a new salt or decrypts it, depending on the engine's mode.
+     *
+     * @param filePath   the path of the file to process.
+     * @param masterKeys the cache providing the master keys.
+     * @return the path of the file written.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation, encryption or decryption fails.
+     */
+    public String process(String filePath, MasterKeyCache masterKeys) throws IOException, CryptoException {
+        if (mode == Cipher.ENCRYPT_MODE) {
+            return encryptFile(filePath, masterKeys, CipherUtil.generateSalt());
+        }
+        return decryptFile(filePath, masterKeys);
+    }
+
+    /**
+     * Encrypts a file in the chunked format under a random data key, stored in the header wrapped under the
+     * master key for the given salt, compressing it first if the engine is set to and it is worth it.
+     * Uncompressed files are encrypted chunk by chunk in parallel; compressed data has no fixed chunk offsets
+     * in the source, so it is deflated and encrypted through the pipeline instead. The file is written next to
+     * the target and renamed into place once complete, so that the encrypted file either does not exist or is
+     * whole.
+     * <p>
+     * Uncompressed files are checkpointed in a {@link CheckpointJournal} as they are written. If the engine is
+     * set to resume and the journal matches the file, encryption continues after the last checkpoint under
+     * the salt and key of the interrupted run. If encryption fails after a checkpoint, the partial file and
+     * the journal are kept for that; otherwise the partial file is deleted.
+     * <p>
+     * If the engine has a volume size, the file is split into volumes instead, see
+     * {@link #encryptVolumes(String, MasterKeyCache, byte[])}.
+     *
+     * @param filePath   the path of the file to encrypt.
+     * @param masterKeys the cache providing the master key.
+     * @param salt       the salt of the master key, stored in the header.
+     * @return the path of the encrypted file, or of its first volume.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     */
+    public String encryptFile(String filePath, MasterKeyCache masterKeys, byte[] salt)
+            throws IOException, CryptoException {
+
+        if (config.volumeSize() > 0) {
+            return encryptVolumes(filePath, masterKeys, salt);
+        }
+
+        FileNameParts fileNameParts = FileNameParts.splitFileName(filePath);
+        String encFilePath = FileProcessor.generateEncryptedFileName(filePath);
+
+        Path temporary = CheckpointJournal.partialPathFor(Paths.get(encFilePath));
+        Path journalPath = CheckpointJournal.pathFor(Paths.get(encFilePath));
+        CheckpointJournal journal = config.resume() ? CheckpointJournal.read(journalPath) : null;
+        boolean reopened = journal != null && Files.exists(temporary);
+        FileHeader fileHeader;
+        FileChannel target = openPartial(temporary, journalPath, reopened);
+        try (target; FileChannel source = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            CheckpointJournal.Source sourceIdentity = CheckpointJournal.Source.of(Paths.get(filePath));
+            fileHeader = reopened ? FileProcessor.readHeader(target) : null;
+            SecretKey secretKey;
+            long firstChunk = 0;
+            if (fileHeader != null && fileHeader.isChunked() && !fileHeader.isCompressed()
+                    && journal.matches(fileHeader.getIv(), sourceIdentity)) {
+                secretKey = FileProcessor.fileKey(fileHeader,
+                        masterKeys.get(fileHeader.getSalt(), fileHeader.getKdfParameters()));
+                firstChunk = journal.completedChunks();
+            } else {
+                target.truncate(0);
+                Files.deleteIfExists(journalPath);
+                secretKey = CipherUtil.generateDataKey();
+                byte[] wrappedKey = FileProcessor.wrapDataKey(masterKeys.get(salt), salt, secretKey);
+                boolean compressed = config.compress() && Compression.isWorthCompressing(source);
+                fileHeader = new FileHeader(fileNameParts.extension(), salt, CipherUtil.generateInitialVector(),
+                        config.chunkSize(), compressed ? FileHeader.FLAG_COMPRESSED : 0, config.cipherSuite(),
+                        masterKeys.getKdfParameters(), wrappedKey);
+                FileProcessor.writeHeader(target, fileHeader);
+            }
+
+            if (fileHeader.isCompressed()) {
+                try (InputStream deflated = Compression.deflating(Channels.newInputStream(source))) {
+                    target.position(fileHeader.getLength());
+                    ChunkedFileProcessor.encryptStream(Channels.newChannel(deflated), target, fileHeader, secretKey);
+                }
+            } else {
+                byte[] iv = fileHeader.getIv();
+                ChunkedFileProcessor.encrypt(source, target, fileHeader, secretKey, firstChunk,
+                        config.checkpointChunks(fileHeader.getChunkSize()),
+                        completedChunks -> CheckpointJournal.of(iv, sourceIdentity, completedChunks)
+                                .write(journalPath));
+            }
+            // the rename must not reach the disk before the data it points to
+            target.force(true);
+        } catch (IOException | CryptoException | RuntimeException e) {
+            if (!Files.exists(journalPath)) {
+                Files.deleteIfExists(temporary);
+            }
+            throw e;
+        }
+        Files.move(temporary, Paths.get(encFilePath), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(journalPath);
+        masterKeys.confirm(fileHeader.getSalt(), fileHeader.getKdfParameters());
+        return encFilePath;
+    }
+
+    /**
+     * Encrypts a file into volumes of at most the engine's volume size, named after the encrypted file with a
+     * counter from {@code .001} on. Each volume has its own header, with the index of the volume and the number
+     * of volumes, followed by a run of consecutive chunks, so that it can be stored, uploaded and verified on
+     * its own. The volumes share the data key and the IV of the file, and the chunks of all of them are
+     * encrypted in parallel, up to {@link #MAX_OPEN_VOLUMES} volumes at a time. Volumes are written next to
+     * their targets and renamed into place once all are complete.
+     * <p>
+     * Volumes are not compressed, as compressed data has no fixed chunk offsets, and are not checkpointed.
+     *
+     * @param filePath   the path of the file to encrypt.
+     * @param masterKeys the cache providing the master key.
+     * @param salt       the salt of the master key, stored in every header.
+     * @return the path of the first volume.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     */
+    public String encryptVolumes(String filePath, MasterKeyCache masterKeys, byte[] salt)
+            throws IOException, CryptoException {
+
+        FileNameParts fileNameParts = FileNameParts.splitFileName(filePath);
+        String encFilePath = FileProcessor.generateEncryptedFileName(filePath);
+        SecretKey secretKey = CipherUtil.generateDataKey();
+        byte[] wrappedKey = FileProcessor.wrapDataKey(masterKeys.get(salt), salt, secretKey);
+        byte[] iv = CipherUtil.generateInitialVector();
+
+        List<Path> temporaries = new ArrayList<>();
+        List<Path> volumePaths = new ArrayList<>();
+        try (FileChannel source = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            // every volume header has the same length, whatever its fields hold
+            FileHeader firstHeader = volumeHeader(fileNameParts.extension(), salt, iv, masterKeys, wrappedKey, 0, 1, 0);
+            long chunksPerVolume = (config.volumeSize() - firstHeader.getLength())
+                    / ChunkedFileProcessor.recordLength(firstHeader);
+            long chunkCount = ChunkedFileProcessor.plaintextChunkCount(source.size(), config.chunkSize());
+            int volumeCount = Math.toIntExact((chunkCount + chunksPerVolume - 1) / chunksPerVolume);
+
+            FileHeader[] fileHeaders = new FileHeader[volumeCount];
+            for (int volume = 0; volume < volumeCount; volume++) {
+                fileHeaders[volume] = volumeHeader(fileNameParts.extension(), salt, iv, masterKeys, wrappedKey, volume,
+                        volumeCount, volume * chunksPerVolume);
+                Path volumePath = Paths.get(FileProcessor.generateVolumeFileName(encFilePath, volume, volumeCount));
+                volumePaths.add(volumePath);
+                // unique temporaries, so that jobs writing the same volumes do not write into each other's files
+                temporaries.add(CheckpointJournal.createPartial(volumePath));
+            }
+
+            for (int from = 0; from < volumeCount; from += MAX_OPEN_VOLUMES) {
+                int to = Math.min(volumeCount, from + MAX_OPEN_VOLUMES);
+                FileChannel[] targets = new FileChannel[to - from];
+                try {
+                    for (int volume = from; volume < to; volume++) {
+                        targets[volume - from] = FileChannel.open(temporaries.get(volume), StandardOpenOption.WRITE);
+                        FileProcessor.writeHeader(targets[volume - from], fileHeaders[volume]);
+                    }
+                    ChunkedFileProcessor.encryptVolumes(source, targets,
+                            Arrays.copyOfRange(fileHeaders, from, to), secretKey, chunksPerVolume);
+                    for (FileChannel target : targets) {
+                        target.force(true);
+                    }
+                } finally {
+                    closeAll(targets);
+                }
+            }
+        } catch (IOException | CryptoException | RuntimeException e) {
+            for (Path temporary : temporaries) {
+                Files.deleteIfExists(temporary);
+            }
+            throw e;
+        }
+        for (int volume = 0; volume < volumePaths.size(); volume++) {
+            Files.move(temporaries.get(volume), volumePaths.get(volume), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        masterKeys.confirm(salt);
+        return volumePaths.get(0).toString();
+    }
+
+    /**
+     * Decrypts a file using the master key for the salt stored in its header. The plaintext is written next
+     * to its target and renamed into place once complete. Given any volume of a file split into volumes, all of
+     * them are decrypted, see {@link #encryptVolumes(String, MasterKeyCache, byte[])}.
+     * <p>
+     * Uncompressed chunked files are checkpointed in a {@link CheckpointJournal} as they are written. If the
+     * engine is set to resume and the journal matches the file, decryption continues after the last
+     * checkpoint. If decryption fails after a checkpoint, the partial output and the journal are kept for
+     * that; otherwise the partial output is deleted.
+     *
+     * @param filePath   the path of the file to decrypt.
+     * @param masterKeys the cache providing the master key.
+     * @return the path of the decrypted file.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or decryption fails.
+     */
+    public String decryptFile(String filePath, MasterKeyCache masterKeys) throws IOException, CryptoException {
+        String decryptedFileName;
+
+        try (FileChannel source = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            FileHeader fileHeader = FileProcessor.readHeader(source);
+
+            FileProcessor.validateFileEncryption(filePath, fileHeader.getMagicNumber());
+            FileProcessor.rejectContainer(filePath, fileHeader);
+            if (fileHeader.isVolume()) {
+                return decryptVolumes(filePath, fileHeader, masterKeys);
+            }
+
+            decryptedFileName = FileProcessor.generateDecryptedFileName(filePath, fileHeader);
+            SecretKey masterKey = masterKeys.get(fileHeader.getSalt(), fileHeader.getKdfParameters());
+
+            Path temporary = CheckpointJournal.partialPathFor(Paths.get(decryptedFileName));
+            Path journalPath = CheckpointJournal.pathFor(Paths.get(decryptedFileName));
+            CheckpointJournal.Source sourceIdentity = CheckpointJournal.Source.of(Paths.get(filePath));
+            CheckpointJournal journal = config.resume() ? CheckpointJournal.read(journalPath) : null;
+            boolean resuming = journal != null && fileHeader.isChunked() && !fileHeader.isCompressed()
+                    && journal.matches(fileHeader.getIv(), sourceIdentity) && Files.exists(temporary);
+
+            FileChannel target = openPartial(temporary, journalPath, resuming);
+            try (target) {
+                decryptInto(source, target, fileHeader, masterKey, resuming ? journal.completedChunks() : 0,
+                        completedChunks -> CheckpointJournal.of(fileHeader.getIv(), sourceIdentity,
+                                completedChunks).write(journalPath));
+                target.force(true);
+                masterKeys.confirm(fileHeader.getSalt(), fileHeader.getKdfParameters());
+            } catch (IOException | CryptoException | RuntimeException e) {
+                if (!Files.exists(journalPath)) {
+                    Files.deleteIfExists(temporary);
+                }
+                throw e;
+            }
+            Files.move(temporary, Paths.get(decryptedFileName), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(journalPath);
+        }
+        return decryptedFileName;
+    }
+
+    /**
+     * Opens the partial output of a checkpointed run. A resumed run reopens it; any other run first deletes the
+     * journal and partial output an interrupted run left, then creates the partial output anew. A partial
+     * output without a journal belongs to a run still writing it, or to one killed before its first
+     * checkpoint, and is never written over.
+     */
+    private static FileChannel openPartial(Path partial, Path journalPath, boolean resuming) throws IOException {
+        if (resuming) {
+            return FileChannel.open(partial, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        if (Files.deleteIfExists(journalPath)) {
+            Files.deleteIfExists(partial);
+        }
+        try {
+            return FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            throw new FileAlreadyExistsException(partial.toString(), null, "another run is writing the same "
+                    + "output; delete the file if none is");
+        }
+    }
+
+    private FileHeader volumeHeader(String extension, byte[] salt, byte[] iv, MasterKeyCache masterKeys,
+                                    byte[] wrappedKey, int volume, int volumeCount, long firstChunk) {
+        FileHeader fileHeader = new FileHeader(extension, salt, iv, config.chunkSize(), (byte) 0, config.cipherSuite(),
+                masterKeys.getKdfParameters(), wrappedKey);
+        fileHeader.setVolume(volume, volumeCount, firstChunk);
+        return fileHeader;
+    }
+
+    /**
+     * Decrypts all volumes of a file, found next to the given one, into the plaintext. Every volume is checked
+     * to belong to the same file, to be at its place and to start where the one before it ends before
+     * anything is written; then the chunks are decrypted in parallel, up to {@link #MAX_OPEN_VOLUMES} volumes
+     * at a time, each written at its offset. The volumes are not checkpointed.
+     * <p>
+     * The number of volumes comes from a header which is only authenticated once its chunks are opened, so
+     * nothing is sized from it before every volume it names has been found.
+     */
+    private String decryptVolumes(String filePath, FileHeader fileHeader, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+
+        String baseName = FileProcessor.stripVolumeSuffix(filePath);
+        String decryptedFileName = FileProcessor.generateDecryptedFileName(baseName, fileHeader);
+        int volumeCount = fileHeader.getVolumeCount();
+        if (volumeCount < 1 || fileHeader.getVolumeIndex() >= volumeCount) {
+            throw new CryptoException("Corrupted file: " + filePath + " claims to be volume "
+                    + (fileHeader.getVolumeIndex() + 1) + " of " + volumeCount + ".");
+        }
+        List<Path> volumePaths = new ArrayList<>();
+        for (int volume = 0; volume < volumeCount; volume++) {
+            Path volumePath = Paths.get(FileProcessor.generateVolumeFileName(baseName, volume, volumeCount));
+            if (!Files.isRegularFile(volumePath)) {
+                throw new CryptoException("Volume " + (volume + 1) + " of " + volumeCount + ", " + volumePath
+                        + ", is missing.");
+            }
+            volumePaths.add(volumePath);
+        }
+
+        FileHeader[] fileHeaders = new FileHeader[volumeCount];
+        long[] volumeLengths = new long[volumeCount];
+        SecretKey[] secretKeys = new SecretKey[volumeCount];
+        for (int volume = 0; volume < volumeCount; volume++) {
+            try (FileChannel source = FileChannel.open(volumePaths.get(volume), StandardOpenOption.READ)) {
+                fileHeaders[volume] = FileProcessor.readHeader(source);
+                volumeLengths[volume] = source.size();
+            }
+            checkVolume(volumePaths.get(volume).toString(), fileHeaders[volume], fileHeader, volume,
+                    volume == 0 ? null : fileHeaders[volume - 1], volume == 0 ? 0 : volumeLengths[volume - 1]);
+            secretKeys[volume] = FileProcessor.fileKey(fileHeaders[volume], masterKeys.get(
+                    fileHeaders[volume].getSalt(), fileHeaders[volume].getKdfParameters()));
+        }
+
+        Path temporary = CheckpointJournal.createPartial(Paths.get(decryptedFileName));
+        try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            for (int from = 0; from < volumeCount; from += MAX_OPEN_VOLUMES) {
+                int to = Math.min(volumeCount, from + MAX_OPEN_VOLUMES);
+                FileChannel[] sources = new FileChannel[to - from];
+                try {
+                    for (int volume = from; volume < to; volume++) {
+                        sources[volume - from] = FileChannel.open(volumePaths.get(volume), StandardOpenOption.READ);
+                        if (sources[volume - from].size() != volumeLengths[volume] || !Arrays.equals(
+                                FileProcessor.readHeader(sources[volume - from]).getHeader(),
+                                fileHeaders[volume].getHeader())) {
+                            throw new CryptoException(volumePaths.get(volume) + " changed while it was being"
+                                    + " decrypted.");
+                        }
+                    }
+                    ChunkedFileProcessor.decryptVolumes(sources, Arrays.copyOfRange(fileHeaders, from, to),
+                            Arrays.copyOfRange(secretKeys, from, to), target);
+                } finally {
+                    closeAll(sources);
+                }
+            }
+            target.force(true);
+            for (FileHeader volumeHeader : fileHeaders) {
+                masterKeys.confirm(volumeHeader.getSalt(), volumeHeader.getKdfParameters());
+            }
+        } catch (IOException | CryptoException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, Paths.get(decryptedFileName), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return decryptedFileName;
+    }
+
+    /**
+     * Checks that a volume belongs to the same file as the volume decryption started from, is the volume its
+     * name says and starts right after the chunks of the volume before it.
+     */
+    private static void checkVolume(String volumePath, FileHeader volumeHeader, FileHeader firstHeader, int volume,
+                                    FileHeader previousHeader, long previousLength) throws CryptoException {
+        FileProcessor.validateFileEncryption(volumePath, volumeHeader.getMagicNumber());
+        if (!volumeHeader.isChunked() || !volumeHeader.isVolume() || volumeHeader.isCompressed()
+                || volumeHeader.hasChunkGenerations() || volumeHeader.getVolumeIndex() != volume
+                || volumeHeader.getVolumeCount() != firstHeader.getVolumeCount()
+                || volumeHeader.getChunkSize() != firstHeader.getChunkSize()
+                || !Arrays.equals(volumeHeader.getIv(), firstHeader.getIv())) {
+            throw new CryptoException(volumePath + " is not volume " + (volume + 1) + " of "
+                    + firstHeader.getVolumeCount() + " of the same file.");
+        }
+        long expectedFirstChunk = previousHeader == null ? 0 : previousHeader.getFirstChunk()
+                + ChunkedFileProcessor.encryptedChunkCount(previousHeader, previousLength);
+        if (volumeHeader.getFirstChunk() != expectedFirstChunk) {
+            throw new CryptoException("Corrupted file: " + volumePath + " does not start where the volume before it"
+                    + " ends.");
+        }
+    }
+
+    private static void closeAll(FileChannel[] channels) throws IOException {
+        IOException failure = null;
+        for (FileChannel channel : channels) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void decryptInto(FileChannel source, FileChannel target, FileHeader fileHeader, SecretKey masterKey,
+                             long firstChunk, ChunkedFileProcessor.Checkpoint checkpoint)
+            throws IOException, CryptoException {
+        try {
+            if (fileHeader.isCompressed()) {
+                SecretKey secretKey = FileProcessor.fileKey(fileHeader, masterKey);
+                source.position(fileHeader.getLength());
+                decryptChunkedStream(source, target, fileHeader, secretKey);
+            } else if (fileHeader.isChunked()) {
+                SecretKey secretKey = FileProcessor.fileKey(fileHeader, masterKey);
+                ChunkedFileProcessor.decrypt(source, target, fileHeader, secretKey, firstChunk,
+                        config.checkpointChunks(fileHeader.getChunkSize()), checkpoint);
+            } else {
+                Cipher cipher = CipherUtil.initCipher(Cipher.DECRYPT_MODE, masterKey, fileHeader.getIv());
+                decryptOriginalFormat(source, fileHeader.getLength(), target, cipher);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to initialise cipher: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Encrypts everything read from the input stream into the output stream in the chunked format, e.g. from
+     * standard input to standard output. The header is written first, then chunks in order; memory use stays
+     * constant however much data passes through.
+     *
+     * @param inputStream  the stream containing the plaintext.
+     * @param outputStream the stream to write the encrypted data to.
+     * @param masterKeys   the cache deriving the master key for a new salt.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     */
+    public void encryptStream(InputStream inputStream, OutputStream outputStream, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+
+        byte[] salt = CipherUtil.generateSalt();
+        byte[] iv = CipherUtil.generateInitialVector();
+        SecretKey secretKey = CipherUtil.generateDataKey();
+        FileHeader fileHeader = new FileHeader(FileHeader.NO_EXTENSION, salt, iv,
+                config.chunkSize(), (byte) 0, config.cipherSuite(), masterKeys.getKdfParameters(),
+                FileProcessor.wrapDataKey(masterKeys.get(salt), salt, secretKey));
+
+        FileProcessor.writeHeader(outputStream, fileHeader);
+        outputStream.flush();
+        ChunkedFileProcessor.encryptStream(Channels.newChannel(inputStream), Channels.newChannel(outputStream),
+                fileHeader, secretKey);
+        masterKeys.confirm(salt);
+    }
+
+    /**
+     * Decrypts everything read from the input stream into the output stream. The header is parsed first and
+     * decides whether the chunked or the original format follows.
+     *
+     * @param inputStream  the stream containing the encrypted data, header included.
+     * @param outputStream the stream to write the plaintext to.
+     * @param masterKeys   the cache providing the master key for the salt in the header.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the stream was not encrypted by this application or decryption fails.
+     */
+    public void decryptStream(InputStream inputStream, OutputStream outputStream, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+
+        try {
+            FileHeader fileHeader = FileProcessor.readHeader(inputStream);
+            if (!FileProcessor.isEncryptedByThisApplication(fileHeader.getMagicNumber())) {
+                throw new CryptoException("Input was not encrypted using this application.");
+            }
+            FileProcessor.rejectContainer("Input", fileHeader);
+
+            SecretKey masterKey = masterKeys.get(fileHeader.getSalt(), fileHeader.getKdfParameters());
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            WritableByteChannel target = Channels.newChannel(outputStream);
+
+            if (fileHeader.isChunked()) {
+                SecretKey secretKey = FileProcessor.fileKey(fileHeader, masterKey);
+                decryptChunkedStream(source, target, fileHeader, secretKey);
+            } else {
+                Cipher cipher = CipherUtil.initCipher(Cipher.DECRYPT_MODE, masterKey, fileHeader.getIv());
+                decryptOriginalFormat(source, target, cipher);
+            }
+            masterKeys.confirm(fileHeader.getSalt(), fileHeader.getKdfParameters());
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to initialise cipher: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decrypts a range of bytes from a file in the chunked format into the output stream. Only the chunks
+     * covering the range are read and decrypted. A range reaching past the end of the file is shortened.
+     *
+     * @param filePath     the path of the file to decrypt.
+     * @param offset       the plaintext offset of the first byte to decrypt.
+     * @param length       the number of bytes to decrypt.
+     * @param outputStream the stream to write the plaintext to.
+     * @param masterKeys   the cache providing the master key for the file's salt.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is not in the chunked format or decryption fails.
+     */
+    public void decryptRange(String filePath, long offset, long length, OutputStream outputStream,
+                                    MasterKeyCache masterKeys) throws IOException, CryptoException {
+
+        try (EncryptedFileChannel channel = EncryptedFileChannel.open(Paths.get(filePath), masterKeys)) {
+            WritableByteChannel target = Channels.newChannel(outputStream);
+            ByteBuffer buffer = ByteBuffer.allocate(RANGE_BUFFER_SIZE);
+            channel.position(offset);
+
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                int bytesRead = channel.read(buffer);
+                if (bytesRead == -1) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                remaining -= bytesRead;
+            }
+            if (remaining < length) {
+                masterKeys.confirm(channel.getFileHeader().getSalt(), channel.getFileHeader().getKdfParameters());
+            }
+        }
+    }
+
+    /**
+     * Checks that a file decrypts without writing the plaintext anywhere. The chunks of a file in the chunked
+     * format are authenticated in parallel, compressed files included, as the chunks protect the compressed
+     * data, and with them the fields of the header they bind ({@link FileHeader#getAuthenticatedFields()}).
+     * Files in the original format carry no authentication tag, so for them only the padding at the end of the
+     * data can be checked, which catches a wrong passphrase and truncation but not every change.
+     *
+     * @param filePath   the path of the encrypted file.
+     * @param masterKeys the cache providing the master key for the file's salt.
+     * @return {@code true} if every chunk and the header were authenticated, {@code false} if the file is in
+     *         the original format and only its padding was checked.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file was not encrypted by this application or fails the check.
+     */
+    public boolean verifyFile(String filePath, MasterKeyCache masterKeys) throws IOException, CryptoException {
+        try (FileChannel source = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            FileHeader fileHeader = FileProcessor.readHeader(source);
+            FileProcessor.validateFileEncryption(filePath, fileHeader.getMagicNumber());
+            SecretKey masterKey = masterKeys.get(fileHeader.getSalt(), fileHeader.getKdfParameters());
+
+            if (fileHeader.isChunked()) {
+                SecretKey secretKey = FileProcessor.fileKey(fileHeader, masterKey);
+                ChunkedFileProcessor.verify(source, fileHeader, secretKey);
+            } else {
+                Cipher cipher = CipherUtil.initCipher(Cipher.DECRYPT_MODE, masterKey, fileHeader.getIv());
+                source.position(fileHeader.getLength());
+                decryptOriginalFormat(source, Channels.newChannel(OutputStream.nullOutputStream()), cipher);
+            }
+            masterKeys.confirm(fileHeader.getSalt(), fileHeader.getKdfParameters());
+            return fileHeader.isChunked();
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to initialise cipher: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Packs files, and the files below directories, into a new encrypted container under a new salt.
+     *
+     * @param containerPath the path of the container to write.
+     * @param inputPaths    the files and directories to pack.
+     * @param masterKeys    the cache deriving the master key for a new salt.
+     * @return the entries of the container.
+     * @throws IOException     if an I/O error occurs or two files would be packed under the same name.
+     * @throws CryptoException if key derivation or encryption fails.
+     * @see EncryptedContainer
+     */
+    public List<ContainerEntry> packFiles(String containerPath, List<String> inputPaths, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+        List<Path> inputs = inputPaths.stream().map(Paths::get).collect(Collectors.toList());
+        return EncryptedContainer.pack(Paths.get(containerPath), inputs, masterKeys, CipherUtil.generateSalt(),
+                config.cipherSuite());
+    }
+
+    /**
+     * Lists the entries of a container, decrypting only its index.
+     *
+     * @param containerPath the path of the container.
+     * @param masterKeys    the cache providing the master key for the container's salt.
+     * @return the entries of the container.
+     * @throws IOException     if an I/O error occurs or the index fails authentication.
+     * @throws CryptoException if the file is not a container or its index is corrupted.
+     */
+    public List<ContainerEntry> listContainer(String containerPath, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+        return EncryptedContainer.list(Paths.get(containerPath), masterKeys);
+    }
+
+    /**
+     * Extracts entries of a container next to it, decrypting only the chunks holding them.
+     *
+     * @param containerPath the path of the container.
+     * @param names         the names of the entries to extract, or none to extract all of them.
+     * @param masterKeys    the cache providing the master key for the container's salt.
+     * @return the paths of the extracted files.
+     * @throws IOException     if an I/O error occurs, an entry is missing or its file already exists.
+     * @throws CryptoException if the file is not a container or its index is corrupted.
+     */
+    public List<Path> extractFromContainer(String containerPath, Collection<String> names, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+        Path container = Paths.get(containerPath).toAbsolutePath();
+        return EncryptedContainer.extract(container, names, container.getParent(), masterKeys);
+    }
+
+    /**
+     * Changes the passphrase of an encrypted file by wrapping its file key under the new master key. The
+     * chunks are left as they are.
+     *
+     * @param filePath the path of the encrypted file.
+     * @param oldKeys  the cache providing the master key for the salt in the file's header.
+     * @param newKeys  the cache deriving the master key for the new salt.
+     * @param newSalt  the salt of the new master key.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is in the original format or the old passphrase does not match.
+     * @see KeyRotator
+     */
+    public void rekeyFile(String filePath, MasterKeyCache oldKeys, MasterKeyCache newKeys, byte[] newSalt)
+            throws IOException, CryptoException {
+        KeyRotator.rekey(Paths.get(filePath), oldKeys, newKeys, newSalt);
+    }
+
+    /**
+     * Brings an encrypted file up to date with its changed plaintext, rewriting only the chunks which changed.
+     *
+     * @param plainFilePath     the path of the plaintext.
+     * @param encryptedFilePath the path of the encrypted file, which is updated in place.
+     * @param masterKeys        the cache providing the master key for the encrypted file's salt.
+     * @return how much of the file was rewritten.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is not in the chunked format or the passphrase does not match.
+     * @see ChunkUpdater
+     */
+    public UpdateResult updateFile(String plainFilePath, String encryptedFilePath, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+        return ChunkUpdater.update(Paths.get(plainFilePath), Paths.get(encryptedFilePath), masterKeys);
+    }
+
+    /**
+     * Decrypts chunks read in order from the source, inflating the result if the header marks the data as
+     * compressed.
+     *
+     * @param source     the channel positioned at the first chunk.
+     * @param target     the channel to write the plaintext to.
+     * @param fileHeader the header describing the chunks.
+     * @param secretKey  the file key.
+     * @throws IOException     if an I/O error occurs or the compressed data is malformed.
+     * @throws CryptoException if a chunk fails authentication.
+     */
+    private void decryptChunkedStream(ReadableByteChannel source, WritableByteChannel target,
+                                             FileHeader fileHeader, SecretKey secretKey)
+            throws IOException, CryptoException {
+
+        if (!fileHeader.isCompressed()) {
+            ChunkedFileProcessor.decryptStream(source, target, fileHeader, secretKey);
+            return;
+        }
+
+        try (Compression.InflatingOutput inflating = new Compression.InflatingOutput(
+                Channels.newOutputStream(target))) {
+            ChunkedFileProcessor.decryptStream(source, Channels.newChannel(inflating.stream()), fileHeader,
+                    secretKey);
+            inflating.finish();
+        }
+    }
+
+    /**
+     * Decrypts a file in the original single stream format. Large files are run through the overlapped
+     * read/decrypt/write pipeline, as CBC cannot be parallelised; small ones are decrypted directly from a
+     * memory mapping to avoid the cost of starting the pipeline threads.
+     *
+     * @param source   the channel containing the encrypted file.
+     * @param position the position of the first encrypted byte in the source channel.
+     * @param target   the channel to write the plaintext to.
+     * @param cipher   a cipher initialised for decryption.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if decryption fails.
+     */
+    private void decryptOriginalFormat(FileChannel source, long position, FileChannel target, Cipher cipher)
+            throws IOException, CryptoException {
+
+        if (source.size() - position < config.pipelineThreshold()) {
+            ChannelCipherProcessor.process(source, position, target, cipher);
+            return;
+        }
+
+        source.position(position);
+        decryptOriginalFormat(source, target, cipher);
+    }
+
+    /**
+     * Decrypts data in the original single stream format through the overlapped read/decrypt/write pipeline.
+     *
+     * @param source the channel positioned at the first encrypted byte.
+     * @param target the channel to write the plaintext to.
+     * @param cipher a cipher initialised for decryption.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if decryption fails.
+     */
+    private void decryptOriginalFormat(ReadableByteChannel source, WritableByteChannel target, Cipher cipher)
+            throws IOException, CryptoException {
+
+        int bufferSize = config.bufferSize();
+        PipelinedCipherProcessor.process(source, target, bufferSize, bufferSize + 2 * cipher.getBlockSize(),
+                (input, output, last) -> {
+                    if (last) {
+                        cipher.doFinal(input, output);
+                    } else {
+                        cipher.update(input, output);
+                    }
+                });
+    }
+}
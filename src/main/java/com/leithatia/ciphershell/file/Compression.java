@@ -0,0 +1,123 @@
+package com.leithatia.ciphershell.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * The optional Deflate stage run in front of the cipher for files carrying {@link FileHeader#FLAG_COMPRESSED}.
+ * <p>
+ * Whether a file is worth compressing is decided from a few blocks spread across it rather than the whole
+ * file, so already compressed media is recognised after deflating at most half a megabyte and is then
+ * encrypted as is.
+ */
+class Compression {
+    static final int SAMPLE_BLOCK_SIZE = 64 * 1024;
+    static final int SAMPLE_BLOCKS = 8;
+    static final double MAX_COMPRESSED_RATIO = 0.9;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Test-compresses up to {@link #SAMPLE_BLOCKS} evenly spaced blocks of the file.
+     *
+     * @param source the channel containing the plaintext, read with positional reads.
+     * @return {@code true} if the sampled blocks shrink to at most {@link #MAX_COMPRESSED_RATIO} of their size.
+     * @throws IOException if an I/O error occurs.
+     */
+    static boolean isWorthCompressing(FileChannel source) throws IOException {
+        long size = source.size();
+        if (size == 0) {
+            return false;
+        }
+
+        int blockSize = (int) Math.min(SAMPLE_BLOCK_SIZE, size);
+        int blocks = (int) Math.min(SAMPLE_BLOCKS, size / blockSize);
+        long stride = blocks > 1 ? (size - blockSize) / (blocks - 1) : 0;
+
+        ByteBuffer block = ByteBuffer.allocate(blockSize);
+        byte[] compressed = new byte[blockSize];
+        long compressedLength = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int i = 0; i < blocks; i++) {
+                block.clear();
+                ChunkedFileProcessor.readFully(source, block, i * stride);
+
+                deflater.reset();
+                deflater.setInput(block.array(), 0, blockSize);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressedLength += deflater.deflate(compressed);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return compressedLength <= (long) blockSize * blocks * MAX_COMPRESSED_RATIO;
+    }
+
+    /**
+     * Wraps the plaintext in a stream returning its Deflate compressed form. Closing the stream closes the
+     * plaintext stream and releases the native compressor.
+     *
+     * @param inputStream the stream containing the plaintext.
+     * @return the stream of compressed bytes.
+     */
+    static InputStream deflating(InputStream inputStream) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        return new DeflaterInputStream(inputStream, deflater, STREAM_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Decompressed output written through an {@link InflaterOutputStream}, which is finished rather than
+     * closed so the underlying stream stays open for the caller.
+     */
+    static class InflatingOutput implements AutoCloseable {
+        private final Inflater inflater = new Inflater();
+        private final InflaterOutputStream outputStream;
+
+        InflatingOutput(OutputStream target) {
+            outputStream = new InflaterOutputStream(target, inflater, STREAM_BUFFER_SIZE);
+        }
+
+        /**
+         * @return the stream to write compressed bytes to.
+         */
+        OutputStream stream() {
+            return outputStream;
+        }
+
+        /**
+         * Writes out any remaining decompressed bytes.
+         *
+         * @throws IOException if the compressed data ends before the end of the Deflate stream.
+         */
+        void finish() throws IOException {
+            outputStream.finish();
+            if (!inflater.finished()) {
+                throw new IOException("Compressed data ends unexpectedly.");
+            }
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+}
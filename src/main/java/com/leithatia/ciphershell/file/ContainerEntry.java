@@ -0,0 +1,12 @@
+package com.leithatia.ciphershell.file;
+
+/**
+ * A file packed into an {@link EncryptedContainer}, as listed in its index.
+ *
+ * @param name         the path of the file relative to where it was packed from, with {@code /} separators.
+ * @param offset       the plaintext offset of the file's contents within the container.
+ * @param length       the length of the file.
+ * @param lastModified the time the file was last modified, in milliseconds since the epoch.
+ */
+public record ContainerEntry(String name, long offset, long length, long lastModified) {
+}
@@ -0,0 +1,281 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Encrypts files as they land in a directory, for a drop folder served by one resident process. The
+ * passphrase is derived once, under one salt for the whole run, and every file is then encrypted on a fixed
+ * number of worker threads with a key wrapped under that master key.
+ * <p>
+ * A file is only picked up once it has been quiet for a while: every event for it pushes its deadline back,
+ * and at the deadline it must still have the size and modification time seen at the last event, or it is
+ * still being written and waits another quiet period. At most a few files per worker wait for a thread, after
+ * which the watcher stops reading events until one finishes; events the operating system drops meanwhile are
+ * recovered by sweeping the tree again.
+ * <p>
+ * An encrypted file is written next to its target and renamed into place, so a file is done exactly when its
+ * {@code .enc} file exists and is at least as new as it. Files already done are skipped, also after a restart,
+ * and a file changed later is encrypted again. Plaintext files are left in place.
+ */
+public class DirectoryWatcher implements AutoCloseable {
+    public static final Duration DEFAULT_QUIET_PERIOD = Duration.ofMillis(500);
+    private static final long POLL_MILLIS = 50;
+    private static final int QUEUED_FILES_PER_WORKER = 4;
+    private static final String ENCRYPTED_FILE_SUFFIX = ".enc";
+
+    /**
+     * A file which changed recently: when it was first seen, when it is due and how it looked at its last event.
+     */
+    private record Pending(long firstSeen, long deadline, long size, long lastModified) {
+    }
+
+    private final Path directory;
+    private final MasterKeyCache masterKeys;
+    private final long quietNanos;
+    private final EngineConfig config;
+    private final byte[] salt = CipherUtil.generateSalt();
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private final Set<Path> inProgress = ConcurrentHashMap.newKeySet();
+    private final Set<String> claimedTargets = ConcurrentHashMap.newKeySet();
+    private final ExecutorService workers;
+    private final Semaphore queuedFiles;
+    private volatile boolean open = true;
+
+    /**
+     * Creates a watcher for the directory which encrypts files with the given engine settings. Nothing is
+     * watched until {@link #run()} is called.
+     *
+     * @param directory   the directory to watch, including the directories created below it.
+     * @param masterKeys  the cache deriving the master key for the salt of this run.
+     * @param parallelism the maximum number of files encrypted at once.
+     * @param quietPeriod how long a file must stay unchanged before it is encrypted.
+     * @param config      the settings of the engine encrypting each file.
+     * @throws IOException if the directory cannot be watched.
+     */
+    public DirectoryWatcher(Path directory, MasterKeyCache masterKeys, int parallelism, Duration quietPeriod,
+                            EngineConfig config) throws IOException {
+
+        if (!Files.isDirectory(directory)) {
+            throw new NoSuchFileException(directory.toString(), null, "Not a directory");
+        }
+        this.directory = directory;
+        this.masterKeys = masterKeys;
+        this.quietNanos = quietPeriod.toNanos();
+        this.config = config;
+        this.watchService = directory.getFileSystem().newWatchService();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        this.queuedFiles = new Semaphore(Math.max(1, parallelism) * QUEUED_FILES_PER_WORKER);
+    }
+
+    /**
+     * Derives the master key, encrypts the files already in the directory and then those which land in it,
+     * until {@link #close()} is called. Files which fail are reported on standard error and tried again the
+     * next time they change.
+     *
+     * @throws IOException     if the directory cannot be watched.
+     * @throws CryptoException if the master key cannot be derived.
+     */
+    public void run() throws IOException, CryptoException {
+        masterKeys.get(salt);
+        sweep(directory);
+        System.out.println("Watching " + directory + " for new files.");
+
+        try {
+            while (open) {
+                WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handleEvents(key);
+                }
+                submitSettledFiles();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed while waiting for events.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops watching and waits for the files being encrypted to finish. Files still waiting to settle are
+     * picked up by the next run.
+     *
+     * @throws IOException if the watch service cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        open = false;
+        watchService.close();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleEvents(WatchKey key) throws IOException {
+        Path watched = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                sweep(watched == null ? directory : watched);
+            } else if (watched != null) {
+                Path path = watched.resolve((Path) event.context());
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    sweep(path);
+                } else {
+                    touch(path);
+                }
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * Watches the directory and every directory below it, and marks every file in them as changed.
+     */
+    private void sweep(Path root) throws IOException {
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Iterator<Path> paths = walk.iterator(); paths.hasNext(); ) {
+                Path path = paths.next();
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                    watchedDirectories.put(key, path);
+                } else {
+                    touch(path);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Removed again before it could be walked.
+        } catch (UncheckedIOException e) {
+            if (!(e.getCause() instanceof NoSuchFileException)) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private void touch(Path file) {
+        if (isIgnored(file)) {
+            return;
+        }
+        BasicFileAttributes attributes = readAttributes(file);
+        if (attributes == null || !attributes.isRegularFile()) {
+            pending.remove(file);
+            return;
+        }
+        long now = System.nanoTime();
+        Pending previous = pending.get(file);
+        pending.put(file, new Pending(previous == null ? now : previous.firstSeen(), now + quietNanos,
+                attributes.size(), attributes.lastModifiedTime().toMillis()));
+    }
+
+    private void submitSettledFiles() throws InterruptedException {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Path, Pending>> entries = pending.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<Path, Pending> entry = entries.next();
+            Path file = entry.getKey();
+            Pending state = entry.getValue();
+            if (state.deadline() - now > 0) {
+                continue;
+            }
+
+            BasicFileAttributes attributes = readAttributes(file);
+            if (attributes == null || !attributes.isRegularFile()) {
+                entries.remove();
+            } else if (attributes.size() != state.size()
+                    || attributes.lastModifiedTime().toMillis() != state.lastModified()
+                    || inProgress.contains(file)) {
+                entry.setValue(new Pending(state.firstSeen(), now + quietNanos, attributes.size(),
+                        attributes.lastModifiedTime().toMillis()));
+            } else {
+                entries.remove();
+                if (!isDone(file, state.lastModified())) {
+                    submit(file, state);
+                }
+            }
+        }
+    }
+
+    private void submit(Path file, Pending state) throws InterruptedException {
+        queuedFiles.acquire();
+        inProgress.add(file);
+        workers.execute(() -> {
+            String target = FileProcessor.generateEncryptedFileName(file.toString());
+            try {
+                if (!claimedTargets.add(target)) {
+                    throw new IOException("Skipped, another file is already being encrypted to " + target);
+                }
+                try {
+                    FileProcessor.encryptFile(file.toString(), masterKeys, salt, config);
+                    Files.setLastModifiedTime(Path.of(target), FileTime.fromMillis(state.lastModified()));
+                } finally {
+                    claimedTargets.remove(target);
+                }
+                System.out.println(file + " -> " + target + " ("
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - state.firstSeen()) + " ms)");
+            } catch (Exception e) {
+                System.err.println(file + ": " + e.getMessage());
+            } finally {
+                inProgress.remove(file);
+                queuedFiles.release();
+            }
+        });
+    }
+
+    /**
+     * @return whether the encrypted file exists and was written from the file as last modified. Encrypted files
+     * take the modification time the file had when it was picked up, so that changes made while it was being
+     * encrypted count as newer.
+     */
+    private static boolean isDone(Path file, long lastModified) {
+        BasicFileAttributes attributes = readAttributes(Path.of(FileProcessor.generateEncryptedFileName(
+                file.toString())));
+        return attributes != null && attributes.lastModifiedTime().toMillis() >= lastModified;
+    }
+
+    private static boolean isIgnored(Path file) {
+        String name = file.getFileName().toString();
+        return name.endsWith(ENCRYPTED_FILE_SUFFIX) || CheckpointJournal.isPartial(file)
+                || ChunkManifest.isManifest(file) || CheckpointJournal.isJournal(file);
+    }
+
+    private static BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherSuite;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Packs many small files into a single encrypted file, so that they share one header, one key derivation
+ * and one inode. The container is an ordinary file in the chunked format with {@link FileHeader#FLAG_CONTAINER}
+ * set, whose plaintext is the contents of all files one after another, followed by an index listing their
+ * names, offsets and lengths, and a trailer holding the offset and length of the index:
+ * <pre>
+ * header | chunks of: file 1 | file 2 | ... | index | index offset (8) | index length (8)
+ * </pre>
+ * The index is thus encrypted and authenticated like the files. Listing decrypts only the chunks holding
+ * the index, and extracting an entry only the chunks holding its contents. Containers use smaller chunks
+ * than single files, so that little more than a small entry itself is decrypted to read it.
+ */
+class EncryptedContainer {
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int TRAILER_LENGTH = 2 * Long.BYTES;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Packs the files, and the files below the directories, into a new container.
+     *
+     * @param container  the path of the container to write.
+     * @param inputs     the files and directories to pack. Files are named by their file name, files below a
+     *                   directory by their path relative to the directory's parent.
+     * @param masterKeys the cache providing the master key.
+     * @param salt        the salt of the master key, stored in the header.
+     * @param cipherSuite the cipher suite sealing the chunks of the container.
+     * @return the entries of the container.
+     * @throws IOException     if an I/O error occurs, the container already exists or two files would be
+     *                         packed under the same name.
+     * @throws CryptoException if key derivation or encryption fails.
+     */
+    static List<ContainerEntry> pack(Path container, List<Path> inputs, MasterKeyCache masterKeys, byte[] salt,
+                                     CipherSuite cipherSuite) throws IOException, CryptoException {
+
+        Map<String, Path> sources = collectSources(inputs);
+        SecretKey dataKey = CipherUtil.generateDataKey();
+        FileHeader fileHeader = new FileHeader(FileHeader.NO_EXTENSION, salt,
+                CipherUtil.generateInitialVector(), CHUNK_SIZE, FileHeader.FLAG_CONTAINER, cipherSuite,
+                masterKeys.getKdfParameters(), FileProcessor.wrapDataKey(masterKeys.get(salt), salt, dataKey));
+
+        PackingStream packingStream = new PackingStream(sources);
+        FileChannel target = FileChannel.open(container, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try (packingStream; target) {
+
+            FileProcessor.writeHeader(target, fileHeader);
+            target.position(fileHeader.getLength());
+            ChunkedFileProcessor.encryptStream(Channels.newChannel(packingStream), target, fileHeader, dataKey);
+        } catch (IOException | CryptoException | RuntimeException e) {
+            Files.deleteIfExists(container);
+            throw e;
+        }
+        masterKeys.confirm(salt);
+        return packingStream.entries;
+    }
+
+    /**
+     * Reads the index of a container.
+     *
+     * @param container  the path of the container.
+     * @param masterKeys the cache providing the master key for the container's salt.
+     * @return the entries of the container, in the order they were packed.
+     * @throws IOException     if an I/O error occurs or a chunk fails authentication.
+     * @throws CryptoException if the file is not a container or its index is corrupted.
+     */
+    static List<ContainerEntry> list(Path container, MasterKeyCache masterKeys) throws IOException, CryptoException {
+        try (EncryptedFileChannel channel = open(container, masterKeys)) {
+            List<ContainerEntry> entries = readIndex(channel);
+            masterKeys.confirm(channel.getFileHeader().getSalt(), channel.getFileHeader().getKdfParameters());
+            return entries;
+        }
+    }
+
+    /**
+     * Extracts entries of a container below the target directory. Entries are never extracted outside the
+     * target directory and never overwrite existing files.
+     *
+     * @param container       the path of the container.
+     * @param names           the names of the entries to extract, or none to extract all of them.
+     * @param targetDirectory the directory to extract entries to.
+     * @param masterKeys      the cache providing the master key for the container's salt.
+     * @return the paths of the extracted files.
+     * @throws IOException     if an I/O error occurs, an entry is missing or its file already exists.
+     * @throws CryptoException if the file is not a container or its index is corrupted.
+     */
+    static List<Path> extract(Path container, Collection<String> names, Path targetDirectory,
+                              MasterKeyCache masterKeys) throws IOException, CryptoException {
+
+        try (EncryptedFileChannel channel = open(container, masterKeys)) {
+            List<ContainerEntry> entries = readIndex(channel);
+            masterKeys.confirm(channel.getFileHeader().getSalt(), channel.getFileHeader().getKdfParameters());
+
+            List<ContainerEntry> selected = entries;
+            if (!names.isEmpty()) {
+                Map<String, ContainerEntry> byName = entries.stream()
+                        .collect(Collectors.toMap(ContainerEntry::name, entry -> entry, (first, second) -> first));
+                selected = new ArrayList<>();
+                for (String name : names) {
+                    ContainerEntry entry = byName.get(name);
+                    if (entry == null) {
+                        throw new NoSuchFileException(name, null, "No such entry in " + container);
+                    }
+                    selected.add(entry);
+                }
+            }
+
+            List<Path> extracted = new ArrayList<>(selected.size());
+            for (ContainerEntry entry : selected) {
+                extracted.add(extractEntry(channel, entry, targetDirectory));
+            }
+            return extracted;
+        }
+    }
+
+    private static EncryptedFileChannel open(Path container, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+
+        EncryptedFileChannel channel = EncryptedFileChannel.open(container, masterKeys);
+        if (!channel.getFileHeader().isContainer()) {
+            channel.close();
+            throw new CryptoException(container + " is not a container.");
+        }
+        return channel;
+    }
+
+    private static List<ContainerEntry> readIndex(EncryptedFileChannel channel) throws IOException, CryptoException {
+        long size = channel.size();
+        if (size < TRAILER_LENGTH) {
+            throw new CryptoException("Corrupted container: no index.");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        readFully(channel.position(size - TRAILER_LENGTH), trailer);
+        long indexOffset = trailer.flip().getLong();
+        long indexLength = trailer.getLong();
+        if (indexOffset < 0 || indexLength < 0 || indexLength > Integer.MAX_VALUE
+                || indexOffset + indexLength != size - TRAILER_LENGTH) {
+            throw new CryptoException("Corrupted container: invalid index position.");
+        }
+
+        ByteBuffer index = ByteBuffer.allocate((int) indexLength);
+        readFully(channel.position(indexOffset), index);
+        try (DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(index.array()))) {
+            int count = inputStream.readInt();
+            List<ContainerEntry> entries = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                ContainerEntry entry = new ContainerEntry(inputStream.readUTF(), inputStream.readLong(),
+                        inputStream.readLong(), inputStream.readLong());
+                if (entry.offset() < 0 || entry.length() < 0 || entry.offset() + entry.length() > indexOffset) {
+                    throw new CryptoException("Corrupted container: entry " + entry.name() + " out of bounds.");
+                }
+                entries.add(entry);
+            }
+            return entries;
+        } catch (EOFException e) {
+            throw new CryptoException("Corrupted container: truncated index.", e);
+        }
+    }
+
+    private static Path extractEntry(EncryptedFileChannel channel, ContainerEntry entry, Path targetDirectory)
+            throws IOException {
+
+        Path root = targetDirectory.toAbsolutePath().normalize();
+        Path target = root.resolve(entry.name()).normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new IOException("Refusing to extract " + entry.name() + " outside " + targetDirectory);
+        }
+        Files.createDirectories(target.getParent());
+
+        FileChannel output = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try (output) {
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            channel.position(entry.offset());
+            long remaining = entry.length();
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                readFully(channel, buffer);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                remaining -= buffer.limit();
+            }
+        } catch (IOException | RuntimeException e) {
+            // the file was created above, so an existing one is never removed
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        Files.setLastModifiedTime(target, FileTime.fromMillis(entry.lastModified()));
+        return target;
+    }
+
+    private static void readFully(EncryptedFileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Unexpected end of container at offset " + channel.position());
+            }
+        }
+    }
+
+    /**
+     * Maps the name of every file to pack to its path, in the order they will be packed.
+     */
+    private static Map<String, Path> collectSources(List<Path> inputs) throws IOException {
+        Map<String, Path> sources = new LinkedHashMap<>();
+        for (Path input : inputs) {
+            List<Path> files = List.of(input);
+            if (Files.isDirectory(input)) {
+                try (Stream<Path> walk = Files.walk(input)) {
+                    files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+                }
+            }
+            Path base = input.toAbsolutePath().normalize().getParent();
+
+            for (Path file : files) {
+                Path absolute = file.toAbsolutePath().normalize();
+                String name = base.relativize(absolute).toString().replace(File.separatorChar, '/');
+                if (sources.putIfAbsent(name, file) != null) {
+                    throw new IOException("Two files would be packed as " + name + ": " + sources.get(name)
+                            + " and " + file);
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * The plaintext of a container: the files one after another, then the index and trailer. Each file is
+     * opened only once the previous one is exhausted, and its entry records the bytes actually read, so the
+     * index stays correct even if a file changes while it is being packed.
+     */
+    private static final class PackingStream extends InputStream {
+        private final Iterator<Map.Entry<String, Path>> sources;
+        private final List<ContainerEntry> entries = new ArrayList<>();
+        private InputStream current;
+        private String currentName;
+        private long currentStart;
+        private long currentLastModified;
+        private long offset;
+        private boolean indexWritten;
+
+        PackingStream(Map<String, Path> sources) {
+            this.sources = sources.entrySet().iterator();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current != null || advance()) {
+                int bytesRead = current.read(buffer, off, len);
+                if (bytesRead > 0) {
+                    offset += bytesRead;
+                    return bytesRead;
+                }
+                finishCurrent();
+            }
+            return -1;
+        }
+
+        private boolean advance() throws IOException {
+            if (sources.hasNext()) {
+                Map.Entry<String, Path> source = sources.next();
+                current = Files.newInputStream(source.getValue());
+                currentName = source.getKey();
+                currentStart = offset;
+                currentLastModified = Files.getLastModifiedTime(source.getValue()).toMillis();
+                return true;
+            }
+            if (!indexWritten) {
+                current = new ByteArrayInputStream(index());
+                currentName = null;
+                indexWritten = true;
+                return true;
+            }
+            return false;
+        }
+
+        private void finishCurrent() throws IOException {
+            current.close();
+            current = null;
+            if (currentName != null) {
+                entries.add(new ContainerEntry(currentName, currentStart, offset - currentStart, currentLastModified));
+            }
+        }
+
+        private byte[] index() throws IOException {
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            try (DataOutputStream outputStream = new DataOutputStream(index)) {
+                outputStream.writeInt(entries.size());
+                for (ContainerEntry entry : entries) {
+                    outputStream.writeUTF(entry.name());
+                    outputStream.writeLong(entry.offset());
+                    outputStream.writeLong(entry.length());
+                    outputStream.writeLong(entry.lastModified());
+                }
+                int indexLength = index.size();
+                outputStream.writeLong(offset);
+                outputStream.writeLong(indexLength);
+            }
+            return index.toByteArray();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+}
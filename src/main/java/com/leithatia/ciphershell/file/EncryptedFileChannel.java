@@ -0,0 +1,245 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.HexFormat;
+
+/**
+ * A read-only {@link SeekableByteChannel} over the plaintext of a file in the chunked format. Only the chunks
+ * covering the bytes actually read are fetched and decrypted, so reading a few bytes from the middle of a
+ * large file costs a single chunk. The most recently decrypted chunk is kept for subsequent reads, and
+ * channels opened with a {@link ChunkCache} share the chunks they decrypted through it.
+ */
+public class EncryptedFileChannel implements SeekableByteChannel {
+
+    private final FileChannel channel;
+    private final FileHeader fileHeader;
+    private final SecretKey secretKey;
+    private final long fileLength;
+    private final long chunkCount;
+    private final long size;
+    private final ChunkCache chunkCache;
+    private final String cacheKey;
+    private final ByteBuffer decrypted;
+    private ByteBuffer chunk;
+    private long chunkIndex = -1;
+    private long position;
+
+    private EncryptedFileChannel(FileChannel channel, FileHeader fileHeader, SecretKey secretKey,
+                                 ChunkCache chunkCache, String cacheKey) throws IOException, CryptoException {
+
+        this.channel = channel;
+        this.fileHeader = fileHeader;
+        this.secretKey = secretKey;
+        this.fileLength = channel.size();
+        this.chunkCount = ChunkedFileProcessor.encryptedChunkCount(fileHeader, fileLength);
+        this.size = ChunkedFileProcessor.plaintextLength(fileHeader, fileLength);
+        this.chunkCache = chunkCache;
+        this.cacheKey = cacheKey;
+        this.decrypted = ByteBuffer.allocateDirect(fileHeader.getChunkSize());
+        this.chunk = decrypted;
+    }
+
+    /**
+     * Opens an encrypted file for random access reads.
+     *
+     * @param path       the path of the encrypted file.
+     * @param masterKeys the cache providing the master key for the file's salt.
+     * @return the opened channel.
+     * @throws IOException     if the file cannot be read.
+     * @throws CryptoException if the file is not in the chunked format, is compressed, is a volume or the key
+     *                         cannot be derived.
+     */
+    public static EncryptedFileChannel open(Path path, MasterKeyCache masterKeys) throws IOException, CryptoException {
+        return open(path, masterKeys, null);
+    }
+
+    /**
+     * Opens an encrypted file for random access reads, serving chunks from the cache where possible.
+     *
+     * @param path       the path of the encrypted file.
+     * @param masterKeys the cache providing the master key for the file's salt.
+     * @param chunkCache the cache of decrypted chunks shared with other channels, or {@code null}.
+     * @return the opened channel.
+     * @throws IOException     if the file cannot be read.
+     * @throws CryptoException if the file is not in the chunked format, is compressed, is a volume or the key
+     *                         cannot be derived.
+     */
+    public static EncryptedFileChannel open(Path path, MasterKeyCache masterKeys, ChunkCache chunkCache)
+            throws IOException, CryptoException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            FileHeader fileHeader = FileProcessor.readHeader(channel);
+            if (!fileHeader.isChunked()) {
+                throw new CryptoException(path + " is not in the chunked format and cannot be read at random.");
+            }
+            if (fileHeader.isCompressed()) {
+                throw new CryptoException(path + " is compressed and cannot be read at random.");
+            }
+            if (fileHeader.isVolume()) {
+                throw new CryptoException(path + " is one volume of a split file and cannot be read at random.");
+            }
+            SecretKey masterKey = masterKeys.get(fileHeader.getSalt(), fileHeader.getKdfParameters());
+            String cacheKey = chunkCache == null ? null : cacheKey(path, fileHeader);
+            return new EncryptedFileChannel(channel, fileHeader, FileProcessor.fileKey(fileHeader, masterKey),
+                    chunkCache, cacheKey);
+        } catch (IOException | CryptoException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The identity of the version of the file, under which its chunks are cached: its path, IV and what a
+     * checkpoint journal records of a source. A file updated in place keeps its IV and inode but gets a new
+     * change time, which cannot be set back; a file replaced by another has a new inode.
+     */
+    private static String cacheKey(Path path, FileHeader fileHeader) throws IOException {
+        return path.toAbsolutePath() + "@" + CheckpointJournal.Source.of(path) + "/"
+                + HexFormat.of().formatHex(fileHeader.getIv());
+    }
+
+    /**
+     * Works out the length of the plaintext of an encrypted file from its header and length alone, without
+     * a key.
+     *
+     * @param path the path of the encrypted file.
+     * @return the length of the plaintext, or -1 if the file cannot be read at random: it is not in the
+     * chunked format, is compressed, is a volume of a split file or is too short for its chunks.
+     * @throws IOException if the file cannot be read.
+     */
+    public static long plaintextSize(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            FileHeader fileHeader = FileProcessor.readHeader(channel);
+            if (!FileProcessor.isEncryptedByThisApplication(fileHeader.getMagicNumber()) || !fileHeader.isChunked()
+                    || fileHeader.isCompressed() || fileHeader.isVolume()) {
+                return -1;
+            }
+            return ChunkedFileProcessor.plaintextLength(fileHeader, channel.size());
+        } catch (CryptoException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads plaintext from the current position, decrypting chunks as they are reached.
+     *
+     * @param destination the buffer to read into.
+     * @return the number of bytes read, or -1 at the end of the plaintext.
+     * @throws IOException if an I/O error occurs or a chunk fails authentication.
+     */
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+
+        int bytesRead = 0;
+        while (destination.hasRemaining() && position < size) {
+            loadChunk(position / fileHeader.getChunkSize());
+
+            int offset = (int) (position % fileHeader.getChunkSize());
+            int length = Math.min(destination.remaining(), chunk.limit() - offset);
+            destination.put(chunk.duplicate().position(offset).limit(offset + length));
+
+            position += length;
+            bytesRead += length;
+        }
+        return bytesRead;
+    }
+
+    private void loadChunk(long index) throws IOException {
+        if (index == chunkIndex) {
+            return;
+        }
+        chunkIndex = -1;
+        byte[] cached = chunkCache == null ? null : chunkCache.get(cacheKey, index);
+        if (cached != null) {
+            chunk = ByteBuffer.wrap(cached);
+            chunkIndex = index;
+            return;
+        }
+        chunk = decrypted.clear();
+        try {
+            ChunkedFileProcessor.openChunk(channel, fileLength, fileHeader, secretKey, index, chunkCount, chunk);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Bad passphrase or corrupted file: chunk " + index + " failed authentication.", e);
+        }
+        if (chunkCache != null) {
+            byte[] plaintext = new byte[chunk.remaining()];
+            chunk.duplicate().get(plaintext);
+            chunkCache.put(cacheKey, index, plaintext);
+        }
+        chunkIndex = index;
+    }
+
+    /**
+     * @return the header of the encrypted file.
+     */
+    public FileHeader getFileHeader() {
+        return fileHeader;
+    }
+
+    @Override
+    public int write(ByteBuffer source) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public EncryptedFileChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * @return the length of the plaintext.
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.FileNameParts;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+
+/**
+ * A write-only channel encrypting what is written to it into a new file in the chunked format, for callers
+ * which produce the plaintext themselves rather than having it in a file. Data is sealed a chunk at a time
+ * as it arrives; the last chunk is sealed differently from all others, so one full chunk is held back until
+ * more data or the end of the file shows whether it is the last.
+ * <p>
+ * The file is written next to its target and renamed into place on {@link #close()}, so that readers see
+ * either the previous file or the complete new one. If a write fails, closing discards the partial file.
+ */
+public class EncryptedFileWriter implements SeekableByteChannel {
+
+    private final Path path;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final FileHeader fileHeader;
+    private final SecretKey secretKey;
+    private final MasterKeyCache masterKeys;
+    private final ByteBuffer plaintext;
+    private final ByteBuffer record;
+    private long chunkIndex;
+    private long position;
+    private boolean failed;
+
+    private EncryptedFileWriter(Path path, Path temporary, FileChannel channel, FileHeader fileHeader,
+                                SecretKey secretKey, MasterKeyCache masterKeys) {
+        this.path = path;
+        this.temporary = temporary;
+        this.channel = channel;
+        this.fileHeader = fileHeader;
+        this.secretKey = secretKey;
+        this.masterKeys = masterKeys;
+        this.plaintext = ByteBuffer.allocateDirect(fileHeader.getChunkSize());
+        this.record = ByteBuffer.allocateDirect(ChunkedFileProcessor.recordLength(fileHeader));
+    }
+
+    /**
+     * Starts a new encrypted file in chunks of the default size, which replaces any file at the path once the
+     * writer is closed.
+     *
+     * @param path       the path of the encrypted file.
+     * @param masterKeys the cache providing the master key for the salt.
+     * @param salt       the salt of the master key, stored in the header.
+     * @return the writer.
+     * @throws IOException     if the file cannot be created.
+     * @throws CryptoException if the master key cannot be derived.
+     */
+    public static EncryptedFileWriter create(Path path, MasterKeyCache masterKeys, byte[] salt)
+            throws IOException, CryptoException {
+        return create(path, masterKeys, salt, ChunkedFileProcessor.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Starts a new encrypted file, which replaces any file at the path once the writer is closed. The
+     * extension of the path is stored in the header, as for files encrypted from the command line.
+     *
+     * @param path       the path of the encrypted file.
+     * @param masterKeys the cache providing the master key for the salt.
+     * @param salt       the salt of the master key, stored in the header.
+     * @param chunkSize  the number of plaintext bytes per chunk.
+     * @return the writer.
+     * @throws IOException     if the file cannot be created.
+     * @throws CryptoException if the master key cannot be derived.
+     */
+    public static EncryptedFileWriter create(Path path, MasterKeyCache masterKeys, byte[] salt, int chunkSize)
+            throws IOException, CryptoException {
+
+        SecretKey secretKey = CipherUtil.generateDataKey();
+        byte[] wrappedKey = FileProcessor.wrapDataKey(masterKeys.get(salt), salt, secretKey);
+        FileHeader fileHeader = new FileHeader(FileNameParts.splitFileName(path.toString()).extension(), salt,
+                CipherUtil.generateInitialVector(), chunkSize, (byte) 0, masterKeys.getKdfParameters(), wrappedKey);
+
+        // a unique temporary, so that writers of the same path do not write into each other's file
+        Path temporary = CheckpointJournal.createPartial(path);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        try {
+            FileProcessor.writeHeader(channel, fileHeader);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        return new EncryptedFileWriter(path, temporary, channel, fileHeader,
+                ChunkedFileProcessor.chunkKey(fileHeader, secretKey), masterKeys);
+    }
+
+    /**
+     * Encrypts the bytes as part of the next chunks.
+     *
+     * @param source the plaintext to write.
+     * @return the number of bytes written, which is all of them.
+     * @throws IOException if a chunk cannot be written.
+     */
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        ensureOpen();
+        int bytesWritten = 0;
+        try {
+            while (source.hasRemaining()) {
+                if (!plaintext.hasRemaining()) {
+                    sealChunk(false);
+                }
+                int length = Math.min(source.remaining(), plaintext.remaining());
+                plaintext.put(source.duplicate().limit(source.position() + length));
+                source.position(source.position() + length);
+                bytesWritten += length;
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+        position += bytesWritten;
+        return bytesWritten;
+    }
+
+    private void sealChunk(boolean lastChunk) throws IOException {
+        plaintext.flip();
+        record.clear();
+        try {
+            ChunkedFileProcessor.sealChunk(fileHeader, secretKey, chunkIndex, 0, lastChunk, plaintext, record);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt chunk " + chunkIndex + ": " + e.getMessage(), e);
+        }
+        record.flip();
+        ChunkedFileProcessor.writeFully(channel, record, ChunkedFileProcessor.encryptedChunkOffset(fileHeader,
+                chunkIndex));
+        chunkIndex++;
+        plaintext.clear();
+    }
+
+    /**
+     * Seals the last chunk and renames the file into place, or deletes it if a write failed.
+     *
+     * @throws IOException if the last chunk cannot be written or the file cannot be renamed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try (channel) {
+            if (!failed) {
+                sealChunk(true);
+                channel.force(true);
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        if (failed) {
+            Files.deleteIfExists(temporary);
+            return;
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        masterKeys.confirm(fileHeader.getSalt());
+    }
+
+    @Override
+    public int read(ByteBuffer destination) {
+        throw new NonReadableChannelException();
+    }
+
+    /**
+     * @return the number of plaintext bytes written so far.
+     */
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    /**
+     * Encrypted files are written in order, so the position can only be set to where it already is.
+     *
+     * @throws UnsupportedOperationException if the position differs from the current one.
+     */
+    @Override
+    public EncryptedFileWriter position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition != position) {
+            throw new UnsupportedOperationException("Encrypted files are written in order, cannot seek to "
+                    + newPosition);
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of plaintext bytes written so far.
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new UnsupportedOperationException("Encrypted files are written in order and cannot be truncated.");
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.util.CipherSuite;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.KdfParameters;
+
+/**
+ * The settings of a {@link CipherEngine}.
+ *
+ * @param kdfParameters      the key derivation function and cost used to derive master keys for new files.
+ * @param chunkSize          the number of plaintext bytes per chunk in files written by the engine.
+ * @param bufferSize         the size of the buffers passed through the pipeline for the original format.
+ * @param pipelineThreshold  the size from which files in the original format are decrypted through the
+ *                           pipeline rather than from a memory mapping.
+ * @param compress           whether to compress files worth compressing before encrypting them.
+ * @param checkpointInterval the number of plaintext bytes between checkpoints of files encrypted or decrypted
+ *                           chunk by chunk, or 0 for none.
+ * @param resume             whether to continue from the checkpoint left by an interrupted run, if any.
+ * @param cipherSuite        the cipher suite sealing the chunks of files written by the engine.
+ * @param volumeSize         the largest size of the volumes encrypted files are split into, or 0 to write each
+ *                           as a single file.
+ */
+public record EngineConfig(KdfParameters kdfParameters, int chunkSize, int bufferSize, long pipelineThreshold,
+                           boolean compress, long checkpointInterval, boolean resume, CipherSuite cipherSuite,
+                           long volumeSize) {
+
+    public static final long DEFAULT_PIPELINE_THRESHOLD = 8L * 1024 * 1024;
+    /**
+     * The largest chunk size, which headers read from files are held to as well.
+     */
+    static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    public EngineConfig {
+        if (kdfParameters == null) {
+            throw new IllegalArgumentException("KDF parameters are required");
+        }
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        if (pipelineThreshold < 0) {
+            throw new IllegalArgumentException("Pipeline threshold must not be negative: " + pipelineThreshold);
+        }
+        if (checkpointInterval < 0) {
+            throw new IllegalArgumentException("Checkpoint interval must not be negative: " + checkpointInterval);
+        }
+        if (cipherSuite == null) {
+            throw new IllegalArgumentException("A cipher suite is required");
+        }
+        if (volumeSize != 0 && volumeSize < minimumVolumeSize(chunkSize)) {
+            throw new IllegalArgumentException("Volume size must be at least " + minimumVolumeSize(chunkSize)
+                    + " bytes to hold a header and a chunk: " + volumeSize);
+        }
+    }
+
+    /**
+     * @return the settings used by the command line tool.
+     */
+    public static EngineConfig defaults() {
+        return new EngineConfig(KdfParameters.DEFAULT, ChunkedFileProcessor.DEFAULT_CHUNK_SIZE,
+                PipelinedCipherProcessor.DEFAULT_BUFFER_SIZE, DEFAULT_PIPELINE_THRESHOLD, false,
+                CheckpointJournal.DEFAULT_INTERVAL, false, CipherSuite.AES_GCM, 0);
+    }
+
+    public EngineConfig withKdfParameters(KdfParameters kdfParameters) {
+        return new EngineConfig(kdfParameters, chunkSize, bufferSize, pipelineThreshold, compress, checkpointInterval,
+                resume, cipherSuite, volumeSize);
+    }
+
+    public EngineConfig withKdfIterations(int kdfIterations) {
+        return withKdfParameters(kdfParameters.withIterations(kdfIterations));
+    }
+
+    public EngineConfig withChunkSize(int chunkSize) {
+        return new EngineConfig(kdfParameters, chunkSize, bufferSize, pipelineThreshold, compress, checkpointInterval,
+                resume, cipherSuite, volumeSize);
+    }
+
+    public EngineConfig withBufferSize(int bufferSize) {
+        return new EngineConfig(kdfParameters, chunkSize, bufferSize, pipelineThreshold, compress, checkpointInterval,
+                resume, cipherSuite, volumeSize);
+    }
+
+    public EngineConfig withCompress(boolean compress) {
+        return new EngineConfig(kdfParameters, chunkSize, bufferSize, pipelineThreshold, compress, checkpointInterval,
+                resume, cipherSuite, volumeSize);
+    }
+
+    public EngineConfig withCheckpointInterval(long checkpointInterval) {
+        return new EngineConfig(kdfParameters, chunkSize, bufferSize, pipelineThreshold, compress, checkpointInterval,
+                resume, cipherSuite, volumeSize);
+    }
+
+    public EngineConfig withResume(boolean resume) {
+        return new EngineConfig(kdfParameters, chunkSize, bufferSize, pipelineThreshold, compress, checkpointInterval,
+                resume, cipherSuite, volumeSize);
+    }
+
+    public EngineConfig withCipherSuite(CipherSuite cipherSuite) {
+        return new EngineConfig(kdfParameters, chunkSize, bufferSize, pipelineThreshold, compress, checkpointInterval,
+                resume, cipherSuite, volumeSize);
+    }
+
+    public EngineConfig withVolumeSize(long volumeSize) {
+        return new EngineConfig(kdfParameters, chunkSize, bufferSize, pipelineThreshold, compress, checkpointInterval,
+                resume, cipherSuite, volumeSize);
+    }
+
+    private static long minimumVolumeSize(int chunkSize) {
+        return FileHeader.MAX_HEADER_LENGTH + (long) chunkSize + CipherUtil.CHUNK_TAG_LENGTH;
+    }
+
+    /**
+     * @param chunkSize the chunk size of the file processed.
+     * @return the number of chunks between checkpoints, at least one, or {@link Long#MAX_VALUE} for none.
+     */
+    long checkpointChunks(int chunkSize) {
+        return checkpointInterval == 0 ? Long.MAX_VALUE : Math.max(1, checkpointInterval / chunkSize);
+    }
+}
@@ -1,10 +1,33 @@
 package com.leithatia.ciphershell.file;
 
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherSuite;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.KdfParameters;
+
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
- * Holds header data of files to be encrypted or decrypted
+ * Holds header data of files to be encrypted or decrypted.
+ * <p>
+ * Two on-disk formats exist. The original format ({@code ENC737}) is followed by a single
+ * AES/CBC stream. The chunked format ({@code ENC739}) appends the chunk size and a flags byte to the
+ * original header and is followed by independently authenticated chunks, each of which also authenticates the
+ * fields of the header that describe how the plaintext is laid out ({@link #getAuthenticatedFields()}).
+ * With {@link #FLAG_CHUNK_GENERATIONS} set, each chunk is preceded by a 4 byte generation which is raised
+ * whenever the chunk is rewritten in place. With {@link #FLAG_CIPHER_SUITE} set, the flags byte is followed by
+ * the id of the {@link CipherSuite} sealing the chunks; without it, they are sealed with AES/GCM. With
+ * {@link #FLAG_KDF_PARAMETERS} set, these are followed by the id of the key derivation function and its
+ * iterations; without it, the master key was derived with
+ * {@link KdfParameters#DEFAULT}. With {@link #FLAG_WRAPPED_KEY} set, these are followed by the file's random
+ * data key, wrapped under a key derived from the passphrase, so that changing the
+ * passphrase only rewrites the salt and the wrapped key. With {@link #FLAG_CONTAINER} set, the plaintext is
+ * not a single file but an {@link EncryptedContainer} of many. With {@link #FLAG_VOLUME} set, the file is one
+ * of several volumes holding consecutive chunks of a larger file, and the header ends with the index of the
+ * volume, the number of volumes and the index of its first chunk in the larger file. A header with
+ * {@link #FLAG_CHUNK_GENERATIONS} set ends with the highest generation ever written to the file and a tag over it
+ * and the generations of all chunks, which {@link ChunkUpdater} checks before rewriting any chunk.
  */
 public class FileHeader {
 
@@ -12,8 +35,40 @@ public class FileHeader {
     private byte[] fileExtension = new byte[4];
     private byte[] salt = new byte[16];
     private byte[] iv = new byte[16];
+    private int chunkSize;
+    private byte flags;
+    private byte cipherSuite = CipherSuite.AES_GCM.id();
+    private byte kdfAlgorithm;
+    private int kdfIterations;
+    private byte[] wrappedKey;
+    private int volumeIndex;
+    private int volumeCount;
+    private long firstChunk;
+    private int generation;
+    private byte[] generationsTag = new byte[GENERATIONS_TAG_LENGTH];
     public static final int HEADER_LENGTH = 42;
+    public static final int CHUNKED_HEADER_LENGTH = HEADER_LENGTH + Integer.BYTES + 1;
+    public static final byte FLAG_COMPRESSED = 0x01;
+    public static final byte FLAG_CHUNK_GENERATIONS = 0x02;
+    public static final byte FLAG_WRAPPED_KEY = 0x04;
+    public static final byte FLAG_CONTAINER = 0x08;
+    public static final byte FLAG_KDF_PARAMETERS = 0x10;
+    public static final byte FLAG_CIPHER_SUITE = 0x20;
+    public static final byte FLAG_VOLUME = 0x40;
+    public static final int CIPHER_SUITE_LENGTH = 1;
+    public static final int VOLUME_FIELDS_LENGTH = 2 * Integer.BYTES + Long.BYTES;
+    public static final int GENERATIONS_TAG_LENGTH = 16;
+    public static final int GENERATION_FIELDS_LENGTH = Integer.BYTES + GENERATIONS_TAG_LENGTH;
+    public static final int MAX_HEADER_LENGTH = CHUNKED_HEADER_LENGTH + CIPHER_SUITE_LENGTH
+            + KdfParameters.ENCODED_LENGTH + CipherUtil.WRAPPED_KEY_LENGTH + VOLUME_FIELDS_LENGTH
+            + GENERATION_FIELDS_LENGTH;
+    /**
+     * The extension stored for plaintext which does not come from a named file, e.g. a stream or a container:
+     * four spaces, as extensions are padded to fill their field.
+     */
+    public static final String NO_EXTENSION = "    ";
     public static final byte[] originalMagicNumber = "ENC737".getBytes();
+    public static final byte[] chunkedMagicNumber = "ENC739".getBytes();
 
     public FileHeader() {
     }
@@ -32,6 +87,90 @@ public class FileHeader {
         this.iv = iv;
     }
 
+    /**
+     * Constructor used to create header of new file to be written in the chunked format
+     *
+     * @param fileExtension the source file extension to be stored to the header
+     * @param salt the salt to be stored to the header
+     * @param iv the initial vector from which chunk nonces are derived
+     * @param chunkSize the number of plaintext bytes in each chunk
+     */
+    public FileHeader(String fileExtension, byte[] salt, byte[] iv, int chunkSize) {
+        this(fileExtension, salt, iv, chunkSize, (byte) 0);
+    }
+
+    /**
+     * Constructor used to create header of new file to be written in the chunked format with flags
+     *
+     * @param fileExtension the source file extension to be stored to the header
+     * @param salt the salt to be stored to the header
+     * @param iv the initial vector from which chunk nonces are derived
+     * @param chunkSize the number of plaintext bytes in each chunk
+     * @param flags the flags describing how the data was processed, e.g. {@link #FLAG_COMPRESSED}
+     */
+    public FileHeader(String fileExtension, byte[] salt, byte[] iv, int chunkSize, byte flags) {
+        this(fileExtension, salt, iv);
+        this.magicNumber = chunkedMagicNumber;
+        this.chunkSize = chunkSize;
+        this.flags = flags;
+    }
+
+    /**
+     * Constructor used to create header of new file to be written in the chunked format under a wrapped
+     * data key
+     *
+     * @param fileExtension the source file extension to be stored to the header
+     * @param salt the salt of the master key which wraps the data key
+     * @param iv the initial vector from which chunk nonces are derived
+     * @param chunkSize the number of plaintext bytes in each chunk
+     * @param flags the flags describing how the data was processed, {@link #FLAG_WRAPPED_KEY} is added
+     * @param wrappedKey the data key of the file, wrapped under the key derived from the master key
+     */
+    public FileHeader(String fileExtension, byte[] salt, byte[] iv, int chunkSize, byte flags, byte[] wrappedKey) {
+        this(fileExtension, salt, iv, chunkSize, (byte) (flags | FLAG_WRAPPED_KEY));
+        this.wrappedKey = wrappedKey;
+    }
+
+    /**
+     * Constructor used to create header of new file to be written in the chunked format under a wrapped
+     * data key, recording how the master key was derived
+     *
+     * @param fileExtension the source file extension to be stored to the header
+     * @param salt the salt of the master key which wraps the data key
+     * @param iv the initial vector from which chunk nonces are derived
+     * @param chunkSize the number of plaintext bytes in each chunk
+     * @param flags the flags describing how the data was processed, {@link #FLAG_KDF_PARAMETERS} and
+     *              {@link #FLAG_WRAPPED_KEY} are added
+     * @param kdfParameters the key derivation function and cost the master key was derived with
+     * @param wrappedKey the data key of the file, wrapped under the key derived from the master key
+     */
+    public FileHeader(String fileExtension, byte[] salt, byte[] iv, int chunkSize, byte flags,
+                      KdfParameters kdfParameters, byte[] wrappedKey) {
+        this(fileExtension, salt, iv, chunkSize, (byte) (flags | FLAG_KDF_PARAMETERS), wrappedKey);
+        this.kdfAlgorithm = kdfParameters.algorithm().id();
+        this.kdfIterations = kdfParameters.iterations();
+    }
+
+    /**
+     * Constructor used to create header of new file whose chunks are sealed with the given cipher suite
+     *
+     * @param fileExtension the source file extension to be stored to the header
+     * @param salt the salt of the master key which wraps the data key
+     * @param iv the initial vector from which chunk nonces are derived
+     * @param chunkSize the number of plaintext bytes in each chunk
+     * @param flags the flags describing how the data was processed; {@link #FLAG_CIPHER_SUITE} is set for
+     *              suites other than AES/GCM, {@link #FLAG_KDF_PARAMETERS} and {@link #FLAG_WRAPPED_KEY} are added
+     * @param cipherSuite the cipher suite sealing the chunks
+     * @param kdfParameters the key derivation function and cost the master key was derived with
+     * @param wrappedKey the data key of the file, wrapped under the key derived from the master key
+     */
+    public FileHeader(String fileExtension, byte[] salt, byte[] iv, int chunkSize, byte flags,
+                      CipherSuite cipherSuite, KdfParameters kdfParameters, byte[] wrappedKey) {
+        this(fileExtension, salt, iv, chunkSize, cipherSuite == CipherSuite.AES_GCM
+                ? (byte) (flags & ~FLAG_CIPHER_SUITE) : (byte) (flags | FLAG_CIPHER_SUITE), kdfParameters, wrappedKey);
+        this.cipherSuite = cipherSuite.id();
+    }
+
     /**
      * Used to set or store header of file to be decrypted
      *
@@ -45,8 +184,146 @@ public class FileHeader {
         buffer.get(iv);
     }
 
+    /**
+     * Used to store the fields which follow the original header in the chunked format
+     *
+     * @param chunkedFields byte array containing the bytes after {@link #HEADER_LENGTH}
+     */
+    public void setChunkedFields(byte[] chunkedFields) {
+        ByteBuffer buffer = ByteBuffer.wrap(chunkedFields);
+        chunkSize = buffer.getInt();
+        flags = buffer.get();
+    }
+
+    /**
+     * Used to store the id of the cipher suite which follows the flags if {@link #FLAG_CIPHER_SUITE} is set
+     *
+     * @param cipherSuite the id of the suite
+     */
+    public void setCipherSuite(byte cipherSuite) {
+        this.cipherSuite = cipherSuite;
+    }
+
+    /**
+     * Used to store the key derivation parameters which follow the flags if {@link #FLAG_KDF_PARAMETERS} is set
+     *
+     * @param kdfFields byte array containing the {@link KdfParameters#ENCODED_LENGTH} bytes of the parameters
+     */
+    public void setKdfFields(byte[] kdfFields) {
+        ByteBuffer buffer = ByteBuffer.wrap(kdfFields);
+        kdfAlgorithm = buffer.get();
+        kdfIterations = buffer.getInt();
+    }
+
+    /**
+     * Used to store the wrapped data key which follows the flags and key derivation parameters if
+     * {@link #FLAG_WRAPPED_KEY} is set
+     *
+     * @param wrappedKey byte array containing the {@link CipherUtil#WRAPPED_KEY_LENGTH} bytes of the key
+     */
+    public void setWrappedKey(byte[] wrappedKey) {
+        this.wrappedKey = wrappedKey;
+    }
+
+    /**
+     * Used to store the volume fields which end the header if {@link #FLAG_VOLUME} is set
+     *
+     * @param volumeFields byte array containing the {@link #VOLUME_FIELDS_LENGTH} bytes of the fields
+     */
+    public void setVolumeFields(byte[] volumeFields) {
+        ByteBuffer buffer = ByteBuffer.wrap(volumeFields);
+        volumeIndex = buffer.getInt();
+        volumeCount = buffer.getInt();
+        firstChunk = buffer.getLong();
+    }
+
+    /**
+     * Used to store the generation fields which end the header if {@link #hasChunkGenerations()}
+     *
+     * @param generationFields byte array containing the {@link #GENERATION_FIELDS_LENGTH} bytes of the fields
+     */
+    public void setGenerationFields(byte[] generationFields) {
+        ByteBuffer buffer = ByteBuffer.wrap(generationFields);
+        generation = buffer.getInt();
+        buffer.get(generationsTag);
+    }
+
+    /**
+     * Records the highest generation written to the file and the tag over it and the generations of its chunks
+     *
+     * @param generation the highest generation ever written to a chunk of the file
+     * @param generationsTag the {@link #GENERATIONS_TAG_LENGTH} byte tag computed by {@link ChunkUpdater}
+     */
+    public void setGenerations(int generation, byte[] generationsTag) {
+        this.generation = generation;
+        this.generationsTag = generationsTag;
+    }
+
+    /**
+     * Marks the header as that of one of several volumes, each holding consecutive chunks of the same file
+     *
+     * @param volumeIndex the zero based index of the volume
+     * @param volumeCount the number of volumes of the file
+     * @param firstChunk the index of the volume's first chunk among the chunks of the whole file
+     */
+    public void setVolume(int volumeIndex, int volumeCount, long firstChunk) {
+        this.flags |= FLAG_VOLUME;
+        this.volumeIndex = volumeIndex;
+        this.volumeCount = volumeCount;
+        this.firstChunk = firstChunk;
+    }
+
     public byte[] getHeader() {
-        return concatByteArrays(magicNumber, fileExtension, salt, iv);
+        byte[] header = concatByteArrays(magicNumber, fileExtension, salt, iv);
+        if (!isChunked()) {
+            return header;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(getLength())
+                .put(header)
+                .putInt(chunkSize)
+                .put(flags);
+        if (hasCipherSuite()) {
+            buffer.put(cipherSuite);
+        }
+        if (hasKdfParameters()) {
+            buffer.put(kdfAlgorithm).putInt(kdfIterations);
+        }
+        if (hasWrappedKey()) {
+            buffer.put(wrappedKey);
+        }
+        if (isVolume()) {
+            buffer.putInt(volumeIndex).putInt(volumeCount).putLong(firstChunk);
+        }
+        if (hasChunkGenerations()) {
+            buffer.putInt(generation).put(generationsTag);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns the fields of the header which every chunk authenticates: the magic number, the extension, the IV,
+     * the chunk size, the flags, the cipher suite and the volume fields. The salt, the key derivation parameters
+     * and the wrapped key, along with the flags announcing them, are left out so that the passphrase can be
+     * changed by rewriting the header alone; a tampered one fails to unwrap the data key rather than yielding
+     * another key. The generation fields change with every update and carry a tag of their own.
+     *
+     * @return the authenticated fields
+     */
+    public byte[] getAuthenticatedFields() {
+        ByteBuffer buffer = ByteBuffer.allocate(magicNumber.length + fileExtension.length + iv.length + Integer.BYTES
+                        + 1 + (hasCipherSuite() ? CIPHER_SUITE_LENGTH : 0) + (isVolume() ? VOLUME_FIELDS_LENGTH : 0))
+                .put(magicNumber)
+                .put(fileExtension)
+                .put(iv)
+                .putInt(chunkSize)
+                .put((byte) (flags & ~(FLAG_KDF_PARAMETERS | FLAG_WRAPPED_KEY)));
+        if (hasCipherSuite()) {
+            buffer.put(cipherSuite);
+        }
+        if (isVolume()) {
+            buffer.putInt(volumeIndex).putInt(volumeCount).putLong(firstChunk);
+        }
+        return buffer.array();
     }
 
     /**
@@ -68,6 +345,27 @@ public class FileHeader {
         return result;
     }
 
+    /**
+     * @return {@code true} if the header describes a file in the chunked format
+     */
+    public boolean isChunked() {
+        return Arrays.equals(magicNumber, chunkedMagicNumber);
+    }
+
+    /**
+     * @return the number of bytes the header occupies at the start of the file
+     */
+    public int getLength() {
+        if (!isChunked()) {
+            return HEADER_LENGTH;
+        }
+        return CHUNKED_HEADER_LENGTH + (hasCipherSuite() ? CIPHER_SUITE_LENGTH : 0)
+                + (hasKdfParameters() ? KdfParameters.ENCODED_LENGTH : 0)
+                + (hasWrappedKey() ? CipherUtil.WRAPPED_KEY_LENGTH : 0)
+                + (isVolume() ? VOLUME_FIELDS_LENGTH : 0)
+                + (hasChunkGenerations() ? GENERATION_FIELDS_LENGTH : 0);
+    }
+
     public byte[] getMagicNumber() {
         return magicNumber;
     }
@@ -84,15 +382,143 @@ public class FileHeader {
         return iv;
     }
 
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public byte[] getWrappedKey() {
+        return wrappedKey;
+    }
+
+    public int getVolumeIndex() {
+        return volumeIndex;
+    }
+
+    public int getVolumeCount() {
+        return volumeCount;
+    }
+
+    /**
+     * @return the index of the file's first chunk among the chunks of the whole file it is a volume of, 0 if it
+     * is not a volume
+     */
+    public long getFirstChunk() {
+        return firstChunk;
+    }
+
+    /**
+     * @return the highest generation ever written to a chunk of the file, if {@link #hasChunkGenerations()}
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    public byte[] getGenerationsTag() {
+        return generationsTag;
+    }
+
+    /**
+     * @return the key derivation function and cost the master key of the file is derived with
+     * @throws CryptoException if the header names a function or cost this version does not support
+     */
+    public KdfParameters getKdfParameters() throws CryptoException {
+        if (!hasKdfParameters()) {
+            return KdfParameters.DEFAULT;
+        }
+        return KdfParameters.decode(kdfAlgorithm, kdfIterations);
+    }
+
+    /**
+     * @return the cipher suite sealing the chunks of the file
+     * @throws CryptoException if the header names a suite this version does not support
+     */
+    public CipherSuite getCipherSuite() throws CryptoException {
+        CipherSuite suite = CipherSuite.fromId(cipherSuite);
+        if (suite == null) {
+            throw new CryptoException("Unsupported cipher suite " + cipherSuite + ", the file was written by a newer"
+                    + " version.");
+        }
+        return suite;
+    }
+
+    /**
+     * @return {@code true} if the header names the cipher suite of the chunks, rather than implying AES/GCM
+     */
+    public boolean hasCipherSuite() {
+        return (flags & FLAG_CIPHER_SUITE) != 0;
+    }
+
+    /**
+     * @return {@code true} if the data was compressed before being encrypted
+     */
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * @return {@code true} if every chunk is preceded by its generation, so that it can be rewritten in place,
+     * and the header records the highest generation of the file with a tag over the generations of its chunks
+     */
+    public boolean hasChunkGenerations() {
+        return (flags & FLAG_CHUNK_GENERATIONS) != 0;
+    }
+
+    /**
+     * @return {@code true} if the plaintext packs many files together with their index
+     */
+    public boolean isContainer() {
+        return (flags & FLAG_CONTAINER) != 0;
+    }
+
+    /**
+     * @return {@code true} if the header records how the master key was derived
+     */
+    public boolean hasKdfParameters() {
+        return (flags & FLAG_KDF_PARAMETERS) != 0;
+    }
+
+    /**
+     * @return {@code true} if the file is one of several volumes of a larger file
+     */
+    public boolean isVolume() {
+        return (flags & FLAG_VOLUME) != 0;
+    }
+
+    /**
+     * @return {@code true} if the file holds the last chunk of its plaintext, as every file but a volume other
+     * than the last does
+     */
+    public boolean isLastVolume() {
+        return !isVolume() || volumeIndex == volumeCount - 1;
+    }
+
+    /**
+     * @return {@code true} if the file is encrypted under a random data key stored wrapped in the header
+     */
+    public boolean hasWrappedKey() {
+        return (flags & FLAG_WRAPPED_KEY) != 0;
+    }
+
     @Override
     public String toString() {
-        int headerLength = magicNumber.length + fileExtension.length
-                + salt.length + iv.length;
-
         return "Magic Number: " + new String(magicNumber) + "\n"
                 + "File extension: " + new String(fileExtension) + "\n"
                 + "Salt: " + Arrays.toString(salt) + "\n"
-                + "IV: " + Arrays.toString(iv) + "\n\n"
-                + "Total length of header in bytes: " + headerLength ;
+                + "IV: " + Arrays.toString(iv) + "\n"
+                + (isChunked() ? "Chunk size: " + chunkSize + "\n" : "")
+                + (isChunked() ? "Compressed: " + isCompressed() + "\n" : "")
+                + (isChunked() ? "Chunk generations: " + hasChunkGenerations() + "\n" : "")
+                + (hasCipherSuite() ? "Cipher suite: " + cipherSuite + "\n" : "")
+                + (hasKdfParameters() ? "KDF: algorithm " + kdfAlgorithm + ", " + kdfIterations + " iterations\n" : "")
+                + (isChunked() ? "Wrapped key: " + hasWrappedKey() + "\n" : "")
+                + (isChunked() ? "Container: " + isContainer() + "\n" : "")
+                + (isVolume() ? "Volume: " + (volumeIndex + 1) + " of " + volumeCount + ", from chunk " + firstChunk
+                + "\n" : "")
+                + (hasChunkGenerations() ? "Generation: " + generation + "\n" : "") + "\n"
+                + "Total length of header in bytes: " + getLength();
     }
 }
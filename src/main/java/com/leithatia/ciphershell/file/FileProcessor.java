@@ -1,15 +1,23 @@
 package com.leithatia.ciphershell.file;
 
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.metrics.DataCopyEvent;
+import com.leithatia.ciphershell.metrics.HeaderEvent;
 import com.leithatia.ciphershell.util.CipherUtil;
 import com.leithatia.ciphershell.util.FileNameParts;
-import com.leithatia.ciphershell.passphrase.PassphraseHandler;
+import com.leithatia.ciphershell.util.KdfParameters;
+import com.leithatia.ciphershell.util.MasterKeyCache;
 
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Handles file encryption and decryption processes.
@@ -17,81 +25,399 @@ import java.util.Arrays;
 public class FileProcessor {
     private static final int BUFFER_SIZE = 8192;
     private static final String ENCRYPTED_FILE_EXTENSION = "enc";
-    private static int encryptionMode;
 
     /**
-     * Encrypts a file using the provided passphrase.
+     * Encrypts a file using the provided passphrase. The file is written in the chunked format, with
+     * chunks encrypted in parallel.
      *
      * @param filePath   the path of the file to encrypt.
      * @param passphrase the passphrase used to generate the encryption key.
      * @throws Exception if an error occurs during the encryption process.
      */
     public static void processFileForEncryption(String filePath, char[] passphrase) throws Exception {
-        byte[] salt = CipherUtil.generateSalt();
-        byte[] iv = CipherUtil.generateInitialVector();
-
-        FileNameParts fileNameParts = FileNameParts.splitFileName(filePath);
-        String encFilePath = fileNameParts.fileName() + "." + ENCRYPTED_FILE_EXTENSION;
-        FileHeader fileHeader = new FileHeader(fileNameParts.extension(), salt, iv);
-
-        SecretKey secretKey = CipherUtil.generateKey(passphrase, salt);
+        processFileForEncryption(filePath, passphrase, EngineConfig.defaults());
+    }
 
-        try (InputStream fileInputStream = new FileInputStream(filePath);
-             InputStream encryptedStream =
-                     CipherUtil.processStream(fileInputStream, secretKey, iv, encryptionMode);
-             OutputStream fileOutputStream = Files.newOutputStream(Paths.get(encFilePath))) {
+    /**
+     * Encrypts a file using the provided passphrase with the given engine settings, e.g. compressing it first.
+     * Compression is skipped for files whose sampled blocks do not compress, such as media or archives.
+     *
+     * @param filePath   the path of the file to encrypt.
+     * @param passphrase the passphrase used to generate the encryption key.
+     * @param config     the settings of the engine encrypting the file.
+     * @throws Exception if an error occurs during the encryption process.
+     */
+    public static void processFileForEncryption(String filePath, char[] passphrase, EngineConfig config)
+            throws Exception {
 
-            writeHeader(fileOutputStream, fileHeader);
-            writeData(fileOutputStream, encryptedStream);
-        } finally {
-            if (passphrase != null) {
-                PassphraseHandler.clearPassphrase(passphrase);
-            }
+        try (MasterKeyCache masterKeys = new MasterKeyCache(passphrase)) {
+            processFileForEncryption(filePath, masterKeys, config);
         }
+    }
+
+    /**
+     * Encrypts a file under a new salt using the master key cache with the given engine settings, e.g. split
+     * into volumes of at most {@link EngineConfig#volumeSize()} bytes which are written in parallel. A resumed
+     * run keeps the cipher suite it started with.
+     *
+     * @param filePath   the path of the file to encrypt.
+     * @param masterKeys the cache deriving the master key for the new salt, or for the salt of the run resumed.
+     * @param config     the settings of the engine encrypting the file.
+     * @throws Exception if an error occurs during the encryption process.
+     * @see CipherEngine#encryptFile(String, MasterKeyCache, byte[])
+     */
+    public static void processFileForEncryption(String filePath, MasterKeyCache masterKeys, EngineConfig config)
+            throws Exception {
+        encryptFile(filePath, masterKeys, CipherUtil.generateSalt(), config);
         System.out.println("File successfully encrypted!");
     }
 
     /**
-     * Decrypts a file using the provided passphrase.
+     * Decrypts a file using the provided passphrase. Both the chunked format and the original single
+     * stream format are supported.
      *
      * @param filePath   the path of the file to decrypt.
      * @param passphrase the passphrase used to generate the decryption key.
      * @throws Exception if an error occurs during the decryption process.
      */
     public static void processFileForDecryption(String filePath, char[] passphrase) throws Exception {
-        String decryptedFileName = null;
+        try (MasterKeyCache masterKeys = new MasterKeyCache(passphrase)) {
+            processFileForDecryption(filePath, masterKeys);
+        }
+    }
 
-        try (InputStream fileInputStream = new FileInputStream(filePath)) {
-            FileHeader fileHeader = readHeader(fileInputStream);
+    /**
+     * Decrypts a file using the master key cache, which may know the key without deriving it.
+     *
+     * @param filePath   the path of the file to decrypt.
+     * @param masterKeys the cache providing the master key for the file's salt.
+     * @throws Exception if an error occurs during the decryption process.
+     */
+    public static void processFileForDecryption(String filePath, MasterKeyCache masterKeys) throws Exception {
+        processFileForDecryption(filePath, masterKeys, EngineConfig.defaults());
+    }
 
-            validateFileEncryption(filePath, fileHeader.getMagicNumber());
+    /**
+     * Decrypts a file using the master key cache with the given engine settings, e.g. continuing an
+     * interrupted run.
+     *
+     * @param filePath   the path of the file to decrypt.
+     * @param masterKeys the cache providing the master key for the file's salt.
+     * @param config     the settings of the engine decrypting the file.
+     * @throws Exception if an error occurs during the decryption process.
+     */
+    public static void processFileForDecryption(String filePath, MasterKeyCache masterKeys, EngineConfig config)
+            throws Exception {
+        decryptFile(filePath, masterKeys, config);
+        System.out.println("File successfully decrypted!");
+    }
 
-            decryptedFileName = generateDecryptedFileName(filePath, fileHeader);
-            SecretKey secretKey = CipherUtil.generateKey(passphrase, fileHeader.getSalt());
+    /**
+     * Encrypts a file in the chunked format under a random data key, stored in the header wrapped under the
+     * master key for the given salt. Files encrypted with the same salt share a single passphrase derivation.
+     *
+     * @param filePath   the path of the file to encrypt.
+     * @param masterKeys the cache providing the master key.
+     * @param salt       the salt of the master key, stored in the header.
+     * @return the path of the encrypted file.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     */
+    public static String encryptFile(String filePath, MasterKeyCache masterKeys, byte[] salt)
+            throws IOException, CryptoException {
+        return encryptFile(filePath, masterKeys, salt, EngineConfig.defaults());
+    }
 
+    /**
+     * Encrypts a file in the chunked format with the given engine settings.
+     *
+     * @param filePath   the path of the file to encrypt.
+     * @param masterKeys the cache providing the master key.
+     * @param salt       the salt of the master key, stored in the header unless an interrupted run is resumed.
+     * @param config     the settings of the engine encrypting the file.
+     * @return the path of the encrypted file, or of its first volume.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     * @see CipherEngine#encryptFile(String, MasterKeyCache, byte[])
+     */
+    public static String encryptFile(String filePath, MasterKeyCache masterKeys, byte[] salt, EngineConfig config)
+            throws IOException, CryptoException {
+        return new CipherEngine(Cipher.ENCRYPT_MODE, config).encryptFile(filePath, masterKeys, salt);
+    }
 
-            try (InputStream decryptedStream =
-                         CipherUtil.processStream(fileInputStream, secretKey, fileHeader.getIv(), encryptionMode);
-                 OutputStream fileOutputStream = new FileOutputStream((decryptedFileName))) {
+    /**
+     * Decrypts a file using the master key for the salt stored in its header. If decryption fails before its
+     * first checkpoint, the partially written output is deleted.
+     *
+     * @param filePath   the path of the file to decrypt.
+     * @param masterKeys the cache providing the master key.
+     * @return the path of the decrypted file.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or decryption fails.
+     * @see CipherEngine#decryptFile(String, MasterKeyCache)
+     */
+    public static String decryptFile(String filePath, MasterKeyCache masterKeys) throws IOException, CryptoException {
+        return decryptFile(filePath, masterKeys, EngineConfig.defaults());
+    }
 
-                writeData(fileOutputStream, decryptedStream);
+    /**
+     * Decrypts a file using the master key for the salt stored in its header with the given engine settings,
+     * e.g. continuing from the checkpoint of an interrupted run.
+     *
+     * @param filePath   the path of the file to decrypt.
+     * @param masterKeys the cache providing the master key.
+     * @param config     the settings of the engine decrypting the file.
+     * @return the path of the decrypted file.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or decryption fails.
+     * @see CipherEngine#decryptFile(String, MasterKeyCache)
+     */
+    public static String decryptFile(String filePath, MasterKeyCache masterKeys, EngineConfig config)
+            throws IOException, CryptoException {
+        return new CipherEngine(Cipher.DECRYPT_MODE, config).decryptFile(filePath, masterKeys);
+    }
 
-            }
-        } catch (Exception e) {
-            // If exception occurs and file was created, delete file
-            if (decryptedFileName != null) {
-                File file = new File(decryptedFileName);
-                if (file.exists() && !file.delete()) {
-                    System.out.println("Failed to delete corrupted file: " + decryptedFileName);
-                }
-            }
-            throw e;
-        } finally {
-            if (passphrase != null) {
-                PassphraseHandler.clearPassphrase(passphrase);
-            }
+    /**
+     * Encrypts everything read from the input stream into the output stream in the chunked format, e.g. from
+     * standard input to standard output.
+     *
+     * @param inputStream  the stream containing the plaintext.
+     * @param outputStream the stream to write the encrypted data to.
+     * @param passphrase   the passphrase used to generate the encryption key, cleared once done.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     * @see CipherEngine#encryptStream(InputStream, OutputStream, MasterKeyCache)
+     */
+    public static void encryptStream(InputStream inputStream, OutputStream outputStream, char[] passphrase)
+            throws IOException, CryptoException {
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(passphrase)) {
+            encryptStream(inputStream, outputStream, masterKeys);
+        }
+    }
+
+    /**
+     * Encrypts everything read from the input stream into the output stream under a new salt, deriving the
+     * master key with the cache's KDF parameters.
+     *
+     * @param inputStream  the stream containing the plaintext.
+     * @param outputStream the stream to write the header and ciphertext to.
+     * @param masterKeys   the cache deriving the master key for the new salt.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     */
+    public static void encryptStream(InputStream inputStream, OutputStream outputStream, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+        encryptStream(inputStream, outputStream, masterKeys, EngineConfig.defaults());
+    }
+
+    /**
+     * Encrypts everything read from the input stream into the output stream under a new salt with the given
+     * engine settings, e.g. sealing the chunks with {@link EngineConfig#cipherSuite()}.
+     *
+     * @param inputStream  the stream containing the plaintext.
+     * @param outputStream the stream to write the header and ciphertext to.
+     * @param masterKeys   the cache deriving the master key for the new salt.
+     * @param config       the settings of the engine encrypting the stream.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     */
+    public static void encryptStream(InputStream inputStream, OutputStream outputStream, MasterKeyCache masterKeys,
+                                     EngineConfig config) throws IOException, CryptoException {
+        new CipherEngine(Cipher.ENCRYPT_MODE, config).encryptStream(inputStream, outputStream, masterKeys);
+    }
+
+    /**
+     * Decrypts everything read from the input stream into the output stream.
+     *
+     * @param inputStream  the stream containing the encrypted data, header included.
+     * @param outputStream the stream to write the plaintext to.
+     * @param passphrase   the passphrase used to generate the decryption key, cleared once done.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the stream was not encrypted by this application or decryption fails.
+     * @see CipherEngine#decryptStream(InputStream, OutputStream, MasterKeyCache)
+     */
+    public static void decryptStream(InputStream inputStream, OutputStream outputStream, char[] passphrase)
+            throws IOException, CryptoException {
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(passphrase)) {
+            engine(Cipher.DECRYPT_MODE).decryptStream(inputStream, outputStream, masterKeys);
         }
-        System.out.println("File successfully decrypted!");
+    }
+
+    /**
+     * Decrypts a range of bytes from a file in the chunked format into the output stream. Only the chunks
+     * covering the range are read and decrypted. A range reaching past the end of the file is shortened.
+     *
+     * @param filePath     the path of the file to decrypt.
+     * @param offset       the plaintext offset of the first byte to decrypt.
+     * @param length       the number of bytes to decrypt.
+     * @param outputStream the stream to write the plaintext to.
+     * @param passphrase   the passphrase used to generate the decryption key, cleared once done.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is not in the chunked format or decryption fails.
+     */
+    public static void decryptRange(String filePath, long offset, long length, OutputStream outputStream,
+                                    char[] passphrase) throws IOException, CryptoException {
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(passphrase)) {
+            decryptRange(filePath, offset, length, outputStream, masterKeys);
+        }
+    }
+
+    /**
+     * Decrypts a range of bytes from a file in the chunked format into the output stream, using the master key
+     * cache.
+     *
+     * @param filePath     the path of the file to decrypt.
+     * @param offset       the plaintext offset of the first byte to decrypt.
+     * @param length       the number of bytes to decrypt.
+     * @param outputStream the stream to write the plaintext to.
+     * @param masterKeys   the cache providing the master key for the file's salt.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is not in the chunked format or decryption fails.
+     * @see CipherEngine#decryptRange(String, long, long, OutputStream, MasterKeyCache)
+     */
+    public static void decryptRange(String filePath, long offset, long length, OutputStream outputStream,
+                                    MasterKeyCache masterKeys) throws IOException, CryptoException {
+        engine(Cipher.DECRYPT_MODE).decryptRange(filePath, offset, length, outputStream, masterKeys);
+    }
+
+    /**
+     * Brings an encrypted file up to date with its changed plaintext, rewriting only the chunks which changed.
+     *
+     * @param plainFilePath     the path of the plaintext.
+     * @param encryptedFilePath the path of the encrypted file, which is updated in place.
+     * @param masterKeys        the cache providing the master key for the encrypted file's salt.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is not in the chunked format or the passphrase does not match.
+     * @see CipherEngine#updateFile(String, String, MasterKeyCache)
+     */
+    public static void processFileForUpdate(String plainFilePath, String encryptedFilePath,
+                                            MasterKeyCache masterKeys) throws IOException, CryptoException {
+        UpdateResult result = engine(Cipher.ENCRYPT_MODE).updateFile(plainFilePath, encryptedFilePath,
+                masterKeys);
+        if (result.fullRewrite()) {
+            System.out.println("File encrypted afresh so that it can be updated in place: " + result.chunkCount()
+                    + " chunks written.");
+        } else {
+            System.out.println("File successfully updated: " + result.rewrittenChunks() + " of "
+                    + result.chunkCount() + " chunks rewritten.");
+        }
+    }
+
+    /**
+     * Checks that an encrypted file is intact without writing its plaintext, and reports how thoroughly it
+     * could be checked.
+     *
+     * @param filePath   the path of the encrypted file.
+     * @param masterKeys the cache providing the master key for the file's salt.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file was not encrypted by this application or fails the check.
+     * @see CipherEngine#verifyFile(String, MasterKeyCache)
+     */
+    public static void processFileForVerification(String filePath, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+        System.out.println(verifyFile(filePath, masterKeys));
+    }
+
+    /**
+     * Checks that an encrypted file is intact without writing its plaintext.
+     *
+     * @param filePath   the path of the encrypted file.
+     * @param masterKeys the cache providing the master key for the file's salt.
+     * @return a description of the check which passed.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file was not encrypted by this application or fails the check.
+     */
+    public static String verifyFile(String filePath, MasterKeyCache masterKeys) throws IOException, CryptoException {
+        return engine(Cipher.DECRYPT_MODE).verifyFile(filePath, masterKeys)
+                ? "File verified: the header and every chunk are authentic."
+                : "File decrypts, but is in the original format: only its padding could be checked.";
+    }
+
+    /**
+     * Changes the passphrase of an encrypted file under a new salt.
+     *
+     * @param filePath the path of the encrypted file.
+     * @param oldKeys  the cache providing the master key for the salt in the file's header.
+     * @param newKeys  the cache deriving the master key for the new salt.
+     * @param newSalt  the salt of the new master key.
+     * @return a message confirming the change.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is in the original format or the old passphrase does not match.
+     * @see CipherEngine#rekeyFile(String, MasterKeyCache, MasterKeyCache, byte[])
+     */
+    public static String rekeyFile(String filePath, MasterKeyCache oldKeys, MasterKeyCache newKeys, byte[] newSalt)
+            throws IOException, CryptoException {
+        engine(Cipher.ENCRYPT_MODE).rekeyFile(filePath, oldKeys, newKeys, newSalt);
+        return "Passphrase changed.";
+    }
+
+    /**
+     * Packs files and directories into a new encrypted container.
+     *
+     * @param containerPath the path of the container to write.
+     * @param inputPaths    the files and directories to pack.
+     * @param masterKeys    the cache deriving the master key for a new salt.
+     * @return the entries of the container.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     */
+    public static List<ContainerEntry> packFiles(String containerPath, List<String> inputPaths,
+                                                 MasterKeyCache masterKeys) throws IOException, CryptoException {
+        return packFiles(containerPath, inputPaths, masterKeys, EngineConfig.defaults());
+    }
+
+    /**
+     * Packs files and directories into a new encrypted container with the given engine settings, e.g. sealed
+     * with {@link EngineConfig#cipherSuite()}.
+     *
+     * @param containerPath the path of the container to write.
+     * @param inputPaths    the files and directories to pack.
+     * @param masterKeys    the cache deriving the master key for a new salt.
+     * @param config        the settings of the engine writing the container.
+     * @return the entries of the container.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if key derivation or encryption fails.
+     */
+    public static List<ContainerEntry> packFiles(String containerPath, List<String> inputPaths,
+                                                 MasterKeyCache masterKeys, EngineConfig config)
+            throws IOException, CryptoException {
+        return new CipherEngine(Cipher.ENCRYPT_MODE, config).packFiles(containerPath, inputPaths, masterKeys);
+    }
+
+    /**
+     * Lists the entries of an encrypted container.
+     *
+     * @param containerPath the path of the container.
+     * @param masterKeys    the cache providing the master key for the container's salt.
+     * @return the entries of the container.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is not a container or the passphrase does not match.
+     */
+    public static List<ContainerEntry> listContainer(String containerPath, MasterKeyCache masterKeys)
+            throws IOException, CryptoException {
+        return engine(Cipher.DECRYPT_MODE).listContainer(containerPath, masterKeys);
+    }
+
+    /**
+     * Extracts entries of an encrypted container next to it.
+     *
+     * @param containerPath the path of the container.
+     * @param names         the names of the entries to extract, or none to extract all of them.
+     * @param masterKeys    the cache providing the master key for the container's salt.
+     * @return the paths of the extracted files.
+     * @throws IOException     if an I/O error occurs, an entry is missing or its file already exists.
+     * @throws CryptoException if the file is not a container or the passphrase does not match.
+     */
+    public static List<Path> extractFromContainer(String containerPath, Collection<String> names,
+                                                  MasterKeyCache masterKeys) throws IOException, CryptoException {
+        return engine(Cipher.DECRYPT_MODE).extractFromContainer(containerPath, names, masterKeys);
+    }
+
+    private static CipherEngine engine(int mode) {
+        return new CipherEngine(mode, EngineConfig.defaults());
     }
 
     /**
@@ -102,7 +428,77 @@ public class FileProcessor {
      * @throws IOException if an I/O error occurs.
      */
     static void writeHeader(OutputStream outputStream, FileHeader fileHeader) throws IOException {
-        outputStream.write(fileHeader.getHeader(), 0, fileHeader.getHeader().length);
+        HeaderEvent event = headerEvent(HeaderEvent.WRITE);
+        byte[] header = fileHeader.getHeader();
+        outputStream.write(header, 0, header.length);
+        commit(event, fileHeader);
+    }
+
+    /**
+     * Writes the file header to the start of the channel with a single positional write.
+     *
+     * @param channel    the channel to write the header to.
+     * @param fileHeader the file header to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    static void writeHeader(FileChannel channel, FileHeader fileHeader) throws IOException {
+        HeaderEvent event = headerEvent(HeaderEvent.WRITE);
+        ByteBuffer header = ByteBuffer.wrap(fileHeader.getHeader());
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        commit(event, fileHeader);
+    }
+
+    /**
+     * Reads the file header from the start of the channel using positional reads.
+     *
+     * @param channel the channel to read the header from.
+     * @return the file header read from the channel.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the header holds a chunk size no engine writes.
+     */
+    static FileHeader readHeader(FileChannel channel) throws IOException, CryptoException {
+        HeaderEvent event = headerEvent(HeaderEvent.READ);
+        ByteBuffer header = ByteBuffer.allocate(FileHeader.MAX_HEADER_LENGTH);
+        while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+            // keep reading until the buffer is full or the end of the file is reached
+        }
+
+        FileHeader fileHeader = new FileHeader();
+        fileHeader.setHeader(Arrays.copyOf(header.array(), FileHeader.HEADER_LENGTH));
+
+        if (fileHeader.isChunked()) {
+            fileHeader.setChunkedFields(Arrays.copyOfRange(header.array(), FileHeader.HEADER_LENGTH,
+                    FileHeader.CHUNKED_HEADER_LENGTH));
+            checkChunkSize(fileHeader);
+            int position = FileHeader.CHUNKED_HEADER_LENGTH;
+            if (fileHeader.hasCipherSuite()) {
+                fileHeader.setCipherSuite(header.get(position));
+                position += FileHeader.CIPHER_SUITE_LENGTH;
+            }
+            if (fileHeader.hasKdfParameters()) {
+                fileHeader.setKdfFields(Arrays.copyOfRange(header.array(), position,
+                        position + KdfParameters.ENCODED_LENGTH));
+                position += KdfParameters.ENCODED_LENGTH;
+            }
+            if (fileHeader.hasWrappedKey()) {
+                fileHeader.setWrappedKey(Arrays.copyOfRange(header.array(), position,
+                        position + CipherUtil.WRAPPED_KEY_LENGTH));
+                position += CipherUtil.WRAPPED_KEY_LENGTH;
+            }
+            if (fileHeader.isVolume()) {
+                fileHeader.setVolumeFields(Arrays.copyOfRange(header.array(), position,
+                        position + FileHeader.VOLUME_FIELDS_LENGTH));
+                position += FileHeader.VOLUME_FIELDS_LENGTH;
+            }
+            if (fileHeader.hasChunkGenerations()) {
+                fileHeader.setGenerationFields(Arrays.copyOfRange(header.array(), position,
+                        position + FileHeader.GENERATION_FIELDS_LENGTH));
+            }
+        }
+        commit(event, fileHeader);
+        return fileHeader;
     }
 
     /**
@@ -110,16 +506,56 @@ public class FileProcessor {
      *
      * @param inputStream the input stream to read the header from.
      * @return the file header read from the input stream.
-     * @throws IOException if an I/O error occurs.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the header holds a chunk size no engine writes.
      */
-    static FileHeader readHeader(InputStream inputStream) throws IOException {
+    static FileHeader readHeader(InputStream inputStream) throws IOException, CryptoException {
+        HeaderEvent event = headerEvent(HeaderEvent.READ);
         byte[] header = new byte[FileHeader.HEADER_LENGTH];
         inputStream.readNBytes(header, 0, FileHeader.HEADER_LENGTH);
         FileHeader fileHeader = new FileHeader();
         fileHeader.setHeader(header);
+
+        if (fileHeader.isChunked()) {
+            byte[] chunkedFields = new byte[FileHeader.CHUNKED_HEADER_LENGTH - FileHeader.HEADER_LENGTH];
+            inputStream.readNBytes(chunkedFields, 0, chunkedFields.length);
+            fileHeader.setChunkedFields(chunkedFields);
+            checkChunkSize(fileHeader);
+            if (fileHeader.hasCipherSuite()) {
+                byte[] cipherSuite = new byte[FileHeader.CIPHER_SUITE_LENGTH];
+                inputStream.readNBytes(cipherSuite, 0, cipherSuite.length);
+                fileHeader.setCipherSuite(cipherSuite[0]);
+            }
+            if (fileHeader.hasKdfParameters()) {
+                byte[] kdfFields = new byte[KdfParameters.ENCODED_LENGTH];
+                inputStream.readNBytes(kdfFields, 0, kdfFields.length);
+                fileHeader.setKdfFields(kdfFields);
+            }
+            if (fileHeader.hasWrappedKey()) {
+                fileHeader.setWrappedKey(inputStream.readNBytes(CipherUtil.WRAPPED_KEY_LENGTH));
+            }
+            if (fileHeader.isVolume()) {
+                fileHeader.setVolumeFields(inputStream.readNBytes(FileHeader.VOLUME_FIELDS_LENGTH));
+            }
+            if (fileHeader.hasChunkGenerations()) {
+                fileHeader.setGenerationFields(inputStream.readNBytes(FileHeader.GENERATION_FIELDS_LENGTH));
+            }
+        }
+        commit(event, fileHeader);
         return fileHeader;
     }
 
+    /**
+     * Rejects chunk sizes above what an engine writes before they size any buffer. The chunk size is read
+     * before the file is authenticated, so it cannot be trusted any further than that.
+     */
+    private static void checkChunkSize(FileHeader fileHeader) throws CryptoException {
+        int chunkSize = fileHeader.getChunkSize();
+        if (chunkSize < 1 || chunkSize > EngineConfig.MAX_CHUNK_SIZE) {
+            throw new CryptoException("Corrupted file: invalid chunk size " + chunkSize);
+        }
+    }
+
     /**
      * Writes data from the input stream to the output stream.
      *
@@ -128,11 +564,75 @@ public class FileProcessor {
      * @throws IOException if an I/O error occurs.
      */
     static void writeData(OutputStream outputStream, InputStream inputStream) throws IOException {
-        byte[] buffer = new byte[BUFFER_SIZE];
+        writeData(outputStream, inputStream, BUFFER_SIZE);
+    }
+
+    /**
+     * Writes data from the input stream to the output stream using a buffer of the given size.
+     *
+     * @param outputStream the output stream to write data to.
+     * @param inputStream  the input stream to read data from.
+     * @param bufferSize   the size of the copy buffer in bytes.
+     * @throws IOException if an I/O error occurs.
+     */
+    static void writeData(OutputStream outputStream, InputStream inputStream, int bufferSize) throws IOException {
+        DataCopyEvent event = new DataCopyEvent();
+        event.begin();
+        byte[] buffer = new byte[bufferSize];
         int bytesRead;
         while ((bytesRead = inputStream.read(buffer)) != -1) {
             outputStream.write(buffer, 0, bytesRead);
+            event.bytes += bytesRead;
         }
+        event.commit();
+    }
+
+    private static HeaderEvent headerEvent(String operation) {
+        HeaderEvent event = new HeaderEvent();
+        event.operation = operation;
+        event.begin();
+        return event;
+    }
+
+    private static void commit(HeaderEvent event, FileHeader fileHeader) {
+        if (event.shouldCommit()) {
+            event.chunked = fileHeader.isChunked();
+            event.commit();
+        }
+    }
+
+    /**
+     * Generates the encrypted file name by replacing the extension of the file path with ".enc".
+     *
+     * @param filePath the path of the file to encrypt.
+     * @return the generated encrypted file name.
+     */
+    static String generateEncryptedFileName(String filePath) {
+        return FileNameParts.splitFileName(filePath).fileName() + "." + ENCRYPTED_FILE_EXTENSION;
+    }
+
+    /**
+     * Generates the name of a volume of an encrypted file by appending its number, counted from 1 and padded
+     * to at least three digits, e.g. {@code archive.enc.001}.
+     *
+     * @param encFilePath the name of the encrypted file.
+     * @param volumeIndex the zero based index of the volume.
+     * @param volumeCount the number of volumes.
+     * @return the name of the volume.
+     */
+    static String generateVolumeFileName(String encFilePath, int volumeIndex, int volumeCount) {
+        int digits = Math.max(3, String.valueOf(volumeCount).length());
+        return encFilePath + "." + String.format("%0" + digits + "d", volumeIndex + 1);
+    }
+
+    /**
+     * Removes the number of a volume from its name.
+     *
+     * @param volumePath the name of a volume, e.g. {@code archive.enc.001}.
+     * @return the name of the encrypted file the volume belongs to, e.g. {@code archive.enc}.
+     */
+    static String stripVolumeSuffix(String volumePath) {
+        return volumePath.replaceFirst("\\.[0-9]+$", "");
     }
 
     /**
@@ -148,24 +648,75 @@ public class FileProcessor {
         return fileNameParts.fileName() + "." + decryptedFileExtension;
     }
 
+    /**
+     * Returns the key under which the chunks of a file are encrypted: the data key unwrapped from the
+     * header. It is prepared for the cipher suite of the file once, here, rather than for every chunk.
+     *
+     * @param fileHeader the header of the file, which must be in the chunked format.
+     * @param masterKey  the master key for the salt in the header.
+     * @return the file key.
+     * @throws CryptoException if the header has no wrapped data key, the data key cannot be unwrapped, e.g.
+     *                         because the passphrase is wrong, or the chunks are sealed with a cipher suite this
+     *                         version does not support.
+     */
+    static SecretKey fileKey(FileHeader fileHeader, SecretKey masterKey) throws CryptoException {
+        // fail before any chunk is touched rather than with a failed authentication
+        fileHeader.getCipherSuite();
+        if (!fileHeader.hasWrappedKey()) {
+            throw new CryptoException("Corrupted header: the file has no wrapped data key.");
+        }
+        SecretKey keyEncryptionKey = CipherUtil.deriveKeyEncryptionKey(masterKey, fileHeader.getSalt());
+        return ChunkedFileProcessor.chunkKey(fileHeader,
+                CipherUtil.unwrapKey(keyEncryptionKey, fileHeader.getWrappedKey()));
+    }
+
+    /**
+     * Wraps the data key of a file under the master key for the salt stored in its header.
+     *
+     * @param masterKey the master key for the salt.
+     * @param salt      the salt of the master key.
+     * @param dataKey   the data key of the file.
+     * @return the wrapped key to be stored in the header.
+     * @throws CryptoException if the key cannot be wrapped.
+     */
+    static byte[] wrapDataKey(SecretKey masterKey, byte[] salt, SecretKey dataKey) throws CryptoException {
+        return CipherUtil.wrapKey(CipherUtil.deriveKeyEncryptionKey(masterKey, salt), dataKey);
+    }
+
+    /**
+     * Rejects containers where a single encrypted file is expected, as their plaintext is not a file.
+     *
+     * @param filePath   the path of the file, used in the message.
+     * @param fileHeader the header of the file.
+     * @throws CryptoException if the file is a container.
+     */
+    static void rejectContainer(String filePath, FileHeader fileHeader) throws CryptoException {
+        if (fileHeader.isContainer()) {
+            throw new CryptoException(filePath + " is a container of many files. Use 'list' and 'extract' to read it.");
+        }
+    }
+
     /**
      * Validates if the file was encrypted using this application.
      *
      * @param filePath    the path of the file to validate.
      * @param magicNumber the magic number from the file header to validate.
+     * @throws CryptoException if the magic number is not one written by this application.
      */
-    static void validateFileEncryption(String filePath, byte[] magicNumber) {
-        if (!Arrays.equals(magicNumber, FileHeader.originalMagicNumber)) {
-            System.err.println(filePath + " was not encrypted using this application.");
-            System.exit(1);
+    static void validateFileEncryption(String filePath, byte[] magicNumber) throws CryptoException {
+        if (!isEncryptedByThisApplication(magicNumber)) {
+            throw new CryptoException(filePath + " was not encrypted using this application.");
         }
     }
 
-    public static void setEncryptionMode(int encryptionMode) {
-        FileProcessor.encryptionMode = encryptionMode;
-    }
-
-    public static int getEncryptionMode() {
-        return encryptionMode;
+    /**
+     * Checks whether a magic number belongs to one of the formats written by this application.
+     *
+     * @param magicNumber the magic number from a file header.
+     * @return {@code true} if the magic number is known.
+     */
+    static boolean isEncryptedByThisApplication(byte[] magicNumber) {
+        return Arrays.equals(magicNumber, FileHeader.originalMagicNumber)
+                || Arrays.equals(magicNumber, FileHeader.chunkedMagicNumber);
     }
 }
@@ -0,0 +1,250 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.KdfParameters;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lists the encrypted files below a directory from their headers alone, for an inventory of large trees.
+ * Nothing is decrypted and no passphrase is needed: each file is opened, its first
+ * {@link FileHeader#MAX_HEADER_LENGTH} bytes are read with a positional read, and it is closed again.
+ * <p>
+ * The tree is walked in parallel, one fork/join task per directory and per batch of files in a directory,
+ * so that the time spent waiting on metadata and on the first block of each file overlaps. Every file is
+ * written out as soon as its header is read, one line each, in no particular order. Symbolic links are not
+ * followed.
+ */
+public class HeaderScanner {
+    private static final int FILES_PER_TASK = 256;
+    private static final String CSV_COLUMNS = "path,size,format,extension,chunk_size,compressed,chunk_generations,"
+            + "wrapped_key,container,kdf,kdf_iterations,cipher";
+
+    /**
+     * How the entries are written: comma separated values with a header line, or a JSON object per line.
+     */
+    public enum Format {
+        CSV, JSON
+    }
+
+    private final Format format;
+    private final Writer output;
+    private final AtomicLong scannedFiles = new AtomicLong();
+    private final AtomicLong encryptedFiles = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private HeaderScanner(Format format, Writer output) {
+        this.format = format;
+        this.output = output;
+    }
+
+    /**
+     * Writes an entry for the file, or for every encrypted file below the directory, to the output.
+     * Files which cannot be read are reported on standard error and counted, but do not stop the scan.
+     *
+     * @param root        the file or directory to scan.
+     * @param parallelism the maximum number of files and directories read at once.
+     * @param format      the format of the entries.
+     * @param output      the writer to write the entries to, flushed once done.
+     * @return the number of files and directories which could not be read.
+     * @throws IOException if the output cannot be written.
+     */
+    public static long scan(Path root, int parallelism, Format format, Writer output) throws IOException {
+        HeaderScanner scanner = new HeaderScanner(format, output);
+        if (format == Format.CSV) {
+            output.write(CSV_COLUMNS + System.lineSeparator());
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    scanner.scanPath(root);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        output.flush();
+
+        System.err.println("Scanned " + scanner.scannedFiles.get() + " files, " + scanner.encryptedFiles.get()
+                + " encrypted.");
+        return scanner.failures.get();
+    }
+
+    /**
+     * Reads the header of a file.
+     *
+     * @param file the file to read.
+     * @param size the size of the file, which the caller already knows from walking the tree.
+     * @return the entry for the file, or {@code null} if it was not encrypted by this application.
+     * @throws IOException if the file cannot be read.
+     */
+    static ScanEntry inspect(Path file, long size) throws IOException {
+        FileHeader fileHeader;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            fileHeader = FileProcessor.readHeader(channel);
+        } catch (CryptoException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+        if (!FileProcessor.isEncryptedByThisApplication(fileHeader.getMagicNumber())) {
+            return null;
+        }
+        KdfParameters kdfParameters;
+        try {
+            kdfParameters = fileHeader.getKdfParameters();
+        } catch (CryptoException e) {
+            kdfParameters = null;
+        }
+        return new ScanEntry(file, size, fileHeader, kdfParameters);
+    }
+
+    private void scanPath(Path path) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            fail(path, e);
+            return;
+        }
+        if (attributes.isDirectory()) {
+            scanDirectory(path);
+        } else if (attributes.isRegularFile()) {
+            scanFile(path, attributes.size());
+        }
+    }
+
+    private void scanDirectory(Path directory) {
+        List<RecursiveAction> tasks = new ArrayList<>();
+        List<Path> batch = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                batch.add(entry);
+                if (batch.size() == FILES_PER_TASK) {
+                    tasks.add(batchTask(batch));
+                    batch = new ArrayList<>();
+                }
+            }
+        } catch (IOException e) {
+            fail(directory, e);
+        }
+        if (!batch.isEmpty()) {
+            tasks.add(batchTask(batch));
+        }
+        RecursiveAction.invokeAll(tasks);
+    }
+
+    private RecursiveAction batchTask(List<Path> paths) {
+        return new RecursiveAction() {
+            @Override
+            protected void compute() {
+                for (Path path : paths) {
+                    scanPath(path);
+                }
+            }
+        };
+    }
+
+    private void scanFile(Path file, long size) {
+        scannedFiles.incrementAndGet();
+        ScanEntry entry;
+        try {
+            entry = inspect(file, size);
+        } catch (IOException e) {
+            fail(file, e);
+            return;
+        }
+        if (entry == null) {
+            return;
+        }
+        encryptedFiles.incrementAndGet();
+        String line = (format == Format.CSV ? toCsv(entry) : toJson(entry)) + System.lineSeparator();
+        synchronized (output) {
+            try {
+                output.write(line);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void fail(Path path, IOException e) {
+        failures.incrementAndGet();
+        System.err.println(path + ": " + e.getMessage());
+    }
+
+    private static String toCsv(ScanEntry entry) {
+        FileHeader header = entry.header();
+        KdfParameters kdf = entry.kdfParameters();
+        return String.join(",", csvField(entry.path().toString()), Long.toString(entry.size()), entry.format(),
+                csvField(entry.extension()), header.isChunked() ? Integer.toString(header.getChunkSize()) : "",
+                Boolean.toString(header.isChunked() && header.isCompressed()),
+                Boolean.toString(header.isChunked() && header.hasChunkGenerations()),
+                Boolean.toString(header.isChunked() && header.hasWrappedKey()),
+                Boolean.toString(header.isChunked() && header.isContainer()),
+                kdf == null ? "" : kdf.algorithm().optionName(), kdf == null ? "" : Integer.toString(kdf.iterations()),
+                entry.cipher() == null ? "" : entry.cipher());
+    }
+
+    private static String toJson(ScanEntry entry) {
+        FileHeader header = entry.header();
+        KdfParameters kdf = entry.kdfParameters();
+        return String.format(Locale.ROOT, "{\"path\":%s,\"size\":%d,\"format\":%s,\"extension\":%s,\"chunkSize\":%s,"
+                        + "\"compressed\":%b,\"chunkGenerations\":%b,\"wrappedKey\":%b,\"container\":%b,"
+                        + "\"kdf\":%s,\"kdfIterations\":%s,\"cipher\":%s}",
+                jsonString(entry.path().toString()), entry.size(), jsonString(entry.format()),
+                jsonString(entry.extension()), header.isChunked() ? Integer.toString(header.getChunkSize()) : "null",
+                header.isChunked() && header.isCompressed(), header.isChunked() && header.hasChunkGenerations(),
+                header.isChunked() && header.hasWrappedKey(), header.isChunked() && header.isContainer(),
+                kdf == null ? "null" : jsonString(kdf.algorithm().optionName()),
+                kdf == null ? "null" : Integer.toString(kdf.iterations()),
+                entry.cipher() == null ? "null" : jsonString(entry.cipher()));
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> builder.append("\\\"");
+                case '\\' -> builder.append("\\\\");
+                case '\n' -> builder.append("\\n");
+                case '\r' -> builder.append("\\r");
+                case '\t' -> builder.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                }
+            }
+        }
+        return builder.append('"').toString();
+    }
+}
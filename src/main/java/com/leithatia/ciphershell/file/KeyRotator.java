@@ -0,0 +1,73 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Changes the passphrase of files in the chunked format without touching their data. The file key is
+ * unwrapped with the old passphrase and wrapped again under a master key derived from the new passphrase
+ * and a new salt; as the chunks stay encrypted under the same key, only the header is rewritten. The new
+ * master key is derived with the parameters of the new key cache, so rekeying also changes the cost of
+ * unlocking existing files.
+ * <p>
+ * The rewritten header has the same length as the old one, so it is written over it in place. Files in the
+ * original format are encrypted with the master key itself and cannot be rekeyed.
+ */
+class KeyRotator {
+
+    /**
+     * Rewraps the file key of an encrypted file under the new passphrase.
+     *
+     * @param file    the path of the encrypted file.
+     * @param oldKeys the cache providing the master key for the salt in the file's header.
+     * @param newKeys the cache deriving the master key for the new salt.
+     * @param newSalt the salt of the new master key, stored in the header.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the file is in the original format, its header is corrupted or the old
+     *                         passphrase does not match.
+     */
+    static void rekey(Path file, MasterKeyCache oldKeys, MasterKeyCache newKeys, byte[] newSalt)
+            throws IOException, CryptoException {
+
+        FileHeader fileHeader;
+        SecretKey fileKey;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            fileHeader = FileProcessor.readHeader(channel);
+            FileProcessor.validateFileEncryption(file.toString(), fileHeader.getMagicNumber());
+            if (!fileHeader.isChunked()) {
+                throw new CryptoException(file + " is in the original format, which is encrypted with the "
+                        + "passphrase itself. Decrypt it and encrypt it again to change its passphrase.");
+            }
+
+            SecretKey masterKey = oldKeys.get(fileHeader.getSalt(), fileHeader.getKdfParameters());
+            fileKey = FileProcessor.fileKey(fileHeader, masterKey);
+        }
+
+        byte[] wrappedKey = FileProcessor.wrapDataKey(newKeys.get(newSalt), newSalt, fileKey);
+        FileHeader rekeyedHeader = new FileHeader(new String(fileHeader.getFileExtension(), StandardCharsets.UTF_8),
+                newSalt, fileHeader.getIv(), fileHeader.getChunkSize(), fileHeader.getFlags(),
+                fileHeader.getCipherSuite(), newKeys.getKdfParameters(), wrappedKey);
+        rekeyedHeader.setGenerations(fileHeader.getGeneration(), fileHeader.getGenerationsTag());
+        if (fileHeader.isVolume()) {
+            rekeyedHeader.setVolume(fileHeader.getVolumeIndex(), fileHeader.getVolumeCount(), fileHeader.getFirstChunk());
+        }
+
+        if (rekeyedHeader.getLength() != fileHeader.getLength()) {
+            throw new CryptoException("Corrupted header: " + file + " has a header of " + fileHeader.getLength()
+                    + " bytes, but its rekeyed header would take " + rekeyedHeader.getLength() + ".");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            FileProcessor.writeHeader(channel, rekeyedHeader);
+            channel.force(false);
+        }
+        oldKeys.confirm(fileHeader.getSalt(), fileHeader.getKdfParameters());
+        newKeys.confirm(newSalt);
+    }
+}
@@ -0,0 +1,197 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.metrics.RunStats;
+
+import javax.crypto.BadPaddingException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs reading, cipher work and writing as three overlapping stages on their own threads, so the disk is
+ * busy while the cipher runs and vice versa. The stages pass a fixed ring of reusable direct buffers
+ * between them through bounded queues, which keeps memory use constant: the reader blocks once every
+ * buffer is waiting to be encrypted or written.
+ */
+class PipelinedCipherProcessor {
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final int RING_SIZE = 4;
+
+    /**
+     * Transforms the contents of one buffer into another, e.g. by running a cipher over it.
+     */
+    @FunctionalInterface
+    interface Transform {
+        /**
+         * @param input  the bytes read by the reader stage, ready to be read.
+         * @param output the cleared buffer to write the result to.
+         * @param last   whether the input is the last of the source.
+         * @throws GeneralSecurityException if the cipher fails.
+         */
+        void apply(ByteBuffer input, ByteBuffer output, boolean last) throws GeneralSecurityException;
+    }
+
+    /**
+     * A pair of buffers travelling around the ring.
+     */
+    private static class Slot {
+        final ByteBuffer input;
+        final ByteBuffer output;
+        boolean last;
+
+        Slot(int inputSize, int outputSize) {
+            input = ByteBuffer.allocateDirect(inputSize);
+            output = ByteBuffer.allocateDirect(outputSize);
+        }
+    }
+
+    /**
+     * Reads the source to its end in blocks of {@code inputSize} bytes, transforms each block and writes the
+     * result to the target. Every block but the last is completely filled before being transformed, and the
+     * last block is flagged as such even when it is full.
+     *
+     * @param source     the channel to read from.
+     * @param target     the channel to write to.
+     * @param inputSize  the number of bytes read per block.
+     * @param outputSize the maximum number of bytes the transform writes per block.
+     * @param transform  the transform run on each block.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if the transform fails.
+     */
+    static void process(ReadableByteChannel source, WritableByteChannel target, int inputSize, int outputSize,
+                        Transform transform) throws IOException, CryptoException {
+
+        BlockingQueue<Slot> free = new ArrayBlockingQueue<>(RING_SIZE);
+        BlockingQueue<Slot> read = new ArrayBlockingQueue<>(RING_SIZE);
+        BlockingQueue<Slot> transformed = new ArrayBlockingQueue<>(RING_SIZE);
+        for (int i = 0; i < RING_SIZE; i++) {
+            free.add(new Slot(inputSize, outputSize));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3, runnable -> {
+            Thread thread = new Thread(runnable, "ciphershell-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<Void> stages = new ExecutorCompletionService<>(executor);
+        List<Future<Void>> futures = List.of(
+                stages.submit(() -> readStage(source, free, read)),
+                stages.submit(() -> transformStage(transform, read, transformed)),
+                stages.submit(() -> writeStage(target, transformed, free)));
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                stages.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for pipeline");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            } else if (cause instanceof BadPaddingException) {
+                throw new CryptoException("Bad passphrase or corrupted file.", cause);
+            } else if (cause instanceof GeneralSecurityException) {
+                throw new CryptoException("Cipher failed: " + cause.getMessage(), cause);
+            }
+            throw new IllegalStateException("Pipeline stage failed", cause);
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fills slots from the source, holding each filled slot back until the next read shows whether any data
+     * follows it. This way a block which ends exactly at the end of the source is still marked as last.
+     */
+    private static Void readStage(ReadableByteChannel source, BlockingQueue<Slot> free, BlockingQueue<Slot> read)
+            throws IOException, InterruptedException {
+
+        Slot pending = null;
+        while (true) {
+            Slot slot = free.take();
+            long start = System.nanoTime();
+            boolean endOfSource = fill(source, slot.input);
+            RunStats.recordRead(System.nanoTime() - start);
+
+            if (pending != null && slot.input.position() == 0 && endOfSource) {
+                pending.last = true;
+                read.put(pending);
+                free.put(slot);
+                return null;
+            }
+            if (pending != null) {
+                read.put(pending);
+            }
+
+            slot.input.flip();
+            slot.last = endOfSource;
+            if (endOfSource) {
+                read.put(slot);
+                return null;
+            }
+            pending = slot;
+        }
+    }
+
+    /**
+     * Reads from the source until the buffer is full or the source is exhausted.
+     *
+     * @return {@code true} if the end of the source was reached.
+     */
+    private static boolean fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) == -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Void transformStage(Transform transform, BlockingQueue<Slot> read,
+                                       BlockingQueue<Slot> transformed)
+            throws GeneralSecurityException, InterruptedException {
+
+        while (true) {
+            Slot slot = read.take();
+            slot.output.clear();
+            long start = System.nanoTime();
+            int length = slot.input.remaining();
+            transform.apply(slot.input, slot.output, slot.last);
+            RunStats.recordCrypto(System.nanoTime() - start, length);
+            slot.output.flip();
+            // the slot may be recycled by the other stages as soon as it is handed on
+            boolean last = slot.last;
+            transformed.put(slot);
+            if (last) {
+                return null;
+            }
+        }
+    }
+
+    private static Void writeStage(WritableByteChannel target, BlockingQueue<Slot> transformed,
+                                   BlockingQueue<Slot> free) throws IOException, InterruptedException {
+
+        while (true) {
+            Slot slot = transformed.take();
+            long start = System.nanoTime();
+            while (slot.output.hasRemaining()) {
+                target.write(slot.output);
+            }
+            RunStats.recordWrite(System.nanoTime() - start);
+            if (slot.last) {
+                return null;
+            }
+            free.put(slot);
+        }
+    }
+}
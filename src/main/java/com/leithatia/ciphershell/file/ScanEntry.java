@@ -0,0 +1,47 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.KdfParameters;
+
+import java.nio.file.Path;
+
+/**
+ * An encrypted file found by the {@link HeaderScanner}, described by its header alone.
+ *
+ * @param path          the path of the file.
+ * @param size          the size of the file in bytes.
+ * @param header        the header of the file.
+ * @param kdfParameters how the master key of the file is derived, or {@code null} if the header names a
+ *                      function this version does not support.
+ */
+public record ScanEntry(Path path, long size, FileHeader header, KdfParameters kdfParameters) {
+
+    /**
+     * @return the magic number naming the format of the file, e.g. {@code ENC739}.
+     */
+    public String format() {
+        return new String(header.getMagicNumber());
+    }
+
+    /**
+     * @return the cipher of the file: {@code aes-cbc} for the original format, else the name of the cipher suite
+     * sealing its chunks, or {@code null} if the header names a suite this version does not support.
+     */
+    public String cipher() {
+        if (!header.isChunked()) {
+            return "aes-cbc";
+        }
+        try {
+            return header.getCipherSuite().optionName();
+        } catch (CryptoException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the extension of the original file, restored on decryption.
+     */
+    public String extension() {
+        return new String(header.getFileExtension()).stripTrailing();
+    }
+}
@@ -0,0 +1,12 @@
+package com.leithatia.ciphershell.file;
+
+/**
+ * The outcome of bringing an encrypted file up to date with its plaintext.
+ *
+ * @param chunkCount      the number of chunks in the updated file.
+ * @param rewrittenChunks the number of chunks which were encrypted and written.
+ * @param fullRewrite     whether the whole file had to be encrypted afresh, e.g. because it was written
+ *                        before chunks could be rewritten in place.
+ */
+public record UpdateResult(long chunkCount, long rewrittenChunks, boolean fullRewrite) {
+}
@@ -0,0 +1,102 @@
+package com.leithatia.ciphershell.fs;
+
+import com.leithatia.ciphershell.file.EncryptedFileChannel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * The attributes of a file of an {@link EncryptedFileSystem}: those of the encrypted file, except that the
+ * size is that of the plaintext where the header allows working it out.
+ *
+ * @param backing the attributes of the encrypted file.
+ * @param size    the size of the plaintext.
+ */
+record EncryptedFileAttributes(BasicFileAttributes backing, long size) implements BasicFileAttributes {
+
+    /**
+     * @param path    the path of the encrypted file.
+     * @param options how symbolic links are handled.
+     * @return the attributes of the file.
+     * @throws IOException if the attributes cannot be read.
+     */
+    static EncryptedFileAttributes read(Path path, LinkOption... options) throws IOException {
+        BasicFileAttributes backing = Files.readAttributes(path, BasicFileAttributes.class, options);
+        if (!backing.isRegularFile()) {
+            return new EncryptedFileAttributes(backing, backing.size());
+        }
+        long size = EncryptedFileChannel.plaintextSize(path);
+        return new EncryptedFileAttributes(backing, size >= 0 ? size : backing.size());
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return backing.lastModifiedTime();
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return backing.lastAccessTime();
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return backing.creationTime();
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return backing.isRegularFile();
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return backing.isDirectory();
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return backing.isSymbolicLink();
+    }
+
+    @Override
+    public boolean isOther() {
+        return backing.isOther();
+    }
+
+    @Override
+    public Object fileKey() {
+        return backing.fileKey();
+    }
+
+    /**
+     * The basic attribute view of a file of an {@link EncryptedFileSystem}.
+     *
+     * @param path    the path of the encrypted file.
+     * @param options how symbolic links are handled.
+     */
+    record View(Path path, LinkOption... options) implements BasicFileAttributeView {
+
+        @Override
+        public String name() {
+            return "basic";
+        }
+
+        @Override
+        public EncryptedFileAttributes readAttributes() throws IOException {
+            return read(path, options);
+        }
+
+        @Override
+        public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime)
+                throws IOException {
+            Files.getFileAttributeView(path, BasicFileAttributeView.class, options)
+                    .setTimes(lastModifiedTime, lastAccessTime, createTime);
+        }
+    }
+}
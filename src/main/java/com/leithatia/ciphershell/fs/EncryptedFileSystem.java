@@ -0,0 +1,191 @@
+package com.leithatia.ciphershell.fs;
+
+import com.leithatia.ciphershell.file.ChunkCache;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A view of a directory of encrypted files as plain files. Every file of the view is stored encrypted in the
+ * chunked format under the same name in the backing directory; only the contents are encrypted, names and
+ * the directory structure are not.
+ * <p>
+ * Files are read through seekable channels which decrypt only the chunks touched, and the decrypted chunks of
+ * all files share one {@link ChunkCache}. Files are written in order and replace the previous file as a
+ * whole once closed. All files written by the file system share one salt, so the master key is derived once.
+ * <p>
+ * File systems are opened through {@link java.nio.file.FileSystems#newFileSystem(URI, java.util.Map)}, see
+ * {@link EncryptedFileSystemProvider}.
+ */
+public class EncryptedFileSystem extends FileSystem {
+
+    private final EncryptedFileSystemProvider provider;
+    private final Path root;
+    private final MasterKeyCache masterKeys;
+    private final ChunkCache chunkCache;
+    private final byte[] salt = CipherUtil.generateSalt();
+    private volatile boolean open = true;
+
+    EncryptedFileSystem(EncryptedFileSystemProvider provider, Path root, MasterKeyCache masterKeys,
+                        ChunkCache chunkCache) {
+        this.provider = provider;
+        this.root = root;
+        this.masterKeys = masterKeys;
+        this.chunkCache = chunkCache;
+    }
+
+    /**
+     * @return the directory holding the encrypted files.
+     */
+    public Path getBackingDirectory() {
+        return root;
+    }
+
+    /**
+     * @return the cache of decrypted chunks shared by all files of the file system.
+     */
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    /**
+     * @return the URI the file system was opened with: the scheme followed by the URI of the backing
+     * directory.
+     */
+    public URI getUri() {
+        return toUri(null);
+    }
+
+    /**
+     * @param path an absolute path in the file system, or {@code null} for the file system itself.
+     * @return the URI of the path.
+     */
+    URI toUri(String path) {
+        String directory = root.toUri().getPath();
+        if (directory.length() > 1 && directory.endsWith("/")) {
+            directory = directory.substring(0, directory.length() - 1);
+        }
+        try {
+            return new URI(EncryptedFileSystemProvider.SCHEME, "file://" + directory + (path == null ? "" : "!" + path),
+                    null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException("Invalid URI for " + root + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param path a path of the file system.
+     * @return the path of the encrypted file holding it.
+     */
+    Path backing(EncryptedPath path) {
+        ensureOpen();
+        Path backing = root;
+        for (String name : path.absoluteNames()) {
+            backing = backing.resolve(name);
+        }
+        return backing;
+    }
+
+    MasterKeyCache masterKeys() {
+        return masterKeys;
+    }
+
+    byte[] salt() {
+        return salt;
+    }
+
+    void ensureOpen() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    @Override
+    public EncryptedFileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Closes the file system, so that its URI may be opened again. The master key cache is left open, it
+     * belongs to the caller.
+     */
+    @Override
+    public void close() {
+        if (open) {
+            open = false;
+            provider.remove(this);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return List.of(getPath("/"));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        try {
+            return List.of(Files.getFileStore(root));
+        } catch (IOException e) {
+            return List.of();
+        }
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Set.of("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        return EncryptedPath.parse(this, more.length == 0 ? first : first + "/" + String.join("/", more));
+    }
+
+    /**
+     * Matches paths with the syntaxes of the default file system, applied to the path as a string.
+     */
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+        return path -> matcher.matches(Path.of(path.toString()));
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("Encrypted file systems do not look up users.");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("Encrypted file systems cannot be watched.");
+    }
+}
@@ -0,0 +1,355 @@
+package com.leithatia.ciphershell.fs;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.file.ChunkCache;
+import com.leithatia.ciphershell.file.EncryptedFileChannel;
+import com.leithatia.ciphershell.file.EncryptedFileWriter;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Provides {@link EncryptedFileSystem}s under the {@code ciphershell:} URI scheme, so that applications can
+ * read and write encrypted files through the standard {@link Files} API without decrypting them to disk:
+ * <pre>{@code
+ * FileSystem vault = FileSystems.newFileSystem(URI.create("ciphershell:" + directory.toUri()),
+ *         Map.of("masterKeys", masterKeys, "cacheSize", 128L * 1024 * 1024));
+ * byte[] report = Files.readAllBytes(vault.getPath("/reports/q3.pdf"));
+ * }</pre>
+ * The URI of a file system is the scheme followed by the URI of its backing directory, and that of a file
+ * appends {@code !} and its absolute path. The environment takes the {@link MasterKeyCache} deriving the
+ * master keys, which the file system uses but does not close, and optionally the capacity of the chunk cache
+ * in bytes.
+ * <p>
+ * Only the basic file attribute view is supported. Channels are opened either for reading or for writing a
+ * whole new file, never both, and files cannot be appended to.
+ */
+public class EncryptedFileSystemProvider extends FileSystemProvider {
+    public static final String SCHEME = "ciphershell";
+    public static final String MASTER_KEYS = "masterKeys";
+    public static final String CACHE_SIZE = "cacheSize";
+
+    private final Map<Path, EncryptedFileSystem> fileSystems = new HashMap<>();
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public EncryptedFileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        Path root = backingDirectory(uri);
+        if (!(env.get(MASTER_KEYS) instanceof MasterKeyCache masterKeys)) {
+            throw new IllegalArgumentException("The environment must provide a MasterKeyCache as '" + MASTER_KEYS
+                    + "'.");
+        }
+        ChunkCache chunkCache = new ChunkCache(cacheSize(env.get(CACHE_SIZE)));
+        if (!Files.isDirectory(root)) {
+            throw new NoSuchFileException(root.toString(), null, "Not a directory");
+        }
+        root = root.toRealPath();
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(root)) {
+                throw new FileSystemAlreadyExistsException(uri.toString());
+            }
+            EncryptedFileSystem fileSystem = new EncryptedFileSystem(this, root, masterKeys, chunkCache);
+            fileSystems.put(root, fileSystem);
+            return fileSystem;
+        }
+    }
+
+    private static long cacheSize(Object value) {
+        if (value == null) {
+            return ChunkCache.DEFAULT_CAPACITY;
+        }
+        if (value instanceof Number number) {
+            return number.longValue();
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + CACHE_SIZE + ": " + value, e);
+        }
+    }
+
+    @Override
+    public EncryptedFileSystem getFileSystem(URI uri) {
+        Path root = backingDirectory(uri);
+        try {
+            root = root.toRealPath();
+        } catch (IOException e) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+        synchronized (fileSystems) {
+            EncryptedFileSystem fileSystem = fileSystems.get(root);
+            if (fileSystem == null) {
+                throw new FileSystemNotFoundException(uri.toString());
+            }
+            return fileSystem;
+        }
+    }
+
+    void remove(EncryptedFileSystem fileSystem) {
+        synchronized (fileSystems) {
+            fileSystems.remove(fileSystem.getBackingDirectory(), fileSystem);
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String path = URI.create(fileUri(uri)[1]).getPath();
+        return getFileSystem(uri).getPath(path.isEmpty() ? "/" : path);
+    }
+
+    /**
+     * @param uri the URI of a file system or of a file in it.
+     * @return the raw URI of the backing directory and the raw path of the file, which is empty if the URI
+     * names the file system.
+     */
+    private static String[] fileUri(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI scheme is not '" + SCHEME + "': " + uri);
+        }
+        String part = uri.getRawSchemeSpecificPart();
+        int separator = part.indexOf("!/");
+        return separator < 0 ? new String[]{part, ""}
+                : new String[]{part.substring(0, separator), part.substring(separator + 1)};
+    }
+
+    private static Path backingDirectory(URI uri) {
+        URI directory = URI.create(fileUri(uri)[0]);
+        if (!"file".equalsIgnoreCase(directory.getScheme())) {
+            throw new IllegalArgumentException("Encrypted file systems must be backed by a file: URI: " + uri);
+        }
+        return Path.of(directory);
+    }
+
+    private static EncryptedPath toEncryptedPath(Path path) {
+        if (!(path instanceof EncryptedPath encryptedPath)) {
+            throw new ProviderMismatchException();
+        }
+        return encryptedPath;
+    }
+
+    private static Path backing(Path path) {
+        EncryptedPath encryptedPath = toEncryptedPath(path);
+        return encryptedPath.getFileSystem().backing(encryptedPath);
+    }
+
+    /**
+     * Opens a file either for reading, decrypting chunks as they are reached, or for writing a whole new file
+     * which replaces the existing one when the channel is closed.
+     *
+     * @throws UnsupportedOperationException if the file would be both read and written, appended to, or
+     *                                       written without truncating an existing file.
+     */
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+                                              FileAttribute<?>... attrs) throws IOException {
+        EncryptedPath encryptedPath = toEncryptedPath(path);
+        EncryptedFileSystem fileSystem = encryptedPath.getFileSystem();
+        Path backing = fileSystem.backing(encryptedPath);
+        if (options.contains(StandardOpenOption.APPEND)) {
+            throw new UnsupportedOperationException("Encrypted files cannot be appended to.");
+        }
+        try {
+            if (!options.contains(StandardOpenOption.WRITE)) {
+                return EncryptedFileChannel.open(backing, fileSystem.masterKeys(), fileSystem.getChunkCache());
+            }
+            if (options.contains(StandardOpenOption.READ)) {
+                throw new UnsupportedOperationException("Encrypted files cannot be read and written at once.");
+            }
+            boolean exists = Files.exists(backing, LinkOption.NOFOLLOW_LINKS);
+            if (exists && options.contains(StandardOpenOption.CREATE_NEW)) {
+                throw new FileAlreadyExistsException(path.toString());
+            }
+            if (!exists && !options.contains(StandardOpenOption.CREATE)
+                    && !options.contains(StandardOpenOption.CREATE_NEW)) {
+                throw new NoSuchFileException(path.toString());
+            }
+            if (exists && !options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+                throw new UnsupportedOperationException("Encrypted files can only be replaced as a whole, open "
+                        + path + " with TRUNCATE_EXISTING.");
+            }
+            if (!Files.isDirectory(backing.getParent())) {
+                throw new NoSuchFileException(path.toString(), null, "Parent directory does not exist");
+            }
+            return EncryptedFileWriter.create(backing, fileSystem.masterKeys(), fileSystem.salt());
+        } catch (CryptoException e) {
+            throw new IOException(path + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        EncryptedPath directory = toEncryptedPath(dir);
+        DirectoryStream<Path> entries = Files.newDirectoryStream(backing(directory),
+                entry -> filter.accept(directory.resolve(entry.getFileName().toString())));
+        return new DirectoryStream<>() {
+            @Override
+            public Iterator<Path> iterator() {
+                Iterator<Path> iterator = entries.iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Path next() {
+                        return directory.resolve(iterator.next().getFileName().toString());
+                    }
+                };
+            }
+
+            @Override
+            public void close() throws IOException {
+                entries.close();
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        Files.createDirectory(backing(dir), attrs);
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        Files.delete(backing(path));
+    }
+
+    /**
+     * Copies the encrypted file as it is; both copies decrypt with the same key.
+     */
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        Files.copy(backing(source), backing(target), options);
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        Files.move(backing(source), backing(target), options);
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        if (path.equals(path2)) {
+            return true;
+        }
+        if (!(path instanceof EncryptedPath) || !(path2 instanceof EncryptedPath)) {
+            return false;
+        }
+        return Files.isSameFile(backing(path), backing(path2));
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        return Files.getFileStore(backing(path));
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        Path backing = backing(path);
+        backing.getFileSystem().provider().checkAccess(backing, modes);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        if (type != BasicFileAttributeView.class) {
+            return null;
+        }
+        return (V) new EncryptedFileAttributes.View(backing(path), options);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
+            throws IOException {
+        if (type != BasicFileAttributes.class) {
+            throw new UnsupportedOperationException("Encrypted file systems only support basic attributes.");
+        }
+        return (A) EncryptedFileAttributes.read(backing(path), options);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+            throws IOException {
+        String names = basicAttributeName(attributes);
+        EncryptedFileAttributes fileAttributes = EncryptedFileAttributes.read(backing(path), options);
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("lastModifiedTime", fileAttributes.lastModifiedTime());
+        values.put("lastAccessTime", fileAttributes.lastAccessTime());
+        values.put("creationTime", fileAttributes.creationTime());
+        values.put("size", fileAttributes.size());
+        values.put("isRegularFile", fileAttributes.isRegularFile());
+        values.put("isDirectory", fileAttributes.isDirectory());
+        values.put("isSymbolicLink", fileAttributes.isSymbolicLink());
+        values.put("isOther", fileAttributes.isOther());
+        values.put("fileKey", fileAttributes.fileKey());
+        if (names.equals("*")) {
+            return values;
+        }
+        Map<String, Object> selected = new LinkedHashMap<>();
+        for (String name : List.of(names.split(","))) {
+            if (!values.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown attribute: " + name);
+            }
+            selected.put(name, values.get(name));
+        }
+        return selected;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+        Files.setAttribute(backing(path), "basic:" + basicAttributeName(attribute), value, options);
+    }
+
+    /**
+     * @param attributes attribute names, optionally prefixed by the view.
+     * @return the names without the view.
+     * @throws UnsupportedOperationException if the view is not the basic one.
+     */
+    private static String basicAttributeName(String attributes) {
+        int colon = attributes.indexOf(':');
+        if (colon >= 0 && !attributes.substring(0, colon).equals("basic")) {
+            throw new UnsupportedOperationException("Encrypted file systems only support basic attributes.");
+        }
+        return attributes.substring(colon + 1);
+    }
+}
@@ -0,0 +1,217 @@
+package com.leithatia.ciphershell.fs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A path in an {@link EncryptedFileSystem}: names separated by {@code /}, absolute if they start at the
+ * root of the file system. Paths are plain values; they are resolved against the backing directory only
+ * when a file is accessed.
+ */
+final class EncryptedPath implements Path {
+
+    private final EncryptedFileSystem fileSystem;
+    private final boolean absolute;
+    private final List<String> names;
+
+    private EncryptedPath(EncryptedFileSystem fileSystem, boolean absolute, List<String> names) {
+        this.fileSystem = fileSystem;
+        this.absolute = absolute;
+        this.names = names;
+    }
+
+    /**
+     * @param fileSystem the file system of the path.
+     * @param path       the path as a string, with empty names between separators ignored.
+     * @return the path.
+     */
+    static EncryptedPath parse(EncryptedFileSystem fileSystem, String path) {
+        if (path.indexOf('\0') >= 0) {
+            throw new InvalidPathException(path, "Nul character not allowed");
+        }
+        List<String> names = Arrays.stream(path.split("/")).filter(name -> !name.isEmpty()).toList();
+        return new EncryptedPath(fileSystem, path.startsWith("/"), names);
+    }
+
+    /**
+     * @return the names of the absolute, normalized path, starting below the root.
+     */
+    List<String> absoluteNames() {
+        return ((EncryptedPath) toAbsolutePath().normalize()).names;
+    }
+
+    @Override
+    public EncryptedFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public Path getRoot() {
+        return absolute ? new EncryptedPath(fileSystem, true, List.of()) : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        return names.isEmpty() ? null : new EncryptedPath(fileSystem, false, List.of(names.get(names.size() - 1)));
+    }
+
+    @Override
+    public Path getParent() {
+        if (names.size() <= 1) {
+            return getRoot();
+        }
+        return new EncryptedPath(fileSystem, absolute, names.subList(0, names.size() - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.size();
+    }
+
+    @Override
+    public Path getName(int index) {
+        return subpath(index, index + 1);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.size() || beginIndex >= endIndex) {
+            throw new IllegalArgumentException("Invalid subpath " + beginIndex + ".." + endIndex + " of " + this);
+        }
+        return new EncryptedPath(fileSystem, false, names.subList(beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        EncryptedPath path = cast(other);
+        return path.absolute == absolute && path.names.size() <= names.size()
+                && names.subList(0, path.names.size()).equals(path.names);
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        EncryptedPath path = cast(other);
+        if (path.absolute) {
+            return equals(path);
+        }
+        return path.names.size() <= names.size()
+                && names.subList(names.size() - path.names.size(), names.size()).equals(path.names);
+    }
+
+    @Override
+    public Path normalize() {
+        List<String> normalized = new ArrayList<>();
+        for (String name : names) {
+            if (name.equals(".")) {
+                continue;
+            }
+            if (name.equals("..") && !normalized.isEmpty() && !normalized.get(normalized.size() - 1).equals("..")) {
+                normalized.remove(normalized.size() - 1);
+            } else if (!name.equals("..") || !absolute) {
+                normalized.add(name);
+            }
+        }
+        return new EncryptedPath(fileSystem, absolute, List.copyOf(normalized));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        EncryptedPath path = cast(other);
+        if (path.absolute) {
+            return path;
+        }
+        List<String> resolved = new ArrayList<>(names);
+        resolved.addAll(path.names);
+        return new EncryptedPath(fileSystem, absolute, List.copyOf(resolved));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        EncryptedPath path = cast(other);
+        if (path.absolute != absolute) {
+            throw new IllegalArgumentException("Cannot relativize " + other + " against " + this);
+        }
+        int common = 0;
+        while (common < names.size() && common < path.names.size()
+                && names.get(common).equals(path.names.get(common))) {
+            common++;
+        }
+        List<String> relative = new ArrayList<>();
+        for (int i = common; i < names.size(); i++) {
+            relative.add("..");
+        }
+        relative.addAll(path.names.subList(common, path.names.size()));
+        return new EncryptedPath(fileSystem, false, List.copyOf(relative));
+    }
+
+    /**
+     * @return the URI of the file system followed by {@code !} and the absolute path.
+     */
+    @Override
+    public URI toUri() {
+        return fileSystem.toUri(toAbsolutePath().normalize().toString());
+    }
+
+    /**
+     * @return the path resolved against the root, which is the working directory of the file system.
+     */
+    @Override
+    public Path toAbsolutePath() {
+        return absolute ? this : new EncryptedPath(fileSystem, true, names);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        Path real = toAbsolutePath().normalize();
+        fileSystem.provider().checkAccess(real);
+        return real;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("Encrypted file systems cannot be watched.");
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return toString().compareTo(cast(other).toString());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof EncryptedPath path && path.fileSystem == fileSystem && path.absolute == absolute
+                && path.names.equals(names);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return (absolute ? "/" : "") + String.join("/", names);
+    }
+
+    private EncryptedPath cast(Path other) {
+        if (!(other instanceof EncryptedPath path) || path.fileSystem != fileSystem) {
+            throw new ProviderMismatchException();
+        }
+        return path;
+    }
+}
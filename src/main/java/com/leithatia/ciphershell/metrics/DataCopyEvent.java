@@ -0,0 +1,22 @@
+package com.leithatia.ciphershell.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded for every copy of a stream's data into another stream.
+ */
+@Name("ciphershell.DataCopy")
+@Label("Data Copy")
+@Category("CipherShell")
+@Description("Copying data from a stream into another")
+public class DataCopyEvent extends Event {
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,25 @@
+package com.leithatia.ciphershell.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded for every file header read or written.
+ */
+@Name("ciphershell.Header")
+@Label("File Header")
+@Category("CipherShell")
+@Description("Reading or writing the header of an encrypted file")
+public class HeaderEvent extends Event {
+    public static final String READ = "read";
+    public static final String WRITE = "write";
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Chunked")
+    public boolean chunked;
+}
@@ -0,0 +1,23 @@
+package com.leithatia.ciphershell.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded for every derivation of a master key from a passphrase.
+ */
+@Name("ciphershell.KeyDerivation")
+@Label("Key Derivation")
+@Category("CipherShell")
+@Description("Derivation of a master key from a passphrase with PBKDF2")
+public class KeyDerivationEvent extends Event {
+
+    @Label("Algorithm")
+    public String algorithm;
+
+    @Label("Iterations")
+    public int iterations;
+}
@@ -0,0 +1,95 @@
+package com.leithatia.ciphershell.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters of where a run spends its time: deriving keys, reading, running ciphers and
+ * writing. The file processors record into them as they go, from whichever thread does the work, so the
+ * times are summed across threads and may add up to more than the elapsed time of a parallel run.
+ * <p>
+ * Recording costs two {@link System#nanoTime()} calls and an uncontended {@link LongAdder} increment per
+ * chunk or buffer, which is noise next to the work on a megabyte of data.
+ */
+public final class RunStats {
+    private static final LongAdder BYTES_PROCESSED = new LongAdder();
+    private static final LongAdder KEY_DERIVATIONS = new LongAdder();
+    private static final LongAdder KDF_NANOS = new LongAdder();
+    private static final LongAdder READ_NANOS = new LongAdder();
+    private static final LongAdder CRYPTO_NANOS = new LongAdder();
+    private static final LongAdder WRITE_NANOS = new LongAdder();
+
+    private RunStats() {
+    }
+
+    public static void recordKeyDerivation(long nanos) {
+        KEY_DERIVATIONS.increment();
+        KDF_NANOS.add(nanos);
+    }
+
+    public static void recordRead(long nanos) {
+        READ_NANOS.add(nanos);
+    }
+
+    /**
+     * @param nanos the time spent in the cipher.
+     * @param bytes the number of bytes passed through the cipher.
+     */
+    public static void recordCrypto(long nanos, long bytes) {
+        CRYPTO_NANOS.add(nanos);
+        BYTES_PROCESSED.add(bytes);
+    }
+
+    public static void recordWrite(long nanos) {
+        WRITE_NANOS.add(nanos);
+    }
+
+    /**
+     * @return the counters as they are now.
+     */
+    public static Snapshot snapshot() {
+        return new Snapshot(BYTES_PROCESSED.sum(), KEY_DERIVATIONS.sum(), KDF_NANOS.sum(), READ_NANOS.sum(),
+                CRYPTO_NANOS.sum(), WRITE_NANOS.sum());
+    }
+
+    /**
+     * The counters at one point in time. Subtracting an earlier snapshot gives the work done in between.
+     *
+     * @param bytesProcessed the number of bytes passed through ciphers.
+     * @param keyDerivations the number of master keys derived from passphrases.
+     * @param kdfNanos       the time spent deriving master keys.
+     * @param readNanos      the time spent reading input.
+     * @param cryptoNanos    the time spent in ciphers.
+     * @param writeNanos     the time spent writing output.
+     */
+    public record Snapshot(long bytesProcessed, long keyDerivations, long kdfNanos, long readNanos,
+                           long cryptoNanos, long writeNanos) {
+
+        public Snapshot minus(Snapshot earlier) {
+            return new Snapshot(bytesProcessed - earlier.bytesProcessed, keyDerivations - earlier.keyDerivations,
+                    kdfNanos - earlier.kdfNanos, readNanos - earlier.readNanos,
+                    cryptoNanos - earlier.cryptoNanos, writeNanos - earlier.writeNanos);
+        }
+
+        /**
+         * Formats the counters as a single line of JSON, with the throughput over the elapsed time.
+         *
+         * @param elapsedNanos the wall clock time of the run.
+         * @return the JSON object.
+         */
+        public String toJson(long elapsedNanos) {
+            double seconds = elapsedNanos / 1e9;
+            double megabytesPerSecond = seconds > 0 ? bytesProcessed / (1024.0 * 1024.0) / seconds : 0;
+            return String.format(Locale.ROOT, "{\"bytesProcessed\":%d,\"elapsedMillis\":%d,\"throughputMBps\":%.2f,"
+                            + "\"keyDerivations\":%d,\"kdfMillis\":%d,\"readMillis\":%d,\"writeMillis\":%d,"
+                            + "\"ioMillis\":%d,\"cryptoMillis\":%d}",
+                    bytesProcessed, millis(elapsedNanos), megabytesPerSecond, keyDerivations, millis(kdfNanos),
+                    millis(readNanos), millis(writeNanos), millis(readNanos + writeNanos), millis(cryptoNanos));
+        }
+
+        private static long millis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+}
@@ -1,11 +1,12 @@
 package com.leithatia.ciphershell.passphrase;
 
 import com.leithatia.ciphershell.util.CipherUtil;
-import com.leithatia.ciphershell.file.FileProcessor;
 
-import javax.crypto.Cipher;
 import java.io.Console;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Scanner;
 
@@ -15,6 +16,7 @@ import java.util.Scanner;
 public class PassphraseHandler {
 
     private static final boolean DEV_MODE = false; // Set this to false in production
+    public static final int MAX_PASSPHRASE_LENGTH = 1024;
 
     @FunctionalInterface
     public interface PassphraseReader {
@@ -35,13 +37,68 @@ public class PassphraseHandler {
     /**
      * Requests a passphrase from the user.
      *
+     * @param confirm whether to ask for the passphrase a second time, as when encrypting.
      * @return the validated passphrase as a character array.
      * @throws IOException if an I/O error occurs.
      */
-    public static char[] requestPassphrase() throws IOException {
+    public static char[] requestPassphrase(boolean confirm) throws IOException {
         PassphraseReader passphraseReader;
         passphraseReader = DEV_MODE ? getScannerInput() : getConsoleInput();
-        return validatePassphrase(passphraseReader);
+        return validatePassphrase(passphraseReader, confirm);
+    }
+
+    /**
+     * Reads the passphrase from an environment variable, for non-interactive use such as shell pipelines.
+     *
+     * @param name the name of the environment variable.
+     * @return the validated passphrase as a character array.
+     */
+    public static char[] readPassphraseFromEnvironment(String name) {
+        String value = System.getenv(name);
+        if (value == null) {
+            System.err.println("Environment variable " + name + " is not set.");
+            System.exit(1);
+        }
+        return requireValidPassphrase(value.toCharArray());
+    }
+
+    /**
+     * Reads the first line of an open file descriptor as the passphrase, e.g. {@code --passphrase-fd 3} with
+     * {@code 3<passphrase.txt}. Useful when standard input carries the data to be processed.
+     *
+     * @param fileDescriptor the number of the file descriptor.
+     * @return the validated passphrase as a character array.
+     * @throws IOException if the file descriptor cannot be read.
+     */
+    public static char[] readPassphraseFromFileDescriptor(int fileDescriptor) throws IOException {
+        char[] buffer = new char[MAX_PASSPHRASE_LENGTH];
+        int length = 0;
+
+        try (Reader reader = Files.newBufferedReader(Paths.get("/dev/fd/" + fileDescriptor))) {
+            int c;
+            while (length < buffer.length && (c = reader.read()) != -1 && c != '\n' && c != '\r') {
+                buffer[length++] = (char) c;
+            }
+        }
+
+        char[] passphrase = Arrays.copyOf(buffer, length);
+        clearPassphrase(buffer);
+        return requireValidPassphrase(passphrase);
+    }
+
+    /**
+     * Exits if a passphrase given non-interactively is too short, as there is no way to ask again.
+     *
+     * @param passphrase the passphrase to check.
+     * @return the passphrase.
+     */
+    private static char[] requireValidPassphrase(char[] passphrase) {
+        if (!CipherUtil.isValidPassphrase(passphrase)) {
+            clearPassphrase(passphrase);
+            System.err.println("Passphrase too short, it must be at least 16 characters.");
+            System.exit(1);
+        }
+        return passphrase;
     }
 
     /**
@@ -71,37 +128,39 @@ public class PassphraseHandler {
     }
 
     /**
-     * Validates the passphrase provided by the user.
+     * Validates the passphrase provided by the user. Prompts are written to standard error, as standard
+     * output may carry decrypted data.
      *
      * @param passphraseReader the PassphraseReader used to read the passphrase.
+     * @param confirm          whether the passphrase must be entered twice.
      * @return the validated passphrase as a character array.
      * @throws IOException if an I/O error occurs.
      */
-    private static char[] validatePassphrase(PassphraseReader passphraseReader) throws IOException {
+    private static char[] validatePassphrase(PassphraseReader passphraseReader, boolean confirm) throws IOException {
         char[] passphrase1;
         char[] passphrase2;
         int attempts = 0;
 
         while (attempts < 3) {
             attempts++;
-            System.out.print("Enter passphrase (at least 16 characters): ");
-            System.out.flush();
+            System.err.print("Enter passphrase (at least 16 characters): ");
+            System.err.flush();
             passphrase1 = passphraseReader.getPassphrase();
 
             if (!CipherUtil.isValidPassphrase(passphrase1)) {
-                System.out.println("Passphrase too short. Please try again.\n");
+                System.err.println("Passphrase too short. Please try again.\n");
                 clearPassphrase(passphrase1);
                 continue;
             }
 
             // Confirm passphrase only when encrypting
-            if (FileProcessor.getEncryptionMode() == Cipher.ENCRYPT_MODE) {
-                System.out.print("Confirm passphrase: ");
-                System.out.flush();
+            if (confirm) {
+                System.err.print("Confirm passphrase: ");
+                System.err.flush();
                 passphrase2 = passphraseReader.getPassphrase();
 
                 if (!Arrays.equals(passphrase1, passphrase2)) {
-                    System.out.println("Passphrases do not match! Please try again.\n");
+                    System.err.println("Passphrases do not match! Please try again.\n");
                     clearPassphrase(passphrase1, passphrase2);
                     continue;
                 }
@@ -111,7 +170,7 @@ public class PassphraseHandler {
 
             return passphrase1;
         }
-        System.out.println("Too many attempts. Exiting...");
+        System.err.println("Too many attempts. Exiting...");
         System.exit(1);
         return null;
     }
@@ -0,0 +1,480 @@
+package com.leithatia.ciphershell.store;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.metrics.RunStats;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.KdfParameters;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A directory holding the chunks of many files, each unique chunk encrypted once, for backups of
+ * near-identical files such as snapshots. Files are split by a {@link ContentDefinedChunker}, so data
+ * shared between files yields the same chunks even when it moved, and only chunks the repository does not
+ * hold yet are encrypted and written. Storing a file writes an index listing its chunks, which restoring
+ * reads to stream the chunks back in order.
+ * <p>
+ * Chunks are addressed by an HMAC of their plaintext and sealed with AES/GCM under a random nonce, with
+ * the address as associated data so that a chunk cannot be passed off as another. The repository's
+ * {@code config} holds the salt of its master key, how the key is derived from the passphrase and a value to
+ * check the passphrase against; the
+ * addresses, chunk keys, index keys and the chunker's gear table are all derived from the master key.
+ * Indexes are encrypted as a whole, so they reveal neither file names nor chunk lists.
+ * <pre>
+ * repository/config                 ENCREPO2, salt, KDF algorithm and iterations, check value
+ * repository/chunks/ab/abcdef...    nonce, ciphertext, tag
+ * snapshot.idx                      ENCIDX01, salt, nonce, encrypted file name, length and chunk list
+ * </pre>
+ */
+public class ChunkRepository {
+    public static final String INDEX_FILE_EXTENSION = "idx";
+    private static final String CONFIG_FILE = "config";
+    private static final String CHUNKS_DIRECTORY = "chunks";
+    private static final byte[] ORIGINAL_MAGIC_NUMBER = "ENCREPO1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MAGIC_NUMBER = "ENCREPO2".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INDEX_MAGIC_NUMBER = "ENCIDX01".getBytes(StandardCharsets.US_ASCII);
+    private static final int SALT_LENGTH = 16;
+    private static final int ID_LENGTH = 32;
+    private static final int CHUNKS_IN_FLIGHT_PER_THREAD = 2;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final HexFormat HEX = HexFormat.of();
+
+    /**
+     * The address and length of a chunk, as listed in an index.
+     */
+    private record ChunkReference(byte[] id, int length) {
+    }
+
+    private final Path directory;
+    private final byte[] salt;
+    private final SecretKey idKey;
+    private final SecretKey chunkKey;
+    private final SecretKey indexKey;
+    private final long[] gear;
+    private final int parallelism;
+
+    private ChunkRepository(Path directory, byte[] salt, SecretKey masterKey, int parallelism)
+            throws CryptoException {
+
+        this.directory = directory;
+        this.salt = salt;
+        this.idKey = CipherUtil.deriveSubkey(masterKey, salt, "ciphershell chunk id", HMAC_ALGORITHM);
+        this.chunkKey = CipherUtil.deriveSubkey(masterKey, salt, "ciphershell chunk key", "AES");
+        this.indexKey = CipherUtil.deriveSubkey(masterKey, salt, "ciphershell index key", "AES");
+        this.gear = deriveGear(CipherUtil.deriveSubkey(masterKey, salt, "ciphershell chunker", HMAC_ALGORITHM));
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param directory a directory.
+     * @return {@code true} if the directory holds a repository.
+     */
+    public static boolean exists(Path directory) {
+        return Files.isRegularFile(directory.resolve(CONFIG_FILE));
+    }
+
+    /**
+     * Creates a repository protected by the passphrase of the master key cache under a new salt.
+     *
+     * @param directory   the directory to create the repository in, which may already exist.
+     * @param masterKeys  the cache deriving the master key for the new salt with its KDF parameters.
+     * @param parallelism the number of chunks encrypted or decrypted at once.
+     * @return the new repository.
+     * @throws IOException     if the repository cannot be written or already exists.
+     * @throws CryptoException if the master key cannot be derived.
+     */
+    public static ChunkRepository create(Path directory, MasterKeyCache masterKeys, int parallelism)
+            throws IOException, CryptoException {
+
+        if (exists(directory)) {
+            throw new FileAlreadyExistsException(directory.toString(), null, "A repository already exists");
+        }
+        byte[] salt = CipherUtil.generateSalt();
+        SecretKey masterKey = masterKeys.get(salt);
+
+        Files.createDirectories(directory.resolve(CHUNKS_DIRECTORY));
+        KdfParameters kdfParameters = masterKeys.getKdfParameters();
+        ByteBuffer config = ByteBuffer.allocate(MAGIC_NUMBER.length + SALT_LENGTH + KdfParameters.ENCODED_LENGTH
+                        + ID_LENGTH)
+                .put(MAGIC_NUMBER).put(salt).put(kdfParameters.algorithm().id()).putInt(kdfParameters.iterations())
+                .put(checkValue(masterKey, salt));
+        writeAtomically(directory.resolve(CONFIG_FILE), config.array());
+
+        masterKeys.confirm(salt);
+        return new ChunkRepository(directory, salt, masterKey, parallelism);
+    }
+
+    /**
+     * Opens an existing repository, checking the passphrase of the master key cache against it.
+     *
+     * @param directory   the directory of the repository.
+     * @param masterKeys  the cache providing the master key for the repository's salt.
+     * @param parallelism the number of chunks encrypted or decrypted at once.
+     * @return the repository.
+     * @throws IOException     if the repository cannot be read.
+     * @throws CryptoException if the directory holds no repository or the passphrase does not match.
+     */
+    public static ChunkRepository open(Path directory, MasterKeyCache masterKeys, int parallelism)
+            throws IOException, CryptoException {
+
+        byte[] config;
+        try {
+            config = Files.readAllBytes(directory.resolve(CONFIG_FILE));
+        } catch (NoSuchFileException e) {
+            throw new CryptoException(directory + " is not a repository.", e);
+        }
+        boolean recordsKdf = config.length == MAGIC_NUMBER.length + SALT_LENGTH + KdfParameters.ENCODED_LENGTH
+                + ID_LENGTH && Arrays.equals(config, 0, MAGIC_NUMBER.length, MAGIC_NUMBER, 0, MAGIC_NUMBER.length);
+        boolean original = config.length == ORIGINAL_MAGIC_NUMBER.length + SALT_LENGTH + ID_LENGTH
+                && Arrays.equals(config, 0, ORIGINAL_MAGIC_NUMBER.length, ORIGINAL_MAGIC_NUMBER, 0,
+                ORIGINAL_MAGIC_NUMBER.length);
+        if (!recordsKdf && !original) {
+            throw new CryptoException(directory + " is not a repository.");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(config, MAGIC_NUMBER.length, config.length - MAGIC_NUMBER.length);
+        byte[] salt = new byte[SALT_LENGTH];
+        buffer.get(salt);
+        KdfParameters kdfParameters = KdfParameters.DEFAULT;
+        if (recordsKdf) {
+            kdfParameters = KdfParameters.decode(buffer.get(), buffer.getInt());
+        }
+        byte[] check = new byte[ID_LENGTH];
+        buffer.get(check);
+
+        SecretKey masterKey = masterKeys.get(salt, kdfParameters);
+        if (!MessageDigest.isEqual(check, checkValue(masterKey, salt))) {
+            throw new CryptoException("Bad passphrase for repository " + directory + ".");
+        }
+        masterKeys.confirm(salt, kdfParameters);
+        return new ChunkRepository(directory, salt, masterKey, parallelism);
+    }
+
+    /**
+     * Stores a file, writing only the chunks the repository does not hold yet, and writes its index.
+     *
+     * @param file      the file to store.
+     * @param indexFile the path of the index to write.
+     * @return how much the file added to the repository.
+     * @throws IOException     if an I/O error occurs.
+     * @throws CryptoException if a chunk cannot be encrypted.
+     */
+    public StoreResult store(Path file, Path indexFile) throws IOException, CryptoException {
+        Set<String> claimed = ConcurrentHashMap.newKeySet();
+        AtomicLong newChunks = new AtomicLong();
+        AtomicLong newBytes = new AtomicLong();
+        List<Future<ChunkReference>> references = new ArrayList<>();
+        long length = 0;
+
+        ExecutorService workers = newWorkers("ciphershell-store");
+        Semaphore inFlight = new Semaphore(parallelism * CHUNKS_IN_FLIGHT_PER_THREAD);
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            ContentDefinedChunker chunker = new ContentDefinedChunker(gear, inputStream);
+            byte[] chunk;
+            while ((chunk = chunker.next()) != null) {
+                acquire(inFlight);
+                byte[] data = chunk;
+                length += data.length;
+                references.add(workers.submit(() -> {
+                    try {
+                        return storeChunk(data, claimed, newChunks, newBytes);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+
+            List<ChunkReference> chunks = new ArrayList<>(references.size());
+            for (Future<ChunkReference> reference : references) {
+                chunks.add(await(reference));
+            }
+            writeIndex(indexFile, file.getFileName().toString(), length, chunks);
+            return new StoreResult(chunks.size(), newChunks.get(), length, newBytes.get());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Restores a file next to its index, under the name it was stored with. An existing file of that name
+     * is never overwritten. If restoring fails, the partially written file is deleted.
+     *
+     * @param indexFile the path of the index.
+     * @return the path of the restored file.
+     * @throws IOException     if an I/O error occurs, a chunk is missing or the file already exists.
+     * @throws CryptoException if the index or a chunk fails authentication.
+     */
+    public Path restore(Path indexFile) throws IOException, CryptoException {
+        String fileName = readIndex(indexFile).fileName;
+        Path target = indexFile.toAbsolutePath().resolveSibling(Paths.get(fileName).getFileName());
+        OutputStream outputStream = Files.newOutputStream(target, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        try (OutputStream bufferedStream = new BufferedOutputStream(outputStream)) {
+            restore(indexFile, bufferedStream);
+        } catch (IOException | CryptoException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        return target;
+    }
+
+    /**
+     * Streams the chunks of a stored file into the output stream in order. Chunks ahead of the one being
+     * written are read and decrypted in parallel.
+     *
+     * @param indexFile    the path of the index.
+     * @param outputStream the stream to write the file's contents to.
+     * @return the number of bytes written.
+     * @throws IOException     if an I/O error occurs or a chunk is missing.
+     * @throws CryptoException if the index or a chunk fails authentication.
+     */
+    public long restore(Path indexFile, OutputStream outputStream) throws IOException, CryptoException {
+        Index index = readIndex(indexFile);
+        int window = parallelism * CHUNKS_IN_FLIGHT_PER_THREAD;
+        Deque<Future<byte[]>> pending = new ArrayDeque<>(window);
+        Iterator<ChunkReference> chunks = index.chunks.iterator();
+        long written = 0;
+
+        ExecutorService workers = newWorkers("ciphershell-restore");
+        try {
+            while (chunks.hasNext() || !pending.isEmpty()) {
+                while (chunks.hasNext() && pending.size() < window) {
+                    ChunkReference chunk = chunks.next();
+                    pending.add(workers.submit(() -> loadChunk(chunk)));
+                }
+                byte[] data = await(pending.remove());
+                long start = System.nanoTime();
+                outputStream.write(data);
+                RunStats.recordWrite(System.nanoTime() - start);
+                written += data.length;
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        if (written != index.length) {
+            throw new CryptoException("Corrupted index: expected " + index.length + " bytes, restored " + written);
+        }
+        return written;
+    }
+
+    private ChunkReference storeChunk(byte[] data, Set<String> claimed, AtomicLong newChunks, AtomicLong newBytes)
+            throws IOException, GeneralSecurityException {
+
+        long start = System.nanoTime();
+        Mac mac = CipherUtil.initMac(idKey);
+        byte[] id = mac.doFinal(data);
+        ChunkReference reference = new ChunkReference(id, data.length);
+        Path path = chunkPath(id);
+        if (!claimed.add(HEX.formatHex(id)) || Files.exists(path)) {
+            RunStats.recordCrypto(System.nanoTime() - start, data.length);
+            return reference;
+        }
+
+        byte[] nonce = CipherUtil.generateNonce();
+        Cipher cipher = CipherUtil.initAeadCipher(Cipher.ENCRYPT_MODE, chunkKey, nonce);
+        cipher.updateAAD(id);
+        byte[] sealed = new byte[nonce.length + cipher.getOutputSize(data.length)];
+        System.arraycopy(nonce, 0, sealed, 0, nonce.length);
+        cipher.doFinal(data, 0, data.length, sealed, nonce.length);
+        long sealedAt = System.nanoTime();
+        RunStats.recordCrypto(sealedAt - start, data.length);
+
+        Files.createDirectories(path.getParent());
+        writeAtomically(path, sealed);
+        RunStats.recordWrite(System.nanoTime() - sealedAt);
+        newChunks.incrementAndGet();
+        newBytes.addAndGet(data.length);
+        return reference;
+    }
+
+    private byte[] loadChunk(ChunkReference chunk) throws IOException, CryptoException {
+        String hex = HEX.formatHex(chunk.id);
+        long start = System.nanoTime();
+        byte[] sealed;
+        try {
+            sealed = Files.readAllBytes(chunkPath(chunk.id));
+        } catch (NoSuchFileException e) {
+            throw new CryptoException("Chunk " + hex + " is missing from the repository.", e);
+        }
+        long read = System.nanoTime();
+        RunStats.recordRead(read - start);
+
+        int nonceLength = CipherUtil.CHUNK_NONCE_LENGTH;
+        if (sealed.length != nonceLength + chunk.length + CipherUtil.CHUNK_TAG_LENGTH) {
+            throw new CryptoException("Chunk " + hex + " has the wrong length.");
+        }
+        try {
+            Cipher cipher = CipherUtil.initAeadCipher(Cipher.DECRYPT_MODE, chunkKey,
+                    Arrays.copyOf(sealed, nonceLength));
+            cipher.updateAAD(chunk.id);
+            byte[] data = cipher.doFinal(sealed, nonceLength, sealed.length - nonceLength);
+            RunStats.recordCrypto(System.nanoTime() - read, data.length);
+            return data;
+        } catch (AEADBadTagException e) {
+            throw new CryptoException("Chunk " + hex + " failed authentication.", e);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to decrypt chunk " + hex + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Path chunkPath(byte[] id) {
+        String hex = HEX.formatHex(id);
+        return directory.resolve(CHUNKS_DIRECTORY).resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    /**
+     * The decrypted contents of an index.
+     */
+    private record Index(String fileName, long length, List<ChunkReference> chunks) {
+    }
+
+    private void writeIndex(Path indexFile, String fileName, long length, List<ChunkReference> chunks)
+            throws IOException, CryptoException {
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream outputStream = new DataOutputStream(payload)) {
+            outputStream.writeUTF(fileName);
+            outputStream.writeLong(length);
+            outputStream.writeInt(chunks.size());
+            for (ChunkReference chunk : chunks) {
+                outputStream.write(chunk.id);
+                outputStream.writeInt(chunk.length);
+            }
+        }
+
+        byte[] nonce = CipherUtil.generateNonce();
+        try {
+            Cipher cipher = CipherUtil.initAeadCipher(Cipher.ENCRYPT_MODE, indexKey, nonce);
+            cipher.updateAAD(INDEX_MAGIC_NUMBER);
+            cipher.updateAAD(salt);
+            byte[] sealed = cipher.doFinal(payload.toByteArray());
+            writeAtomically(indexFile, ByteBuffer.allocate(INDEX_MAGIC_NUMBER.length + salt.length + nonce.length
+                    + sealed.length).put(INDEX_MAGIC_NUMBER).put(salt).put(nonce).put(sealed).array());
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to encrypt index: " + e.getMessage(), e);
+        }
+    }
+
+    private Index readIndex(Path indexFile) throws IOException, CryptoException {
+        byte[] bytes = Files.readAllBytes(indexFile);
+        int headerLength = INDEX_MAGIC_NUMBER.length + SALT_LENGTH + CipherUtil.CHUNK_NONCE_LENGTH;
+        if (bytes.length < headerLength + CipherUtil.CHUNK_TAG_LENGTH
+                || !Arrays.equals(bytes, 0, INDEX_MAGIC_NUMBER.length, INDEX_MAGIC_NUMBER, 0, INDEX_MAGIC_NUMBER.length)) {
+            throw new CryptoException(indexFile + " is not an index written by this application.");
+        }
+        if (!Arrays.equals(bytes, INDEX_MAGIC_NUMBER.length, INDEX_MAGIC_NUMBER.length + SALT_LENGTH,
+                salt, 0, SALT_LENGTH)) {
+            throw new CryptoException(indexFile + " belongs to another repository.");
+        }
+
+        byte[] payload;
+        try {
+            Cipher cipher = CipherUtil.initAeadCipher(Cipher.DECRYPT_MODE, indexKey,
+                    Arrays.copyOfRange(bytes, INDEX_MAGIC_NUMBER.length + SALT_LENGTH, headerLength));
+            cipher.updateAAD(INDEX_MAGIC_NUMBER);
+            cipher.updateAAD(salt);
+            payload = cipher.doFinal(bytes, headerLength, bytes.length - headerLength);
+        } catch (AEADBadTagException e) {
+            throw new CryptoException(indexFile + " failed authentication.", e);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to decrypt index: " + e.getMessage(), e);
+        }
+
+        try (DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(payload))) {
+            String fileName = inputStream.readUTF();
+            long length = inputStream.readLong();
+            int count = inputStream.readInt();
+            List<ChunkReference> chunks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] id = new byte[ID_LENGTH];
+                inputStream.readFully(id);
+                chunks.add(new ChunkReference(id, inputStream.readInt()));
+            }
+            return new Index(fileName, length, chunks);
+        }
+    }
+
+    private static byte[] checkValue(SecretKey masterKey, byte[] salt) throws CryptoException {
+        SecretKey checkKey = CipherUtil.deriveSubkey(masterKey, salt, "ciphershell repository check", HMAC_ALGORITHM);
+        try {
+            return CipherUtil.initMac(checkKey).doFinal(MAGIC_NUMBER);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to derive check value: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Fills the chunker's gear table with the first 8 bytes of the HMAC of each byte value.
+     */
+    private static long[] deriveGear(SecretKey gearKey) throws CryptoException {
+        long[] gear = new long[256];
+        try {
+            Mac mac = CipherUtil.initMac(gearKey);
+            for (int i = 0; i < gear.length; i++) {
+                gear[i] = ByteBuffer.wrap(mac.doFinal(new byte[]{(byte) i})).getLong();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException("Failed to derive chunker: " + e.getMessage(), e);
+        }
+        return gear;
+    }
+
+    private static void writeAtomically(Path path, byte[] content) throws IOException {
+        Path temporary = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporary, content);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+    private ExecutorService newWorkers(String name) {
+        return Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void acquire(Semaphore semaphore) throws InterruptedIOException {
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for chunks");
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException, CryptoException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for chunks");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            } else if (cause instanceof CryptoException cryptoException) {
+                throw cryptoException;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw new CryptoException("Cipher failed: " + cause.getMessage(), cause);
+            }
+            throw new IllegalStateException("Chunk task failed", cause);
+        }
+    }
+}
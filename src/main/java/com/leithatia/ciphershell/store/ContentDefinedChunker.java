@@ -0,0 +1,112 @@
+package com.leithatia.ciphershell.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream into chunks whose boundaries depend on the content rather than on offsets, so that an
+ * insertion or deletion only changes the chunks around it and the rest of a near-identical file yields the
+ * same chunks again.
+ * <p>
+ * This is the gear hash of FastCDC: each byte shifts the hash left and adds the byte's entry from a table
+ * of random values, so the top bits of the hash depend on the last 64 bytes only. A boundary is placed
+ * where the masked top bits are all zero. Between the minimum size and the average a stricter mask is
+ * used, after it a looser one, which keeps chunk sizes close to the average. The gear table comes from a
+ * key, so boundaries reveal nothing about the content to anyone without the key.
+ */
+class ContentDefinedChunker {
+    static final int MIN_CHUNK_SIZE = 256 * 1024;
+    static final int AVERAGE_CHUNK_SIZE = 1024 * 1024;
+    static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int AVERAGE_BITS = Integer.numberOfTrailingZeros(AVERAGE_CHUNK_SIZE);
+    private static final long STRICT_MASK = -1L << (Long.SIZE - AVERAGE_BITS - 2);
+    private static final long LOOSE_MASK = -1L << (Long.SIZE - AVERAGE_BITS + 2);
+
+    private final long[] gear;
+    private final InputStream inputStream;
+    private final byte[] buffer = new byte[2 * MAX_CHUNK_SIZE];
+    private int start;
+    private int end;
+    private boolean endOfStream;
+
+    /**
+     * @param gear        256 random values, one per byte value.
+     * @param inputStream the stream to split.
+     */
+    ContentDefinedChunker(long[] gear, InputStream inputStream) {
+        if (gear.length != 256) {
+            throw new IllegalArgumentException("The gear table needs 256 entries, got " + gear.length);
+        }
+        this.gear = gear;
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Reads the next chunk.
+     *
+     * @return the chunk, or {@code null} once the stream is exhausted.
+     * @throws IOException if the stream cannot be read.
+     */
+    byte[] next() throws IOException {
+        fill();
+        if (start == end) {
+            return null;
+        }
+        int length = boundary(buffer, start, end - start);
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /**
+     * Returns the length of the chunk starting at the offset.
+     *
+     * @param data      the data.
+     * @param offset    the start of the chunk.
+     * @param available the number of bytes available from the offset.
+     * @return the chunk length, at most {@link #MAX_CHUNK_SIZE}.
+     */
+    int boundary(byte[] data, int offset, int available) {
+        if (available <= MIN_CHUNK_SIZE) {
+            return available;
+        }
+        int limit = Math.min(available, MAX_CHUNK_SIZE);
+        int normal = Math.min(limit, AVERAGE_CHUNK_SIZE);
+        long hash = 0;
+        int i = MIN_CHUNK_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + gear[data[offset + i] & 0xff];
+            if ((hash & STRICT_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + gear[data[offset + i] & 0xff];
+            if ((hash & LOOSE_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Makes sure at least a maximum sized chunk is buffered, unless the stream ends first.
+     */
+    private void fill() throws IOException {
+        if (endOfStream || end - start >= MAX_CHUNK_SIZE) {
+            return;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+            int bytesRead = inputStream.read(buffer, end, buffer.length - end);
+            if (bytesRead == -1) {
+                endOfStream = true;
+                return;
+            }
+            end += bytesRead;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.leithatia.ciphershell.store;
+
+/**
+ * What storing a file in a {@link ChunkRepository} added to it.
+ *
+ * @param chunkCount    the number of chunks the file was split into.
+ * @param newChunkCount the number of those chunks which were not in the repository yet.
+ * @param bytes         the length of the file.
+ * @param newBytes      the number of plaintext bytes in the new chunks, i.e. what was actually written.
+ */
+public record StoreResult(long chunkCount, long newChunkCount, long bytes, long newBytes) {
+}
@@ -0,0 +1,152 @@
+package com.leithatia.ciphershell.util;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * How the chunks of a file in the chunked format are sealed. Every suite authenticates each chunk with a
+ * {@link CipherUtil#CHUNK_TAG_LENGTH} byte tag, so the layout of a file does not depend on its suite.
+ * <p>
+ * Which suite is fastest depends on the host: AES/GCM is fastest where the JVM has intrinsics for the AES
+ * and carry-less multiply instructions, ChaCha20-Poly1305 where it has not. {@link #fastest()} picks one
+ * for the running host.
+ */
+public enum CipherSuite {
+    AES_GCM((byte) 1, "aes-gcm"),
+    AES_CTR_HMAC((byte) 2, "aes-ctr-hmac"),
+    CHACHA20_POLY1305((byte) 3, "chacha20-poly1305");
+
+    /**
+     * The name of the option choosing the fastest suite on the host.
+     */
+    public static final String AUTO = "auto";
+    private static final int BENCHMARK_CHUNK_SIZE = 128 * 1024;
+    private static final int BENCHMARK_CHUNKS = 4;
+    // about the size of the header fields each chunk authenticates
+    private static final int BENCHMARK_HEADER_LENGTH = 32;
+    private static final int BENCHMARK_ROUNDS = 4;
+
+    private final byte id;
+    private final String optionName;
+
+    CipherSuite(byte id, String optionName) {
+        this.id = id;
+        this.optionName = optionName;
+    }
+
+    /**
+     * @return the id stored in headers, which must never change.
+     */
+    public byte id() {
+        return id;
+    }
+
+    public String optionName() {
+        return optionName;
+    }
+
+    /**
+     * @param id the id stored in a header.
+     * @return the suite with the id, or {@code null} if it is unknown.
+     */
+    public static CipherSuite fromId(byte id) {
+        return Arrays.stream(values()).filter(suite -> suite.id == id).findFirst().orElse(null);
+    }
+
+    /**
+     * @param optionName the name of the suite on the command line, e.g. {@code aes-gcm}, or {@link #AUTO}.
+     * @return the suite, measured with {@link #fastest()} for {@link #AUTO}.
+     * @throws IllegalArgumentException if no suite has the name.
+     */
+    public static CipherSuite fromOptionName(String optionName) {
+        if (optionName.equals(AUTO)) {
+            return fastest();
+        }
+        return Arrays.stream(values()).filter(suite -> suite.optionName.equals(optionName)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown cipher suite: " + optionName
+                        + ". Use one of " + Arrays.stream(values()).map(CipherSuite::optionName)
+                        .collect(Collectors.joining(", ")) + " or " + AUTO + "."));
+    }
+
+    /**
+     * Picks the fastest suite on this host, once per process. Where the JVM reports that it uses the AES and
+     * carry-less multiply instructions, that is AES/GCM: a benchmark short enough to run at startup ends
+     * before the JIT has compiled those instructions in, and would rank the suites by how fast they run
+     * interpreted. Elsewhere the suites are measured with {@link #benchmark()}.
+     *
+     * @return the fastest suite.
+     */
+    public static CipherSuite fastest() {
+        return Fastest.SUITE;
+    }
+
+    /**
+     * Measures how long each suite takes to seal a few megabytes of chunks on the calling thread. The suites
+     * take turns over several rounds so that they warm up alike, the first round is discarded and the best
+     * of the others is kept to discount pauses.
+     *
+     * @return the best time of each suite, in nanoseconds.
+     */
+    public static Map<CipherSuite, Long> benchmark() {
+        SecretKey key = CipherUtil.generateDataKey();
+        byte[] iv = CipherUtil.generateInitialVector();
+        byte[] header = new byte[BENCHMARK_HEADER_LENGTH];
+        ByteBuffer plaintext = ByteBuffer.allocateDirect(BENCHMARK_CHUNK_SIZE);
+        ByteBuffer record = ByteBuffer.allocateDirect(BENCHMARK_CHUNK_SIZE + CipherUtil.CHUNK_TAG_LENGTH);
+        Map<CipherSuite, Long> best = new EnumMap<>(CipherSuite.class);
+        long chunkIndex = 0;
+        for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+            for (CipherSuite suite : values()) {
+                long start;
+                try {
+                    // prepared once per file, so not part of the time per chunk
+                    SecretKey chunkKey = CipherUtil.chunkKey(suite, key, iv);
+                    start = System.nanoTime();
+                    for (int i = 0; i < BENCHMARK_CHUNKS; i++) {
+                        plaintext.clear();
+                        record.clear();
+                        CipherUtil.processChunk(suite, Cipher.ENCRYPT_MODE, chunkKey, iv, chunkIndex++, 0, header,
+                                false, plaintext, record);
+                    }
+                } catch (GeneralSecurityException | CryptoException e) {
+                    continue;
+                }
+                long elapsed = System.nanoTime() - start;
+                if (round > 0) {
+                    best.merge(suite, elapsed, Math::min);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param name the name of a boolean HotSpot option.
+     * @return whether the option is on, {@code false} if the JVM does not have it.
+     */
+    private static boolean vmOption(String name) {
+        try {
+            return Boolean.parseBoolean(ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+                    .getVMOption(name).getValue());
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static final class Fastest {
+        private static final CipherSuite SUITE = vmOption("UseAES") && vmOption("UseCLMUL")
+                ? AES_GCM
+                : benchmark().entrySet().stream().min(Map.Entry.comparingByValue()).map(Map.Entry::getKey)
+                .orElse(AES_GCM);
+    }
+}
@@ -1,31 +1,65 @@
 package com.leithatia.ciphershell.util;
 
 import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.metrics.KeyDerivationEvent;
+import com.leithatia.ciphershell.metrics.RunStats;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 
 /**
  * Utility class used to generate salts, IVs and secret keys. Also handles the encryption and decryption of
  * data using streams.
+ * <p>
+ * Provider lookups are not free and {@link SecureRandom} instances are costly to seed, so each thread keeps
+ * its own {@link Cipher}, {@link Mac}, {@link SecretKeyFactory} and {@link SecureRandom} and re-initialises
+ * them on every call. Concurrent jobs thus share no mutable state.
  */
 public class CipherUtil {
 
     private static final int SALT_LENGTH = 16;
     private static final int IV_LENGTH = 16;
     private static final String ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final String CHUNK_ALGORITHM = "AES/GCM/NoPadding";
+    private static final String CTR_ALGORITHM = "AES/CTR/NoPadding";
+    private static final String CHACHA20_ALGORITHM = "ChaCha20-Poly1305";
+    private static final String CTR_KEY_INFO = "ciphershell ctr key";
+    private static final String CTR_MAC_KEY_INFO = "ciphershell ctr mac key";
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final String KEY_WRAP_INFO = "ciphershell key wrap";
+    private static final String KEY_WRAP_ALGORITHM = "AESWrap";
+    private static final int KEY_LENGTH = 256;
+    public static final int CHUNK_NONCE_LENGTH = 12;
+    public static final int CHUNK_TAG_LENGTH = 16;
+    public static final int WRAPPED_KEY_LENGTH = KEY_LENGTH / 8 + 8;
+    public static final int DEFAULT_KDF_ITERATIONS = 65536;
+
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> CHUNK_CIPHERS = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> CTR_CIPHERS = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> CHACHA20_CIPHERS = new ThreadLocal<>();
+    private static final ThreadLocal<Mac> MACS = new ThreadLocal<>();
+    private static final ThreadLocal<SecretKeyFactory> KEY_FACTORIES = new ThreadLocal<>();
+    private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(SecureRandom::new);
 
     /**
      * Initialises and returns a {@link Cipher} object given a secret key and initial vector. Cipher can be
-     * set up for encryption or decryption depending on mode required.
+     * set up for encryption or decryption depending on mode required. The cipher belongs to the calling
+     * thread and is re-initialised by its next call to this method.
      *
      * @param mode an int representing Cipher encryption or decryption mode enum
      * @param secretKey the secret key to be used for the cipher
@@ -39,13 +73,312 @@ public class CipherUtil {
     public static Cipher initCipher(int mode, SecretKey secretKey, byte[] iv) throws NoSuchPaddingException,
             NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
 
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        Cipher cipher = CIPHERS.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(ALGORITHM);
+            CIPHERS.set(cipher);
+        }
         cipher.init(mode, secretKey, new IvParameterSpec(iv));
         return cipher;
     }
 
     /**
-     * Processes data in a given stream for encryption or decryption.
+     * Initialises and returns an AES/GCM {@link Cipher} for a single chunk of the chunked file format. The
+     * chunk nonce is derived from the header IV and the chunk index, and whether the chunk is the last one
+     * is bound in as additional authenticated data so that truncated files fail authentication. The cipher
+     * belongs to the calling thread and is re-initialised by its next call to this method.
+     *
+     * @param mode an int representing Cipher encryption or decryption mode enum
+     * @param secretKey the secret key to be used for the cipher
+     * @param iv the initial vector stored in the file header
+     * @param chunkIndex the zero based index of the chunk
+     * @param lastChunk whether the chunk is the final chunk of the file
+     * @return a initialised {@link Cipher} instance for the given chunk
+     * @throws NoSuchPaddingException if the padding scheme is not available
+     * @throws NoSuchAlgorithmException if the algorithm used is not available
+     * @throws InvalidAlgorithmParameterException if the nonce parameter is invalid
+     * @throws InvalidKeyException if the key is invalid
+     */
+    public static Cipher initChunkCipher(int mode, SecretKey secretKey, byte[] iv, long chunkIndex,
+                                         boolean lastChunk) throws NoSuchPaddingException,
+            NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
+        return initChunkCipher(mode, secretKey, iv, chunkIndex, 0, lastChunk);
+    }
+
+    /**
+     * Initialises and returns an AES/GCM {@link Cipher} for a chunk which may have been rewritten in place.
+     * Each rewrite of a chunk carries a higher generation, which is mixed into the nonce so that the new
+     * contents are never sealed under a nonce used before. Generation 0 gives the same nonce as
+     * {@link #initChunkCipher(int, SecretKey, byte[], long, boolean)}.
+     *
+     * @param mode an int representing Cipher encryption or decryption mode enum
+     * @param secretKey the secret key to be used for the cipher
+     * @param iv the initial vector stored in the file header
+     * @param chunkIndex the zero based index of the chunk
+     * @param generation the number of times the chunk has been rewritten
+     * @param lastChunk whether the chunk is the final chunk of the file
+     * @return a initialised {@link Cipher} instance for the given chunk
+     * @throws NoSuchPaddingException if the padding scheme is not available
+     * @throws NoSuchAlgorithmException if the algorithm used is not available
+     * @throws InvalidAlgorithmParameterException if the nonce parameter is invalid
+     * @throws InvalidKeyException if the key is invalid
+     */
+    public static Cipher initChunkCipher(int mode, SecretKey secretKey, byte[] iv, long chunkIndex,
+                                         int generation, boolean lastChunk) throws NoSuchPaddingException,
+            NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
+
+        Cipher cipher = initAeadCipher(mode, secretKey, deriveChunkNonce(iv, chunkIndex, generation));
+        cipher.updateAAD(new byte[]{(byte) (lastChunk ? 1 : 0)});
+        return cipher;
+    }
+
+    /**
+     * Seals or opens a chunk of the chunked file format with the given suite. The chunk nonce is derived as
+     * for {@link #initChunkCipher(int, SecretKey, byte[], long, int, boolean)}. The authenticated fields of the
+     * file header, followed by whether the chunk is the last one, are authenticated along with it, so that a
+     * chunk only opens under the header it was sealed with. Encryption writes the ciphertext followed by a
+     * {@link #CHUNK_TAG_LENGTH} byte tag; decryption expects both and writes the plaintext only once the tag
+     * has been verified.
+     *
+     * @param suite the cipher suite recorded in the file header
+     * @param mode an int representing Cipher encryption or decryption mode enum
+     * @param secretKey the key of the file, best prepared once per file by {@link #chunkKey}
+     * @param iv the initial vector stored in the file header
+     * @param chunkIndex the zero based index of the chunk
+     * @param generation the number of times the chunk has been rewritten
+     * @param headerFields the authenticated fields of the file header, empty for files which bind none
+     * @param lastChunk whether the chunk is the final chunk of the file
+     * @param input the plaintext or the sealed chunk, consumed entirely
+     * @param output the buffer to write the sealed chunk or the plaintext to
+     * @throws GeneralSecurityException if the suite is not available or the chunk fails authentication
+     */
+    public static void processChunk(CipherSuite suite, int mode, SecretKey secretKey, byte[] iv, long chunkIndex,
+                                    int generation, byte[] headerFields, boolean lastChunk, ByteBuffer input,
+                                    ByteBuffer output) throws GeneralSecurityException {
+
+        byte[] nonce = deriveChunkNonce(iv, chunkIndex, generation);
+        byte[] associatedData = Arrays.copyOf(headerFields, headerFields.length + 1);
+        associatedData[headerFields.length] = (byte) (lastChunk ? 1 : 0);
+        switch (suite) {
+            case AES_GCM -> {
+                Cipher cipher;
+                try {
+                    cipher = initAeadCipher(mode, secretKey, nonce);
+                } catch (InvalidAlgorithmParameterException e) {
+                    // The provider refuses to seal under the key and nonce it sealed under last on this thread.
+                    // Chunk nonces never repeat within a file but for the chunks after the checkpoint of an
+                    // interrupted run, which a resumed run seals again over the same plaintext.
+                    cipher = Cipher.getInstance(CHUNK_ALGORITHM);
+                    CHUNK_CIPHERS.set(cipher);
+                    cipher.init(mode, secretKey, new GCMParameterSpec(CHUNK_TAG_LENGTH * 8, nonce));
+                }
+                cipher.updateAAD(associatedData);
+                cipher.doFinal(input, output);
+            }
+            case CHACHA20_POLY1305 -> {
+                SecretKey key = new SecretKeySpec(secretKey.getEncoded(), "ChaCha20");
+                Cipher cipher = threadCipher(CHACHA20_CIPHERS, CHACHA20_ALGORITHM);
+                try {
+                    cipher.init(mode, key, new IvParameterSpec(nonce));
+                } catch (InvalidKeyException e) {
+                    // The provider refuses the key and nonce of its previous use in either mode, which stops a
+                    // chunk from being opened twice, or a resumed run from sealing a chunk again, as above.
+                    cipher = Cipher.getInstance(CHACHA20_ALGORITHM);
+                    CHACHA20_CIPHERS.set(cipher);
+                    cipher.init(mode, key, new IvParameterSpec(nonce));
+                }
+                cipher.updateAAD(associatedData);
+                cipher.doFinal(input, output);
+            }
+            case AES_CTR_HMAC -> {
+                CtrHmacKey key;
+                try {
+                    key = (CtrHmacKey) chunkKey(suite, secretKey, iv);
+                } catch (CryptoException e) {
+                    throw new InvalidKeyException(e.getMessage(), e);
+                }
+                processCtrHmacChunk(mode, key, nonce, associatedData, input, output);
+            }
+        }
+    }
+
+    /**
+     * Prepares the key of a file for sealing and opening its chunks with the given suite. AES/CTR with
+     * HMAC-SHA256 needs a cipher key and a MAC key, which are derived from the file key here rather than for
+     * every chunk; the other suites use the file key as it is. The returned key still encodes to the file key,
+     * so it can be wrapped in its place.
+     *
+     * @param suite the cipher suite recorded in the file header
+     * @param fileKey the key of the file, or a key this method returned for it
+     * @param iv the initial vector stored in the file header
+     * @return the key to pass to {@link #processChunk} for the chunks of the file
+     * @throws CryptoException if unable to derive the keys
+     */
+    public static SecretKey chunkKey(CipherSuite suite, SecretKey fileKey, byte[] iv) throws CryptoException {
+        if (suite != CipherSuite.AES_CTR_HMAC) {
+            return fileKey;
+        }
+        if (fileKey instanceof CtrHmacKey key) {
+            if (Arrays.equals(key.iv, iv)) {
+                return key;
+            }
+            fileKey = key.fileKey;
+        }
+        return new CtrHmacKey(fileKey, iv.clone(), deriveSubkey(fileKey, iv, CTR_KEY_INFO, "AES"),
+                deriveSubkey(fileKey, iv, CTR_MAC_KEY_INFO, HMAC_ALGORITHM));
+    }
+
+    /**
+     * Encrypts with AES/CTR, then authenticates the nonce, the length of the associated data, the associated
+     * data and the ciphertext with HMAC-SHA256 truncated to {@link #CHUNK_TAG_LENGTH} bytes. The cipher and
+     * MAC keys are derived from the file key, so that neither is used for anything else.
+     */
+    private static void processCtrHmacChunk(int mode, CtrHmacKey key, byte[] nonce, byte[] associatedData,
+                                            ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
+
+        SecretKey macKey = key.macKey;
+        Cipher cipher = threadCipher(CTR_CIPHERS, CTR_ALGORITHM);
+        cipher.init(mode, key.cipherKey, new IvParameterSpec(Arrays.copyOf(nonce, IV_LENGTH)));
+
+        if (mode == Cipher.ENCRYPT_MODE) {
+            ByteBuffer ciphertext = output.duplicate();
+            cipher.doFinal(input, output);
+            ciphertext.limit(output.position());
+            output.put(ctrTag(macKey, nonce, associatedData, ciphertext), 0, CHUNK_TAG_LENGTH);
+            return;
+        }
+        if (input.remaining() < CHUNK_TAG_LENGTH) {
+            throw new AEADBadTagException("Chunk too short for its tag");
+        }
+        ByteBuffer ciphertext = input.duplicate().limit(input.limit() - CHUNK_TAG_LENGTH);
+        byte[] tag = new byte[CHUNK_TAG_LENGTH];
+        input.duplicate().position(ciphertext.limit()).get(tag);
+        byte[] expected = ctrTag(macKey, nonce, associatedData, ciphertext.duplicate());
+        if (!MessageDigest.isEqual(Arrays.copyOf(expected, CHUNK_TAG_LENGTH), tag)) {
+            throw new AEADBadTagException("Tag mismatch");
+        }
+        cipher.doFinal(ciphertext, output);
+        input.position(input.limit());
+    }
+
+    private static byte[] ctrTag(SecretKey macKey, byte[] nonce, byte[] associatedData, ByteBuffer ciphertext)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = initMac(macKey);
+        mac.update(nonce);
+        // the length keeps the boundary between the associated data and the ciphertext from moving
+        mac.update(ByteBuffer.allocate(Long.BYTES).putLong(0, associatedData.length).array());
+        mac.update(associatedData);
+        mac.update(ciphertext);
+        return mac.doFinal();
+    }
+
+    /**
+     * The key of a file sealed with AES/CTR and HMAC-SHA256, along with the cipher and MAC keys derived from
+     * it for the IV of the file. It stands in for the file key everywhere else.
+     */
+    private static final class CtrHmacKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private final SecretKey fileKey;
+        private final byte[] iv;
+        private final SecretKey cipherKey;
+        private final SecretKey macKey;
+
+        private CtrHmacKey(SecretKey fileKey, byte[] iv, SecretKey cipherKey, SecretKey macKey) {
+            this.fileKey = fileKey;
+            this.iv = iv;
+            this.cipherKey = cipherKey;
+            this.macKey = macKey;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return fileKey.getAlgorithm();
+        }
+
+        @Override
+        public String getFormat() {
+            return fileKey.getFormat();
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return fileKey.getEncoded();
+        }
+    }
+
+    private static Cipher threadCipher(ThreadLocal<Cipher> ciphers, String algorithm)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(algorithm);
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Initialises and returns an AES/GCM {@link Cipher} with an explicit 12 byte nonce, for data sealed
+     * outside the chunked file format. The caller may add associated data before processing. The cipher
+     * belongs to the calling thread and is shared with {@link #initChunkCipher}.
+     *
+     * @param mode an int representing Cipher encryption or decryption mode enum
+     * @param secretKey the secret key to be used for the cipher
+     * @param nonce the nonce, never to be used twice with the same key
+     * @return a initialised {@link Cipher} instance
+     * @throws NoSuchPaddingException if the padding scheme is not available
+     * @throws NoSuchAlgorithmException if the algorithm used is not available
+     * @throws InvalidAlgorithmParameterException if the nonce parameter is invalid
+     * @throws InvalidKeyException if the key is invalid
+     */
+    public static Cipher initAeadCipher(int mode, SecretKey secretKey, byte[] nonce) throws NoSuchPaddingException,
+            NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
+
+        Cipher cipher = CHUNK_CIPHERS.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(CHUNK_ALGORITHM);
+            CHUNK_CIPHERS.set(cipher);
+        }
+        cipher.init(mode, secretKey, new GCMParameterSpec(CHUNK_TAG_LENGTH * 8, nonce));
+        return cipher;
+    }
+
+    /**
+     * Derives the nonce of a chunk by XORing the chunk index into the last 8 bytes of the first 12 bytes
+     * of the header IV. Every chunk of a file therefore gets a distinct nonce.
+     *
+     * @param iv the initial vector stored in the file header
+     * @param chunkIndex the zero based index of the chunk
+     * @return the 12 byte nonce of the chunk
+     */
+    public static byte[] deriveChunkNonce(byte[] iv, long chunkIndex) {
+        return deriveChunkNonce(iv, chunkIndex, 0);
+    }
+
+    /**
+     * Derives the nonce of a chunk by XORing the generation into the first 4 bytes and the chunk index into
+     * the last 8 bytes of the first 12 bytes of the header IV. As the two never overlap, every pair of chunk
+     * index and generation gets a distinct nonce.
+     *
+     * @param iv the initial vector stored in the file header
+     * @param chunkIndex the zero based index of the chunk
+     * @param generation the number of times the chunk has been rewritten
+     * @return the 12 byte nonce of the chunk
+     */
+    public static byte[] deriveChunkNonce(byte[] iv, long chunkIndex, int generation) {
+        byte[] nonce = Arrays.copyOf(iv, CHUNK_NONCE_LENGTH);
+        for (int i = 0; i < Integer.BYTES; i++) {
+            nonce[i] ^= (byte) (generation >>> (8 * (Integer.BYTES - 1 - i)));
+        }
+        for (int i = 0; i < Long.BYTES; i++) {
+            nonce[CHUNK_NONCE_LENGTH - 1 - i] ^= (byte) (chunkIndex >>> (8 * i));
+        }
+        return nonce;
+    }
+
+    /**
+     * Processes data in a given stream for encryption or decryption. The stream gets a cipher of its own, as
+     * it may outlive further cipher use on the calling thread.
      *
      * @param inputStream an input stream containing data to be encrypted
      * @param secretKey the secret key to be used when setting up the cipher
@@ -62,7 +395,8 @@ public class CipherUtil {
                                             NoSuchPaddingException, NoSuchAlgorithmException,
                                             InvalidKeyException {
 
-        Cipher cipher = initCipher(mode, secretKey, iv);
+        Cipher cipher = Cipher.getInstance(ALGORITHM);
+        cipher.init(mode, secretKey, new IvParameterSpec(iv));
         return new CipherInputStream(inputStream, cipher);
     }
 
@@ -73,7 +407,7 @@ public class CipherUtil {
      */
     public static byte[] generateSalt() {
         byte[] salt = new byte[SALT_LENGTH];
-        new SecureRandom().nextBytes(salt);
+        RANDOMS.get().nextBytes(salt);
         return salt;
     }
 
@@ -84,10 +418,21 @@ public class CipherUtil {
      */
     public static byte[] generateInitialVector() {
         byte[] ivBytes = new byte[IV_LENGTH];
-        new SecureRandom().nextBytes(ivBytes);
+        RANDOMS.get().nextBytes(ivBytes);
         return ivBytes;
     }
 
+    /**
+     * Generates and returns a random nonce for {@link #initAeadCipher}.
+     *
+     * @return a 12 byte random nonce
+     */
+    public static byte[] generateNonce() {
+        byte[] nonce = new byte[CHUNK_NONCE_LENGTH];
+        RANDOMS.get().nextBytes(nonce);
+        return nonce;
+    }
+
     /**
      * Generates and returns a secret key based on a given passphrase and salt. The key is cleared from
      * memory after being returned.
@@ -98,20 +443,178 @@ public class CipherUtil {
      * @throws CryptoException if unable to generate key
      */
     public static SecretKey generateKey(char[] passphrase, byte[] salt) throws CryptoException {
-        int iterations = 65536;
-        int keyLength = 256;
+        return generateKey(passphrase, salt, DEFAULT_KDF_ITERATIONS);
+    }
 
-        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations, keyLength);
+    /**
+     * Generates and returns a secret key based on a given passphrase and salt using the given number of
+     * PBKDF2 iterations.
+     *
+     * @param passphrase an array of chars given by the user
+     * @param salt an array of bytes used to salt the passphrase
+     * @param iterations the number of PBKDF2 iterations
+     * @return secret key as byte array
+     * @throws CryptoException if unable to generate key
+     */
+    public static SecretKey generateKey(char[] passphrase, byte[] salt, int iterations) throws CryptoException {
+        return generateKey(passphrase, salt, KdfParameters.DEFAULT.withIterations(iterations));
+    }
+
+    /**
+     * Generates and returns a secret key based on a given passphrase and salt using the given key derivation
+     * function and cost, as stored in a file header.
+     *
+     * @param passphrase an array of chars given by the user
+     * @param salt an array of bytes used to salt the passphrase
+     * @param kdfParameters the key derivation function and its number of iterations
+     * @return secret key as byte array
+     * @throws CryptoException if unable to generate key
+     */
+    public static SecretKey generateKey(char[] passphrase, byte[] salt, KdfParameters kdfParameters)
+            throws CryptoException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, kdfParameters.iterations(), KEY_LENGTH);
+        String algorithm = kdfParameters.algorithm().jcaName();
+        KeyDerivationEvent event = new KeyDerivationEvent();
+        event.algorithm = algorithm;
+        event.iterations = kdfParameters.iterations();
+        event.begin();
+        long start = System.nanoTime();
 
         try {
-            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            SecretKeyFactory skf = KEY_FACTORIES.get();
+            if (skf == null || !skf.getAlgorithm().equals(algorithm)) {
+                skf = SecretKeyFactory.getInstance(algorithm);
+                KEY_FACTORIES.set(skf);
+            }
             SecretKey secret = skf.generateSecret(spec);
             return new SecretKeySpec(secret.getEncoded(), "AES");
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             throw new CryptoException("Key generation failed: ", e);
         } finally {
             spec.clearPassword();
+            RunStats.recordKeyDerivation(System.nanoTime() - start);
+            event.commit();
+        }
+    }
+
+    /**
+     * Generates a random 256 bit AES key which encrypts a single file and is stored in its header wrapped
+     * by {@link #wrapKey}.
+     *
+     * @return the data key
+     */
+    public static SecretKey generateDataKey() {
+        byte[] key = new byte[KEY_LENGTH / 8];
+        RANDOMS.get().nextBytes(key);
+        try {
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Derives the key which wraps the data keys of files from a master key and the salt it was derived
+     * with.
+     *
+     * @param masterKey the key derived from the passphrase by {@link #generateKey(char[], byte[])}
+     * @param salt the salt of the master key, stored in the file header
+     * @return the key encryption key
+     * @throws CryptoException if unable to derive key
+     */
+    public static SecretKey deriveKeyEncryptionKey(SecretKey masterKey, byte[] salt) throws CryptoException {
+        return deriveSubkey(masterKey, salt, KEY_WRAP_INFO, "AES");
+    }
+
+    /**
+     * Wraps a data key with AES key wrap (RFC 3394), which also protects its integrity.
+     *
+     * @param keyEncryptionKey the key from {@link #deriveKeyEncryptionKey}
+     * @param dataKey the 256 bit key to wrap
+     * @return the {@link #WRAPPED_KEY_LENGTH} byte wrapped key
+     * @throws CryptoException if unable to wrap the key
+     */
+    public static byte[] wrapKey(SecretKey keyEncryptionKey, SecretKey dataKey) throws CryptoException {
+        try {
+            Cipher cipher = Cipher.getInstance(KEY_WRAP_ALGORITHM);
+            cipher.init(Cipher.WRAP_MODE, keyEncryptionKey);
+            return cipher.wrap(dataKey);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+                 | IllegalBlockSizeException e) {
+            throw new CryptoException("Key wrapping failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Unwraps a data key wrapped by {@link #wrapKey}. A wrong key encryption key, and thus a wrong
+     * passphrase, is detected here before any data is touched.
+     *
+     * @param keyEncryptionKey the key from {@link #deriveKeyEncryptionKey}
+     * @param wrappedKey the wrapped key stored in the file header
+     * @return the data key
+     * @throws CryptoException if the passphrase is wrong or the wrapped key is corrupted
+     */
+    public static SecretKey unwrapKey(SecretKey keyEncryptionKey, byte[] wrappedKey) throws CryptoException {
+        try {
+            Cipher cipher = Cipher.getInstance(KEY_WRAP_ALGORITHM);
+            cipher.init(Cipher.UNWRAP_MODE, keyEncryptionKey);
+            return (SecretKey) cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+        } catch (InvalidKeyException e) {
+            throw new CryptoException("Bad passphrase or corrupted header: the file key could not be unwrapped.", e);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new CryptoException("Key unwrapping failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Derives a 256 bit subkey from a key using HKDF with HMAC-SHA256 (RFC 5869). The salt makes the subkey
+     * unique to a file or object, the info string to its purpose.
+     *
+     * @param key the input key material
+     * @param salt a non-empty, non-secret random value
+     * @param info a label describing what the subkey is used for
+     * @param algorithm the algorithm name of the returned key
+     * @return the derived subkey
+     * @throws CryptoException if unable to derive key
+     */
+    public static SecretKey deriveSubkey(SecretKey key, byte[] salt, String info, String algorithm)
+            throws CryptoException {
+
+        byte[] pseudoRandomKey = null;
+        try {
+            Mac mac = initMac(new SecretKeySpec(salt, HMAC_ALGORITHM));
+            pseudoRandomKey = mac.doFinal(key.getEncoded());
+
+            mac.init(new SecretKeySpec(pseudoRandomKey, HMAC_ALGORITHM));
+            mac.update(info.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 1);
+            return new SecretKeySpec(mac.doFinal(), algorithm);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new CryptoException("Subkey derivation failed: ", e);
+        } finally {
+            if (pseudoRandomKey != null) {
+                Arrays.fill(pseudoRandomKey, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Initialises and returns an HMAC-SHA256 {@link Mac} with the given key. The MAC belongs to the calling
+     * thread and is re-initialised by its next call to this method or to {@link #deriveSubkey}.
+     *
+     * @param secretKey the key of the MAC
+     * @return an initialised {@link Mac} instance
+     * @throws NoSuchAlgorithmException if the algorithm used is not available
+     * @throws InvalidKeyException if the key is invalid
+     */
+    public static Mac initMac(SecretKey secretKey) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = MACS.get();
+        if (mac == null) {
+            mac = Mac.getInstance(HMAC_ALGORITHM);
+            MACS.set(mac);
         }
+        mac.init(secretKey);
+        return mac;
     }
 
     public static boolean isValidPassphrase(char[] passPhrase) {
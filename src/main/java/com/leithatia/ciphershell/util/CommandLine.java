@@ -0,0 +1,128 @@
+package com.leithatia.ciphershell.util;
+
+import java.util.*;
+
+/**
+ * A parsed command line consisting of a command, options starting with "--" and positional arguments.
+ *
+ * @param command   the first argument, e.g. "encrypt".
+ * @param options   the options given, mapped to their value or to an empty string for flags.
+ * @param arguments the remaining positional arguments.
+ */
+public record CommandLine(String command, Map<String, String> options, List<String> arguments) {
+
+    /**
+     * Parses the command line. Options listed in {@code valueOptions} take the following argument as their
+     * value, all other options are flags.
+     *
+     * @param args         the command-line arguments.
+     * @param valueOptions the names of options which take a value, e.g. "--parallelism".
+     * @return the parsed command line.
+     * @throws IllegalArgumentException if there is no command or an option is missing its value.
+     */
+    public static CommandLine parse(String[] args, Set<String> valueOptions) {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("No command given.");
+        }
+
+        Map<String, String> options = new HashMap<>();
+        List<String> arguments = new ArrayList<>();
+
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                arguments.add(arg);
+            } else if (!valueOptions.contains(arg)) {
+                options.put(arg, "");
+            } else if (i + 1 < args.length) {
+                options.put(arg, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Option " + arg + " requires a value.");
+            }
+        }
+        return new CommandLine(args[0], options, arguments);
+    }
+
+    /**
+     * @param name the option name, e.g. "--recursive".
+     * @return {@code true} if the option was given.
+     */
+    public boolean hasOption(String name) {
+        return options.containsKey(name);
+    }
+
+    /**
+     * Returns the value of an option parsed as a positive integer.
+     *
+     * @param name         the option name.
+     * @param defaultValue the value returned if the option was not given.
+     * @return the option value.
+     * @throws IllegalArgumentException if the value is not a positive integer.
+     */
+    public int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value);
+            if (intValue > 0) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Option " + name + " requires a positive number, got '" + value + "'.");
+    }
+
+    /**
+     * Returns the value of an option parsed as a size in bytes, see {@link #parseSize(String)}.
+     *
+     * @param name         the option name.
+     * @param defaultValue the value returned if the option was not given.
+     * @return the option value in bytes.
+     * @throws IllegalArgumentException if the value is not a positive size.
+     */
+    public long sizeOption(String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            long size = parseSize(value);
+            if (size > 0) {
+                return size;
+            }
+        } catch (IllegalArgumentException e) {
+            // fall through to the error below
+        }
+        throw new IllegalArgumentException("Option " + name + " requires a positive size such as 500m or 4g, got '"
+                + value + "'.");
+    }
+
+    /**
+     * Parses a number of bytes with an optional binary suffix: {@code k}, {@code m} or {@code g}, in either case.
+     *
+     * @param size the size, e.g. "4096", "256k" or "4g".
+     * @return the number of bytes.
+     * @throws IllegalArgumentException if the size is not a non-negative number with an optional suffix, or does
+     *                                  not fit in a long.
+     */
+    public static long parseSize(String size) {
+        long unit = switch (size.isEmpty() ? ' ' : Character.toLowerCase(size.charAt(size.length() - 1))) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        long value = Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1));
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative size: " + size);
+        }
+        try {
+            return Math.multiplyExact(value, unit);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Size too large: " + size, e);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.leithatia.ciphershell.util;
 
+import java.io.File;
+
 /**
  * A record that holds the file name and its extension.
  */
@@ -17,15 +19,17 @@ public record FileNameParts(String fileName, String extension) {
     }
 
     /**
-     * Splits the file name into its name and extension parts.
+     * Splits the file name into its name and extension parts. Dots in parent directory names are not
+     * treated as the start of an extension.
      *
      * @param fileName the full name of the file.
      * @return a FileNameParts record containing the file name and extension.
      */
     public static FileNameParts splitFileName(String fileName) {
         int dotIndex = fileName.lastIndexOf('.');
+        int separatorIndex = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf(File.separatorChar));
 
-        if (dotIndex == -1) {
+        if (dotIndex == -1 || dotIndex < separatorIndex) {
             return new FileNameParts(fileName, "");
         }
         return new FileNameParts(fileName.substring(0, dotIndex), fileName.substring(dotIndex + 1));
@@ -0,0 +1,66 @@
+package com.leithatia.ciphershell.util;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+
+import java.time.Duration;
+
+/**
+ * Picks the number of KDF iterations which takes a given time on this machine, so that unlocking a file
+ * costs an attacker as much as the user is willing to wait. The derivation starts out interpreted and gets
+ * several times faster once the JIT has compiled it, which takes a while in the background. It is thus timed
+ * repeatedly for a few seconds, at a growing number of iterations until a run is long enough to measure,
+ * until the fastest rate stops improving. That rate is scaled to the target; slower runs only mean the code
+ * was not compiled yet or the thread was interrupted.
+ */
+public class KdfCalibrator {
+    public static final Duration DEFAULT_TARGET = Duration.ofMillis(250);
+    public static final int MIN_ITERATIONS = 1000;
+    private static final int PROBE_ITERATIONS = 1000;
+    private static final long MIN_RUN_NANOS = Duration.ofMillis(20).toNanos();
+    private static final long MIN_CALIBRATION_NANOS = Duration.ofSeconds(2).toNanos();
+    private static final long MAX_CALIBRATION_NANOS = Duration.ofSeconds(6).toNanos();
+    private static final long STABLE_NANOS = Duration.ofMillis(500).toNanos();
+    private static final double IMPROVEMENT = 0.95;
+    private static final char[] PASSPHRASE = "calibration passphrase".toCharArray();
+
+    /**
+     * Measures the key derivation function and scales its iterations to the target time.
+     *
+     * @param algorithm the key derivation function.
+     * @param target    how long one derivation should take.
+     * @return the parameters taking about the target time, rounded down to a thousand iterations.
+     * @throws CryptoException if the key derivation function is not available.
+     */
+    public static KdfParameters calibrate(KdfParameters.Algorithm algorithm, Duration target) throws CryptoException {
+        byte[] salt = CipherUtil.generateSalt();
+        KdfParameters probe = new KdfParameters(algorithm, PROBE_ITERATIONS);
+        double bestNanosPerIteration = Double.MAX_VALUE;
+        long start = System.nanoTime();
+        long lastImprovement = start;
+
+        long now = start;
+        while (now - start < MIN_CALIBRATION_NANOS
+                || (now - lastImprovement < STABLE_NANOS && now - start < MAX_CALIBRATION_NANOS)) {
+            long nanos = time(probe, salt);
+            now = System.nanoTime();
+            double nanosPerIteration = (double) nanos / probe.iterations();
+            if (nanosPerIteration < bestNanosPerIteration * IMPROVEMENT) {
+                lastImprovement = now;
+            }
+            bestNanosPerIteration = Math.min(bestNanosPerIteration, nanosPerIteration);
+            if (nanos < MIN_RUN_NANOS && probe.iterations() <= KdfParameters.MAX_ITERATIONS / 2) {
+                probe = probe.withIterations(probe.iterations() * 2);
+            }
+        }
+
+        long iterations = (long) (target.toNanos() / bestNanosPerIteration);
+        iterations = Math.max(MIN_ITERATIONS, Math.min(KdfParameters.MAX_ITERATIONS, iterations / 1000 * 1000));
+        return new KdfParameters(algorithm, (int) iterations);
+    }
+
+    private static long time(KdfParameters kdfParameters, byte[] salt) throws CryptoException {
+        long start = System.nanoTime();
+        CipherUtil.generateKey(PASSPHRASE, salt, kdfParameters);
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,115 @@
+package com.leithatia.ciphershell.util;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * How a master key is derived from a passphrase: the key derivation function and its cost. They are stored
+ * next to the salt, in file headers and repository configs, so that the cost can be raised for new files
+ * or lowered on slow hosts while existing files stay readable.
+ *
+ * @param algorithm  the key derivation function.
+ * @param iterations the number of iterations, which sets how long a derivation takes.
+ */
+public record KdfParameters(Algorithm algorithm, int iterations) {
+
+    /**
+     * The length of the parameters once encoded: the algorithm id and the iterations.
+     */
+    public static final int ENCODED_LENGTH = 1 + Integer.BYTES;
+    /**
+     * The highest cost accepted, from the command line or from a header. Headers are read before anything is
+     * authenticated, so the limit also bounds how long a tampered header can keep a run busy deriving a key.
+     */
+    public static final int MAX_ITERATIONS = 10_000_000;
+    public static final KdfParameters DEFAULT = new KdfParameters(Algorithm.PBKDF2_SHA256,
+            CipherUtil.DEFAULT_KDF_ITERATIONS);
+
+    /**
+     * The supported key derivation functions. The id is stored in headers and must never change.
+     */
+    public enum Algorithm {
+        PBKDF2_SHA256((byte) 1, "pbkdf2-sha256", "PBKDF2WithHmacSHA256"),
+        PBKDF2_SHA512((byte) 2, "pbkdf2-sha512", "PBKDF2WithHmacSHA512");
+
+        private final byte id;
+        private final String optionName;
+        private final String jcaName;
+
+        Algorithm(byte id, String optionName, String jcaName) {
+            this.id = id;
+            this.optionName = optionName;
+            this.jcaName = jcaName;
+        }
+
+        public byte id() {
+            return id;
+        }
+
+        public String optionName() {
+            return optionName;
+        }
+
+        public String jcaName() {
+            return jcaName;
+        }
+
+        /**
+         * @param id the id stored in a header.
+         * @return the algorithm with the id, or {@code null} if it is unknown.
+         */
+        public static Algorithm fromId(byte id) {
+            return Arrays.stream(values()).filter(algorithm -> algorithm.id == id).findFirst().orElse(null);
+        }
+
+        /**
+         * @param optionName the name of the algorithm on the command line, e.g. {@code pbkdf2-sha256}.
+         * @return the algorithm.
+         * @throws IllegalArgumentException if no algorithm has the name.
+         */
+        public static Algorithm fromOptionName(String optionName) {
+            return Arrays.stream(values()).filter(algorithm -> algorithm.optionName.equals(optionName)).findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown key derivation function: " + optionName
+                            + ". Use one of " + Arrays.stream(values()).map(Algorithm::optionName)
+                            .collect(Collectors.joining(", ")) + "."));
+        }
+    }
+
+    public KdfParameters {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("A key derivation function is required");
+        }
+        if (iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("KDF iterations must be between 1 and " + MAX_ITERATIONS + ": "
+                    + iterations);
+        }
+    }
+
+    /**
+     * Validates parameters read from a header, which may have been written by a later version or tampered with.
+     *
+     * @param algorithmId the id of the key derivation function.
+     * @param iterations  the number of iterations.
+     * @return the parameters.
+     * @throws CryptoException if the function is unknown or the cost out of range.
+     */
+    public static KdfParameters decode(byte algorithmId, int iterations) throws CryptoException {
+        Algorithm algorithm = Algorithm.fromId(algorithmId);
+        if (algorithm == null || iterations < 1 || iterations > MAX_ITERATIONS) {
+            throw new CryptoException("Unsupported key derivation: algorithm " + algorithmId + ", " + iterations
+                    + " iterations.");
+        }
+        return new KdfParameters(algorithm, iterations);
+    }
+
+    public KdfParameters withIterations(int iterations) {
+        return new KdfParameters(algorithm, iterations);
+    }
+
+    @Override
+    public String toString() {
+        return algorithm.optionName + ", " + iterations + " iterations";
+    }
+}
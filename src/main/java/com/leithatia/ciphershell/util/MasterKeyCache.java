@@ -0,0 +1,223 @@
+package com.leithatia.ciphershell.util;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Derives master keys from a passphrase and remembers them by salt and key derivation parameters, so the
+ * expensive passphrase derivation runs once per salt rather than once per file. Safe for use by concurrent
+ * jobs; a salt that is requested by several threads at once is only derived once.
+ * <p>
+ * Keys for new salts are derived with the cache's {@link KdfParameters}; keys for existing files with the
+ * parameters stored in their header. The parameters are read before the file is authenticated, so a key is
+ * only ever remembered and shared together with the parameters it was derived with.
+ */
+public class MasterKeyCache implements AutoCloseable {
+
+    /**
+     * Supplies the passphrase when a key has to be derived, e.g. by prompting for it.
+     */
+    @FunctionalInterface
+    public interface PassphraseSupplier {
+        char[] get() throws IOException;
+    }
+
+    /**
+     * A store of master keys outliving this cache, such as the key agent. Lookups which fail for any reason
+     * report the key as unknown, so the key is derived instead.
+     */
+    public interface SharedKeys {
+        /**
+         * @param salt          the salt stored in a file header.
+         * @param kdfParameters the key derivation function and cost stored with the salt.
+         * @return the master key for the salt and parameters, or {@code null} if it is not known.
+         */
+        SecretKey find(byte[] salt, KdfParameters kdfParameters);
+
+        /**
+         * @param salt          the salt stored in a file header.
+         * @param kdfParameters the key derivation function and cost the key was derived with.
+         * @param key           the master key derived for the salt.
+         */
+        void store(byte[] salt, KdfParameters kdfParameters, SecretKey key);
+    }
+
+    private final PassphraseSupplier passphraseSupplier;
+    private final SharedKeys sharedKeys;
+    private final KdfParameters kdfParameters;
+    private final Map<String, SecretKey> keys = new ConcurrentHashMap<>();
+    private final Map<String, SecretKey> unconfirmedKeys = new ConcurrentHashMap<>();
+    private char[] passphrase;
+
+    /**
+     * Constructs a new cache for the given passphrase. The cache takes ownership of the passphrase and
+     * clears it when closed.
+     *
+     * @param passphrase the passphrase from which master keys are derived.
+     */
+    public MasterKeyCache(char[] passphrase) {
+        this(passphrase, null);
+    }
+
+    /**
+     * Constructs a new cache for the given passphrase which consults the shared keys before deriving a key
+     * and adds the keys it derives to them once {@link #confirm(byte[], KdfParameters) confirmed}.
+     *
+     * @param passphrase the passphrase from which master keys are derived, cleared when closed.
+     * @param sharedKeys the shared keys, or {@code null} for none.
+     */
+    public MasterKeyCache(char[] passphrase, SharedKeys sharedKeys) {
+        this(passphrase, sharedKeys, KdfParameters.DEFAULT);
+    }
+
+    /**
+     * Constructs a new cache for the given passphrase deriving keys for new salts with the given parameters.
+     *
+     * @param passphrase    the passphrase from which master keys are derived, cleared when closed.
+     * @param sharedKeys    the shared keys, or {@code null} for none.
+     * @param kdfParameters the key derivation function and cost for new salts.
+     */
+    public MasterKeyCache(char[] passphrase, SharedKeys sharedKeys, KdfParameters kdfParameters) {
+        this.passphrase = passphrase;
+        this.passphraseSupplier = null;
+        this.sharedKeys = sharedKeys;
+        this.kdfParameters = kdfParameters;
+    }
+
+    /**
+     * Constructs a new cache which only asks for the passphrase once a key is neither cached nor found in the
+     * shared keys, so no passphrase is needed at all when every key is already shared.
+     *
+     * @param passphraseSupplier supplies the passphrase on first need; the cache clears it when closed.
+     * @param sharedKeys         the shared keys, or {@code null} for none.
+     */
+    public MasterKeyCache(PassphraseSupplier passphraseSupplier, SharedKeys sharedKeys) {
+        this(passphraseSupplier, sharedKeys, KdfParameters.DEFAULT);
+    }
+
+    /**
+     * Constructs a new cache which asks for the passphrase on first need and derives keys for new salts with
+     * the given parameters.
+     *
+     * @param passphraseSupplier supplies the passphrase on first need; the cache clears it when closed.
+     * @param sharedKeys         the shared keys, or {@code null} for none.
+     * @param kdfParameters      the key derivation function and cost for new salts.
+     */
+    public MasterKeyCache(PassphraseSupplier passphraseSupplier, SharedKeys sharedKeys, KdfParameters kdfParameters) {
+        this.passphraseSupplier = passphraseSupplier;
+        this.sharedKeys = sharedKeys;
+        this.kdfParameters = kdfParameters;
+    }
+
+    /**
+     * @return the key derivation function and cost used for new salts, to be stored next to them.
+     */
+    public KdfParameters getKdfParameters() {
+        return kdfParameters;
+    }
+
+    /**
+     * Returns the master key for a new salt, derived with the cache's parameters.
+     *
+     * @param salt the salt to be stored in a file header.
+     * @return the master key.
+     * @throws CryptoException if unable to generate key.
+     */
+    public SecretKey get(byte[] salt) throws CryptoException {
+        return get(salt, kdfParameters);
+    }
+
+    /**
+     * Returns the master key for the given salt, taking it from the shared keys or deriving it on first use.
+     *
+     * @param salt          the salt stored in a file header.
+     * @param kdfParameters the key derivation function and cost stored with the salt.
+     * @return the master key.
+     * @throws CryptoException if unable to generate key.
+     */
+    public SecretKey get(byte[] salt, KdfParameters kdfParameters) throws CryptoException {
+        try {
+            return keys.computeIfAbsent(cacheKey(salt, kdfParameters), cacheKey -> {
+                SecretKey key = sharedKeys == null ? null : sharedKeys.find(salt, kdfParameters);
+                if (key != null) {
+                    return key;
+                }
+                try {
+                    key = CipherUtil.generateKey(passphrase(), salt, kdfParameters);
+                } catch (CryptoException e) {
+                    throw new IllegalStateException(e);
+                }
+                if (sharedKeys != null) {
+                    unconfirmedKeys.put(cacheKey, key);
+                }
+                return key;
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof CryptoException cryptoException) {
+                throw cryptoException;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the key derived for a new salt with the cache's parameters to the shared keys, once it has
+     * encrypted a file.
+     *
+     * @param salt the salt stored in a file header.
+     */
+    public void confirm(byte[] salt) {
+        confirm(salt, kdfParameters);
+    }
+
+    /**
+     * Adds the key derived for the salt and parameters to the shared keys, once it has encrypted a file or
+     * successfully authenticated one. Keys derived from a mistyped passphrase, or with parameters edited into
+     * a header, are thus never shared.
+     *
+     * @param salt          the salt stored in a file header.
+     * @param kdfParameters the key derivation function and cost stored with the salt.
+     */
+    public void confirm(byte[] salt, KdfParameters kdfParameters) {
+        if (sharedKeys == null) {
+            return;
+        }
+        SecretKey key = unconfirmedKeys.remove(cacheKey(salt, kdfParameters));
+        if (key != null) {
+            sharedKeys.store(salt, kdfParameters, key);
+        }
+    }
+
+    private static String cacheKey(byte[] salt, KdfParameters kdfParameters) {
+        return HexFormat.of().formatHex(salt) + "/" + kdfParameters.algorithm().id() + "/" + kdfParameters.iterations();
+    }
+
+    private synchronized char[] passphrase() throws CryptoException {
+        if (passphrase == null) {
+            try {
+                passphrase = passphraseSupplier.get();
+            } catch (IOException e) {
+                throw new CryptoException("Unable to read passphrase: " + e.getMessage(), e);
+            }
+        }
+        return passphrase;
+    }
+
+    /**
+     * Clears the passphrase and forgets all derived keys.
+     */
+    @Override
+    public synchronized void close() {
+        if (passphrase != null) {
+            Arrays.fill(passphrase, '\0');
+        }
+        keys.clear();
+        unconfirmedKeys.clear();
+    }
+}
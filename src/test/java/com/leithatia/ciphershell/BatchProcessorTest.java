@@ -0,0 +1,73 @@
+package com.leithatia.ciphershell.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchProcessorTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testEncryptAndDecryptDirectoryTree() throws Exception {
+        Path nested = Files.createDirectories(tempDir.resolve("logs.d").resolve("nested"));
+        Files.writeString(tempDir.resolve("a.txt"), "first file");
+        Files.writeString(nested.resolve("b.json"), "{\"second\": \"file\"}");
+        Files.writeString(nested.resolve("noextension"), "third file");
+
+        assertEquals(0, BatchProcessor.encryptDirectory(tempDir, PASSPHRASE.toCharArray(), 2));
+        assertTrue(Files.exists(tempDir.resolve("a.enc")));
+        assertTrue(Files.exists(nested.resolve("b.enc")));
+        assertTrue(Files.exists(nested.resolve("noextension.enc")));
+
+        Files.delete(tempDir.resolve("a.txt"));
+        Files.delete(nested.resolve("b.json"));
+
+        assertEquals(0, BatchProcessor.decryptDirectory(tempDir, PASSPHRASE.toCharArray(), 2));
+        assertEquals("first file", Files.readString(tempDir.resolve("a.txt")));
+        assertEquals("{\"second\": \"file\"}", Files.readString(nested.resolve("b.json")));
+    }
+
+    @Test
+    public void testFilesWithSameEncryptedNameAreNotOverwritten() throws Exception {
+        Files.writeString(tempDir.resolve("report.txt"), "text");
+        Files.writeString(tempDir.resolve("report.csv"), "csv");
+
+        assertEquals(1, BatchProcessor.encryptDirectory(tempDir, PASSPHRASE.toCharArray(), 2));
+    }
+
+    @Test
+    public void testForeignFileFailsWithoutStoppingTheBatch() throws Exception {
+        Files.writeString(tempDir.resolve("a.txt"), "first file");
+        assertEquals(0, BatchProcessor.encryptDirectory(tempDir, PASSPHRASE.toCharArray(), 2));
+        Files.delete(tempDir.resolve("a.txt"));
+        Files.write(tempDir.resolve("foreign.enc"), new byte[100]);
+
+        assertEquals(1, BatchProcessor.decryptDirectory(tempDir, PASSPHRASE.toCharArray(), 2));
+        assertEquals("first file", Files.readString(tempDir.resolve("a.txt")));
+    }
+
+    @Test
+    public void testPartialOutputsAreNotEncrypted() throws Exception {
+        Files.writeString(tempDir.resolve("a.txt"), "first file");
+        Files.writeString(tempDir.resolve("notes.tmp"), "a file of the user's");
+        Files.writeString(tempDir.resolve("b.enc" + CheckpointJournal.PARTIAL_SUFFIX), "half written");
+
+        assertEquals(0, BatchProcessor.encryptDirectory(tempDir, PASSPHRASE.toCharArray(), 2));
+        try (Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(Set.of("a.txt", "a.enc", "notes.tmp", "notes.enc",
+                            "b.enc" + CheckpointJournal.PARTIAL_SUFFIX),
+                    files.map(file -> file.getFileName().toString()).collect(Collectors.toSet()));
+        }
+    }
+}
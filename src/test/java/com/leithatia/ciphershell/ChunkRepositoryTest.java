@@ -0,0 +1,135 @@
+package com.leithatia.ciphershell.store;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkRepositoryTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+    private static final int PARALLELISM = 4;
+
+    @TempDir
+    Path tempDir;
+
+    private Path repositoryDirectory;
+    private byte[] monday;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        repositoryDirectory = tempDir.resolve("repo");
+        monday = randomBytes(8 * 1024 * 1024, 1);
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            ChunkRepository.create(repositoryDirectory, masterKeys, PARALLELISM);
+        }
+    }
+
+    @Test
+    public void testNearIdenticalFilesShareChunks() throws Exception {
+        byte[] tuesday = new byte[monday.length + 1000];
+        System.arraycopy(monday, 0, tuesday, 0, 3_000_000);
+        System.arraycopy(randomBytes(1000, 2), 0, tuesday, 3_000_000, 1000);
+        System.arraycopy(monday, 3_000_000, tuesday, 3_001_000, monday.length - 3_000_000);
+
+        StoreResult first = store("monday.img", monday);
+        assertEquals(first.chunkCount(), first.newChunkCount());
+        assertEquals(monday.length, first.newBytes());
+
+        StoreResult second = store("tuesday.img", tuesday);
+        assertTrue(second.newChunkCount() <= 2, "Only the chunks around the insertion should be new: " + second);
+        assertTrue(second.newBytes() < tuesday.length / 2);
+        assertEquals(first.newChunkCount() + second.newChunkCount(), countChunkFiles());
+
+        Files.delete(tempDir.resolve("monday.img"));
+        Files.delete(tempDir.resolve("tuesday.img"));
+        assertArrayEquals(monday, Files.readAllBytes(restore("monday.img.idx")));
+        assertArrayEquals(tuesday, Files.readAllBytes(restore("tuesday.img.idx")));
+    }
+
+    @Test
+    public void testWrongPassphraseIsRejected() {
+        try (MasterKeyCache masterKeys = new MasterKeyCache("not the right passphrase".toCharArray())) {
+            assertThrows(CryptoException.class, () -> ChunkRepository.open(repositoryDirectory, masterKeys, PARALLELISM));
+        }
+    }
+
+    @Test
+    public void testTamperedChunkFailsRestoreWithoutOutput() throws Exception {
+        store("monday.img", monday);
+        Files.delete(tempDir.resolve("monday.img"));
+        try (Stream<Path> chunks = Files.walk(repositoryDirectory.resolve("chunks"))) {
+            Path chunk = chunks.filter(Files::isRegularFile).findAny().orElseThrow();
+            byte[] sealed = Files.readAllBytes(chunk);
+            sealed[sealed.length / 2] ^= 1;
+            Files.write(chunk, sealed);
+        }
+
+        assertThrows(CryptoException.class, () -> restore("monday.img.idx"));
+        assertFalse(Files.exists(tempDir.resolve("monday.img")), "A failed restore should leave no partial file");
+    }
+
+    @Test
+    public void testChunkBoundariesFollowContent() throws Exception {
+        long[] gear = new Random(3).longs(256).toArray();
+        int[] before = chunkLengths(gear, monday);
+        byte[] shifted = new byte[monday.length + 1];
+        System.arraycopy(monday, 0, shifted, 1, monday.length);
+        int[] after = chunkLengths(gear, shifted);
+
+        assertEquals(before.length, after.length);
+        assertEquals(before[0] + 1, after[0], "The inserted byte should only lengthen the first chunk");
+        for (int i = 1; i < before.length; i++) {
+            assertEquals(before[i], after[i]);
+        }
+        for (int i = 0; i < before.length - 1; i++) {
+            assertTrue(before[i] > ContentDefinedChunker.MIN_CHUNK_SIZE && before[i] <= ContentDefinedChunker.MAX_CHUNK_SIZE);
+        }
+    }
+
+    private StoreResult store(String fileName, byte[] data) throws Exception {
+        Path file = tempDir.resolve(fileName);
+        Files.write(file, data);
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            return ChunkRepository.open(repositoryDirectory, masterKeys, PARALLELISM)
+                    .store(file, tempDir.resolve(fileName + ".idx"));
+        }
+    }
+
+    private Path restore(String indexName) throws Exception {
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            return ChunkRepository.open(repositoryDirectory, masterKeys, PARALLELISM).restore(tempDir.resolve(indexName));
+        }
+    }
+
+    private long countChunkFiles() throws Exception {
+        try (Stream<Path> chunks = Files.walk(repositoryDirectory.resolve("chunks"))) {
+            return chunks.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private static int[] chunkLengths(long[] gear, byte[] data) throws Exception {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(gear, new ByteArrayInputStream(data));
+        Stream.Builder<byte[]> chunks = Stream.builder();
+        byte[] chunk;
+        while ((chunk = chunker.next()) != null) {
+            chunks.add(chunk);
+        }
+        return chunks.build().mapToInt(c -> c.length).toArray();
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
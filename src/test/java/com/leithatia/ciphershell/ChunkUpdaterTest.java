@@ -0,0 +1,175 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkUpdaterTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+    private static final int CHUNK_SIZE = 4096;
+
+    @TempDir
+    Path tempDir;
+
+    private CipherEngine engine;
+    private Path plainFile;
+    private Path encryptedFile;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        engine = new CipherEngine(Cipher.ENCRYPT_MODE, EngineConfig.defaults().withChunkSize(CHUNK_SIZE));
+        plainFile = tempDir.resolve("disk.img");
+        encryptedFile = tempDir.resolve("disk.enc");
+        Files.write(plainFile, randomBytes(CHUNK_SIZE * 10 + 100));
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            engine.encryptFile(plainFile.toString(), masterKeys, CipherUtil.generateSalt());
+        }
+    }
+
+    @Test
+    public void testOnlyChangedChunksAreRewritten() throws Exception {
+        UpdateResult first = update();
+        assertTrue(first.fullRewrite(), "A file without generations should be encrypted afresh");
+        assertTrue(readHeader().hasChunkGenerations());
+
+        byte[] data = Files.readAllBytes(plainFile);
+        data[CHUNK_SIZE * 3 + 10] ^= 1;
+        Files.write(plainFile, data);
+        byte[] before = Files.readAllBytes(encryptedFile);
+
+        UpdateResult second = update();
+        assertEquals(new UpdateResult(11, 1, false), second);
+        assertEquals(1, generation(3), "The rewritten chunk should carry a new generation");
+        assertEquals(0, generation(2));
+
+        int recordLength = ChunkedFileProcessor.recordLength(readHeader());
+        int headerLength = readHeader().getLength();
+        byte[] after = Files.readAllBytes(encryptedFile);
+        long differingRecords = IntStream.range(0, 11)
+                .filter(i -> !Arrays.equals(before, headerLength + i * recordLength,
+                        Math.min(before.length, headerLength + (i + 1) * recordLength),
+                        after, headerLength + i * recordLength,
+                        Math.min(after.length, headerLength + (i + 1) * recordLength)))
+                .count();
+        assertEquals(1, differingRecords, "Only the changed chunk should be written");
+        assertDecryptsTo(data);
+    }
+
+    @Test
+    public void testShrinkingAndGrowingNeverReusesAGeneration() throws Exception {
+        update();
+        byte[] data = Files.readAllBytes(plainFile);
+
+        Files.write(plainFile, Arrays.copyOf(data, CHUNK_SIZE * 9 + 5));
+        data[CHUNK_SIZE * 9 + 1] ^= 1;
+        update();
+        assertEquals(1, generation(9));
+
+        Files.write(plainFile, Arrays.copyOf(data, CHUNK_SIZE * 4));
+        assertEquals(new UpdateResult(4, 1, false), update());
+        assertEquals(2, generation(3));
+
+        Files.write(plainFile, data);
+        update();
+        assertEquals(3, generation(9), "A chunk written again after truncation needs a generation above all earlier ones");
+        assertDecryptsTo(data);
+    }
+
+    @Test
+    public void testRolledBackChunkIsRefused() throws Exception {
+        update();
+        byte[] original = Files.readAllBytes(encryptedFile);
+        byte[] data = Files.readAllBytes(plainFile);
+        data[CHUNK_SIZE * 3 + 10] ^= 1;
+        Files.write(plainFile, data);
+        update();
+        assertEquals(1, readHeader().getGeneration());
+
+        FileHeader fileHeader = readHeader();
+        int recordLength = ChunkedFileProcessor.recordLength(fileHeader);
+        long offset = ChunkedFileProcessor.encryptedChunkOffset(fileHeader, 3);
+        byte[] rolledBack = Files.readAllBytes(encryptedFile);
+        System.arraycopy(original, (int) offset, rolledBack, (int) offset, recordLength);
+        Files.write(encryptedFile, rolledBack);
+        data[CHUNK_SIZE * 5] ^= 1;
+        Files.write(plainFile, data);
+
+        assertThrows(CryptoException.class, this::update, "A chunk rolled back to an older copy should be refused");
+        assertArrayEquals(rolledBack, Files.readAllBytes(encryptedFile));
+    }
+
+    @Test
+    public void testMissingManifestFallsBackToDecrypting() throws Exception {
+        update();
+        Files.delete(ChunkManifest.pathFor(encryptedFile));
+
+        assertEquals(new UpdateResult(11, 0, false), update());
+        assertTrue(Files.exists(ChunkManifest.pathFor(encryptedFile)));
+    }
+
+    @Test
+    public void testWrongPassphraseLeavesFileUntouched() throws Exception {
+        update();
+        byte[] before = Files.readAllBytes(encryptedFile);
+        Files.write(plainFile, randomBytes(CHUNK_SIZE));
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache("not the right passphrase".toCharArray())) {
+            assertThrows(CryptoException.class,
+                    () -> engine.updateFile(plainFile.toString(), encryptedFile.toString(), masterKeys));
+        }
+        assertArrayEquals(before, Files.readAllBytes(encryptedFile));
+    }
+
+    private UpdateResult update() throws Exception {
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            return engine.updateFile(plainFile.toString(), encryptedFile.toString(), masterKeys);
+        }
+    }
+
+    private FileHeader readHeader() throws Exception {
+        try (InputStream inputStream = Files.newInputStream(encryptedFile)) {
+            return FileProcessor.readHeader(inputStream);
+        }
+    }
+
+    private int generation(long chunkIndex) throws Exception {
+        try (FileChannel channel = FileChannel.open(encryptedFile, StandardOpenOption.READ)) {
+            return ChunkedFileProcessor.readGeneration(channel, FileProcessor.readHeader(channel), chunkIndex);
+        }
+    }
+
+    private void assertDecryptsTo(byte[] data) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = Files.newInputStream(encryptedFile)) {
+            FileProcessor.decryptStream(inputStream, outputStream, PASSPHRASE.toCharArray());
+        }
+        assertArrayEquals(data, outputStream.toByteArray(), "Streaming decryption should see the updated data");
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        FileProcessor.decryptRange(encryptedFile.toString(), 0, data.length, range, PASSPHRASE.toCharArray());
+        assertArrayEquals(data, range.toByteArray(), "Random access should see the updated data");
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
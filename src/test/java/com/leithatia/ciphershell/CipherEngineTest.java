@@ -0,0 +1,460 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherSuite;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.KdfParameters;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.Cipher;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CipherEngineTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+    private static final int JOBS = 8;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testConcurrentJobsWithDifferentSettings() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(JOBS);
+        try {
+            List<Future<?>> jobs = new ArrayList<>();
+            for (int i = 0; i < JOBS; i++) {
+                int job = i;
+                jobs.add(executor.submit(() -> {
+                    EngineConfig config = EngineConfig.defaults()
+                            .withKdfIterations(1000 + job)
+                            .withChunkSize(4096 << job);
+                    roundTrip(config, "job" + job, 100_000 + job * 7919);
+                    return null;
+                }));
+            }
+            for (Future<?> job : jobs) {
+                job.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testEngineUsesItsChunkSize() throws Exception {
+        EngineConfig config = EngineConfig.defaults().withKdfIterations(1000).withChunkSize(8192);
+        Path plainFile = tempDir.resolve("small-chunks.txt");
+        Files.write(plainFile, new byte[20000]);
+
+        CipherEngine engine = new CipherEngine(Cipher.ENCRYPT_MODE, config);
+        String encryptedFile;
+        try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptedFile = engine.process(plainFile.toString(), masterKeys);
+        }
+
+        try (var inputStream = Files.newInputStream(Paths.get(encryptedFile))) {
+            assertEquals(8192, FileProcessor.readHeader(inputStream).getChunkSize());
+        }
+    }
+
+    @Test
+    public void testFileNotEncryptedByThisApplicationThrows() throws Exception {
+        Path plainFile = tempDir.resolve("plain.enc");
+        Files.write(plainFile, new byte[100]);
+        CipherEngine engine = new CipherEngine(Cipher.DECRYPT_MODE, EngineConfig.defaults());
+
+        try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+            assertThrows(CryptoException.class, () -> engine.process(plainFile.toString(), masterKeys));
+        }
+    }
+
+    @Test
+    public void testVerifyAuthenticatesEveryChunkWithoutWritingPlaintext() throws Exception {
+        EngineConfig config = EngineConfig.defaults().withKdfIterations(1000).withChunkSize(4096);
+        Path plainFile = tempDir.resolve("archive.tar");
+        byte[] data = new byte[50_000];
+        new Random(1).nextBytes(data);
+        Files.write(plainFile, data);
+
+        CipherEngine engine = new CipherEngine(Cipher.ENCRYPT_MODE, config);
+        Path encryptedFile;
+        try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptedFile = Paths.get(engine.process(plainFile.toString(), masterKeys));
+        }
+        Files.delete(plainFile);
+
+        try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+            assertTrue(engine.verifyFile(encryptedFile.toString(), masterKeys));
+        }
+        assertFalse(Files.exists(plainFile), "Verification should not write the plaintext");
+
+        byte[] encrypted = Files.readAllBytes(encryptedFile);
+        encrypted[encrypted.length - 5000] ^= 1;
+        Files.write(encryptedFile, encrypted);
+        try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+            assertThrows(CryptoException.class, () -> engine.verifyFile(encryptedFile.toString(), masterKeys));
+        }
+
+        Files.write(encryptedFile, Arrays.copyOf(encrypted, encrypted.length - 1000));
+        try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+            assertThrows(CryptoException.class, () -> engine.verifyFile(encryptedFile.toString(), masterKeys),
+                    "A truncated file should fail verification");
+        }
+        assertFalse(Files.exists(plainFile));
+    }
+
+    @Test
+    public void testChunksAuthenticateTheHeader() throws Exception {
+        EngineConfig config = EngineConfig.defaults().withKdfIterations(1000).withChunkSize(4096);
+        Path plainFile = tempDir.resolve("report.pdf");
+        Files.write(plainFile, new byte[20_000]);
+
+        CipherEngine engine = new CipherEngine(Cipher.ENCRYPT_MODE, config);
+        Path encryptedFile;
+        try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptedFile = Paths.get(engine.process(plainFile.toString(), masterKeys));
+        }
+        byte[] encrypted = Files.readAllBytes(encryptedFile);
+        assertArrayEquals(FileHeader.chunkedMagicNumber, Arrays.copyOf(encrypted, 6));
+
+        // the extension, then the flags byte
+        for (int offset : new int[]{6, FileHeader.CHUNKED_HEADER_LENGTH - 1}) {
+            byte[] tampered = encrypted.clone();
+            tampered[offset] ^= FileHeader.FLAG_COMPRESSED;
+            Files.write(encryptedFile, tampered);
+            try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+                assertThrows(CryptoException.class, () -> engine.verifyFile(encryptedFile.toString(), masterKeys),
+                        "A header edited at " + offset + " should fail verification");
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidSettingsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> EngineConfig.defaults().withKdfIterations(0));
+        assertThrows(IllegalArgumentException.class, () -> EngineConfig.defaults().withChunkSize(0));
+        assertThrows(IllegalArgumentException.class, () -> EngineConfig.defaults().withVolumeSize(1024));
+        assertThrows(IllegalArgumentException.class, () -> new CipherEngine(Cipher.WRAP_MODE, EngineConfig.defaults()));
+    }
+
+    @Test
+    public void testDecryptionUsesKdfParametersFromHeader() throws Exception {
+        KdfParameters kdfParameters = new KdfParameters(KdfParameters.Algorithm.PBKDF2_SHA512, 2000);
+        CipherEngine engine = new CipherEngine(Cipher.ENCRYPT_MODE,
+                EngineConfig.defaults().withKdfParameters(kdfParameters));
+        Path plainFile = tempDir.resolve("archive.tar");
+        byte[] data = new byte[30_000];
+        new Random(2).nextBytes(data);
+        Files.write(plainFile, data);
+
+        String encryptedFile;
+        try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptedFile = engine.process(plainFile.toString(), masterKeys);
+        }
+        try (var inputStream = Files.newInputStream(Paths.get(encryptedFile))) {
+            assertEquals(kdfParameters, FileProcessor.readHeader(inputStream).getKdfParameters());
+        }
+        Files.delete(plainFile);
+
+        FileProcessor.processFileForDecryption(encryptedFile, PASSPHRASE.toCharArray());
+        assertArrayEquals(data, Files.readAllBytes(plainFile));
+    }
+
+    @Test
+    public void testCipherSuiteIsRecordedAndUsedToDecrypt() throws Exception {
+        byte[] data = new byte[30_000];
+        new Random(4).nextBytes(data);
+        for (CipherSuite suite : CipherSuite.values()) {
+            EngineConfig config = EngineConfig.defaults().withKdfIterations(1000).withChunkSize(4096)
+                    .withCipherSuite(suite);
+            Path plainFile = tempDir.resolve(suite.optionName() + ".bin");
+            Files.write(plainFile, data);
+
+            CipherEngine engine = new CipherEngine(Cipher.ENCRYPT_MODE, config);
+            String encryptedFile;
+            try (MasterKeyCache masterKeys = engine.newKeyCache(PASSPHRASE.toCharArray())) {
+                encryptedFile = engine.process(plainFile.toString(), masterKeys);
+            }
+            try (var inputStream = Files.newInputStream(Paths.get(encryptedFile))) {
+                FileHeader fileHeader = FileProcessor.readHeader(inputStream);
+                assertEquals(suite, fileHeader.getCipherSuite());
+                assertEquals(suite != CipherSuite.AES_GCM, fileHeader.hasCipherSuite(),
+                        "AES/GCM files keep the header they had before suites were recorded");
+            }
+            Files.delete(plainFile);
+
+            FileProcessor.processFileForDecryption(encryptedFile, PASSPHRASE.toCharArray());
+            assertArrayEquals(data, Files.readAllBytes(plainFile), suite.toString());
+        }
+    }
+
+    @Test
+    public void testInterruptedRunsResumeFromTheirCheckpoint() throws Exception {
+        EngineConfig config = EngineConfig.defaults().withKdfIterations(1000).withChunkSize(4096)
+                .withCheckpointInterval(8192).withResume(true);
+        Path plainFile = tempDir.resolve("disk.img");
+        byte[] data = new byte[50_000];
+        new Random(3).nextBytes(data);
+        Files.write(plainFile, data);
+        CipherEngine encryptor = new CipherEngine(Cipher.ENCRYPT_MODE, config);
+        CipherEngine decryptor = new CipherEngine(Cipher.DECRYPT_MODE, config);
+
+        Path encryptedFile;
+        try (MasterKeyCache masterKeys = encryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptedFile = Paths.get(encryptor.process(plainFile.toString(), masterKeys));
+        }
+        byte[] encrypted = Files.readAllBytes(encryptedFile);
+        FileHeader fileHeader;
+        try (var inputStream = Files.newInputStream(encryptedFile)) {
+            fileHeader = FileProcessor.readHeader(inputStream);
+        }
+        CheckpointJournal.Source plainIdentity = CheckpointJournal.Source.of(plainFile);
+        assertFalse(Files.exists(CheckpointJournal.pathFor(encryptedFile)), "A complete run leaves no journal");
+
+        // Six chunks were written before the run was killed; the first is marked to show it is not redone.
+        int written = (int) ChunkedFileProcessor.encryptedChunkOffset(fileHeader, 6);
+        byte[] partial = Arrays.copyOf(encrypted, written);
+        partial[written - 1] ^= 1;
+        Files.delete(encryptedFile);
+        Files.write(CheckpointJournal.partialPathFor(encryptedFile), partial);
+        CheckpointJournal.of(fileHeader.getIv(), plainIdentity, 6).write(CheckpointJournal.pathFor(encryptedFile));
+        try (MasterKeyCache masterKeys = encryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            assertEquals(encryptedFile.toString(), encryptor.process(plainFile.toString(), masterKeys));
+        }
+        byte[] resumed = Files.readAllBytes(encryptedFile);
+        assertEquals(partial[written - 1], resumed[written - 1]);
+        resumed[written - 1] ^= 1;
+        assertArrayEquals(encrypted, resumed);
+        assertFalse(Files.exists(CheckpointJournal.pathFor(encryptedFile)));
+        Files.write(encryptedFile, encrypted);
+
+        Files.delete(plainFile);
+        byte[] decrypted = Arrays.copyOf(data, 6 * 4096);
+        decrypted[0] ^= 1;
+        Files.write(CheckpointJournal.partialPathFor(plainFile), decrypted);
+        CheckpointJournal.of(fileHeader.getIv(), CheckpointJournal.Source.of(encryptedFile), 6)
+                .write(CheckpointJournal.pathFor(plainFile));
+        try (MasterKeyCache masterKeys = decryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            decryptor.process(encryptedFile.toString(), masterKeys);
+        }
+        byte[] restored = Files.readAllBytes(plainFile);
+        assertEquals(data[0] ^ 1, restored[0]);
+        restored[0] ^= 1;
+        assertArrayEquals(data, restored);
+        assertFalse(Files.exists(CheckpointJournal.pathFor(plainFile)));
+        assertFalse(Files.exists(CheckpointJournal.partialPathFor(plainFile)));
+    }
+
+    @Test
+    public void testReplacedSourceIsNotResumed() throws Exception {
+        EngineConfig config = EngineConfig.defaults().withKdfIterations(1000).withChunkSize(4096)
+                .withCheckpointInterval(8192).withResume(true);
+        Path plainFile = tempDir.resolve("disk.img");
+        byte[] data = new byte[50_000];
+        new Random(4).nextBytes(data);
+        Files.write(plainFile, data);
+        CipherEngine encryptor = new CipherEngine(Cipher.ENCRYPT_MODE, config);
+
+        Path encryptedFile;
+        try (MasterKeyCache masterKeys = encryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptedFile = Paths.get(encryptor.process(plainFile.toString(), masterKeys));
+        }
+        FileHeader fileHeader;
+        try (var inputStream = Files.newInputStream(encryptedFile)) {
+            fileHeader = FileProcessor.readHeader(inputStream);
+        }
+        int written = (int) ChunkedFileProcessor.encryptedChunkOffset(fileHeader, 6);
+        byte[] partial = Arrays.copyOf(Files.readAllBytes(encryptedFile), written);
+        Files.delete(encryptedFile);
+        Files.write(CheckpointJournal.partialPathFor(encryptedFile), partial);
+        CheckpointJournal.of(fileHeader.getIv(), CheckpointJournal.Source.of(plainFile), 6)
+                .write(CheckpointJournal.pathFor(encryptedFile));
+
+        // The file is replaced by one of the same size with its modification time set back.
+        FileTime modified = Files.getLastModifiedTime(plainFile);
+        Path replacement = tempDir.resolve("replacement");
+        byte[] replaced = data.clone();
+        replaced[0] ^= 1;
+        Files.write(replacement, replaced);
+        Files.move(replacement, plainFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(plainFile, modified);
+
+        try (MasterKeyCache masterKeys = encryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptor.process(plainFile.toString(), masterKeys);
+        }
+        Files.delete(plainFile);
+        FileProcessor.processFileForDecryption(encryptedFile.toString(), PASSPHRASE.toCharArray());
+        assertArrayEquals(replaced, Files.readAllBytes(plainFile), "The run started over");
+    }
+
+    @Test
+    public void testFilesNextToTheOutputAreNeverWrittenOver() throws Exception {
+        CipherEngine encryptor = new CipherEngine(Cipher.ENCRYPT_MODE, EngineConfig.defaults().withKdfIterations(1000));
+        CipherEngine decryptor = new CipherEngine(Cipher.DECRYPT_MODE, EngineConfig.defaults().withKdfIterations(1000));
+        Path plainFile = tempDir.resolve("a.txt");
+        Files.writeString(plainFile, "the plaintext");
+        Path encryptedFile;
+        try (MasterKeyCache masterKeys = encryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptedFile = Paths.get(encryptor.process(plainFile.toString(), masterKeys));
+        }
+        Files.delete(plainFile);
+
+        Path unrelated = tempDir.resolve("a.txt.tmp");
+        Files.writeString(unrelated, "a file of the user's");
+        try (MasterKeyCache masterKeys = decryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            decryptor.process(encryptedFile.toString(), masterKeys);
+        }
+        assertEquals("the plaintext", Files.readString(plainFile));
+        assertEquals("a file of the user's", Files.readString(unrelated));
+        Files.delete(plainFile);
+
+        // A partial output without a journal belongs to another run which is still writing it.
+        Path partial = CheckpointJournal.partialPathFor(plainFile);
+        Files.writeString(partial, "being written");
+        try (MasterKeyCache masterKeys = decryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            assertThrows(FileAlreadyExistsException.class,
+                    () -> decryptor.process(encryptedFile.toString(), masterKeys));
+        }
+        assertEquals("being written", Files.readString(partial));
+        assertFalse(Files.exists(plainFile));
+    }
+
+    @Test
+    public void testVolumesAreVerifiedAloneAndDecryptedTogether() throws Exception {
+        int recordLength = 4096 + CipherUtil.CHUNK_TAG_LENGTH;
+        EngineConfig config = EngineConfig.defaults().withKdfIterations(1000).withChunkSize(4096)
+                .withVolumeSize(FileHeader.MAX_HEADER_LENGTH + 3L * recordLength);
+        Path plainFile = tempDir.resolve("backup.img");
+        byte[] data = new byte[50_000];
+        new Random(5).nextBytes(data);
+        Files.write(plainFile, data);
+        CipherEngine encryptor = new CipherEngine(Cipher.ENCRYPT_MODE, config);
+        CipherEngine decryptor = new CipherEngine(Cipher.DECRYPT_MODE, config);
+
+        String firstVolume;
+        try (MasterKeyCache masterKeys = encryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            firstVolume = encryptor.process(plainFile.toString(), masterKeys);
+        }
+        assertEquals(tempDir.resolve("backup.enc.001").toString(), firstVolume);
+        List<Path> volumes = new ArrayList<>();
+        for (int volume = 1; volume <= 5; volume++) {
+            volumes.add(tempDir.resolve("backup.enc.00" + volume));
+            assertTrue(Files.size(volumes.get(volume - 1)) <= config.volumeSize());
+            try (var inputStream = Files.newInputStream(volumes.get(volume - 1))) {
+                FileHeader fileHeader = FileProcessor.readHeader(inputStream);
+                assertEquals(volume - 1, fileHeader.getVolumeIndex());
+                assertEquals(5, fileHeader.getVolumeCount());
+                assertEquals((volume - 1) * 3L, fileHeader.getFirstChunk());
+            }
+            try (MasterKeyCache masterKeys = decryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+                assertTrue(decryptor.verifyFile(volumes.get(volume - 1).toString(), masterKeys),
+                        "Each volume should verify on its own");
+            }
+        }
+        assertFalse(Files.exists(tempDir.resolve("backup.enc.006")));
+        Files.delete(plainFile);
+
+        try (MasterKeyCache masterKeys = decryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            decryptor.process(volumes.get(2).toString(), masterKeys);
+        }
+        assertArrayEquals(data, Files.readAllBytes(plainFile), "Any volume should decrypt the whole file");
+        Files.delete(plainFile);
+
+        byte[] second = Files.readAllBytes(volumes.get(1));
+        byte[] third = Files.readAllBytes(volumes.get(2));
+        byte[] fourth = Files.readAllBytes(volumes.get(3));
+        Files.delete(volumes.get(3));
+        assertVolumesFailToDecrypt(decryptor, volumes.get(0), "A missing volume");
+        Files.write(volumes.get(3), Files.readAllBytes(volumes.get(4)));
+        assertVolumesFailToDecrypt(decryptor, volumes.get(0), "A volume in the wrong place");
+        Files.write(volumes.get(3), fourth);
+        Files.write(volumes.get(1), third);
+        Files.write(volumes.get(2), second);
+        assertVolumesFailToDecrypt(decryptor, volumes.get(0), "Swapped volumes");
+        Files.write(volumes.get(2), Arrays.copyOf(third, third.length - recordLength));
+        Files.write(volumes.get(1), second);
+        assertVolumesFailToDecrypt(decryptor, volumes.get(0), "A truncated volume");
+        assertFalse(Files.exists(plainFile));
+    }
+
+    @Test
+    public void testManyVolumesAreDecryptedInBatches() throws Exception {
+        EngineConfig config = EngineConfig.defaults().withKdfIterations(1000).withChunkSize(4096)
+                .withVolumeSize(FileHeader.MAX_HEADER_LENGTH + 4096 + CipherUtil.CHUNK_TAG_LENGTH);
+        Path plainFile = tempDir.resolve("backup.img");
+        byte[] data = new byte[(CipherEngine.MAX_OPEN_VOLUMES + 6) * 4096 - 100];
+        new Random(6).nextBytes(data);
+        Files.write(plainFile, data);
+        CipherEngine encryptor = new CipherEngine(Cipher.ENCRYPT_MODE, config);
+        CipherEngine decryptor = new CipherEngine(Cipher.DECRYPT_MODE, config);
+
+        try (MasterKeyCache masterKeys = encryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptor.process(plainFile.toString(), masterKeys);
+        }
+        Path lastVolume = tempDir.resolve("backup.enc.0" + (CipherEngine.MAX_OPEN_VOLUMES + 6));
+        assertTrue(Files.exists(lastVolume));
+        Files.delete(plainFile);
+        try (MasterKeyCache masterKeys = decryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            decryptor.process(lastVolume.toString(), masterKeys);
+        }
+        assertArrayEquals(data, Files.readAllBytes(plainFile));
+        Files.delete(plainFile);
+
+        // The volume count is not authenticated before the chunks are opened.
+        Path firstVolume = tempDir.resolve("backup.enc.001");
+        byte[] volume = Files.readAllBytes(firstVolume);
+        FileHeader fileHeader;
+        try (var inputStream = Files.newInputStream(firstVolume)) {
+            fileHeader = FileProcessor.readHeader(inputStream);
+        }
+        fileHeader.setVolume(0, Integer.MAX_VALUE, 0);
+        byte[] header = fileHeader.getHeader();
+        System.arraycopy(header, 0, volume, 0, header.length);
+        Files.write(firstVolume, volume);
+        assertVolumesFailToDecrypt(decryptor, firstVolume, "A forged volume count");
+        assertFalse(Files.exists(plainFile));
+    }
+
+    private void assertVolumesFailToDecrypt(CipherEngine decryptor, Path volume, String message) throws Exception {
+        try (MasterKeyCache masterKeys = decryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            assertThrows(CryptoException.class, () -> decryptor.process(volume.toString(), masterKeys),
+                    message + " should fail decryption");
+        }
+    }
+
+    private void roundTrip(EngineConfig config, String name, int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Path plainFile = tempDir.resolve(name + ".txt");
+        Files.write(plainFile, data);
+
+        CipherEngine encryptor = new CipherEngine(Cipher.ENCRYPT_MODE, config);
+        CipherEngine decryptor = new CipherEngine(Cipher.DECRYPT_MODE, config);
+        String encryptedFile;
+        try (MasterKeyCache masterKeys = encryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            encryptedFile = encryptor.process(plainFile.toString(), masterKeys);
+        }
+        Files.delete(plainFile);
+        try (MasterKeyCache masterKeys = decryptor.newKeyCache(PASSPHRASE.toCharArray())) {
+            decryptor.process(encryptedFile, masterKeys);
+        }
+
+        assertArrayEquals(data, Files.readAllBytes(plainFile), name + " should decrypt to its original data");
+    }
+}
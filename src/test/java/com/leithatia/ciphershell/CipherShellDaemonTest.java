@@ -0,0 +1,75 @@
+package com.leithatia.ciphershell.daemon;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CipherShellDaemonTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+
+    @TempDir
+    Path tempDir;
+
+    private Path socketPath;
+    private CipherShellDaemon daemon;
+    private Thread serveThread;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        socketPath = tempDir.resolve("daemon.sock");
+        daemon = CipherShellDaemon.start(socketPath, 2);
+        serveThread = new Thread(() -> {
+            try {
+                daemon.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serveThread.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        daemon.close();
+        serveThread.join(5000);
+    }
+
+    @Test
+    public void testEncryptAndDecryptThroughDaemon() throws Exception {
+        Path plainFile = tempDir.resolve("hook.txt");
+        Files.writeString(plainFile, "payload from a hook script");
+        DaemonClient client = new DaemonClient(socketPath);
+
+        assertTrue(client.encrypt(plainFile, false, PASSPHRASE.toCharArray()));
+        Files.delete(plainFile);
+        assertTrue(client.decrypt(tempDir.resolve("hook.enc"), PASSPHRASE.toCharArray()));
+
+        assertEquals("payload from a hook script", Files.readString(plainFile));
+    }
+
+    @Test
+    public void testFailedJobIsReportedAndDaemonKeepsServing() throws Exception {
+        Path plainFile = tempDir.resolve("secret.txt");
+        Files.writeString(plainFile, "secret");
+        DaemonClient client = new DaemonClient(socketPath);
+        assertTrue(client.encrypt(plainFile, false, PASSPHRASE.toCharArray()));
+        Files.delete(plainFile);
+
+        assertFalse(client.decrypt(tempDir.resolve("secret.enc"), "wrong passphrase".toCharArray()));
+        assertFalse(Files.exists(plainFile), "Failed decryption should not leave output behind");
+        assertTrue(client.decrypt(tempDir.resolve("secret.enc"), PASSPHRASE.toCharArray()));
+    }
+
+    @Test
+    public void testSecondDaemonOnSameSocketIsRefused() {
+        assertThrows(IOException.class, () -> CipherShellDaemon.start(socketPath, 1));
+    }
+}
@@ -1,18 +1,25 @@
 package com.leithatia.ciphershell;
 
 import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherSuite;
 import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.KdfCalibrator;
+import com.leithatia.ciphershell.util.KdfParameters;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Random;
 
 import static com.leithatia.ciphershell.util.CipherUtil.generateKey;
 import static org.junit.jupiter.api.Assertions.*;
@@ -136,4 +143,64 @@ public class CipherUtilTest {
             ivs.add(iv);
         }
     }
+
+    @Test
+    public void testKdfParametersChangeTheKey() throws CryptoException {
+        SecretKey sha256 = generateKey(passphrase1, salt1,
+                new KdfParameters(KdfParameters.Algorithm.PBKDF2_SHA256, 1000));
+        SecretKey sha512 = generateKey(passphrase1, salt1,
+                new KdfParameters(KdfParameters.Algorithm.PBKDF2_SHA512, 1000));
+        SecretKey moreIterations = generateKey(passphrase1, salt1,
+                new KdfParameters(KdfParameters.Algorithm.PBKDF2_SHA256, 1001));
+
+        assertArrayEquals(secretKey.getEncoded(), generateKey(passphrase1, salt1, KdfParameters.DEFAULT).getEncoded());
+        assertFalse(Arrays.equals(sha256.getEncoded(), sha512.getEncoded()), "Keys should not be equal");
+        assertFalse(Arrays.equals(sha256.getEncoded(), moreIterations.getEncoded()), "Keys should not be equal");
+        assertThrows(CryptoException.class, () -> KdfParameters.decode((byte) 0, 1000));
+        assertThrows(CryptoException.class, () -> KdfParameters.decode((byte) 1, KdfParameters.MAX_ITERATIONS + 1));
+    }
+
+    @Test
+    public void testCalibrationScalesWithTarget() throws CryptoException {
+        KdfParameters quick = KdfCalibrator.calibrate(KdfParameters.Algorithm.PBKDF2_SHA256, Duration.ofMillis(10));
+        KdfParameters slow = KdfCalibrator.calibrate(KdfParameters.Algorithm.PBKDF2_SHA256, Duration.ofMillis(200));
+
+        assertTrue(quick.iterations() >= KdfCalibrator.MIN_ITERATIONS);
+        assertEquals(0, slow.iterations() % 1000);
+        assertTrue(slow.iterations() > quick.iterations(), quick + " should be cheaper than " + slow);
+    }
+
+    @Test
+    public void testEveryCipherSuiteAuthenticatesItsChunks() throws Exception {
+        byte[] plaintext = new byte[1000];
+        new Random(5).nextBytes(plaintext);
+        byte[] header = "ENC739txt ".getBytes();
+        for (CipherSuite suite : CipherSuite.values()) {
+            SecretKey chunkKey = CipherUtil.chunkKey(suite, secretKey, iv);
+            assertArrayEquals(secretKey.getEncoded(), chunkKey.getEncoded(), suite + " should keep the file key");
+            ByteBuffer sealed = ByteBuffer.allocate(plaintext.length + CipherUtil.CHUNK_TAG_LENGTH);
+            CipherUtil.processChunk(suite, Cipher.ENCRYPT_MODE, chunkKey, iv, 3, 0, header, false,
+                    ByteBuffer.wrap(plaintext), sealed);
+            assertFalse(sealed.hasRemaining(), suite + " should append a tag of the common length");
+
+            ByteBuffer opened = ByteBuffer.allocate(plaintext.length);
+            CipherUtil.processChunk(suite, Cipher.DECRYPT_MODE, secretKey, iv, 3, 0, header, false, sealed.flip(),
+                    opened);
+            assertArrayEquals(plaintext, opened.array(), suite.toString());
+
+            assertThrows(AEADBadTagException.class, () -> CipherUtil.processChunk(suite, Cipher.DECRYPT_MODE,
+                    secretKey, iv, 3, 0, header, true, sealed.rewind(), ByteBuffer.allocate(plaintext.length)),
+                    suite + " should bind whether the chunk is the last one");
+            assertThrows(AEADBadTagException.class, () -> CipherUtil.processChunk(suite, Cipher.DECRYPT_MODE,
+                    secretKey, iv, 3, 0, "ENC739doc ".getBytes(), false, sealed.rewind(),
+                    ByteBuffer.allocate(plaintext.length)), suite + " should bind the header");
+            sealed.put(10, (byte) (sealed.get(10) ^ 1));
+            assertThrows(AEADBadTagException.class, () -> CipherUtil.processChunk(suite, Cipher.DECRYPT_MODE,
+                    secretKey, iv, 3, 0, header, false, sealed.rewind(), ByteBuffer.allocate(plaintext.length)),
+                    suite + " should detect a flipped bit");
+            assertEquals(suite, CipherSuite.fromId(suite.id()));
+        }
+        assertNotNull(CipherSuite.fastest());
+        assertThrows(IllegalArgumentException.class, () -> CipherSuite.fromOptionName("rot13"));
+    }
 }
@@ -0,0 +1,29 @@
+package com.leithatia.ciphershell;
+
+import com.leithatia.ciphershell.util.CommandLine;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandLineTest {
+
+    @Test
+    public void testSizesTakeBinarySuffixes() {
+        assertEquals(4096, CommandLine.parseSize("4096"));
+        assertEquals(256L * 1024, CommandLine.parseSize("256k"));
+        assertEquals(4L * 1024 * 1024 * 1024, CommandLine.parseSize("4G"));
+    }
+
+    @Test
+    public void testOverflowingSizeIsAnInvalidArgument() {
+        assertThrows(IllegalArgumentException.class, () -> CommandLine.parseSize("99999999999g"));
+
+        CommandLine commandLine = CommandLine.parse(new String[]{"encrypt", "--volume-size", "99999999999g",
+                "x.txt"}, Set.of("--volume-size"));
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> commandLine.sizeOption("--volume-size", 0));
+        assertTrue(e.getMessage().contains("--volume-size"));
+    }
+}
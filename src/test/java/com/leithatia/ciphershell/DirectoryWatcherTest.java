@@ -0,0 +1,68 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.util.MasterKeyCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirectoryWatcherTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testFilesAreEncryptedOnceTheyLand() throws Exception {
+        Path inbox = Files.createDirectories(tempDir.resolve("inbox"));
+        Files.writeString(inbox.resolve("early.txt"), "already there");
+
+        ExecutorService runner = Executors.newSingleThreadExecutor();
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            try (DirectoryWatcher watcher = new DirectoryWatcher(inbox, masterKeys, 2, Duration.ofMillis(200),
+                    EngineConfig.defaults())) {
+                Future<?> running = runner.submit(() -> {
+                    watcher.run();
+                    return null;
+                });
+                awaitFile(inbox.resolve("early.enc"));
+
+                Path nested = Files.createDirectories(inbox.resolve("nested"));
+                Files.writeString(nested.resolve("late.csv"), "a,b\n");
+                Files.writeString(nested.resolve("late.csv"), "a,b\n1,2\n");
+                awaitFile(nested.resolve("late.enc"));
+
+                watcher.close();
+                running.get();
+            }
+
+            Files.delete(inbox.resolve("early.txt"));
+            Files.delete(inbox.resolve("nested/late.csv"));
+            FileProcessor.decryptFile(inbox.resolve("early.enc").toString(), masterKeys);
+            FileProcessor.decryptFile(inbox.resolve("nested/late.enc").toString(), masterKeys);
+        } finally {
+            runner.shutdownNow();
+        }
+        assertEquals("already there", Files.readString(inbox.resolve("early.txt")));
+        assertEquals("a,b\n1,2\n", Files.readString(inbox.resolve("nested/late.csv")));
+        try (var files = Files.list(inbox)) {
+            assertTrue(files.noneMatch(CheckpointJournal::isPartial));
+        }
+    }
+
+    private static void awaitFile(Path file) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!Files.exists(file)) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for " + file);
+            Thread.sleep(20);
+        }
+    }
+}
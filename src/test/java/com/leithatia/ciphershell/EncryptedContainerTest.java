@@ -0,0 +1,117 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EncryptedContainerTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+
+    @TempDir
+    Path tempDir;
+
+    private Path sourceDirectory;
+    private Path container;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        sourceDirectory = tempDir.resolve("notes");
+        Files.createDirectories(sourceDirectory.resolve("2024"));
+        for (int i = 0; i < 20; i++) {
+            Files.write(sourceDirectory.resolve("2024").resolve("note" + i + ".txt"), randomBytes(1000 + i * 997, i));
+        }
+        Files.write(sourceDirectory.resolve("empty.txt"), new byte[0]);
+        container = tempDir.resolve("notes.enc");
+    }
+
+    @Test
+    public void testListAndExtractSingleEntry() throws Exception {
+        List<ContainerEntry> packed = pack();
+        assertEquals(21, packed.size());
+
+        List<ContainerEntry> listed;
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            listed = FileProcessor.listContainer(container.toString(), masterKeys);
+        }
+        assertEquals(packed, listed);
+        assertTrue(listed.stream().map(ContainerEntry::name).collect(Collectors.toSet())
+                .containsAll(List.of("notes/2024/note7.txt", "notes/empty.txt")));
+
+        Path extractDirectory = Files.createDirectory(tempDir.resolve("out"));
+        Path copy = extractDirectory.resolve("notes.enc");
+        Files.copy(container, copy);
+        List<Path> extracted = extract(copy, List.of("notes/2024/note7.txt"));
+
+        assertEquals(List.of(extractDirectory.resolve("notes/2024/note7.txt").toAbsolutePath()), extracted);
+        assertArrayEquals(Files.readAllBytes(sourceDirectory.resolve("2024/note7.txt")), Files.readAllBytes(extracted.get(0)));
+        assertFalse(Files.exists(extractDirectory.resolve("notes/empty.txt")), "Only the named entry should be extracted");
+    }
+
+    @Test
+    public void testExtractAllRestoresEveryFile() throws Exception {
+        pack();
+        Path extractDirectory = Files.createDirectory(tempDir.resolve("out"));
+        Path copy = Files.copy(container, extractDirectory.resolve("notes.enc"));
+
+        assertEquals(21, extract(copy, List.of()).size());
+        for (int i = 0; i < 20; i++) {
+            String name = "2024/note" + i + ".txt";
+            assertArrayEquals(Files.readAllBytes(sourceDirectory.resolve(name)),
+                    Files.readAllBytes(extractDirectory.resolve("notes").resolve(name)));
+        }
+        assertEquals(0, Files.size(extractDirectory.resolve("notes/empty.txt")));
+    }
+
+    @Test
+    public void testMissingEntryAndExistingFilesAreRejected() throws Exception {
+        pack();
+        assertThrows(NoSuchFileException.class, () -> extract(container, List.of("notes/missing.txt")));
+        assertThrows(FileAlreadyExistsException.class, () -> extract(container, List.of("notes/empty.txt")));
+        assertThrows(FileAlreadyExistsException.class, this::pack);
+    }
+
+    @Test
+    public void testContainerIsNotDecryptedAsSingleFile() throws Exception {
+        pack();
+        try (InputStream inputStream = Files.newInputStream(container)) {
+            assertThrows(CryptoException.class, () -> FileProcessor.decryptStream(inputStream,
+                    new ByteArrayOutputStream(), PASSPHRASE.toCharArray()));
+        }
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            assertThrows(CryptoException.class, () -> FileProcessor.decryptFile(container.toString(), masterKeys));
+        }
+    }
+
+    private List<ContainerEntry> pack() throws Exception {
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            return FileProcessor.packFiles(container.toString(), List.of(sourceDirectory.toString()), masterKeys);
+        }
+    }
+
+    private List<Path> extract(Path containerPath, List<String> names) throws Exception {
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            return FileProcessor.extractFromContainer(containerPath.toString(), names, masterKeys);
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,164 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EncryptedFileChannelTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+    private static final int CHUNK_SIZE = ChunkedFileProcessor.DEFAULT_CHUNK_SIZE;
+
+    @TempDir
+    Path tempDir;
+
+    private byte[] data;
+    private Path encryptedFile;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        data = new byte[CHUNK_SIZE * 2 + 500];
+        new Random(7).nextBytes(data);
+        Path plainFile = tempDir.resolve("data.bin");
+        Files.write(plainFile, data);
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray());
+        encryptedFile = tempDir.resolve("data.enc");
+    }
+
+    @Test
+    public void testSizeIsPlaintextLength() throws Exception {
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray());
+             EncryptedFileChannel channel = EncryptedFileChannel.open(encryptedFile, masterKeys)) {
+            assertEquals(data.length, channel.size());
+        }
+    }
+
+    @Test
+    public void testReadAcrossChunkBoundary() throws Exception {
+        long offset = CHUNK_SIZE - 100;
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray());
+             EncryptedFileChannel channel = EncryptedFileChannel.open(encryptedFile, masterKeys)) {
+            ByteBuffer buffer = ByteBuffer.allocate(300);
+            channel.position(offset);
+
+            assertEquals(300, channel.read(buffer));
+            assertArrayEquals(Arrays.copyOfRange(data, (int) offset, (int) offset + 300), buffer.array());
+            assertEquals(offset + 300, channel.position());
+        }
+    }
+
+    @Test
+    public void testReadAtEndReturnsMinusOne() throws Exception {
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray());
+             EncryptedFileChannel channel = EncryptedFileChannel.open(encryptedFile, masterKeys)) {
+            channel.position(data.length);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+        }
+    }
+
+    @Test
+    public void testDecryptRangeIsShortenedAtEndOfFile() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FileProcessor.decryptRange(encryptedFile.toString(), data.length - 10, 100, output, PASSPHRASE.toCharArray());
+
+        assertArrayEquals(Arrays.copyOfRange(data, data.length - 10, data.length), output.toByteArray());
+    }
+
+    @Test
+    public void testTamperedChunkFailsOnlyWhenRead() throws Exception {
+        try (FileChannel channel = FileChannel.open(encryptedFile, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer tampered = ByteBuffer.allocate(1);
+            channel.read(tampered, FileHeader.MAX_HEADER_LENGTH + 10);
+            tampered.put(0, (byte) (tampered.get(0) ^ 1)).rewind();
+            channel.write(tampered, FileHeader.MAX_HEADER_LENGTH + 10);
+        }
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray());
+             EncryptedFileChannel channel = EncryptedFileChannel.open(encryptedFile, masterKeys)) {
+            channel.position(CHUNK_SIZE);
+            assertEquals(10, channel.read(ByteBuffer.allocate(10)));
+
+            channel.position(0);
+            assertThrows(IOException.class, () -> channel.read(ByteBuffer.allocate(10)));
+        }
+    }
+
+    @Test
+    public void testOriginalFormatIsRejected() throws Exception {
+        Path originalFile = tempDir.resolve("original.enc");
+        FileHeader header = new FileHeader("txt ", new byte[16], new byte[16]);
+        Files.write(originalFile, header.getHeader());
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            assertThrows(CryptoException.class, () -> EncryptedFileChannel.open(originalFile, masterKeys));
+        }
+    }
+
+    @Test
+    public void testUpdatedFileDoesNotServeStaleChunks() throws Exception {
+        Path plainFile = tempDir.resolve("data.bin");
+        ChunkCache chunkCache = new ChunkCache(ChunkCache.DEFAULT_CAPACITY);
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            ChunkUpdater.update(plainFile, encryptedFile, masterKeys);
+            assertArrayEquals(Arrays.copyOf(data, 10), readStart(masterKeys, chunkCache));
+
+            // The first chunk is updated in place, keeping the IV, size and modification time of the file.
+            FileTime modified = Files.getLastModifiedTime(encryptedFile);
+            data[0] ^= 1;
+            Files.write(plainFile, data);
+            ChunkUpdater.update(plainFile, encryptedFile, masterKeys);
+            Files.setLastModifiedTime(encryptedFile, modified);
+
+            assertArrayEquals(Arrays.copyOf(data, 10), readStart(masterKeys, chunkCache));
+        }
+    }
+
+    @Test
+    public void testChunkCacheStaysWithinItsCapacity() throws Exception {
+        ChunkCache chunkCache = new ChunkCache(CHUNK_SIZE + CHUNK_SIZE / 2);
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray());
+             EncryptedFileChannel channel = EncryptedFileChannel.open(encryptedFile, masterKeys, chunkCache)) {
+            ByteBuffer buffer = ByteBuffer.allocate(data.length);
+            assertEquals(data.length, channel.read(buffer));
+            assertArrayEquals(data, buffer.array());
+            assertTrue(chunkCache.size() <= chunkCache.capacity());
+        }
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            long misses = chunkCache.missCount();
+            assertArrayEquals(Arrays.copyOf(data, 10), readStart(masterKeys, chunkCache));
+            assertEquals(misses + 1, chunkCache.missCount(), "The first chunk should have been evicted");
+        }
+
+        ChunkCache tooSmall = new ChunkCache(CHUNK_SIZE - 1);
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            readStart(masterKeys, tooSmall);
+            assertEquals(0, tooSmall.size(), "A chunk larger than the cache should not be cached");
+        }
+    }
+
+    private byte[] readStart(MasterKeyCache masterKeys, ChunkCache chunkCache) throws Exception {
+        try (EncryptedFileChannel channel = EncryptedFileChannel.open(encryptedFile, masterKeys, chunkCache)) {
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            assertEquals(10, channel.read(buffer));
+            return buffer.array();
+        }
+    }
+}
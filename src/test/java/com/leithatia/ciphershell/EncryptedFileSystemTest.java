@@ -0,0 +1,101 @@
+package com.leithatia.ciphershell.fs;
+
+import com.leithatia.ciphershell.file.ChunkCache;
+import com.leithatia.ciphershell.file.FileProcessor;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EncryptedFileSystemTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testFilesAreStoredEncryptedAndReadAtRandom() throws Exception {
+        byte[] data = new byte[CHUNK_SIZE * 3 + 123];
+        new Random(11).nextBytes(data);
+        Path vault = Files.createDirectories(tempDir.resolve("vault"));
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray());
+             FileSystem fileSystem = FileSystems.newFileSystem(URI.create("ciphershell:" + vault.toUri()),
+                     Map.of("masterKeys", masterKeys, "cacheSize", 2L * CHUNK_SIZE))) {
+            Path file = fileSystem.getPath("/reports", "data.bin");
+            Files.createDirectories(file.getParent());
+            Files.write(file, data);
+
+            assertEquals(data.length, Files.size(file));
+            assertArrayEquals(data, Files.readAllBytes(file));
+            assertEquals(file, Path.of(file.toUri()));
+            try (var files = Files.list(file.getParent())) {
+                assertEquals(List.of(file), files.toList());
+            }
+            assertFalse(Arrays.equals(data, Files.readAllBytes(vault.resolve("reports/data.bin"))));
+
+            ChunkCache chunkCache = ((EncryptedFileSystem) fileSystem).getChunkCache();
+            long hits = chunkCache.hitCount();
+            for (int i = 0; i < 2; i++) {
+                try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+                    ByteBuffer buffer = ByteBuffer.allocate(300);
+                    channel.position(2L * CHUNK_SIZE - 100);
+                    assertEquals(300, channel.read(buffer));
+                    assertArrayEquals(Arrays.copyOfRange(data, 2 * CHUNK_SIZE - 100, 2 * CHUNK_SIZE + 200),
+                            buffer.array());
+                }
+            }
+            assertTrue(chunkCache.hitCount() >= hits + 2);
+            assertTrue(chunkCache.size() <= chunkCache.capacity());
+
+            Files.copy(vault.resolve("reports/data.bin"), tempDir.resolve("copy.enc"));
+            FileProcessor.decryptFile(tempDir.resolve("copy.enc").toString(), masterKeys);
+        }
+        assertArrayEquals(data, Files.readAllBytes(tempDir.resolve("copy.bin")));
+    }
+
+    @Test
+    public void testUnsupportedOpenOptionsAreRejected() throws Exception {
+        Path vault = Files.createDirectories(tempDir.resolve("vault"));
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray());
+             FileSystem fileSystem = FileSystems.newFileSystem(URI.create("ciphershell:" + vault.toUri()),
+                     Map.of("masterKeys", masterKeys))) {
+            Path file = fileSystem.getPath("/data.bin");
+            Files.writeString(file, "contents");
+
+            assertThrows(UnsupportedOperationException.class, () -> Files.newByteChannel(file,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+            assertThrows(UnsupportedOperationException.class, () -> Files.newByteChannel(file,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+            assertThrows(UnsupportedOperationException.class, () -> Files.newByteChannel(file,
+                    StandardOpenOption.WRITE));
+            assertThrows(FileAlreadyExistsException.class, () -> Files.newByteChannel(file,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW));
+            assertThrows(NoSuchFileException.class, () -> Files.newByteChannel(fileSystem.getPath("/missing"),
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+            assertEquals("contents", Files.readString(file));
+            try (var files = Files.list(vault)) {
+                assertEquals(List.of(vault.resolve("data.bin")), files.toList(), "No temporary is left behind");
+            }
+        }
+    }
+}
@@ -1,11 +1,21 @@
 package com.leithatia.ciphershell.file;
 
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.metrics.RunStats;
+import com.leithatia.ciphershell.util.CipherUtil;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -14,10 +24,14 @@ public class FileProcessorTest {
 
     private static final String ENCRYPTED_FILE = "testfile.enc";
     private static final String FILE_EXTENSION = "txt";
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
     private static final byte[] SALT = new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08};
     private static final byte[] IV = new byte[]{0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F, 0x10};
     private FileHeader fileHeader;
 
+    @TempDir
+    Path tempDir;
+
     @BeforeAll
     public void setUp() throws IOException {
         fileHeader = new FileHeader(FILE_EXTENSION, SALT, IV);
@@ -33,4 +47,203 @@ public class FileProcessorTest {
         String decryptedFileName = FileProcessor.generateDecryptedFileName(ENCRYPTED_FILE, fileHeader);
         assertEquals("testfile." + FILE_EXTENSION, decryptedFileName, "Decrypted file name should be correctly generated");
     }
+
+    @Test
+    public void testChunkedRoundTripSpanningSeveralChunks() throws Exception {
+        byte[] data = randomBytes(ChunkedFileProcessor.DEFAULT_CHUNK_SIZE * 2 + 12345);
+        Path plainFile = tempDir.resolve("chunked.txt");
+        Files.write(plainFile, data);
+
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray());
+        Files.delete(plainFile);
+        FileProcessor.processFileForDecryption(tempDir.resolve("chunked.enc").toString(), PASSPHRASE.toCharArray());
+
+        assertArrayEquals(data, Files.readAllBytes(plainFile), "Decrypted data should match original data");
+    }
+
+    @Test
+    public void testChunkedRoundTripOfEmptyFile() throws Exception {
+        Path plainFile = tempDir.resolve("empty.txt");
+        Files.write(plainFile, new byte[0]);
+
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray());
+        assertEquals(FileHeader.MAX_HEADER_LENGTH - FileHeader.CIPHER_SUITE_LENGTH
+                        - FileHeader.VOLUME_FIELDS_LENGTH - FileHeader.GENERATION_FIELDS_LENGTH
+                        + CipherUtil.CHUNK_TAG_LENGTH,
+                Files.size(tempDir.resolve("empty.enc")), "Empty file should hold a single empty chunk");
+
+        FileProcessor.processFileForDecryption(tempDir.resolve("empty.enc").toString(), PASSPHRASE.toCharArray());
+        assertEquals(0, Files.size(plainFile), "Decrypted file should be empty");
+    }
+
+    @Test
+    public void testTruncatedChunkedFileFailsAuthentication() throws Exception {
+        Path plainFile = tempDir.resolve("truncated.txt");
+        Files.write(plainFile, randomBytes(ChunkedFileProcessor.DEFAULT_CHUNK_SIZE * 2));
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray());
+
+        Files.delete(plainFile);
+
+        Path encryptedFile = tempDir.resolve("truncated.enc");
+        try (FileChannel channel = FileChannel.open(encryptedFile, StandardOpenOption.WRITE)) {
+            channel.truncate(ChunkedFileProcessor.encryptedChunkOffset(readHeader(encryptedFile), 1));
+        }
+
+        assertThrows(CryptoException.class, () ->
+                FileProcessor.processFileForDecryption(encryptedFile.toString(), PASSPHRASE.toCharArray()));
+        assertFalse(Files.exists(plainFile), "Partially decrypted file should be deleted");
+        assertFalse(Files.exists(CheckpointJournal.partialPathFor(plainFile)),
+                "Partially decrypted file should be deleted");
+    }
+
+    @Test
+    public void testOversizedChunkSizeIsRejectedBeforeAllocating() throws Exception {
+        Path plainFile = tempDir.resolve("oversized.txt");
+        Files.write(plainFile, randomBytes(1000));
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray());
+        Files.delete(plainFile);
+
+        Path encryptedFile = tempDir.resolve("oversized.enc");
+        try (FileChannel channel = FileChannel.open(encryptedFile, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, Integer.MAX_VALUE - 1),
+                    FileHeader.HEADER_LENGTH);
+        }
+
+        assertThrows(CryptoException.class, () -> readHeader(encryptedFile));
+        assertThrows(CryptoException.class, () ->
+                FileProcessor.processFileForDecryption(encryptedFile.toString(), PASSPHRASE.toCharArray()));
+        try (InputStream inputStream = Files.newInputStream(encryptedFile)) {
+            assertThrows(CryptoException.class, () -> FileProcessor.readHeader(inputStream));
+        }
+        assertFalse(Files.exists(plainFile));
+    }
+
+    @Test
+    public void testStreamRoundTripEndingOnChunkBoundary() throws Exception {
+        byte[] data = randomBytes(ChunkedFileProcessor.DEFAULT_CHUNK_SIZE * 2);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        FileProcessor.encryptStream(new ByteArrayInputStream(data), encrypted, PASSPHRASE.toCharArray());
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        FileProcessor.decryptStream(new ByteArrayInputStream(encrypted.toByteArray()), decrypted,
+                PASSPHRASE.toCharArray());
+
+        assertArrayEquals(data, decrypted.toByteArray(), "Decrypted stream should match original data");
+    }
+
+    @Test
+    public void testStreamDecryptsFileEncryptedInParallel() throws Exception {
+        byte[] data = randomBytes(ChunkedFileProcessor.DEFAULT_CHUNK_SIZE + 1);
+        Path plainFile = tempDir.resolve("parallel.txt");
+        Files.write(plainFile, data);
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray());
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        try (InputStream inputStream = Files.newInputStream(tempDir.resolve("parallel.enc"))) {
+            FileProcessor.decryptStream(inputStream, decrypted, PASSPHRASE.toCharArray());
+        }
+
+        assertArrayEquals(data, decrypted.toByteArray(), "Decrypted stream should match original data");
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; log.length() < ChunkedFileProcessor.DEFAULT_CHUNK_SIZE * 3; i++) {
+            log.append("{\"line\":").append(i).append(",\"level\":\"INFO\",\"message\":\"request served\"}\n");
+        }
+        byte[] data = log.toString().getBytes();
+        Path plainFile = tempDir.resolve("compressed.txt");
+        Files.write(plainFile, data);
+
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray(),
+                EngineConfig.defaults().withCompress(true));
+        Path encryptedFile = tempDir.resolve("compressed.enc");
+        assertTrue(readHeader(encryptedFile).isCompressed(), "Text should be compressed");
+        assertTrue(Files.size(encryptedFile) < data.length / 4, "Compressed file should be smaller");
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (InputStream inputStream = Files.newInputStream(encryptedFile)) {
+            FileProcessor.decryptStream(inputStream, streamed, PASSPHRASE.toCharArray());
+        }
+        assertArrayEquals(data, streamed.toByteArray(), "Decrypted stream should be decompressed");
+
+        Files.delete(plainFile);
+        FileProcessor.processFileForDecryption(encryptedFile.toString(), PASSPHRASE.toCharArray());
+        assertArrayEquals(data, Files.readAllBytes(plainFile), "Decrypted file should be decompressed");
+    }
+
+    @Test
+    public void testIncompressibleDataIsNotCompressed() throws Exception {
+        byte[] data = randomBytes(ChunkedFileProcessor.DEFAULT_CHUNK_SIZE + 99);
+        Path plainFile = tempDir.resolve("random.txt");
+        Files.write(plainFile, data);
+
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray(),
+                EngineConfig.defaults().withCompress(true));
+        Path encryptedFile = tempDir.resolve("random.enc");
+        assertFalse(readHeader(encryptedFile).isCompressed(), "Random data should not be compressed");
+
+        Files.delete(plainFile);
+        FileProcessor.processFileForDecryption(encryptedFile.toString(), PASSPHRASE.toCharArray());
+        assertArrayEquals(data, Files.readAllBytes(plainFile), "Decrypted data should match original data");
+    }
+
+    @Test
+    public void testRunStatsCountKeyDerivationAndCipherWork() throws Exception {
+        byte[] data = randomBytes(ChunkedFileProcessor.DEFAULT_CHUNK_SIZE * 3);
+        Path plainFile = tempDir.resolve("measured.txt");
+        Files.write(plainFile, data);
+
+        RunStats.Snapshot before = RunStats.snapshot();
+        FileProcessor.processFileForEncryption(plainFile.toString(), PASSPHRASE.toCharArray());
+        RunStats.Snapshot stats = RunStats.snapshot().minus(before);
+
+        assertTrue(stats.bytesProcessed() >= data.length, "Every plaintext byte should pass through the cipher");
+        assertTrue(stats.keyDerivations() >= 1, "The master key derivation should be counted");
+        assertTrue(stats.kdfNanos() > 0 && stats.cryptoNanos() > 0);
+        assertTrue(stats.toJson(1_000_000_000L).startsWith("{\"bytesProcessed\":"));
+    }
+
+    @Test
+    public void testOriginalFormatStillDecrypts() throws Exception {
+        assertOriginalFormatDecrypts("original", 100_000);
+    }
+
+    @Test
+    public void testLargeOriginalFormatFileDecryptsThroughPipeline() throws Exception {
+        assertOriginalFormatDecrypts("large", 9 * 1024 * 1024 + 7);
+    }
+
+    private void assertOriginalFormatDecrypts(String name, int length) throws Exception {
+        byte[] data = randomBytes(length);
+        byte[] salt = CipherUtil.generateSalt();
+        byte[] iv = CipherUtil.generateInitialVector();
+        SecretKey secretKey = CipherUtil.generateKey(PASSPHRASE.toCharArray(), salt);
+
+        Path encryptedFile = tempDir.resolve(name + ".enc");
+        try (InputStream encryptedStream = CipherUtil.processStream(new ByteArrayInputStream(data), secretKey, iv,
+                Cipher.ENCRYPT_MODE);
+             OutputStream outputStream = Files.newOutputStream(encryptedFile)) {
+            FileProcessor.writeHeader(outputStream, new FileHeader(FILE_EXTENSION + " ", salt, iv));
+            FileProcessor.writeData(outputStream, encryptedStream);
+        }
+
+        FileProcessor.processFileForDecryption(encryptedFile.toString(), PASSPHRASE.toCharArray());
+
+        assertArrayEquals(data, Files.readAllBytes(tempDir.resolve(name + ".txt")),
+                "Original format files should still decrypt");
+    }
+
+    private static FileHeader readHeader(Path path) throws IOException, CryptoException {
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            return FileProcessor.readHeader(inputStream);
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
 }
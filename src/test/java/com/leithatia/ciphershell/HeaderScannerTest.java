@@ -0,0 +1,66 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.FileNameParts;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HeaderScannerTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testScanListsOnlyEncryptedFiles() throws Exception {
+        Path tree = Files.createDirectories(tempDir.resolve("tree/a/b"));
+        for (int i = 0; i < 300; i++) {
+            Files.write(tree.resolve("plain" + i + ".txt"), ("not encrypted " + i).getBytes());
+        }
+        Files.write(tree.resolve("short.bin"), new byte[3]);
+        Path report = tempDir.resolve("tree/a/report,final.pdf");
+        Files.write(report, new byte[10_000]);
+        FileProcessor.processFileForEncryption(report.toString(), PASSPHRASE.toCharArray());
+        Path original = tempDir.resolve("tree/old.enc");
+        try (var outputStream = Files.newOutputStream(original)) {
+            FileProcessor.writeHeader(outputStream, new FileHeader(FileNameParts.splitFileName("old.doc").extension(),
+                    CipherUtil.generateSalt(), CipherUtil.generateInitialVector()));
+            outputStream.write(new byte[32]);
+        }
+
+        List<String> csv = scan(HeaderScanner.Format.CSV);
+        assertEquals(3, csv.size(), "Expected the column names and two files: " + csv);
+        assertTrue(csv.get(0).startsWith("path,size,format,extension"));
+        String reportLine = csv.stream().filter(line -> line.contains("report")).findFirst().orElseThrow();
+        Path encryptedReport = tempDir.resolve("tree/a/report,final.enc");
+        assertEquals(List.of("\"" + encryptedReport + "\"", Long.toString(Files.size(encryptedReport)), "ENC739",
+                "pdf", Integer.toString(ChunkedFileProcessor.DEFAULT_CHUNK_SIZE), "false", "false", "true", "false",
+                "pbkdf2-sha256", Integer.toString(CipherUtil.DEFAULT_KDF_ITERATIONS), "aes-gcm"),
+                Arrays.asList(reportLine.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)")));
+        assertTrue(csv.contains(original + ",74,ENC737,doc,,false,false,false,false,pbkdf2-sha256,"
+                + CipherUtil.DEFAULT_KDF_ITERATIONS + ",aes-cbc"));
+
+        List<String> json = scan(HeaderScanner.Format.JSON);
+        assertEquals(2, json.size());
+        assertTrue(json.contains("{\"path\":\"" + original + "\",\"size\":74,\"format\":\"ENC737\",\"extension\":\"doc\","
+                + "\"chunkSize\":null,\"compressed\":false,\"chunkGenerations\":false,\"wrappedKey\":false,"
+                + "\"container\":false,\"kdf\":\"pbkdf2-sha256\",\"kdfIterations\":" + CipherUtil.DEFAULT_KDF_ITERATIONS
+                + ",\"cipher\":\"aes-cbc\"}"), json.toString());
+    }
+
+    private List<String> scan(HeaderScanner.Format format) throws Exception {
+        StringWriter output = new StringWriter();
+        assertEquals(0, HeaderScanner.scan(tempDir.resolve("tree"), 4, format, output));
+        return output.toString().lines().collect(Collectors.toList());
+    }
+}
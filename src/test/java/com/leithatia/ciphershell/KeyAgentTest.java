@@ -0,0 +1,151 @@
+package com.leithatia.ciphershell.daemon;
+
+import com.leithatia.ciphershell.file.FileProcessor;
+import com.leithatia.ciphershell.util.KdfParameters;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeyAgentTest {
+
+    private static final String PASSPHRASE = "This is my super duper secret passphrase.";
+
+    @TempDir
+    Path tempDir;
+
+    private KeyAgent agent;
+    private KeyAgentClient client;
+    private Thread serveThread;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        Path socketPath = tempDir.resolve("agent.sock");
+        agent = KeyAgent.start(socketPath, KeyAgent.DEFAULT_TIME_TO_IDLE_SECONDS, KeyAgent.DEFAULT_CAPACITY);
+        client = new KeyAgentClient(socketPath);
+        serveThread = new Thread(() -> {
+            try {
+                agent.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        serveThread.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        agent.close();
+        serveThread.join(5000);
+    }
+
+    @Test
+    public void testDecryptionUsesKeyFromAgentWithoutPassphrase() throws Exception {
+        Path plainFile = tempDir.resolve("notes.txt");
+        Files.writeString(plainFile, "shared passphrase");
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray(), client)) {
+            FileProcessor.encryptFile(plainFile.toString(), masterKeys, new byte[16]);
+        }
+        Files.delete(plainFile);
+
+        MasterKeyCache.PassphraseSupplier noPassphrase = () -> {
+            throw new IOException("The passphrase should not be needed");
+        };
+        try (MasterKeyCache masterKeys = new MasterKeyCache(noPassphrase, client)) {
+            FileProcessor.decryptFile(tempDir.resolve("notes.enc").toString(), masterKeys);
+        }
+        assertEquals("shared passphrase", Files.readString(plainFile));
+    }
+
+    @Test
+    public void testKeyFromWrongPassphraseIsNotShared() throws Exception {
+        Path plainFile = tempDir.resolve("notes.txt");
+        Files.writeString(plainFile, "shared passphrase");
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray())) {
+            FileProcessor.encryptFile(plainFile.toString(), masterKeys, new byte[16]);
+        }
+
+        try (MasterKeyCache masterKeys = new MasterKeyCache(() -> "not the right passphrase".toCharArray(), client)) {
+            assertThrows(Exception.class,
+                    () -> FileProcessor.decryptFile(tempDir.resolve("notes.enc").toString(), masterKeys));
+        }
+        assertNull(client.find(new byte[16], KdfParameters.DEFAULT),
+                "A key which failed authentication should not reach the agent");
+    }
+
+    @Test
+    public void testKeysAreSharedPerKdfParameters() throws Exception {
+        byte[] salt = new byte[16];
+        KdfParameters stored = new KdfParameters(KdfParameters.Algorithm.PBKDF2_SHA256, 1000);
+        KdfParameters edited = stored.withIterations(1001);
+        try (MasterKeyCache masterKeys = new MasterKeyCache(PASSPHRASE.toCharArray(), client)) {
+            masterKeys.get(salt, edited);
+            SecretKey key = masterKeys.get(salt, stored);
+            masterKeys.confirm(salt, stored);
+
+            assertArrayEquals(key.getEncoded(), client.find(salt, stored).getEncoded());
+            assertNull(client.find(salt, edited),
+                    "A key should only be shared with the parameters it was derived with");
+        }
+    }
+
+    @Test
+    public void testIdleKeysExpireAndAreZeroed() {
+        AtomicLong now = new AtomicLong();
+        ExpiringKeyCache cache = new ExpiringKeyCache(2, TimeUnit.SECONDS.toNanos(10), now::get);
+        byte[] key = {1, 2, 3};
+        cache.put("aa", key);
+        cache.put("bb", new byte[]{4});
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(8));
+        assertArrayEquals(key, cache.get("aa"), "Reading a key should keep it alive");
+        now.addAndGet(TimeUnit.SECONDS.toNanos(8));
+
+        assertEquals(1, cache.evictExpired());
+        assertNull(cache.get("bb"));
+        assertNotNull(cache.get("aa"));
+    }
+
+    @Test
+    public void testSocketDirectoryMustBePrivate() throws IOException {
+        String user = System.getProperty("user.name");
+        Path directory = tempDir.resolve("ciphershell-" + user);
+        assertEquals(directory, LocalSockets.privateDirectory(directory, user));
+        assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(directory));
+
+        Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxrwxrwx"));
+        assertThrows(IOException.class, () -> LocalSockets.privateDirectory(directory, user),
+                "A directory other users can write to should be refused");
+        Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+        assertThrows(IOException.class, () -> LocalSockets.privateDirectory(directory, user + "-other"),
+                "A directory owned by another user should be refused");
+
+        Path link = tempDir.resolve("link");
+        Files.createSymbolicLink(link, directory);
+        assertThrows(IOException.class, () -> LocalSockets.privateDirectory(link, user));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedKeyMakesRoom() {
+        ExpiringKeyCache cache = new ExpiringKeyCache(2, Long.MAX_VALUE, System::nanoTime);
+        cache.put("aa", new byte[]{1});
+        cache.put("bb", new byte[]{2});
+        cache.get("aa");
+        cache.put("cc", new byte[]{3});
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("bb"));
+        assertNotNull(cache.get("aa"));
+    }
+}
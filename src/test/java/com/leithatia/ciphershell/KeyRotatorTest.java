@@ -0,0 +1,106 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherUtil;
+import com.leithatia.ciphershell.util.KdfParameters;
+import com.leithatia.ciphershell.util.MasterKeyCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.Cipher;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeyRotatorTest {
+
+    private static final String OLD_PASSPHRASE = "This is my super duper secret passphrase.";
+    private static final String NEW_PASSPHRASE = "This is my even more secret passphrase.";
+
+    @TempDir
+    Path tempDir;
+
+    private byte[] data;
+    private Path plainFile;
+    private Path encryptedFile;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        data = new byte[100_000];
+        new Random(1).nextBytes(data);
+        plainFile = tempDir.resolve("archive.tar");
+        encryptedFile = tempDir.resolve("archive.enc");
+        Files.write(plainFile, data);
+    }
+
+    @Test
+    public void testRekeyRewritesOnlyTheHeader() throws Exception {
+        FileProcessor.processFileForEncryption(plainFile.toString(), OLD_PASSPHRASE.toCharArray());
+        byte[] before = Files.readAllBytes(encryptedFile);
+
+        rekey(OLD_PASSPHRASE);
+
+        byte[] after = Files.readAllBytes(encryptedFile);
+        assertEquals(before.length, after.length);
+        assertTrue(Arrays.equals(before, FileHeader.MAX_HEADER_LENGTH, before.length,
+                after, FileHeader.MAX_HEADER_LENGTH, after.length), "The chunks should not be touched");
+        assertDecryptsOnlyWith(NEW_PASSPHRASE);
+    }
+
+    @Test
+    public void testRekeyChangesKdfParametersInPlace() throws Exception {
+        FileProcessor.processFileForEncryption(plainFile.toString(), OLD_PASSPHRASE.toCharArray());
+        long length = Files.size(encryptedFile);
+        KdfParameters kdfParameters = new KdfParameters(KdfParameters.Algorithm.PBKDF2_SHA512, 3000);
+
+        try (MasterKeyCache oldKeys = new MasterKeyCache(OLD_PASSPHRASE.toCharArray());
+             MasterKeyCache newKeys = new MasterKeyCache(NEW_PASSPHRASE.toCharArray(), null, kdfParameters)) {
+            new CipherEngine(Cipher.ENCRYPT_MODE, EngineConfig.defaults())
+                    .rekeyFile(encryptedFile.toString(), oldKeys, newKeys, CipherUtil.generateSalt());
+        }
+
+        assertEquals(length, Files.size(encryptedFile));
+        try (FileChannel channel = FileChannel.open(encryptedFile, StandardOpenOption.READ)) {
+            assertEquals(kdfParameters, FileProcessor.readHeader(channel).getKdfParameters());
+        }
+        assertDecryptsOnlyWith(NEW_PASSPHRASE);
+    }
+
+    @Test
+    public void testWrongPassphraseLeavesFileUntouched() throws Exception {
+        FileProcessor.processFileForEncryption(plainFile.toString(), OLD_PASSPHRASE.toCharArray());
+        byte[] before = Files.readAllBytes(encryptedFile);
+
+        assertThrows(CryptoException.class, () -> rekey("not the right passphrase at all"));
+        assertArrayEquals(before, Files.readAllBytes(encryptedFile));
+    }
+
+    private void rekey(String oldPassphrase) throws Exception {
+        try (MasterKeyCache oldKeys = new MasterKeyCache(oldPassphrase.toCharArray());
+             MasterKeyCache newKeys = new MasterKeyCache(NEW_PASSPHRASE.toCharArray())) {
+            new CipherEngine(Cipher.ENCRYPT_MODE, EngineConfig.defaults())
+                    .rekeyFile(encryptedFile.toString(), oldKeys, newKeys, CipherUtil.generateSalt());
+        }
+    }
+
+    private void assertDecryptsOnlyWith(String passphrase) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = Files.newInputStream(encryptedFile)) {
+            FileProcessor.decryptStream(inputStream, outputStream, passphrase.toCharArray());
+        }
+        assertArrayEquals(data, outputStream.toByteArray());
+
+        try (InputStream inputStream = Files.newInputStream(encryptedFile)) {
+            assertThrows(CryptoException.class, () -> FileProcessor.decryptStream(inputStream,
+                    new ByteArrayOutputStream(), OLD_PASSPHRASE.toCharArray()));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.leithatia.ciphershell.file;
+
+import com.leithatia.ciphershell.exceptions.CryptoException;
+import com.leithatia.ciphershell.util.CipherUtil;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PipelinedCipherProcessorTest {
+
+    private static final int BUFFER_SIZE = 1000;
+
+    private SecretKey secretKey;
+    private byte[] iv;
+
+    @BeforeEach
+    public void setUp() throws CryptoException {
+        secretKey = CipherUtil.generateKey("This is my super duper secret passphrase.".toCharArray(),
+                CipherUtil.generateSalt());
+        iv = CipherUtil.generateInitialVector();
+    }
+
+    @Test
+    public void testRoundTripThroughManyRingCycles() throws Exception {
+        byte[] data = new byte[BUFFER_SIZE * 37 + 11];
+        new Random(1).nextBytes(data);
+
+        byte[] encrypted = run(data, CipherUtil.initCipher(Cipher.ENCRYPT_MODE, secretKey, iv));
+        byte[] decrypted = run(encrypted, CipherUtil.initCipher(Cipher.DECRYPT_MODE, secretKey, iv));
+
+        assertArrayEquals(data, decrypted, "Decrypted data should match original data");
+    }
+
+    @Test
+    public void testRoundTripOfInputEndingOnBufferBoundary() throws Exception {
+        byte[] data = new byte[BUFFER_SIZE * 4];
+
+        byte[] encrypted = run(data, CipherUtil.initCipher(Cipher.ENCRYPT_MODE, secretKey, iv));
+        byte[] decrypted = run(encrypted, CipherUtil.initCipher(Cipher.DECRYPT_MODE, secretKey, iv));
+
+        assertArrayEquals(data, decrypted, "Decrypted data should match original data");
+    }
+
+    @Test
+    public void testCipherFailureIsReportedAsCryptoException() throws Exception {
+        byte[] encrypted = run(new byte[BUFFER_SIZE * 3], CipherUtil.initCipher(Cipher.ENCRYPT_MODE, secretKey, iv));
+        SecretKey wrongKey = CipherUtil.generateKey("This is not the passphrase you are looking for.".toCharArray(),
+                CipherUtil.generateSalt());
+
+        assertThrows(CryptoException.class,
+                () -> run(encrypted, CipherUtil.initCipher(Cipher.DECRYPT_MODE, wrongKey, iv)));
+    }
+
+    private static byte[] run(byte[] data, Cipher cipher) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PipelinedCipherProcessor.process(Channels.newChannel(new ByteArrayInputStream(data)),
+                Channels.newChannel(output), BUFFER_SIZE, BUFFER_SIZE + 2 * cipher.getBlockSize(),
+                (input, out, last) -> {
+                    if (last) {
+                        cipher.doFinal(input, out);
+                    } else {
+                        cipher.update(input, out);
+                    }
+                });
+        return output.toByteArray();
+    }
+}